@@ -15,6 +15,7 @@ import java.io.IOException;
 public class AccessUtils {
 
     public static final int STORE_MESSAGE = MessageHandler.STORE_MESSAGE;
+    public static final int FLUSH_GROUP_COMMIT = MessageHandler.FLUSH_GROUP_COMMIT;
     public static final int REMOVE_USER_ATTRIBUTE = MessageHandler.REMOVE_USER_ATTRIBUTE;
     public static final int SET_USER_ATTRIBUTE = MessageHandler.SET_USER_ATTRIBUTE;
 
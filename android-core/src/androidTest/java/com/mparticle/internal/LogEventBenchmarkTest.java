@@ -0,0 +1,104 @@
+package com.mparticle.internal;
+
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.mparticle.BaseCleanInstallEachTest;
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times the part of logging an event that runs on the caller's thread, with the message built there by
+ * {@link MessageManager#logEvent(MPEvent, String)}, and with only a snapshot of the event taken there by
+ * {@link MessageManager#logEventDeferred(MPEvent, String)}.
+ */
+public class LogEventBenchmarkTest extends BaseCleanInstallEachTest {
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int MEASURED_ITERATIONS = 10000;
+    private static final int ROUNDS = 3;
+
+    private MessageManager manager;
+    private NoOpMessageHandler messageHandler;
+    private MPEvent event;
+
+    @Override
+    protected void beforeClass() throws Exception {
+
+    }
+
+    @Override
+    protected void before() throws Exception {
+        ConfigManager configManager = new ConfigManager(mContext, MParticle.Environment.Production, "key", "secret");
+        AppStateManager appStateManager = new AppStateManager(mContext, true);
+        appStateManager.getSession().start(mContext);
+        messageHandler = new NoOpMessageHandler();
+        manager = new MessageManager(mContext, configManager, MParticle.InstallType.AutoDetect, appStateManager, null, messageHandler, null);
+        Map<String, String> info = new HashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            info.put("key " + i, "value " + i);
+        }
+        event = new MPEvent.Builder("benchmark event", MParticle.EventType.Navigation)
+                .info(info)
+                .addCustomFlag("flag", "value")
+                .build();
+    }
+
+    @Test
+    public void testLogEvent() throws Exception {
+        long built = nanosPerEvent(false);
+        long deferred = nanosPerEvent(true);
+        assertEquals(2 * ROUNDS * (WARMUP_ITERATIONS + MEASURED_ITERATIONS), messageHandler.sent);
+        Log.d(Constants.LOG_TAG, String.format("logEvent: %d ns/op building the message, %d ns/op deferring it", built, deferred));
+    }
+
+    /**
+     * @return the best time of several rounds
+     */
+    private long nanosPerEvent(boolean deferred) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                logEvent(deferred);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                logEvent(deferred);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / MEASURED_ITERATIONS);
+        }
+        return best;
+    }
+
+    private void logEvent(boolean deferred) {
+        if (deferred) {
+            manager.logEventDeferred(event, "benchmark activity");
+        } else {
+            manager.logEvent(event, "benchmark activity");
+        }
+    }
+
+    /**
+     * Drops stored messages, so that only the caller's side of logging an event is measured.
+     */
+    class NoOpMessageHandler extends MessageHandler {
+        int sent;
+
+        NoOpMessageHandler() {
+            super(Looper.getMainLooper(), null, mContext);
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            sent++;
+            return true;
+        }
+    }
+}
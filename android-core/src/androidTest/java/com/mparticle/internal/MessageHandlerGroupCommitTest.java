@@ -0,0 +1,97 @@
+package com.mparticle.internal;
+
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.mparticle.BaseCleanStartedEachTest;
+import com.mparticle.internal.database.services.AccessUtils;
+import com.mparticle.internal.database.services.MParticleDBManager;
+import com.mparticle.internal.networking.BaseMPMessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Compares STORE_MESSAGE throughput with and without group-commit mode.
+ */
+public class MessageHandlerGroupCommitTest extends BaseCleanStartedEachTest {
+    private static final int EVENT_COUNT = 200;
+    private static final int BURST_EVENT_COUNT = 10000;
+    private static final int BURST_STEP_EVENTS = 100;
+    private static final long BURST_STEP_MILLIS = 10;
+
+    @Override
+    protected void beforeClass() throws Exception {
+
+    }
+
+    @Override
+    protected void before() throws Exception {
+
+    }
+
+    @After
+    public void after() {
+        AccessUtils.setMessageStoredListener(null);
+    }
+
+    @Test
+    public void testGroupCommitThroughput() throws Exception {
+        double withoutGroupCommit = eventsPerSecond(1, 0, EVENT_COUNT, false);
+        double withGroupCommit = eventsPerSecond(Constants.GROUP_COMMIT_MESSAGE_LIMIT, Constants.GROUP_COMMIT_MAX_LATENCY, EVENT_COUNT, false);
+        Log.d(Constants.LOG_TAG, String.format("STORE_MESSAGE throughput: %.1f events/s without group-commit, %.1f events/s with group-commit", withoutGroupCommit, withGroupCommit));
+        assertTrue(withGroupCommit > 0);
+        assertTrue(withoutGroupCommit > 0);
+    }
+
+    /**
+     * Logs 10k events over about a second, and measures how quickly they are all written.
+     */
+    @Test
+    public void testBurstThroughput() throws Exception {
+        double withoutBuffer = eventsPerSecond(1, 0, BURST_EVENT_COUNT, true);
+        double withBuffer = eventsPerSecond(Constants.GROUP_COMMIT_MESSAGE_LIMIT, Constants.GROUP_COMMIT_MAX_LATENCY, BURST_EVENT_COUNT, true);
+        Log.d(Constants.LOG_TAG, String.format("Burst of %d events: stored at %.1f events/s without buffering, %.1f events/s with buffering", BURST_EVENT_COUNT, withoutBuffer, withBuffer));
+        assertTrue(withBuffer > 0);
+        assertTrue(withoutBuffer > 0);
+    }
+
+    private double eventsPerSecond(int messageLimit, long maxLatency, int eventCount, boolean paced) throws Exception {
+        HandlerThread handlerThread = new HandlerThread("groupCommitBenchmark");
+        handlerThread.start();
+        try {
+            MessageHandler handler = new MessageHandler(handlerThread.getLooper(), com.mparticle.AccessUtils.getMessageManager(), mContext);
+            handler.setGroupCommit(messageLimit, maxLatency);
+            handler.setMessageBufferCapacity(eventCount);
+            final CountDownLatch latch = new CountDownLatch(eventCount);
+            AccessUtils.setMessageStoredListener(new MParticleDBManager.MessageListener() {
+                @Override
+                public void onMessageStored(BaseMPMessage message) {
+                    latch.countDown();
+                }
+            });
+            Session session = new Session().start(mContext);
+            long start = System.nanoTime();
+            for (int i = 0; i < eventCount; i++) {
+                BaseMPMessage message = new BaseMPMessage.Builder(Constants.MessageType.EVENT, session, null, mStartingMpid)
+                        .name("event " + i)
+                        .timestamp(System.currentTimeMillis())
+                        .build();
+                handler.sendMessage(handler.obtainMessage(MessageHandler.STORE_MESSAGE, message));
+                if (paced && i % BURST_STEP_EVENTS == BURST_STEP_EVENTS - 1) {
+                    Thread.sleep(BURST_STEP_MILLIS);
+                }
+            }
+            assertTrue(latch.await(120, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - start;
+            return eventCount / (elapsed / 1000000000.0);
+        } finally {
+            handlerThread.quit();
+        }
+    }
+}
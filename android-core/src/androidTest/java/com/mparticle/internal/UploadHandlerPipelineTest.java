@@ -0,0 +1,64 @@
+package com.mparticle.internal;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.mparticle.BaseCleanStartedEachTest;
+import com.mparticle.MParticle;
+import com.mparticle.internal.database.services.mp.UploadService;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Measures how long it takes to drain a backlog of upload batches against the mock server, with and
+ * without concurrent uploads.
+ */
+public class UploadHandlerPipelineTest extends BaseCleanStartedEachTest {
+    private static final int BATCH_COUNT = 500;
+    private static final int SESSION_COUNT = 10;
+    private static final int SERVER_DELAY_MILLIS = 20;
+
+    @Override
+    protected void beforeClass() throws Exception {
+
+    }
+
+    @Override
+    protected void before() throws Exception {
+        mServer.setupDelayedEvents(SERVER_DELAY_MILLIS);
+    }
+
+    @Test
+    public void testDrainTime() throws Exception {
+        long sequential = drainMillis(1);
+        long concurrent = drainMillis(Constants.MAX_CONCURRENT_UPLOADS);
+        Log.d(Constants.LOG_TAG, String.format("Drained %d batches in %d ms sequentially, %d ms with %d uploads in flight", BATCH_COUNT, sequential, concurrent, Constants.MAX_CONCURRENT_UPLOADS));
+    }
+
+    private long drainMillis(int maxConcurrentUploads) throws Exception {
+        AccessUtils.clearMessages(com.mparticle.AccessUtils.getMessageManager());
+        UploadHandler handler = AccessUtils.getUploadHandler();
+        handler.setMaxConcurrentUploads(maxConcurrentUploads);
+        ConfigManager configManager = MParticle.getInstance().getConfigManager();
+        SQLiteDatabase database = DatabaseTables.getInstance(mContext).getMParticleDatabase();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < BATCH_COUNT; i++) {
+                MessageBatch batch = MessageBatch.create(false, configManager, new JSONObject(), mStartingMpid);
+                batch.addMessage(new JSONObject().put(Constants.MessageKey.TYPE, Constants.MessageType.EVENT).put(Constants.MessageKey.NAME, "event " + i).toString());
+                UploadService.insertUpload(database, batch, "session " + (i % SESSION_COUNT), configManager.getApiKey());
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        long start = System.currentTimeMillis();
+        handler.upload(false);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(0, handler.mParticleDBManager.getReadyUploads(null, 1).size());
+        return elapsed;
+    }
+}
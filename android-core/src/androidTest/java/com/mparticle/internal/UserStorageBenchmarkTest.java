@@ -0,0 +1,85 @@
+package com.mparticle.internal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.mparticle.BaseCleanInstallEachTest;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times reading the values of 20 users the way it's done on a cold start, from a SharedPreferences file per user, and
+ * from a single {@link UserStorageFile}.
+ */
+public class UserStorageBenchmarkTest extends BaseCleanInstallEachTest {
+    private static final int USER_COUNT = 20;
+    private static final String PREFERENCES_PREFIX = "mp::benchmark::";
+
+    @Override
+    protected void beforeClass() throws Exception {
+
+    }
+
+    @Override
+    protected void before() throws Exception {
+
+    }
+
+    @Test
+    public void testColdStartReadTime() throws Exception {
+        for (int i = 0; i < USER_COUNT; i++) {
+            SharedPreferences.Editor editor = mContext.getSharedPreferences(PREFERENCES_PREFIX + i, Context.MODE_PRIVATE).edit();
+            editor.putString("mp::cart", "cart " + i);
+            editor.putInt("mp::breadcrumbs::sessioncount", i);
+            editor.putLong("mp::lastusedate", i);
+            editor.putString("mp::user_identities", "identities " + i);
+            editor.commit();
+        }
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        File file = new File(mContext.getFilesDir(), "mp_benchmark_user_storage");
+        file.delete();
+        UserStorageFile storage = new UserStorageFile(file, writer);
+        for (int i = 0; i < USER_COUNT; i++) {
+            storage.put(i, "mp::cart", "cart " + i);
+            storage.put(i, "mp::breadcrumbs::sessioncount", i);
+            storage.put(i, "mp::lastusedate", (long) i);
+            storage.put(i, "mp::user_identities", "identities " + i);
+        }
+        storage.flush();
+
+        //SharedPreferences instances are cached per name for the life of the process, so every name read here is new
+        long start = System.nanoTime();
+        int total = 0;
+        for (int i = 0; i < USER_COUNT; i++) {
+            SharedPreferences preferences = mContext.getSharedPreferences(PREFERENCES_PREFIX + i, Context.MODE_PRIVATE);
+            total += preferences.getInt("mp::breadcrumbs::sessioncount", 0);
+            preferences.getString("mp::cart", null);
+        }
+        double preferencesTime = (System.nanoTime() - start) / 1000000.0;
+        assertEquals(USER_COUNT * (USER_COUNT - 1) / 2, total);
+
+        start = System.nanoTime();
+        total = 0;
+        UserStorageFile read = new UserStorageFile(file, writer);
+        for (long mpId : read.getMpIds()) {
+            total += (Integer) read.get(mpId, "mp::breadcrumbs::sessioncount");
+            read.get(mpId, "mp::cart");
+        }
+        double fileTime = (System.nanoTime() - start) / 1000000.0;
+        assertEquals(USER_COUNT * (USER_COUNT - 1) / 2, total);
+
+        Log.d(Constants.LOG_TAG, String.format("Reading %d users: %.2f ms from SharedPreferences, %.2f ms from a single file", USER_COUNT, preferencesTime, fileTime));
+        for (int i = 0; i < USER_COUNT; i++) {
+            mContext.getSharedPreferences(PREFERENCES_PREFIX + i, Context.MODE_PRIVATE).edit().clear().commit();
+        }
+        file.delete();
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,118 @@
+package com.mparticle.internal.database.services;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.mparticle.BaseCleanInstallEachTest;
+import com.mparticle.internal.Constants;
+import com.mparticle.internal.DatabaseTables;
+import com.mparticle.internal.dto.UserAttributeResponse;
+import com.mparticle.internal.database.services.mp.UserAttributesService;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times setting one user attribute and building the attributes JSON for the change message, for a user with
+ * 200 attributes, with and without the user attribute cache.
+ */
+public class UserAttributeCacheBenchmarkTest extends BaseCleanInstallEachTest {
+    private static final int ATTRIBUTE_COUNT = 200;
+    private static final int ITERATIONS = 100;
+    private static final long MPID = 12345;
+
+    @Override
+    protected void beforeClass() throws Exception {
+
+    }
+
+    @Override
+    protected void before() throws Exception {
+
+    }
+
+    @Test
+    public void testSetUserAttributeTime() throws Exception {
+        DatabaseTables databaseTables = DatabaseTables.getInstance(mContext);
+        MParticleDBManager dbManager = new MParticleDBManager(mContext, databaseTables);
+        SQLiteDatabase database = databaseTables.getMParticleDatabase();
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < ATTRIBUTE_COUNT; i++) {
+            UserAttributesService.insertAttribute(database, "key " + i, "value " + i, time, false, MPID);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Map<String, String> singles = new HashMap<String, String>();
+            singles.put("key " + (i % ATTRIBUTE_COUNT), "uncached " + i);
+            setUserAttributeUncached(database, singles);
+            buildJsonUncached(database);
+        }
+        double uncached = (System.nanoTime() - start) / (ITERATIONS * 1000000.0);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            UserAttributeResponse response = new UserAttributeResponse();
+            response.attributeSingles = new HashMap<String, String>();
+            response.attributeSingles.put("key " + (i % ATTRIBUTE_COUNT), "cached " + i);
+            response.time = System.currentTimeMillis();
+            response.mpId = MPID;
+            dbManager.setUserAttribute(response);
+            dbManager.getAllUserAttributesJson(MPID);
+        }
+        double cached = (System.nanoTime() - start) / (ITERATIONS * 1000000.0);
+
+        Log.d(Constants.LOG_TAG, String.format("setUserAttribute with %d attributes: %.2f ms without the cache, %.2f ms with the cache", ATTRIBUTE_COUNT, uncached, cached));
+        JSONObject json = dbManager.getAllUserAttributesJson(MPID);
+        assertEquals(ATTRIBUTE_COUNT, json.length());
+        JSONObject stored = buildJsonUncached(database);
+        for (int i = 0; i < ATTRIBUTE_COUNT; i++) {
+            assertEquals(stored.getString("key " + i), json.getString("key " + i));
+        }
+    }
+
+    /**
+     * What {@link MParticleDBManager#setUserAttribute(UserAttributeResponse)} did before the cache: read every
+     * attribute to compare against, then write the changed ones.
+     */
+    private void setUserAttributeUncached(SQLiteDatabase database, Map<String, String> singles) {
+        Map<String, Object> currentValues = new HashMap<String, Object>();
+        currentValues.putAll(UserAttributesService.getUserAttributesSingles(database, MPID));
+        currentValues.putAll(UserAttributesService.getUserAttributesLists(database, MPID));
+        database.beginTransaction();
+        try {
+            long time = System.currentTimeMillis();
+            for (Map.Entry<String, String> entry : singles.entrySet()) {
+                if (entry.getValue().equals(currentValues.get(entry.getKey()))) {
+                    continue;
+                }
+                UserAttributesService.deleteAttributes(database, entry.getKey(), MPID);
+                UserAttributesService.insertAttribute(database, entry.getKey(), entry.getValue(), time, false, MPID);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private JSONObject buildJsonUncached(SQLiteDatabase database) throws Exception {
+        JSONObject json = new JSONObject();
+        TreeMap<String, String> singles = UserAttributesService.getUserAttributesSingles(database, MPID);
+        for (Map.Entry<String, String> entry : singles.entrySet()) {
+            json.put(entry.getKey(), entry.getValue());
+        }
+        TreeMap<String, List<String>> lists = UserAttributesService.getUserAttributesLists(database, MPID);
+        for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+            json.put(entry.getKey(), new JSONArray(entry.getValue()));
+        }
+        return json;
+    }
+}
@@ -111,6 +111,22 @@ public class MessageServiceTest extends BaseMPServiceTest {
 
     }
 
+    @Test
+    public void testCompactMessages() throws JSONException {
+        Map<Integer, BaseMPMessage> testMessages = new HashMap<Integer, BaseMPMessage>();
+        for (int i = 0; i < 20; i++) {
+            BaseMPMessage message = getMpMessage();
+            MessageService.insertMessage(database, "apiKey", message, mpid1, i % 2 == 0);
+            testMessages.put(i, message);
+        }
+        List<MessageService.ReadyMessage> readyMessages = MessageService.getMessagesForUpload(database);
+        assertEquals(20, readyMessages.size());
+        for (int i = 0; i < readyMessages.size(); i++) {
+            //compact and JSON messages must both read back as the exact JSON that was stored
+            assertEquals(testMessages.get(i).toString(), readyMessages.get(i).getMessage());
+        }
+    }
+
     @Test
     public void testMessageFlow() throws JSONException {
         for (int i = 0; i < 10; i++) {
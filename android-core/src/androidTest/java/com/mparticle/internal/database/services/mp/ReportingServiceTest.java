@@ -92,6 +92,27 @@ public class ReportingServiceTest extends BaseMPServiceTest {
          assertEquals(messagesFor3.size(), 0);
      }
 
+     @Test
+     public void testDeleteReportingMessagesForUpload() throws JSONException {
+         for (JsonReportingMessage reportingMessage: getNReportingMessages(20)) {
+             ReportingService.insertReportingMessage(database, reportingMessage, 2L);
+         }
+         for (JsonReportingMessage reportingMessage: getNReportingMessages(10)) {
+             ReportingService.insertReportingMessage(database, reportingMessage, Constants.TEMPORARY_MPID);
+         }
+         List<ReportingService.ReportingMessage> messages = ReportingService.getReportingMessagesForUpload(database);
+         assertEquals(20, messages.size());
+         for (JsonReportingMessage reportingMessage: getNReportingMessages(5)) {
+             ReportingService.insertReportingMessage(database, reportingMessage, 3L);
+         }
+
+         ReportingService.deleteReportingMessagesForUpload(database, messages.get(messages.size() - 1).getReportingMessageId());
+
+         assertEquals(0, ReportingService.getReportingMessagesForUpload(database, true, 2L).size());
+         assertEquals(5, ReportingService.getReportingMessagesForUpload(database, true, 3L).size());
+         assertEquals(10, ReportingService.getReportingMessagesForUpload(database, true, Constants.TEMPORARY_MPID).size());
+     }
+
 
      @Test
      public void testEntryIntegrity() throws JSONException {
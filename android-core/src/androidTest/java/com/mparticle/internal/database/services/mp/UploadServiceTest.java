@@ -0,0 +1,63 @@
+package com.mparticle.internal.database.services.mp;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.mparticle.MParticle;
+import com.mparticle.internal.ConfigManager;
+import com.mparticle.internal.Constants;
+import com.mparticle.internal.MessageBatch;
+import com.mparticle.internal.dto.ReadyUpload;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class UploadServiceTest extends BaseMPServiceTest {
+
+    @Test
+    public void testGetReadyUploadsVisitsEveryRowInOrder() throws Exception {
+        ConfigManager configManager = new ConfigManager(InstrumentationRegistry.getContext(), MParticle.Environment.Production, "key", "secret");
+        int uploadCount = 25;
+        for (int i = 0; i < uploadCount; i++) {
+            MessageBatch batch = MessageBatch.create(false, configManager, new JSONObject(), 1);
+            //insert out of order, and with several uploads sharing a timestamp
+            batch.put(Constants.MessageKey.TIMESTAMP, (uploadCount - i) / 3);
+            UploadService.insertUpload(database, batch, "session", "key");
+        }
+
+        List<ReadyUpload> visited = new ArrayList<ReadyUpload>();
+        List<ReadyUpload> page = UploadService.getReadyUploads(database, null, 4);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 4);
+            visited.addAll(page);
+            page = UploadService.getReadyUploads(database, page.get(page.size() - 1), 4);
+        }
+        assertEquals(uploadCount, visited.size());
+        for (int i = 1; i < visited.size(); i++) {
+            ReadyUpload previous = visited.get(i - 1);
+            ReadyUpload current = visited.get(i);
+            assertTrue(previous.getCreatedAt() < current.getCreatedAt() ||
+                    (previous.getCreatedAt() == current.getCreatedAt() && previous.getId() < current.getId()));
+        }
+    }
+
+    @Test
+    public void testGetReadyUploadsAfterDelete() throws Exception {
+        ConfigManager configManager = new ConfigManager(InstrumentationRegistry.getContext(), MParticle.Environment.Production, "key", "secret");
+        for (int i = 0; i < 10; i++) {
+            UploadService.insertUpload(database, MessageBatch.create(false, configManager, new JSONObject(), 1), "session", "key");
+        }
+        List<ReadyUpload> page = UploadService.getReadyUploads(database, null, 5);
+        for (ReadyUpload readyUpload : page) {
+            UploadService.deleteUpload(database, readyUpload.getId());
+        }
+        //deleting the previous page must not cause any of the following uploads to be skipped
+        assertEquals(5, UploadService.getReadyUploads(database, page.get(page.size() - 1), 10).size());
+        assertEquals(5, UploadService.getReadyUploads(database, null, 10).size());
+    }
+}
@@ -0,0 +1,143 @@
+package com.mparticle.internal.database.tables.mp;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.mparticle.internal.Constants;
+import com.mparticle.internal.database.BaseDatabase;
+import com.mparticle.internal.database.services.SQLiteOpenHelperWrapper;
+import com.mparticle.internal.database.services.mp.BreadcrumbService;
+import com.mparticle.internal.database.services.mp.MessageService;
+import com.mparticle.internal.database.services.mp.UploadService;
+import com.mparticle.internal.database.services.mp.UserAttributesService;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times the hot queries against a 50k message offline backlog, before and after the
+ * secondary indexes are created.
+ */
+public class IndexBenchmarkTest extends BaseTableTest {
+    private static final int MESSAGE_COUNT = 50000;
+    private static final int BREADCRUMB_COUNT = 5000;
+    private static final int ATTRIBUTE_COUNT = 1000;
+    private static final int UPLOAD_COUNT = 1000;
+    private static final int MPID_COUNT = 5;
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void testIndexedQueryTime() throws Exception {
+        SQLiteDatabase database = new BaseDatabase(new SQLiteOpenHelperWrapper() {
+            @Override
+            public void onCreate(SQLiteDatabase database) {
+                database.execSQL(SessionTable.CREATE_SESSIONS_DDL);
+                database.execSQL(MessageTable.CREATE_MESSAGES_DDL);
+                database.execSQL(UploadTable.CREATE_UPLOADS_DDL);
+                database.execSQL(BreadcrumbTable.CREATE_BREADCRUMBS_DDL);
+                database.execSQL(ReportingTable.CREATE_REPORTING_DDL);
+                database.execSQL(UserAttributesTable.CREATE_USER_ATTRIBUTES_DDL);
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+                //do nothing
+            }
+        }, DB_NAME).getWritableDatabase();
+        populate(database);
+
+        int[] unindexedCounts = new int[5];
+        double[] unindexed = timeQueries(database, unindexedCounts);
+        MParticleDatabaseHelper.createIndexes(database);
+        int[] indexedCounts = new int[5];
+        double[] indexed = timeQueries(database, indexedCounts);
+
+        String[] names = {"getMessagesForUpload", "getSessionHistory", "getBreadcrumbs", "getUserAttributesSingles", "getReadyUploads"};
+        for (int i = 0; i < names.length; i++) {
+            Log.d(Constants.LOG_TAG, String.format("%s: %.2f ms without indexes, %.2f ms with indexes", names[i], unindexed[i], indexed[i]));
+            assertEquals(unindexedCounts[i], indexedCounts[i]);
+        }
+        database.close();
+    }
+
+    private void populate(SQLiteDatabase database) {
+        long time = System.currentTimeMillis() - MESSAGE_COUNT;
+        database.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                values.clear();
+                values.put(MessageTable.MessageTableColumns.SESSION_ID, "session " + (i / 1000));
+                values.put(MessageTable.MessageTableColumns.API_KEY, "api key");
+                values.put(MessageTable.MessageTableColumns.MESSAGE, "{\"dt\":\"e\",\"n\":\"event " + i + "\"}");
+                //the older half of the backlog has been uploaded, and is waiting on session history
+                values.put(MessageTable.MessageTableColumns.STATUS, i < MESSAGE_COUNT / 2 ? Constants.Status.UPLOADED : Constants.Status.READY);
+                values.put(MessageTable.MessageTableColumns.CREATED_AT, time + i);
+                values.put(MessageTable.MessageTableColumns.MESSAGE_TYPE, Constants.MessageType.EVENT);
+                values.put(MessageTable.MessageTableColumns.MP_ID, i % MPID_COUNT);
+                database.insert(MessageTable.MessageTableColumns.TABLE_NAME, null, values);
+            }
+            for (int i = 0; i < BREADCRUMB_COUNT; i++) {
+                values.clear();
+                values.put(BreadcrumbTable.BreadcrumbTableColumns.SESSION_ID, "session " + (i / 100));
+                values.put(BreadcrumbTable.BreadcrumbTableColumns.API_KEY, "api key");
+                values.put(BreadcrumbTable.BreadcrumbTableColumns.MESSAGE, "{\"dt\":\"bc\",\"l\":\"breadcrumb " + i + "\"}");
+                values.put(BreadcrumbTable.BreadcrumbTableColumns.CREATED_AT, time + i);
+                values.put(BreadcrumbTable.BreadcrumbTableColumns.MP_ID, i % MPID_COUNT);
+                database.insert(BreadcrumbTable.BreadcrumbTableColumns.TABLE_NAME, null, values);
+            }
+            for (int i = 0; i < ATTRIBUTE_COUNT; i++) {
+                values.clear();
+                values.put(UserAttributesTable.UserAttributesTableColumns.ATTRIBUTE_KEY, "key " + i);
+                values.put(UserAttributesTable.UserAttributesTableColumns.ATTRIBUTE_VALUE, "value " + i);
+                values.put(UserAttributesTable.UserAttributesTableColumns.IS_LIST, false);
+                values.put(UserAttributesTable.UserAttributesTableColumns.CREATED_AT, time + i);
+                values.put(UserAttributesTable.UserAttributesTableColumns.MP_ID, i % MPID_COUNT);
+                database.insert(UserAttributesTable.UserAttributesTableColumns.TABLE_NAME, null, values);
+            }
+            for (int i = 0; i < UPLOAD_COUNT; i++) {
+                values.clear();
+                values.put(UploadTable.UploadTableColumns.API_KEY, "api key");
+                values.put(UploadTable.UploadTableColumns.MESSAGE, "{\"dt\":\"h\"}");
+                values.put(UploadTable.UploadTableColumns.CREATED_AT, time + UPLOAD_COUNT - i);
+                database.insert(UploadTable.UploadTableColumns.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private double[] timeQueries(SQLiteDatabase database, int[] counts) throws Exception {
+        long[] elapsed = new long[counts.length];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            counts[0] = MessageService.getMessagesForUpload(database).size();
+            elapsed[0] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            counts[1] = MessageService.getSessionHistory(database, "session 0").size();
+            elapsed[1] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            counts[2] = BreadcrumbService.getBreadcrumbs(database, InstrumentationRegistry.getContext(), 1L).length();
+            elapsed[2] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            counts[3] = UserAttributesService.getUserAttributesSingles(database, 1).size();
+            elapsed[3] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            counts[4] = UploadService.getReadyUploads(database, null, Constants.READY_UPLOAD_PAGE_SIZE).size();
+            elapsed[4] += System.nanoTime() - start;
+        }
+        double[] averages = new double[elapsed.length];
+        for (int i = 0; i < elapsed.length; i++) {
+            averages[i] = elapsed[i] / (ITERATIONS * 1000000.0);
+        }
+        return averages;
+    }
+}
@@ -31,7 +31,7 @@ public class MParticleUtils {
 
     public static void awaitStoreMessage() throws InterruptedException {
         Handler messageHandler = AccessUtils.getMessageHandler();
-        while(messageHandler.hasMessages(AccessUtils.STORE_MESSAGE)) {
+        while(messageHandler.hasMessages(AccessUtils.STORE_MESSAGE) || messageHandler.hasMessages(AccessUtils.FLUSH_GROUP_COMMIT)) {
             Thread.sleep(500);
             //do nothing, just block
         }
@@ -93,6 +93,14 @@ public class Server {
         return this;
     }
 
+    public Server setupDelayedEvents(int delayMillis) {
+        mWireMockServer.stubFor(post(urlPathMatching("/v([0-9]*)/([0-9a-zA-Z]*)/events"))
+                .willReturn(aResponse()
+                        .withStatus(202)
+                        .withFixedDelay(delayMillis)));
+        return this;
+    }
+
     public Server setupHappyIdentify() {
         mWireMockServer.stubFor(post(urlPathMatching("/v([0-9]*)/identify"))
                 .willReturn(aResponse()
@@ -95,6 +95,9 @@ public class MParticle {
         configManager.setUploadInterval(options.getUploadInterval());
         configManager.setSessionTimeout(options.getSessionTimeout());
         configManager.setIdentityConnectionTimeout(options.getConnectionTimeout());
+        configManager.setCompactMessageStorage(options.isCompactMessageStorageEnabled());
+        configManager.setUploadPolicy(options.getUploadPolicy());
+        configManager.setAsyncKitDispatch(options.isAsyncKitDispatchEnabled(), options.getKitQueueCapacity(), options.getKitQueueOverflow());
         AppStateManager appStateManager = new AppStateManager(options.getContext());
         appStateManager.setConfigManager(configManager);
         
@@ -307,7 +310,7 @@ public class MParticle {
     public void logEvent(MPEvent event) {
         if (mConfigManager.isEnabled() && checkEventLimit()) {
             mAppStateManager.ensureActiveSession();
-            mMessageManager.logEvent(event, mAppStateManager.getCurrentActivityName());
+            mMessageManager.logEventDeferred(event, mAppStateManager.getCurrentActivityName());
             Logger.debug("Logged event - \n", event.toString());
             mKitManager.logEvent(event);
 
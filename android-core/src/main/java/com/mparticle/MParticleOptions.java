@@ -2,14 +2,17 @@ package com.mparticle;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.mparticle.identity.BaseIdentityTask;
 import com.mparticle.identity.IdentityApiRequest;
 import com.mparticle.identity.IdentityStateListener;
 import com.mparticle.internal.ConfigManager;
+import com.mparticle.internal.Constants;
 import com.mparticle.internal.Logger;
 import com.mparticle.internal.MPUtility;
 import com.mparticle.internal.PushRegistrationHelper;
+import com.mparticle.internal.UploadPolicy;
 
 /**
  * class used for passing optional settings to the SDK when it is started
@@ -35,6 +38,11 @@ public class MParticleOptions {
     private LocationTracking mLocationTracking;
     private PushRegistrationHelper.PushRegistration mPushRegistration;
     private Integer mIdentityConnectionTimeout = ConfigManager.DEFAULT_CONNECTION_TIMEOUT_SECONDS;
+    private Boolean mCompactMessageStorage = false;
+    private UploadPolicy mUploadPolicy;
+    private Boolean mAsyncKitDispatch = false;
+    private Integer mKitQueueCapacity = Constants.DEFAULT_KIT_QUEUE_CAPACITY;
+    private KitQueueOverflow mKitQueueOverflow = KitQueueOverflow.DROP_OLDEST;
 
     private MParticleOptions() {
     }
@@ -99,6 +107,25 @@ public class MParticleOptions {
         } else if (builder.identityConnectionTimeout != null) {
             Logger.warning(String.format("Connection Timeout milliseconds must be a positive number, greater than %s second. Defaulting to %s seconds", String.valueOf(ConfigManager.MINIMUM_CONNECTION_TIMEOUT_SECONDS), String.valueOf(ConfigManager.DEFAULT_CONNECTION_TIMEOUT_SECONDS)));
         }
+        if (builder.compactMessageStorage != null) {
+            this.mCompactMessageStorage = builder.compactMessageStorage;
+        }
+        if (builder.uploadPolicy != null) {
+            this.mUploadPolicy = builder.uploadPolicy;
+        }
+        if (builder.asyncKitDispatch != null) {
+            this.mAsyncKitDispatch = builder.asyncKitDispatch;
+        }
+        if (builder.kitQueueCapacity != null) {
+            if (builder.kitQueueCapacity <= 0) {
+                Logger.warning("Kit queue capacity must be a positive number, disregarding value");
+            } else {
+                this.mKitQueueCapacity = builder.kitQueueCapacity;
+            }
+        }
+        if (builder.kitQueueOverflow != null) {
+            this.mKitQueueOverflow = builder.kitQueueOverflow;
+        }
     }
 
     /**
@@ -217,6 +244,30 @@ public class MParticleOptions {
         return mIdentityConnectionTimeout;
     }
 
+    public boolean isAsyncKitDispatchEnabled() {
+        return mAsyncKitDispatch;
+    }
+
+    public int getKitQueueCapacity() {
+        return mKitQueueCapacity;
+    }
+
+    public KitQueueOverflow getKitQueueOverflow() {
+        return mKitQueueOverflow;
+    }
+
+    public boolean isCompactMessageStorageEnabled() {
+        return mCompactMessageStorage;
+    }
+
+    /**
+     * @return the upload policy, or null if the default {@link com.mparticle.internal.AdaptiveUploadPolicy} is used
+     */
+    @Nullable
+    public UploadPolicy getUploadPolicy() {
+        return mUploadPolicy;
+    }
+
     public static class Builder {
         private Context context;
         private String apiKey;
@@ -236,6 +287,11 @@ public class MParticleOptions {
         private LocationTracking locationTracking;
         private PushRegistrationHelper.PushRegistration pushRegistration;
         private Integer identityConnectionTimeout = null;
+        private Boolean compactMessageStorage = null;
+        private UploadPolicy uploadPolicy;
+        private Boolean asyncKitDispatch = null;
+        private Integer kitQueueCapacity = null;
+        private KitQueueOverflow kitQueueOverflow = null;
 
         private Builder(Context context) {
             this.context = context;
@@ -458,6 +514,63 @@ public class MParticleOptions {
             return this;
         }
 
+        /**
+         * Store events on the device in a compact binary format, rather than as JSON text. This reduces
+         * the size of the SDK's database, particularly while the device is offline. Data sent to mParticle is not affected.
+         *
+         * @param enabled true to enable compact storage, defaults to false
+         *
+         * @return the instance of the builder, for chaining calls
+         */
+        public Builder compactMessageStorage(boolean enabled) {
+            this.compactMessageStorage = enabled;
+            return this;
+        }
+
+        /**
+         * Decide when stored events are uploaded, in place of the default {@link com.mparticle.internal.AdaptiveUploadPolicy}.
+         * The policy is called on the SDK's upload thread.
+         *
+         * @param uploadPolicy the policy to use
+         *
+         * @return the instance of the builder, for chaining calls
+         */
+        public Builder uploadPolicy(@NonNull UploadPolicy uploadPolicy) {
+            this.uploadPolicy = uploadPolicy;
+            return this;
+        }
+
+        /**
+         * Forward events, screen views, user attributes and lifecycle callbacks to kits on background threads,
+         * rather than on the thread that called the mParticle API. Each kit receives calls in order, on its own
+         * queue, so a slow kit no longer delays the app or other kits. Kits that must be called on the main thread
+         * are still called there, and activity lifecycle callbacks are always made on the main thread.
+         *
+         * @param enabled true to dispatch to kits asynchronously, defaults to false
+         *
+         * @return the instance of the builder, for chaining calls
+         */
+        public Builder asyncKitDispatch(boolean enabled) {
+            this.asyncKitDispatch = enabled;
+            return this;
+        }
+
+        /**
+         * Enable asynchronous kit dispatch, see {@link #asyncKitDispatch(boolean)}, and set what happens when a
+         * kit falls behind.
+         *
+         * @param queueCapacity the most calls waiting for each kit
+         * @param overflow what to do with a call when that kit's queue is full
+         *
+         * @return the instance of the builder, for chaining calls
+         */
+        public Builder asyncKitDispatch(int queueCapacity, @NonNull KitQueueOverflow overflow) {
+            this.asyncKitDispatch = true;
+            this.kitQueueCapacity = queueCapacity;
+            this.kitQueueOverflow = overflow;
+            return this;
+        }
+
         /**
          * Builds this Builder into an MParticleOptions object which can be used to start the SDK
          *
@@ -520,6 +633,26 @@ public class MParticleOptions {
         }
     }
 
+    /**
+     * What to do when a kit's queue is full, when kits are dispatched to asynchronously.
+     */
+    public enum KitQueueOverflow {
+        /**
+         * Drop the oldest waiting call to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new call.
+         */
+        DROP_NEWEST,
+        /**
+         * Replace a waiting call that sets the same user attribute, user identity, location or opt-out status with
+         * the new call, and otherwise drop the oldest waiting call. The new call is made in the waiting call's place,
+         * so it may reach the kit before calls that were made between the two.
+         */
+        COALESCE
+    }
+
     static class LocationTracking {
         boolean enabled = true;
         String provider;
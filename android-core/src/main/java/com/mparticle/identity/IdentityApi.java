@@ -21,6 +21,7 @@ import com.mparticle.internal.database.services.MParticleDBManager;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Helper class that is used to access Identity endpoints to manage User's Attributes and Identities
@@ -38,9 +39,9 @@ public class IdentityApi {
 
     MParticleUserDelegate mUserDelegate;
     private MParticleIdentityClient mApiClient;
+    private IdentityRequestQueue mRequestQueue;
 
     private Set<IdentityStateListener> identityStateListeners = new HashSet<IdentityStateListener>();
-    private static Object lock = new Object();
 
     IdentityApi() {}
 
@@ -52,6 +53,7 @@ public class IdentityApi {
         this.mMessageManager = messageManager;
         configManager.addMpIdChangeListener(new IdentityStateListenerManager());
         setApiClient(new MParticleIdentityClientImpl(configManager, context));
+        this.mRequestQueue = new IdentityRequestQueue(mBackgroundHandler, configManager, new IdentityRequestCallbacks());
     }
 
     /**
@@ -129,7 +131,7 @@ public class IdentityApi {
      * @see IdentityApiResult
      */
     public MParticleTask<IdentityApiResult> logout(final IdentityApiRequest logoutRequest) {
-        return makeIdentityRequest(logoutRequest, new IdentityNetworkRequestRunnable() {
+        return makeIdentityRequest(IdentityRequestQueue.LOGOUT, logoutRequest, new IdentityNetworkRequestRunnable() {
             @Override
             public IdentityHttpResponse request(IdentityApiRequest request) throws Exception {
                 return getApiClient().logout(request);
@@ -160,7 +162,7 @@ public class IdentityApi {
      * @see IdentityApiResult
      */
     public MParticleTask<IdentityApiResult> login(@Nullable final IdentityApiRequest loginRequest) {
-        return makeIdentityRequest(loginRequest, new IdentityNetworkRequestRunnable() {
+        return makeIdentityRequest(IdentityRequestQueue.LOGIN, loginRequest, new IdentityNetworkRequestRunnable() {
             @Override
             public IdentityHttpResponse request(IdentityApiRequest request) throws Exception {
                 return getApiClient().login(request);
@@ -179,7 +181,7 @@ public class IdentityApi {
      * @see IdentityApiResult
      */
     public MParticleTask<IdentityApiResult> identify(final IdentityApiRequest identifyRequest) {
-        return makeIdentityRequest(identifyRequest, new IdentityNetworkRequestRunnable() {
+        return makeIdentityRequest(IdentityRequestQueue.IDENTIFY, identifyRequest, new IdentityNetworkRequestRunnable() {
             @Override
             public IdentityHttpResponse request(IdentityApiRequest request) throws Exception {
                 return getApiClient().identify(request);
@@ -210,62 +212,39 @@ public class IdentityApi {
             }
             task.setFailed(new IdentityHttpResponse(IdentityApi.UNKNOWN_ERROR, message));
         } else {
-            mBackgroundHandler.post(new Runnable() {
+            mRequestQueue.enqueue(IdentityRequestQueue.MODIFY, updateRequest, new IdentityNetworkRequestRunnable() {
                 @Override
-                public void run() {
-                    try {
-                        final IdentityHttpResponse result = getApiClient().modify(updateRequest);
-                        if (!result.isSuccessful()) {
-                            task.setFailed(result);
-                        } else {
-                            task.setSuccessful(new IdentityApiResult(getCurrentUser()));
-                            if (updateRequest.getUserIdentities() != null) {
-                                for (Map.Entry<MParticle.IdentityType, String> entry : updateRequest.getUserIdentities().entrySet()) {
-                                    mUserDelegate.setUserIdentity(entry.getValue(), entry.getKey(), mConfigManager.getMpid());
-                                }
-                            }
-                        }
-                    } catch (Exception ex) {
-                        task.setFailed(new IdentityHttpResponse(IdentityApi.UNKNOWN_ERROR, ex.toString()));
-                    }
+                public IdentityHttpResponse request(IdentityApiRequest request) throws Exception {
+                    return getApiClient().modify(request);
                 }
-            });
+            }, task);
         }
         return task;
     }
 
+    /**
+     * returns the latency and outcome of the Identity requests that have been made since the SDK was started,
+     * by type of request
+     *
+     * @return a map of request type, such as "login", to the requests of that type
+     *
+     * @see IdentityRequestStats
+     */
+    @NonNull
+    public Map<String, IdentityRequestStats> getRequestStats() {
+        if (mRequestQueue == null) {
+            return new TreeMap<String, IdentityRequestStats>();
+        }
+        return mRequestQueue.getStats();
+    }
 
-    private BaseIdentityTask makeIdentityRequest(IdentityApiRequest request, final IdentityNetworkRequestRunnable networkRequest) {
+    private BaseIdentityTask makeIdentityRequest(String type, IdentityApiRequest request, final IdentityNetworkRequestRunnable networkRequest) {
         if (request == null) {
             request = IdentityApiRequest.withEmptyUser().build();
         }
         final BaseIdentityTask task = new BaseIdentityTask();
         ConfigManager.setIdentityRequestInProgress(true);
-        final IdentityApiRequest identityApiRequest = request;
-        mBackgroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (lock) {
-                    try {
-                        long startingMpid = mConfigManager.getMpid();
-                        final IdentityHttpResponse result = networkRequest.request(identityApiRequest);
-
-                        if (!result.isSuccessful()) {
-                            ConfigManager.setIdentityRequestInProgress(false);
-                            task.setFailed(result);
-                        } else {
-                            long newMpid = result.getMpId();
-                            ConfigManager.setIdentityRequestInProgress(false);
-                            mUserDelegate.setUser(mContext, startingMpid, newMpid, identityApiRequest.getUserIdentities(), identityApiRequest.getUserAliasHandler());
-                            task.setSuccessful(new IdentityApiResult(getCurrentUser()));
-                        }
-                    } catch (Exception ex) {
-                        ConfigManager.setIdentityRequestInProgress(false);
-                        task.setFailed(new IdentityHttpResponse(IdentityApi.UNKNOWN_ERROR, ex.toString()));
-                    }
-                }
-            }
-        });
+        mRequestQueue.enqueue(type, request, networkRequest, task);
         return task;
     }
 
@@ -283,6 +262,23 @@ public class IdentityApi {
         mApiClient = client;
     }
 
+    class IdentityRequestCallbacks implements IdentityRequestQueue.Callbacks {
+
+        @Override
+        public IdentityApiResult onSuccess(String type, IdentityApiRequest request, long startingMpid, IdentityHttpResponse response) {
+            if (IdentityRequestQueue.MODIFY.equals(type)) {
+                if (request.getUserIdentities() != null) {
+                    for (Map.Entry<MParticle.IdentityType, String> entry : request.getUserIdentities().entrySet()) {
+                        mUserDelegate.setUserIdentity(entry.getValue(), entry.getKey(), mConfigManager.getMpid());
+                    }
+                }
+            } else {
+                mUserDelegate.setUser(mContext, startingMpid, response.getMpId(), request.getUserIdentities(), request.getUserAliasHandler());
+            }
+            return new IdentityApiResult(getCurrentUser());
+        }
+    }
+
     interface IdentityNetworkRequestRunnable {
         IdentityHttpResponse request(IdentityApiRequest request) throws Exception;
     }
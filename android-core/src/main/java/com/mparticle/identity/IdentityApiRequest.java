@@ -54,6 +54,44 @@ public final class IdentityApiRequest {
         }
     }
 
+    private IdentityApiRequest(IdentityApiRequest first, IdentityApiRequest next) {
+        this.userAliasHandler = first.userAliasHandler;
+        this.mpid = first.mpid;
+        this.userIdentities = new HashMap<MParticle.IdentityType, String>(first.userIdentities);
+        //only the identities the next request changes, since the others may be out of date if it was built before the
+        //first request was made
+        for (Map.Entry<MParticle.IdentityType, String> entry : next.userIdentities.entrySet()) {
+            String oldValue = next.oldUserIdentities == null ? null : next.oldUserIdentities.get(entry.getKey());
+            boolean changed = entry.getValue() == null ? oldValue != null : !entry.getValue().equals(oldValue);
+            if (changed || !this.userIdentities.containsKey(entry.getKey())) {
+                this.userIdentities.put(entry.getKey(), entry.getValue());
+            }
+        }
+        //an identity the first request changed is changed from its value before the first request
+        this.oldUserIdentities = new HashMap<MParticle.IdentityType, String>(next.oldUserIdentities);
+        for (MParticle.IdentityType identityType : first.userIdentities.keySet()) {
+            if (first.oldUserIdentities.containsKey(identityType)) {
+                this.oldUserIdentities.put(identityType, first.oldUserIdentities.get(identityType));
+            } else {
+                this.oldUserIdentities.remove(identityType);
+            }
+        }
+        this.otherNewIdentities = new HashMap<String, String>(first.otherNewIdentities);
+        this.otherNewIdentities.putAll(next.otherNewIdentities);
+        this.otherOldIdentities = new HashMap<String, String>(next.otherOldIdentities);
+        this.otherOldIdentities.putAll(first.otherOldIdentities);
+    }
+
+    /**
+     * combine two modify requests for the same user into one, which makes the same changes as making the requests one
+     * after the other. Every identity in the old identities of each request must also be in its new identities, which
+     * is the case for a request built with {@link #withUser(MParticleUser)}, otherwise an identity one request leaves
+     * out would be removed. An identity the next request doesn't change keeps the value the first request gives it
+     */
+    static IdentityApiRequest combine(IdentityApiRequest first, IdentityApiRequest next) {
+        return new IdentityApiRequest(first, next);
+    }
+
     /**
      * instantiate an IdentityApiRequest.Builder() with no existing state (no UserIdentities)
      *
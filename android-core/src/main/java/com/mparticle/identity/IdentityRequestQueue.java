@@ -0,0 +1,288 @@
+package com.mparticle.identity;
+
+import android.os.Handler;
+
+import com.mparticle.MParticle;
+import com.mparticle.internal.ConfigManager;
+import com.mparticle.internal.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Makes identity requests one at a time, in the order they were made, on the thread of the {@link Handler} it's given.
+ *
+ * Requests are shared and combined where that has the same result as making them one after the other:
+ * <ul>
+ *     <li>A login, logout or identify request that is identical to the last request waiting to be made, or the request
+ *     being made if none are waiting, is not made again. The caller's task completes with the result of the earlier
+ *     request.</li>
+ *     <li>A modify request made while another modify request for the same user is waiting is combined with it, so the
+ *     changes are sent to the server in a single request.</li>
+ * </ul>
+ *
+ * A request that fails with a 429 or 5xx response is retried up to {@link #MAX_ATTEMPTS} times in all, after an
+ * exponentially increasing delay with random jitter, so clients that were throttled together don't retry together.
+ * Later requests wait until it has completed.
+ */
+class IdentityRequestQueue {
+    static final int MAX_ATTEMPTS = 3;
+    static final long RETRY_BASE_DELAY_MILLIS = 1000;
+
+    static final String LOGIN = "login";
+    static final String LOGOUT = "logout";
+    static final String IDENTIFY = "identify";
+    static final String MODIFY = "modify";
+
+    //latency histogram, bucket i counts requests that took less than 2^i milliseconds
+    private static final int BUCKETS = 32;
+
+    private final Handler mHandler;
+    private final ConfigManager mConfigManager;
+    private final Callbacks mCallbacks;
+    private final Random mRandom = new Random();
+    private final LinkedList<Request> mWaiting = new LinkedList<Request>();
+    private final Map<String, Stats> mStats = new HashMap<String, Stats>();
+    private Request mCurrent;
+
+    interface Callbacks {
+        /**
+         * Called on the queue's thread when a request succeeds, to apply its result.
+         *
+         * @return the result the request's tasks complete with
+         */
+        IdentityApiResult onSuccess(String type, IdentityApiRequest request, long startingMpid, IdentityHttpResponse response);
+    }
+
+    IdentityRequestQueue(Handler handler, ConfigManager configManager, Callbacks callbacks) {
+        mHandler = handler;
+        mConfigManager = configManager;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * @param type one of {@link #LOGIN}, {@link #LOGOUT}, {@link #IDENTIFY} or {@link #MODIFY}
+     * @param task the caller's task, which is completed once the request has been made
+     */
+    void enqueue(String type, IdentityApiRequest request, IdentityApi.IdentityNetworkRequestRunnable networkRequest, BaseIdentityTask task) {
+        Request start = null;
+        synchronized (this) {
+            Request last = mWaiting.isEmpty() ? mCurrent : mWaiting.getLast();
+            if (last != null && last.type.equals(type)) {
+                if (!MODIFY.equals(type) && isSameRequest(last.request, request)) {
+                    Logger.verbose("Identity " + type + " request is identical to one already in progress, sharing its result.");
+                    last.tasks.add(task);
+                    return;
+                }
+                if (MODIFY.equals(type) && last != mCurrent && canCombineModify(last.request, request)) {
+                    Logger.verbose("Combining identity modify request with one that is waiting to be sent.");
+                    last.request = IdentityApiRequest.combine(last.request, request);
+                    last.tasks.add(task);
+                    return;
+                }
+            }
+            mWaiting.add(new Request(type, request, networkRequest, task));
+            if (mCurrent == null) {
+                mCurrent = mWaiting.removeFirst();
+                start = mCurrent;
+            }
+        }
+        if (start != null) {
+            post(start, 0);
+        }
+    }
+
+    synchronized Map<String, IdentityRequestStats> getStats() {
+        Map<String, IdentityRequestStats> stats = new TreeMap<String, IdentityRequestStats>();
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return stats;
+    }
+
+    private void post(final Request request, long delayMillis) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                send(request);
+            }
+        };
+        if (delayMillis > 0) {
+            mHandler.postDelayed(runnable, delayMillis);
+        } else {
+            mHandler.post(runnable);
+        }
+    }
+
+    private void send(Request request) {
+        long startingMpid = mConfigManager.getMpid();
+        IdentityHttpResponse response;
+        synchronized (this) {
+            request.attempts++;
+            getStats(request.type).networkCalls++;
+        }
+        try {
+            response = request.networkRequest.request(request.request);
+        } catch (Exception ex) {
+            response = new IdentityHttpResponse(IdentityApi.UNKNOWN_ERROR, ex.toString());
+        }
+        if (isRetryable(response) && request.attempts < MAX_ATTEMPTS) {
+            long delay = getRetryDelay(request.attempts);
+            Logger.warning("Identity " + request.type + " request failed with status " + response.getHttpCode() + ", retrying in " + delay + "ms.");
+            synchronized (this) {
+                getStats(request.type).retries++;
+            }
+            post(request, delay);
+            return;
+        }
+        complete(request, startingMpid, response);
+    }
+
+    private void complete(Request request, long startingMpid, IdentityHttpResponse response) {
+        if (!MODIFY.equals(request.type) && !hasWaitingUserRequest()) {
+            ConfigManager.setIdentityRequestInProgress(false);
+        }
+        IdentityApiResult result = null;
+        if (response.isSuccessful()) {
+            try {
+                result = mCallbacks.onSuccess(request.type, request.request, startingMpid, response);
+            } catch (Exception ex) {
+                response = new IdentityHttpResponse(IdentityApi.UNKNOWN_ERROR, ex.toString());
+            }
+        }
+        long latency = (System.nanoTime() - request.startTime) / 1000000;
+        Logger.verbose("Identity " + request.type + " request completed with status " + response.getHttpCode() + " in " + latency + "ms, after " + request.attempts + (request.attempts == 1 ? " attempt" : " attempts") + ".");
+        List<BaseIdentityTask> tasks;
+        Request next;
+        synchronized (this) {
+            //tasks that joined while the result was being applied get the same result
+            tasks = new ArrayList<BaseIdentityTask>(request.tasks);
+            getStats(request.type).record(tasks.size(), latency, result == null);
+            next = mWaiting.isEmpty() ? null : mWaiting.removeFirst();
+            mCurrent = next;
+        }
+        for (BaseIdentityTask task : tasks) {
+            if (result != null) {
+                task.setSuccessful(result);
+            } else {
+                task.setFailed(response);
+            }
+        }
+        if (next != null) {
+            post(next, 0);
+        }
+    }
+
+    private synchronized boolean hasWaitingUserRequest() {
+        for (Request request : mWaiting) {
+            if (!MODIFY.equals(request.type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long getRetryDelay(int attempts) {
+        long delay = RETRY_BASE_DELAY_MILLIS << (attempts - 1);
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Must be called while holding this queue's lock.
+     */
+    private Stats getStats(String type) {
+        Stats stats = mStats.get(type);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(type, stats);
+        }
+        return stats;
+    }
+
+    static boolean isRetryable(IdentityHttpResponse response) {
+        int code = response.getHttpCode();
+        return code == IdentityApi.THROTTLE_ERROR || (code >= 500 && code < 600);
+    }
+
+    static boolean isSameRequest(IdentityApiRequest request, IdentityApiRequest other) {
+        return request.getUserAliasHandler() == other.getUserAliasHandler()
+                && equals(request.mpid, other.mpid)
+                && equals(request.getUserIdentities(), other.getUserIdentities())
+                && equals(request.getOtherNewIdentities(), other.getOtherNewIdentities())
+                && equals(request.getOtherOldIdentities(), other.getOtherOldIdentities());
+    }
+
+    /**
+     * @see IdentityApiRequest#combine(IdentityApiRequest, IdentityApiRequest)
+     */
+    static boolean canCombineModify(IdentityApiRequest request, IdentityApiRequest next) {
+        return request.mpid != null && request.mpid.equals(next.mpid)
+                && hasEveryOldIdentity(request)
+                && hasEveryOldIdentity(next);
+    }
+
+    private static boolean hasEveryOldIdentity(IdentityApiRequest request) {
+        Map<MParticle.IdentityType, String> oldIdentities = request.getOldIdentities();
+        return oldIdentities != null && request.getUserIdentities().keySet().containsAll(oldIdentities.keySet());
+    }
+
+    private static boolean equals(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static class Request {
+        final String type;
+        final IdentityApi.IdentityNetworkRequestRunnable networkRequest;
+        final List<BaseIdentityTask> tasks = new ArrayList<BaseIdentityTask>();
+        final long startTime = System.nanoTime();
+        IdentityApiRequest request;
+        int attempts;
+
+        Request(String type, IdentityApiRequest request, IdentityApi.IdentityNetworkRequestRunnable networkRequest, BaseIdentityTask task) {
+            this.type = type;
+            this.request = request;
+            this.networkRequest = networkRequest;
+            tasks.add(task);
+        }
+    }
+
+    /**
+     * Access must be synchronized on the queue.
+     */
+    private static class Stats {
+        private final long[] latencyBuckets = new long[BUCKETS];
+        long requests;
+        long networkCalls;
+        long retries;
+        long failures;
+
+        void record(int requestCount, long latencyMillis, boolean failed) {
+            requests += requestCount;
+            if (failed) {
+                failures += requestCount;
+            }
+            latencyBuckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latencyMillis))] += requestCount;
+        }
+
+        IdentityRequestStats snapshot(String type) {
+            return new IdentityRequestStats(type, requests, networkCalls, retries, failures, getLatencyPercentile(0.5), getLatencyPercentile(0.99));
+        }
+
+        private long getLatencyPercentile(double percentile) {
+            long target = (long) Math.ceil(requests * percentile);
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += latencyBuckets[i];
+                if (count >= target && count > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.mparticle.identity;
+
+/**
+ * A snapshot of the identity requests of one type, such as login, that have been made since the SDK was started.
+ *
+ * Latencies are measured in milliseconds, from when a request was made until its callbacks were called, including
+ * time spent waiting for earlier requests and between retries. Percentiles are rounded up to the next power of two.
+ *
+ * @see IdentityApi#getRequestStats()
+ */
+public final class IdentityRequestStats {
+    private final String mType;
+    private final long mRequestCount;
+    private final long mNetworkCallCount;
+    private final long mRetryCount;
+    private final long mFailureCount;
+    private final long mLatencyP50;
+    private final long mLatencyP99;
+
+    IdentityRequestStats(String type, long requestCount, long networkCallCount, long retryCount, long failureCount, long latencyP50, long latencyP99) {
+        mType = type;
+        mRequestCount = requestCount;
+        mNetworkCallCount = networkCallCount;
+        mRetryCount = retryCount;
+        mFailureCount = failureCount;
+        mLatencyP50 = latencyP50;
+        mLatencyP99 = latencyP99;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * @return the number of requests that have completed, counting every caller of a request that was shared
+     */
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the number of calls made to the server, including retries. This is lower than the number of requests
+     * when identical requests were shared, or modify requests were combined
+     */
+    public long getNetworkCallCount() {
+        return mNetworkCallCount;
+    }
+
+    public long getRetryCount() {
+        return mRetryCount;
+    }
+
+    public long getFailureCount() {
+        return mFailureCount;
+    }
+
+    public long getLatencyP50() {
+        return mLatencyP50;
+    }
+
+    public long getLatencyP99() {
+        return mLatencyP99;
+    }
+
+    @Override
+    public String toString() {
+        return mType + ": " + mRequestCount + " requests, " + mNetworkCallCount + " network calls, " + mRetryCount + " retries, " + mFailureCount + " failures, p50 " + mLatencyP50 + "ms, p99 " + mLatencyP99 + "ms";
+    }
+}
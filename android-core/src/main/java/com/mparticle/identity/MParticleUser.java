@@ -76,13 +76,17 @@ public class MParticleUser {
      * @return whether the attributes where successfully set
      */
     public boolean setUserAttributes(Map<String, Object> userAttributes) {
-        boolean success = true;
-        for(Map.Entry<String, Object> entry: userAttributes.entrySet()) {
-            if (!setUserAttribute(entry.getKey(), entry.getValue())) {
-                success = false;
-            }
-        }
-        return success;
+        return mUserDelegate.setUserAttributes(userAttributes, null, getId());
+    }
+
+    /**
+     * start a batch of changes to the attributes of the User. None of the changes are made until
+     * {@link UserAttributeEditor#commit()} is called, and they are then made all at once
+     *
+     * @return an editor for the User's attributes
+     */
+    public UserAttributeEditor editUserAttributes() {
+        return new UserAttributeEditor(this);
     }
 
     /**
@@ -15,6 +15,7 @@ import com.mparticle.internal.Logger;
 import com.mparticle.internal.MPUtility;
 import com.mparticle.internal.MessageManager;
 import com.mparticle.internal.database.services.MParticleDBManager;
+import com.mparticle.internal.dto.UserAttributeResponse;
 import com.mparticle.segmentation.SegmentListener;
 
 import org.json.JSONArray;
@@ -22,6 +23,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -143,56 +146,126 @@ import java.util.Map;
     boolean setUserAttribute(String key, Object value, long userMpId, boolean synchronously) {
         if (mConfigManager.isEnabled() && mAppStateManager.getSession().checkEventLimit()) {
             MParticle.getInstance().getAppStateManager().ensureActiveSession();
-            if (MPUtility.isEmpty(key)) {
-                Logger.warning("setUserAttribute called with null key. This is a noop.");
+            UserAttributeResponse container = new UserAttributeResponse();
+            if (!addUserAttribute(container, key, value)) {
                 return false;
             }
-            if (key.length() > Constants.LIMIT_ATTR_NAME) {
-                Logger.warning("User attribute keys cannot be longer than " + Constants.LIMIT_ATTR_NAME + " characters, attribute not set: " + key);
-                return false;
+            if (container.attributeLists != null) {
+                List<String> values = container.attributeLists.get(key);
+                mMessageManager.setUserAttribute(key, values, userMpId, synchronously);
+                mKitManager.setUserAttributeList(key, values);
+            } else {
+                String stringValue = container.attributeSingles.get(key);
+                mMessageManager.setUserAttribute(key, stringValue, userMpId, synchronously);
+                mKitManager.setUserAttribute(key, stringValue);
             }
+            return true;
+        }
+        return false;
+    }
 
-            if (value != null && value instanceof List) {
-                List<Object> values = (List<Object>) value;
-                if (values.size() > Constants.LIMIT_USER_ATTR_LIST_LENGTH) {
-                    Logger.warning("setUserAttribute called with list longer than " + Constants.LIMIT_USER_ATTR_LIST_LENGTH + " elements, list not set.");
-                    return false;
+    /**
+     * Set and remove several attributes at once. The changes are stored in a single transaction, and forwarded
+     * to kits in a single call. Attributes that are not valid are skipped, and the others are still set.
+     *
+     * @return false if any of the attributes were not valid, or the changes could not be made
+     */
+    public boolean setUserAttributes(Map<String, Object> userAttributes, Collection<String> removedKeys, long userMpId) {
+        if (!mConfigManager.isEnabled() || !mAppStateManager.getSession().checkEventLimit()) {
+            return false;
+        }
+        MParticle.getInstance().getAppStateManager().ensureActiveSession();
+        boolean success = true;
+        UserAttributeResponse container = new UserAttributeResponse();
+        if (userAttributes != null) {
+            for (Map.Entry<String, Object> entry : userAttributes.entrySet()) {
+                if (!addUserAttribute(container, entry.getKey(), entry.getValue())) {
+                    success = false;
                 }
-                List<String> clonedList = new ArrayList<String>();
-                try {
-                    for (int i = 0; i < values.size(); i++) {
-                        if (values.get(i).toString().length() > Constants.LIMIT_USER_ATTR_LIST_ITEM_LENGTH) {
-                            Logger.warning("setUserAttribute called with list containing element longer than " + Constants.LIMIT_USER_ATTR_LIST_ITEM_LENGTH + " characters, dropping entire list.");
-                            return false;
-                        } else {
-                            clonedList.add(values.get(i).toString());
-                        }
-                    }
-                    Logger.warning("Set user attribute list: " + key + " with values: " + values.toString());
-                    mMessageManager.setUserAttribute(key, clonedList, userMpId, synchronously);
-                    mKitManager.setUserAttributeList(key, clonedList);
-                } catch (Exception e) {
-                    Logger.warning("Error while setting attribute list: " + e.toString());
-                    return false;
+            }
+        }
+        if (removedKeys != null) {
+            for (String key : removedKeys) {
+                if (MPUtility.isEmpty(key)) {
+                    Logger.debug("removeUserAttribute called with empty key.");
+                    success = false;
+                    continue;
                 }
-            } else {
-                String stringValue = null;
-                if (value != null) {
-                    stringValue = value.toString();
-                    if (stringValue.length() > Constants.LIMIT_USER_ATTR_VALUE) {
-                        Logger.warning("setUserAttribute called with stringvalue longer than " + Constants.LIMIT_USER_ATTR_VALUE + " characters. Attribute not set.");
+                if (container.attributeRemovals == null) {
+                    container.attributeRemovals = new ArrayList<String>();
+                }
+                Logger.debug("Removing user attribute: \"" + key + "\" for mpId: " + userMpId);
+                container.attributeRemovals.add(key);
+            }
+        }
+        if (container.attributeSingles == null && container.attributeLists == null && container.attributeRemovals == null) {
+            return success;
+        }
+        container.time = System.currentTimeMillis();
+        container.mpId = userMpId;
+        mMessageManager.setUserAttributes(container, false);
+        mKitManager.updateUserAttributes(container.attributeSingles, container.attributeLists, container.attributeRemovals);
+        return success;
+    }
+
+    /**
+     * Validate an attribute, and add it to the container's singles or lists.
+     *
+     * @return false if the attribute is not valid, and was not added
+     */
+    private boolean addUserAttribute(UserAttributeResponse container, String key, Object value) {
+        if (MPUtility.isEmpty(key)) {
+            Logger.warning("setUserAttribute called with null key. This is a noop.");
+            return false;
+        }
+        if (key.length() > Constants.LIMIT_ATTR_NAME) {
+            Logger.warning("User attribute keys cannot be longer than " + Constants.LIMIT_ATTR_NAME + " characters, attribute not set: " + key);
+            return false;
+        }
+
+        if (value != null && value instanceof List) {
+            List<Object> values = (List<Object>) value;
+            if (values.size() > Constants.LIMIT_USER_ATTR_LIST_LENGTH) {
+                Logger.warning("setUserAttribute called with list longer than " + Constants.LIMIT_USER_ATTR_LIST_LENGTH + " elements, list not set.");
+                return false;
+            }
+            List<String> clonedList = new ArrayList<String>();
+            try {
+                for (int i = 0; i < values.size(); i++) {
+                    if (values.get(i).toString().length() > Constants.LIMIT_USER_ATTR_LIST_ITEM_LENGTH) {
+                        Logger.warning("setUserAttribute called with list containing element longer than " + Constants.LIMIT_USER_ATTR_LIST_ITEM_LENGTH + " characters, dropping entire list.");
                         return false;
+                    } else {
+                        clonedList.add(values.get(i).toString());
                     }
-                    Logger.debug("Set user attribute: " + key + " with value: " + stringValue);
-                } else {
-                    Logger.debug("Set user tag: " + key);
                 }
-                mMessageManager.setUserAttribute(key, stringValue, userMpId, synchronously);
-                mKitManager.setUserAttribute(key, stringValue);
+            } catch (Exception e) {
+                Logger.warning("Error while setting attribute list: " + e.toString());
+                return false;
             }
-            return true;
+            Logger.warning("Set user attribute list: " + key + " with values: " + values.toString());
+            if (container.attributeLists == null) {
+                container.attributeLists = new HashMap<String, List<String>>();
+            }
+            container.attributeLists.put(key, clonedList);
+        } else {
+            String stringValue = null;
+            if (value != null) {
+                stringValue = value.toString();
+                if (stringValue.length() > Constants.LIMIT_USER_ATTR_VALUE) {
+                    Logger.warning("setUserAttribute called with stringvalue longer than " + Constants.LIMIT_USER_ATTR_VALUE + " characters. Attribute not set.");
+                    return false;
+                }
+                Logger.debug("Set user attribute: " + key + " with value: " + stringValue);
+            } else {
+                Logger.debug("Set user tag: " + key);
+            }
+            if (container.attributeSingles == null) {
+                container.attributeSingles = new HashMap<String, String>();
+            }
+            container.attributeSingles.put(key, stringValue);
         }
-        return false;
+        return true;
     }
 
     public boolean setUserAttributeList(String key, Object value, long userMpId) {
@@ -0,0 +1,117 @@
+package com.mparticle.identity;
+
+import com.mparticle.internal.Logger;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * a batch of changes to the attributes of a User. Changes are collected until {@link #commit()} is called,
+ * and are then stored together, instead of one at a time. Like attribute keys themselves, keys are matched
+ * ignoring case, so only the last change to a key is kept
+ *
+ * <pre>
+ * {@code
+ * user.editUserAttributes()
+ *     .setUserAttribute("name", "Jane")
+ *     .setUserAttributeList("interests", interests)
+ *     .removeUserAttribute("nickname")
+ *     .commit();
+ * }
+ * </pre>
+ *
+ * @see MParticleUser#editUserAttributes()
+ */
+public class UserAttributeEditor {
+    private final MParticleUser mUser;
+    private final Map<String, Object> mAttributes = new LinkedHashMap<String, Object>();
+    private final Set<String> mRemovals = new LinkedHashSet<String>();
+
+    UserAttributeEditor(MParticleUser user) {
+        mUser = user;
+    }
+
+    /**
+     * set a single attribute for the user
+     *
+     * @param key the key of the attribute
+     * @param value the value of the attribute
+     *
+     * @return this editor
+     */
+    public UserAttributeEditor setUserAttribute(String key, Object value) {
+        removeKey(mRemovals, key);
+        removeKey(mAttributes.keySet(), key);
+        mAttributes.put(key, value);
+        return this;
+    }
+
+    /**
+     * set a single attribute for the user whos value is a List
+     *
+     * @param key the key of the attribute
+     * @param value the values of the attribute
+     *
+     * @return this editor
+     */
+    public UserAttributeEditor setUserAttributeList(String key, List<?> value) {
+        if (value == null) {
+            Logger.warning("setUserAttributeList called with null list, this is a no-op.");
+            return this;
+        }
+        return setUserAttribute(key, value);
+    }
+
+    /**
+     * set a tag for the user. A tag is represented by a key and a value of "null"
+     *
+     * @param tag the tag to be set for the user
+     *
+     * @return this editor
+     */
+    public UserAttributeEditor setUserTag(String tag) {
+        return setUserAttribute(tag, null);
+    }
+
+    /**
+     * remove an attribute for the user
+     *
+     * @param key the key of the attribute which is to be removed
+     *
+     * @return this editor
+     */
+    public UserAttributeEditor removeUserAttribute(String key) {
+        removeKey(mAttributes.keySet(), key);
+        removeKey(mRemovals, key);
+        mRemovals.add(key);
+        return this;
+    }
+
+    /**
+     * make all of the changes. Kits receive them in a single call, and the user attributes
+     * are stored in a single transaction
+     *
+     * @return false if any of the attributes were not valid. The valid ones are still changed
+     */
+    public boolean commit() {
+        boolean success = mUser.mUserDelegate.setUserAttributes(new LinkedHashMap<String, Object>(mAttributes), new LinkedHashSet<String>(mRemovals), mUser.getId());
+        mAttributes.clear();
+        mRemovals.clear();
+        return success;
+    }
+
+    private static void removeKey(Collection<String> keys, String key) {
+        Iterator<String> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            String existingKey = iterator.next();
+            if (key == null ? existingKey == null : key.equalsIgnoreCase(existingKey)) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mparticle.internal;
+
+/**
+ * The default {@link UploadPolicy}. It flushes pending messages quickly on Wi-Fi or while charging, and coalesces
+ * small batches into fewer requests on a metered network, a low battery or a slow connection.
+ */
+public class AdaptiveUploadPolicy implements UploadPolicy {
+    /**
+     * The longest delay between periodic uploads on an unmetered network or while charging.
+     */
+    static final long MAX_UNMETERED_UPLOAD_DELAY = 60 * 1000;
+    /**
+     * The longest a periodic upload is put off, as a multiple of the configured upload interval.
+     */
+    static final int MAX_UPLOAD_DELAY_FACTOR = 4;
+    /**
+     * Below this many pending bytes, a batch is considered small enough to wait for more messages on a metered network.
+     */
+    static final long SMALL_BATCH_BYTES = 32 * 1024;
+    static final double LOW_BATTERY_LEVEL = 0.15;
+    static final long SLOW_UPLOAD_LATENCY = 5 * 1000;
+    static final long FAST_TRIGGER_DELAY = 1000;
+
+    @Override
+    public long getNextUploadDelay(UploadConditions conditions) {
+        long interval = conditions.getUploadInterval();
+        if (conditions.getPendingMessageCount() <= 0) {
+            return interval;
+        }
+        long delay;
+        if (conditions.isUnmetered() || conditions.isCharging()) {
+            delay = Math.min(interval, MAX_UNMETERED_UPLOAD_DELAY);
+        } else if (conditions.getBatteryLevel() > 0 && conditions.getBatteryLevel() < LOW_BATTERY_LEVEL) {
+            delay = interval * MAX_UPLOAD_DELAY_FACTOR;
+        } else if (conditions.getPendingMessageBytes() < SMALL_BATCH_BYTES && conditions.getPendingMessageCount() < Constants.BATCH_LIMIT) {
+            delay = interval * 2;
+        } else {
+            delay = interval;
+        }
+        if (conditions.getLastUploadLatency() > SLOW_UPLOAD_LATENCY) {
+            delay *= 2;
+        }
+        return Math.min(delay, interval * MAX_UPLOAD_DELAY_FACTOR);
+    }
+
+    @Override
+    public long getTriggerUploadDelay(UploadConditions conditions) {
+        if (conditions.isUnmetered() || conditions.isCharging()) {
+            return FAST_TRIGGER_DELAY;
+        }
+        return Constants.TRIGGER_MESSAGE_DELAY;
+    }
+}
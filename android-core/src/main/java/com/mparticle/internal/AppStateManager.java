@@ -334,6 +334,9 @@ import java.util.concurrent.atomic.AtomicLong;
 
     private void logBackgrounded(){
         logStateTransition(Constants.StateTransitionType.STATE_TRANS_BG, mCurrentActivityName);
+        //the process may be killed at any point once backgrounded, so don't hold messages in memory
+        mMessageManager.flushMessageBuffer();
+        UserStorage.syncStorageFile();
         MParticle.getInstance().getKitManager().onApplicationBackground();
         mCurrentActivityName = null;
         Logger.debug("App backgrounded.");
@@ -6,6 +6,7 @@ import android.os.Build;
 
 import com.mparticle.ExceptionHandler;
 import com.mparticle.MParticle;
+import com.mparticle.MParticleOptions;
 import com.mparticle.identity.IdentityApi;
 import com.mparticle.internal.networking.BaseMPMessage;
 
@@ -58,17 +59,47 @@ public class ConfigManager {
 
     private boolean mSendOoEvents;
     private JSONObject mProviderPersistence;
+    private String mProviderPersistenceConfig;
     private boolean mRestrictAAIDfromLAT = true;
     private int mRampValue = -1;
     private int mUserBucket = -1;
 
     private int mSessionTimeoutInterval = -1;
     private int mUploadInterval = -1;
+    private volatile boolean mCompactMessageStorage = false;
+    private volatile UploadPolicy mUploadPolicy;
+    private volatile boolean mAsyncKitDispatch = false;
+    private volatile int mKitQueueCapacity = Constants.DEFAULT_KIT_QUEUE_CAPACITY;
+    private volatile MParticleOptions.KitQueueOverflow mKitQueueOverflow = MParticleOptions.KitQueueOverflow.DROP_OLDEST;
     private long mInfluenceOpenTimeout = 3600 * 1000;
     private JSONArray mTriggerMessageMatches, mTriggerMessageHashes = null;
     private ExceptionHandler mExHandler;
     private boolean mIncludeSessionHistory = false;
-    private JSONObject mCurrentCookies;
+    private final ParsedValueCache<Long, UserIdentities> mUserIdentities = new ParsedValueCache<Long, UserIdentities>() {
+        @Override
+        UserIdentities parse(String stored) {
+            return UserIdentities.parse(stored);
+        }
+    };
+    private final ParsedValueCache<Long, JSONObject> mCookies = new ParsedValueCache<Long, JSONObject>() {
+        @Override
+        JSONObject parse(String stored) {
+            return parseCookies(stored);
+        }
+    };
+    private final ParsedValueCache<String, JSONObject> mIntegrationAttributes = new ParsedValueCache<String, JSONObject>() {
+        @Override
+        JSONObject parse(String stored) {
+            if (stored != null) {
+                try {
+                    return new JSONObject(stored);
+                } catch (JSONException e) {
+
+                }
+            }
+            return null;
+        }
+    };
     public static final int DEFAULT_CONNECTION_TIMEOUT_SECONDS = 30;
     public static final int MINIMUM_CONNECTION_TIMEOUT_SECONDS = 1;
     public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 60;
@@ -164,6 +195,7 @@ public class ConfigManager {
             }
             sPreferences.edit().clear().commit();
         }
+        UserStorage.deleteAll(context);
     }
 
     void saveConfigJson(JSONObject json) {
@@ -200,9 +232,15 @@ public class ConfigManager {
         }
 
         if (responseJSON.has(ProviderPersistence.KEY_PERSISTENCE)) {
-            setProviderPersistence(new ProviderPersistence(responseJSON, mContext));
+            //reading the persistence of other SDKs means reading their SharedPreferences, so only do it again if it's configured differently
+            String persistenceConfig = responseJSON.getJSONArray(ProviderPersistence.KEY_PERSISTENCE).toString();
+            if (mProviderPersistence == null || !persistenceConfig.equals(mProviderPersistenceConfig)) {
+                setProviderPersistence(new ProviderPersistence(responseJSON, mContext));
+                mProviderPersistenceConfig = persistenceConfig;
+            }
         } else {
             setProviderPersistence(null);
+            mProviderPersistenceConfig = null;
         }
 
         mSessionTimeoutInterval = responseJSON.optInt(KEY_SESSION_TIMEOUT, -1);
@@ -357,6 +395,52 @@ public class ConfigManager {
         mLocalPrefs.uploadInterval = uploadInterval;
     }
 
+    public boolean isCompactMessageStorageEnabled() {
+        return mCompactMessageStorage;
+    }
+
+    /**
+     * Not persisted, since the encoding is recorded with each stored message.
+     */
+    public void setCompactMessageStorage(boolean compactMessageStorage) {
+        mCompactMessageStorage = compactMessageStorage;
+    }
+
+    /**
+     * @return the policy set when the SDK was started, or null for the default
+     */
+    public UploadPolicy getUploadPolicy() {
+        return mUploadPolicy;
+    }
+
+    /**
+     * Not persisted, and only read when the upload handler is created.
+     */
+    public void setUploadPolicy(UploadPolicy uploadPolicy) {
+        mUploadPolicy = uploadPolicy;
+    }
+
+    public boolean isAsyncKitDispatchEnabled() {
+        return mAsyncKitDispatch;
+    }
+
+    public int getKitQueueCapacity() {
+        return mKitQueueCapacity;
+    }
+
+    public MParticleOptions.KitQueueOverflow getKitQueueOverflow() {
+        return mKitQueueOverflow;
+    }
+
+    /**
+     * Not persisted, and only read when the kit framework is loaded.
+     */
+    public void setAsyncKitDispatch(boolean asyncKitDispatch, int kitQueueCapacity, MParticleOptions.KitQueueOverflow kitQueueOverflow) {
+        mAsyncKitDispatch = asyncKitDispatch;
+        mKitQueueCapacity = kitQueueCapacity;
+        mKitQueueOverflow = kitQueueOverflow;
+    }
+
     public int getSessionTimeout() {
         if (mSessionTimeoutInterval > 0) {
             return mSessionTimeoutInterval * 1000;
@@ -662,19 +746,28 @@ public class ConfigManager {
                     newJsonAttributes.put(entry.getKey(), entry.getValue());
                 }
             }
-            JSONObject currentJsonAttributes = getIntegrationAttributes();
-            if (currentJsonAttributes == null) {
-                currentJsonAttributes = new JSONObject();
+            //the current attributes are shared with readers, so the change is made to a copy
+            JSONObject currentJsonAttributes = new JSONObject();
+            JSONObject previousJsonAttributes = getIntegrationAttributes();
+            if (previousJsonAttributes != null) {
+                Iterator<String> keys = previousJsonAttributes.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    currentJsonAttributes.put(key, previousJsonAttributes.get(key));
+                }
             }
             currentJsonAttributes.put(Integer.toString(kitId), newJsonAttributes);
             if (currentJsonAttributes.length() > 0) {
+                String serializedAttributes = currentJsonAttributes.toString();
                 sPreferences.edit()
-                        .putString(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, currentJsonAttributes.toString())
+                        .putString(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, serializedAttributes)
                         .apply();
+                mIntegrationAttributes.put(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, serializedAttributes, currentJsonAttributes);
             } else {
                 sPreferences.edit()
                         .remove(Constants.PrefKeys.INTEGRATION_ATTRIBUTES)
                         .apply();
+                mIntegrationAttributes.put(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, null, null);
             }
         } catch (JSONException jse) {
 
@@ -703,54 +796,33 @@ public class ConfigManager {
         return integrationAttributes;
     }
 
+    /**
+     * @return the integration attributes of every kit, which must not be modified
+     */
     public JSONObject getIntegrationAttributes() {
-        JSONObject jsonAttributes = null;
-        String allAttributes = sPreferences.getString(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, null);
-        if (allAttributes != null) {
-            try {
-                jsonAttributes = new JSONObject(allAttributes);
-            } catch (JSONException e) {
-
-            }
-        }
-        return jsonAttributes;
+        return mIntegrationAttributes.get(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, sPreferences.getString(Constants.PrefKeys.INTEGRATION_ATTRIBUTES, null));
     }
 
     public Map<MParticle.IdentityType, String> getUserIdentities(long mpId) {
-        JSONArray userIdentitiesJson = getUserIdentityJson(mpId);
-        Map<MParticle.IdentityType, String> identityTypeStringMap = new HashMap<MParticle.IdentityType, String>(userIdentitiesJson.length());
-
-        for (int i = 0; i < userIdentitiesJson.length(); i++) {
-            try {
-                JSONObject identity = userIdentitiesJson.getJSONObject(i);
-                identityTypeStringMap.put(
-                        MParticle.IdentityType.parseInt(identity.getInt(Constants.MessageKey.IDENTITY_NAME)),
-                        identity.getString(Constants.MessageKey.IDENTITY_VALUE)
-                );
-            } catch (JSONException jse) {
-
-            }
-        }
-
-        return identityTypeStringMap;
+        return new HashMap<MParticle.IdentityType, String>(getParsedUserIdentities(mpId).getIdentities());
     }
 
     public JSONArray getUserIdentityJson() {
         return getUserIdentityJson(getMpid());
     }
 
+    /**
+     * @return a copy of the user's identities, which the caller may modify
+     */
     public JSONArray getUserIdentityJson(long mpId) {
-        JSONArray userIdentities = null;
-        String userIds = getUserStorage(mpId).getUserIdentities();
+        return getParsedUserIdentities(mpId).toJson();
+    }
 
-        try {
-            userIdentities = new JSONArray(userIds);
-            boolean changeMade = fixUpUserIdentities(userIdentities);
-            if (changeMade) {
-                saveUserIdentityJson(userIdentities, mpId);
-            }
-        } catch (Exception e) {
-            userIdentities = new JSONArray();
+    private UserIdentities getParsedUserIdentities(long mpId) {
+        UserStorage userStorage = getUserStorage(mpId);
+        UserIdentities userIdentities = mUserIdentities.get(mpId, userStorage.getUserIdentities());
+        if (userIdentities.isFixedUp()) {
+            userIdentities = saveUserIdentities(userStorage, UserIdentities.create(userIdentities.toJson()), mpId);
         }
         return userIdentities;
     }
@@ -760,28 +832,14 @@ public class ConfigManager {
     }
 
     public void saveUserIdentityJson(JSONArray userIdentities, long mpId) {
-        getUserStorage(mpId).setUserIdentities(userIdentities.toString());
+        saveUserIdentities(getUserStorage(mpId), UserIdentities.create(userIdentities), mpId);
     }
 
-    private static boolean fixUpUserIdentities(JSONArray identities) {
-        boolean changeMade = false;
-        try {
-            for (int i = 0; i < identities.length(); i++) {
-                JSONObject identity = identities.getJSONObject(i);
-                if (!identity.has(Constants.MessageKey.IDENTITY_DATE_FIRST_SEEN)) {
-                    identity.put(Constants.MessageKey.IDENTITY_DATE_FIRST_SEEN, 0);
-                    changeMade = true;
-                }
-                if (!identity.has(Constants.MessageKey.IDENTITY_FIRST_SEEN)) {
-                    identity.put(Constants.MessageKey.IDENTITY_FIRST_SEEN, true);
-                    changeMade = true;
-                }
-            }
-
-        } catch (JSONException jse) {
-
-        }
-        return changeMade;
+    private UserIdentities saveUserIdentities(UserStorage userStorage, UserIdentities userIdentities, long mpId) {
+        String serializedIdentities = userIdentities.toString();
+        userStorage.setUserIdentities(serializedIdentities);
+        mUserIdentities.put(mpId, serializedIdentities, userIdentities);
+        return userIdentities;
     }
 
     public String getDeviceApplicationStamp() {
@@ -795,54 +853,60 @@ public class ConfigManager {
         return das;
     }
 
+    /**
+     * @return the user's cookies, which must not be modified
+     */
     public JSONObject getCookies(long mpId) {
-        if (mCurrentCookies == null) {
-            String currentCookies = getUserStorage(mpId).getCookies();
-            if (MPUtility.isEmpty(currentCookies)) {
-                mCurrentCookies = new JSONObject();
-                getUserStorage(mpId).setCookies(mCurrentCookies.toString());
-                return mCurrentCookies;
-            } else {
-                try {
-                    mCurrentCookies = new JSONObject(currentCookies);
-                } catch (JSONException e) {
-                    mCurrentCookies = new JSONObject();
-                }
-            }
-            Calendar nowCalendar = Calendar.getInstance();
-            nowCalendar.set(Calendar.YEAR, 1990);
-            Date oldDate = nowCalendar.getTime();
-            SimpleDateFormat parser = new SimpleDateFormat("yyyy");
-            Iterator<?> keys = mCurrentCookies.keys();
-            ArrayList<String> keysToRemove = new ArrayList<String>();
-            while (keys.hasNext()) {
-                try {
-                    String key = (String) keys.next();
-                    if (mCurrentCookies.get(key) instanceof JSONObject) {
-                        String expiration = ((JSONObject) mCurrentCookies.get(key)).getString("e");
-                        try {
-                            Date date = parser.parse(expiration);
-                            if (date.before(oldDate)) {
-                                keysToRemove.add(key);
-                            }
-                        } catch (ParseException dpe) {
+        return mCookies.get(mpId, getUserStorage(mpId).getCookies());
+    }
 
+    /**
+     * @param cookies the user's cookies, which must not be modified once they have been set
+     */
+    void setCookies(JSONObject cookies, long mpId) {
+        String serializedCookies = cookies.toString();
+        getUserStorage(mpId).setCookies(serializedCookies);
+        mCookies.put(mpId, serializedCookies, cookies);
+    }
+
+    private static JSONObject parseCookies(String currentCookies) {
+        JSONObject cookies;
+        if (MPUtility.isEmpty(currentCookies)) {
+            return new JSONObject();
+        }
+        try {
+            cookies = new JSONObject(currentCookies);
+        } catch (JSONException e) {
+            return new JSONObject();
+        }
+        Calendar nowCalendar = Calendar.getInstance();
+        nowCalendar.set(Calendar.YEAR, 1990);
+        Date oldDate = nowCalendar.getTime();
+        SimpleDateFormat parser = new SimpleDateFormat("yyyy");
+        Iterator<?> keys = cookies.keys();
+        ArrayList<String> keysToRemove = new ArrayList<String>();
+        while (keys.hasNext()) {
+            try {
+                String key = (String) keys.next();
+                if (cookies.get(key) instanceof JSONObject) {
+                    String expiration = ((JSONObject) cookies.get(key)).getString("e");
+                    try {
+                        Date date = parser.parse(expiration);
+                        if (date.before(oldDate)) {
+                            keysToRemove.add(key);
                         }
-                    }
-                } catch (JSONException jse) {
+                    } catch (ParseException dpe) {
 
+                    }
                 }
+            } catch (JSONException jse) {
+
             }
-            for (String key : keysToRemove) {
-                mCurrentCookies.remove(key);
-            }
-            if (keysToRemove.size() > 0) {
-                getUserStorage(mpId).setCookies(mCurrentCookies.toString());
-            }
-            return mCurrentCookies;
-        } else {
-            return mCurrentCookies;
         }
+        for (String key : keysToRemove) {
+            cookies.remove(key);
+        }
+        return cookies;
     }
 
     JSONArray markIdentitiesAsSeen(JSONArray uploadedIdentities) {
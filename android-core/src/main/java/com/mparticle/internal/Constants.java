@@ -19,6 +19,34 @@ public class Constants {
     public static final int BATCH_LIMIT = 50;
     // delay (millis) before processing uploads to allow app to get started
     public static final long INITIAL_UPLOAD_DELAY = 10 * 1000;
+    // maximum messages to be written to the database in a single group-commit transaction
+    public static final int GROUP_COMMIT_MESSAGE_LIMIT = 100;
+    // maximum delay (millis) a stored message may wait for its group-commit transaction
+    public static final long GROUP_COMMIT_MAX_LATENCY = 500;
+    // maximum messages held in memory while waiting to be written to the database, the oldest are dropped beyond this
+    public static final int MESSAGE_BUFFER_CAPACITY = 1000;
+    // delay (millis) before retrying to write buffered messages, while the database is unavailable
+    public static final long MESSAGE_BUFFER_RETRY_DELAY = 1000;
+    // maximum upload batches in flight at once, when batches from more than one session are ready
+    public static final int MAX_CONCURRENT_UPLOADS = 4;
+    // maximum upload batches read from the database at once
+    public static final int READY_UPLOAD_PAGE_SIZE = 8;
+    // how long (millis) sampled disk space is reused in each message's state info
+    public static final long STATE_INFO_DISK_SAMPLE_INTERVAL = 60 * 1000;
+    // how long (millis) sampled system memory and GPS state are reused in each message's state info
+    public static final long STATE_INFO_MEMORY_SAMPLE_INTERVAL = 5 * 1000;
+    // how often (millis) the upload policy is checked while a session is active
+    public static final long UPLOAD_CHECK_INTERVAL = 15 * 1000;
+    // how long (millis) the count and size of messages waiting to be uploaded are reused by the upload policy
+    public static final long PENDING_MESSAGE_STATS_MAX_AGE = 60 * 1000;
+    // how many events are logged between writes of the session's event counter to preferences
+    public static final int EVENT_COUNTER_PERSIST_INTERVAL = 10;
+    // maximum calls waiting for each kit, when kits are dispatched to asynchronously
+    public static final int DEFAULT_KIT_QUEUE_CAPACITY = 500;
+    // maximum events held for kits while waiting for the first kit configuration
+    public static final int KIT_QUEUE_MAX_EVENTS = 100;
+    // maximum approximate size (characters) of the events held for kits while waiting for the first kit configuration
+    public static final int KIT_QUEUE_MAX_SIZE = 100 * 1024;
 
     // preferences persistence
     public static final String PREFS_FILE = "mParticlePrefs";
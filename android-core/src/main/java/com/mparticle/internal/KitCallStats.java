@@ -0,0 +1,92 @@
+package com.mparticle.internal;
+
+/**
+ * A snapshot of the calls the SDK has made into one kit, since the kit was started.
+ *
+ * Latencies are measured in microseconds, and percentiles are rounded up to the next power of two.
+ */
+public class KitCallStats {
+    private final int mKitId;
+    private final String mKitName;
+    private final long mStartTime;
+    private final long mCallCount;
+    private final long mErrorCount;
+    private final long mSkippedCount;
+    private final long mLatencyP50;
+    private final long mLatencyP99;
+    private final long mMainThreadTime;
+    private final boolean mCircuitOpen;
+
+    public KitCallStats(int kitId, String kitName, long startTime, long callCount, long errorCount, long skippedCount, long latencyP50, long latencyP99, long mainThreadTime, boolean circuitOpen) {
+        mKitId = kitId;
+        mKitName = kitName;
+        mStartTime = startTime;
+        mCallCount = callCount;
+        mErrorCount = errorCount;
+        mSkippedCount = skippedCount;
+        mLatencyP50 = latencyP50;
+        mLatencyP99 = latencyP99;
+        mMainThreadTime = mainThreadTime;
+        mCircuitOpen = circuitOpen;
+    }
+
+    public int getKitId() {
+        return mKitId;
+    }
+
+    public String getKitName() {
+        return mKitName;
+    }
+
+    /**
+     * @return how long the kit took to start, in microseconds
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public long getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * @return the number of calls that threw an exception
+     */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * @return the number of calls that were not made, because the kit was disabled for being too slow or failing
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public long getLatencyP50() {
+        return mLatencyP50;
+    }
+
+    public long getLatencyP99() {
+        return mLatencyP99;
+    }
+
+    /**
+     * @return the total time, in microseconds, spent in the kit on the main thread
+     */
+    public long getMainThreadTime() {
+        return mMainThreadTime;
+    }
+
+    /**
+     * @return true if calls to the kit are currently being skipped
+     */
+    public boolean isCircuitOpen() {
+        return mCircuitOpen;
+    }
+
+    @Override
+    public String toString() {
+        return mKitName + " (" + mKitId + "): started in " + mStartTime / 1000 + "ms, " + mCallCount + " calls, " + mErrorCount + " errors, " + mSkippedCount + " skipped, p50 " + mLatencyP50 + "us, p99 " + mLatencyP99 + "us, " + mMainThreadTime / 1000 + "ms on main thread" + (mCircuitOpen ? ", disabled" : "");
+    }
+}
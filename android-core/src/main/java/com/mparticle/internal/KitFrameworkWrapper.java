@@ -16,12 +16,17 @@ import org.json.JSONArray;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KitFrameworkWrapper implements KitManager {
     private final Context mContext;
@@ -33,8 +38,13 @@ public class KitFrameworkWrapper implements KitManager {
     private volatile boolean frameworkLoadAttempted = false;
     private static volatile boolean kitsLoaded = false;
 
-    private Queue eventQueue;
-    private Queue<AttributeChange> attributeQueue;
+    //events and user attribute changes received before kits are loaded, to be replayed to them once they are.
+    //Callers only lock to add to these, kits are not marked as loaded until the replay has finished, after which
+    //callers forward to kits directly without locking.
+    private volatile Queue<Object> eventQueue = new ConcurrentLinkedQueue<Object>();
+    private volatile ConcurrentHashMap<String, AttributeChange> attributeQueue = new ConcurrentHashMap<String, AttributeChange>();
+    private final AtomicInteger queuedEventCount = new AtomicInteger();
+    private final AtomicInteger queuedEventSize = new AtomicInteger();
     private volatile boolean registerForPush = false;
     private static KitsLoadedListener kitsLoadedListener;
 
@@ -76,11 +86,15 @@ public class KitFrameworkWrapper implements KitManager {
         return frameworkLoadAttempted;
     }
 
-    Queue getEventQueue() {
+    Queue<Object> getEventQueue() {
         return eventQueue;
     }
 
-    Queue<AttributeChange> getAttributeQueue() {
+    int getQueuedEventSize() {
+        return queuedEventSize.get();
+    }
+
+    Map<String, AttributeChange> getAttributeQueue() {
         return attributeQueue;
     }
 
@@ -111,15 +125,10 @@ public class KitFrameworkWrapper implements KitManager {
     synchronized void disableQueuing() {
         setKitsLoaded(true);
         if (eventQueue != null) {
-            eventQueue.clear();
             eventQueue = null;
             Logger.debug("Kit initialization complete. Disabling event queueing.");
         }
-
-        if (attributeQueue != null) {
-            attributeQueue.clear();
-            attributeQueue = null;
-        }
+        attributeQueue = null;
     }
 
     void replayEvents() {
@@ -136,9 +145,13 @@ public class KitFrameworkWrapper implements KitManager {
             }
         }
 
-        if (eventQueue != null && eventQueue.size() > 0) {
+        Queue<Object> events = eventQueue;
+        if (events != null && !events.isEmpty()) {
             Logger.debug("Replaying events after receiving first kit configuration.");
-            for (Object event : eventQueue) {
+            Object event;
+            while ((event = events.poll()) != null) {
+                queuedEventCount.decrementAndGet();
+                queuedEventSize.addAndGet(-getQueuedSize(event));
                 if (event instanceof MPEvent) {
                     MPEvent mpEvent = (MPEvent) event;
                     if (mpEvent.isScreenEvent()) {
@@ -152,9 +165,13 @@ public class KitFrameworkWrapper implements KitManager {
             }
         }
 
-        if (attributeQueue != null && attributeQueue.size() > 0) {
+        Map<String, AttributeChange> attributes = attributeQueue;
+        if (attributes != null && !attributes.isEmpty()) {
             Logger.debug("Replaying user attributes after receiving first kit configuration.");
-            for (AttributeChange attributeChange : attributeQueue) {
+            Iterator<AttributeChange> attributeChanges = attributes.values().iterator();
+            while (attributeChanges.hasNext()) {
+                AttributeChange attributeChange = attributeChanges.next();
+                attributeChanges.remove();
                 if (attributeChange.removal) {
                     mKitManager.removeUserAttribute(attributeChange.key);
                 } else if (attributeChange.value == null) {
@@ -168,27 +185,67 @@ public class KitFrameworkWrapper implements KitManager {
         }
     }
 
+    /**
+     * Replay the queued events and user attribute changes to kits. Kits are only marked as loaded once the replay has
+     * finished, so that callers keep queueing until then, and nothing reaches kits ahead of what was queued before it.
+     */
     synchronized public void replayAndDisableQueue() {
-        setKitsLoaded(true);
         replayEvents();
         disableQueuing();
     }
 
-    synchronized boolean queueEvent(Object event) {
+    /**
+     * Queue an event until kits are loaded. The queue is bounded by both the number of events and their approximate
+     * size, and events beyond either limit are dropped.
+     *
+     * @return false if kits are already loaded, and the event should be forwarded to them directly
+     */
+    boolean queueEvent(Object event) {
         if (getKitsLoaded()) {
             return false;
         }
-
-        if (eventQueue == null) {
-            eventQueue = new ConcurrentLinkedQueue<Object>();
-        }
-        //it's an edge case to even need this, so 10
-        //should be enough.
-        if (eventQueue.size() < 10) {
+        synchronized (this) {
+            Queue<Object> events = eventQueue;
+            if (getKitsLoaded() || events == null) {
+                return false;
+            }
+            int size = getQueuedSize(event);
+            int count = queuedEventCount.incrementAndGet();
+            int totalSize = queuedEventSize.addAndGet(size);
+            if (count > Constants.KIT_QUEUE_MAX_EVENTS || totalSize > Constants.KIT_QUEUE_MAX_SIZE) {
+                queuedEventCount.decrementAndGet();
+                queuedEventSize.addAndGet(-size);
+                Logger.warning("Too many events logged while waiting for initial kit configuration, event will not be forwarded to kits.");
+                return true;
+            }
             Logger.debug("Queuing Kit event while waiting for initial configuration.");
-            eventQueue.add(event);
+            events.add(event);
+            return true;
+        }
+    }
+
+    /**
+     * Approximate the memory held by a queued event, in characters.
+     */
+    static int getQueuedSize(Object event) {
+        int size = 16;
+        if (event instanceof MPEvent) {
+            MPEvent mpEvent = (MPEvent) event;
+            size += length(mpEvent.getEventName()) + length(mpEvent.getCategory());
+            Map<String, String> info = mpEvent.getInfo();
+            if (info != null) {
+                for (Map.Entry<String, String> entry : info.entrySet()) {
+                    size += length(entry.getKey()) + length(entry.getValue());
+                }
+            }
+        } else if (event != null) {
+            size += length(event.toString());
         }
-        return true;
+        return size;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
     }
 
     boolean queueAttribute(String key, Object value) {
@@ -199,16 +256,23 @@ public class KitFrameworkWrapper implements KitManager {
         return queueAttribute(new AttributeChange(key));
     }
 
-    synchronized boolean queueAttribute(AttributeChange change) {
-        if (getKitsLoaded()) {
+    /**
+     * Queue a user attribute change until kits are loaded. Only the latest change to each attribute is kept.
+     *
+     * @return false if kits are already loaded, and the change should be forwarded to them directly
+     */
+    boolean queueAttribute(AttributeChange change) {
+        if (getKitsLoaded() || change.key == null) {
             return false;
         }
-
-        if (attributeQueue == null) {
-            attributeQueue = new ConcurrentLinkedQueue<AttributeChange>();
+        synchronized (this) {
+            ConcurrentHashMap<String, AttributeChange> attributes = attributeQueue;
+            if (getKitsLoaded() || attributes == null) {
+                return false;
+            }
+            attributes.put(change.key, change);
+            return true;
         }
-        attributeQueue.add(change);
-        return true;
     }
 
     static class AttributeChange {
@@ -317,6 +381,46 @@ public class KitFrameworkWrapper implements KitManager {
         }
     }
 
+    @Override
+    public void updateUserAttributes(Map<String, String> userAttributes, Map<String, List<String>> userAttributeLists, List<String> removedKeys) {
+        if (!getKitsLoaded()) {
+            //queue each change, and forward whatever couldn't be queued because kits loaded in the meantime
+            Map<String, String> unqueuedAttributes = new HashMap<String, String>();
+            Map<String, List<String>> unqueuedAttributeLists = new HashMap<String, List<String>>();
+            List<String> unqueuedRemovals = new ArrayList<String>();
+            if (userAttributes != null) {
+                for (Map.Entry<String, String> entry : userAttributes.entrySet()) {
+                    if (!queueAttribute(entry.getKey(), entry.getValue())) {
+                        unqueuedAttributes.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if (userAttributeLists != null) {
+                for (Map.Entry<String, List<String>> entry : userAttributeLists.entrySet()) {
+                    if (!queueAttribute(entry.getKey(), entry.getValue())) {
+                        unqueuedAttributeLists.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if (removedKeys != null) {
+                for (String key : removedKeys) {
+                    if (!queueAttribute(key)) {
+                        unqueuedRemovals.add(key);
+                    }
+                }
+            }
+            if (unqueuedAttributes.isEmpty() && unqueuedAttributeLists.isEmpty() && unqueuedRemovals.isEmpty()) {
+                return;
+            }
+            userAttributes = unqueuedAttributes;
+            userAttributeLists = unqueuedAttributeLists;
+            removedKeys = unqueuedRemovals;
+        }
+        if (mKitManager != null) {
+            mKitManager.updateUserAttributes(userAttributes, userAttributeLists, removedKeys);
+        }
+    }
+
     @Override
     public void setUserIdentity(String id, MParticle.IdentityType identityType) {
         if (mKitManager != null) {
@@ -494,4 +598,12 @@ public class KitFrameworkWrapper implements KitManager {
         }
         return new TreeMap<Integer, AttributionResult>();
     }
+
+    @Override
+    public Map<Integer, KitCallStats> getKitCallStats() {
+        if (mKitManager != null) {
+            return mKitManager.getKitCallStats();
+        }
+        return new TreeMap<Integer, KitCallStats>();
+    }
 }
\ No newline at end of file
@@ -47,6 +47,12 @@ public interface KitManager {
 
     void removeUserAttribute(String key);
 
+    /**
+     * Forward several user attribute changes to each kit in a single call. Attributes that are not mentioned are
+     * left as they are. Any of the arguments may be null.
+     */
+    void updateUserAttributes(Map<String, String> userAttributes, Map<String, List<String>> userAttributeLists, List<String> removedKeys);
+
     void setUserIdentity(String id, MParticle.IdentityType identityType);
 
     void removeUserIdentity(MParticle.IdentityType id);
@@ -94,4 +100,9 @@ public interface KitManager {
     void onApplicationBackground();
 
     Map<Integer, AttributionResult> getAttributionResults();
+
+    /**
+     * @return the latency and failures of the calls made into each kit, by kit id
+     */
+    Map<Integer, KitCallStats> getKitCallStats();
 }
\ No newline at end of file
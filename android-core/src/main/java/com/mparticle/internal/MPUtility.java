@@ -45,6 +45,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
@@ -410,10 +411,38 @@ public class MPUtility {
     }
 
     public static int mpHash(String input) {
+        return mpHash((CharSequence) input);
+    }
+
+    /**
+     * Same as {@link #mpHash(String)}, but ASCII input is lowercased one char at a time rather than copied, so
+     * a key built in a reused StringBuilder can be hashed without allocating. Other input, and any input in a
+     * locale where lowercasing ASCII differs, such as Turkish, takes the String path so the hash stays the same.
+     */
+    public static int mpHash(CharSequence input) {
+        if (input == null || input.length() == 0) {
+            return 0;
+        }
+        String language = Locale.getDefault().getLanguage();
+        if ("tr".equals(language) || "az".equals(language)) {
+            return mpHashLowerCase(input.toString());
+        }
         int hash = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c >= 0x80) {
+                return mpHashLowerCase(input.toString());
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = ((hash << 5) - hash) + c;
+        }
+        return hash;
+    }
 
-        if (input == null || input.length() == 0)
-            return hash;
+    private static int mpHashLowerCase(String input) {
+        int hash = 0;
 
         char[] chars = input.toLowerCase().toCharArray();
 
@@ -21,11 +21,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -76,7 +71,6 @@ public class MParticleApiClientImpl extends MParticleBaseClientImpl implements M
     private final Context mContext;
     Integer mDeviceRampNumber = null;
     private static String sSupportedKits;
-    private JSONObject mCurrentCookies;
 
     /**
      * Default throttle time - in the worst case scenario if the server is busy, the soonest
@@ -420,18 +414,24 @@ public class MParticleApiClientImpl extends MParticleBaseClientImpl implements M
         return sSupportedKits;
     }
 
-    public void setCookies(JSONObject serverCookies) {
+    public synchronized void setCookies(JSONObject serverCookies) {
         if (serverCookies != null) {
             try {
-                JSONObject localCookies = getCookies();
-                Iterator<?> keys = serverCookies.keys();
-
+                long mpId = mConfigManager.getMpid();
+                //the current cookies are shared with readers, so the server's are merged into a copy
+                JSONObject localCookies = mConfigManager.getCookies(mpId);
+                JSONObject mergedCookies = new JSONObject();
+                Iterator<?> keys = localCookies.keys();
+                while (keys.hasNext()) {
+                    String key = (String) keys.next();
+                    mergedCookies.put(key, localCookies.get(key));
+                }
+                keys = serverCookies.keys();
                 while (keys.hasNext()) {
                     String key = (String) keys.next();
-                    localCookies.put(key, serverCookies.getJSONObject(key));
+                    mergedCookies.put(key, serverCookies.getJSONObject(key));
                 }
-                mCurrentCookies = localCookies;
-                mConfigManager.getUserStorage().setCookies(mCurrentCookies.toString());
+                mConfigManager.setCookies(mergedCookies, mpId);
             } catch (JSONException jse) {
 
             }
@@ -439,53 +439,7 @@ public class MParticleApiClientImpl extends MParticleBaseClientImpl implements M
     }
 
     public JSONObject getCookies()  {
-        if (mCurrentCookies == null){
-            String currentCookies = mConfigManager.getUserStorage().getCookies();
-            if (MPUtility.isEmpty(currentCookies)) {
-                mCurrentCookies = new JSONObject();
-                mConfigManager.getUserStorage().setCookies(mCurrentCookies.toString());
-                return mCurrentCookies;
-            } else {
-                try {
-                    mCurrentCookies = new JSONObject(currentCookies);
-                } catch (JSONException e) {
-                    mCurrentCookies = new JSONObject();
-                }
-            }
-            Calendar nowCalendar = Calendar.getInstance();
-            nowCalendar.set(Calendar.YEAR, 1990);
-            Date oldDate = nowCalendar.getTime();
-            SimpleDateFormat parser = new SimpleDateFormat("yyyy");
-            Iterator<?> keys = mCurrentCookies.keys();
-            ArrayList<String> keysToRemove = new ArrayList<String>();
-            while (keys.hasNext()) {
-                try {
-                    String key = (String) keys.next();
-                    if (mCurrentCookies.get(key) instanceof JSONObject) {
-                        String expiration = ((JSONObject) mCurrentCookies.get(key)).getString("e");
-                        try {
-                            Date date = parser.parse(expiration);
-                            if (date.before(oldDate)) {
-                                keysToRemove.add(key);
-                            }
-                        } catch (ParseException dpe) {
-
-                        }
-                    }
-                }catch (JSONException jse){
-
-                }
-            }
-            for (String key : keysToRemove){
-                mCurrentCookies.remove(key);
-            }
-            if (keysToRemove.size() > 0) {
-                mConfigManager.getUserStorage().setCookies(mCurrentCookies.toString());
-            }
-            return mCurrentCookies;
-        }else{
-            return mCurrentCookies;
-        }
+        return mConfigManager.getCookies(mConfigManager.getMpid());
     }
 
     @Override
@@ -7,10 +7,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
+/**
+ * The header of an upload batch is held as a regular JSONObject, while the messages themselves are
+ * kept in the serialized form they were stored in, and are only spliced into the payload
+ * when the batch is serialized with {@link #toString()}.
+ *
+ * The accessors below also see the messages, which are parsed into a new JSONArray each time they
+ * are read that way. {@link #keys()} and {@link #names()} only cover the header.
+ */
 public class MessageBatch extends JSONObject {
     private long messageLengthBytes;
+    private final List<String> mMessages = new ArrayList<String>();
+    private final List<String> mSessionHistoryMessages = new ArrayList<String>();
 
     private MessageBatch() {
         super();
@@ -46,24 +58,18 @@ public class MessageBatch extends JSONObject {
         return uploadMessage;
     }
 
-    public void addSessionHistoryMessage(JSONObject message) {
-        try {
-            if (!has(Constants.MessageKey.HISTORY)) {
-                put(Constants.MessageKey.HISTORY, new JSONArray());
-            }
-            getJSONArray(Constants.MessageKey.HISTORY).put(message);
-        } catch (JSONException e) {
-        }
+    /**
+     * @param message a message, already serialized as a JSON object
+     */
+    public void addSessionHistoryMessage(String message) {
+        mSessionHistoryMessages.add(message);
     }
 
-    public void addMessage(JSONObject message) {
-        try {
-            if (!has(Constants.MessageKey.MESSAGES)) {
-                put(Constants.MessageKey.MESSAGES, new JSONArray());
-            }
-            getJSONArray(Constants.MessageKey.MESSAGES).put(message);
-        } catch (JSONException e) {
-        }
+    /**
+     * @param message a message, already serialized as a JSON object
+     */
+    public void addMessage(String message) {
+        mMessages.add(message);
     }
 
     public void addReportingMessage(JSONObject reportingMessage) {
@@ -108,20 +114,12 @@ public class MessageBatch extends JSONObject {
         }
     }
 
-    public JSONArray getSessionHistoryMessages() {
-        try {
-            return getJSONArray(Constants.MessageKey.HISTORY);
-        } catch (JSONException e) {
-            return null;
-        }
+    public List<String> getSessionHistoryMessages() {
+        return mSessionHistoryMessages;
     }
 
-    public JSONArray getMessages() {
-        try {
-            return getJSONArray(Constants.MessageKey.MESSAGES);
-        } catch (JSONException e) {
-            return null;
-        }
+    public List<String> getMessages() {
+        return mMessages;
     }
 
     public void setIdentities(JSONArray identities) {
@@ -147,4 +145,114 @@ public class MessageBatch extends JSONObject {
     public void incrementMessageLengthBytes(long bytes) {
         messageLengthBytes = messageLengthBytes + bytes;
     }
+
+    @Override
+    public boolean has(String name) {
+        return getMessageList(name) != null || super.has(name);
+    }
+
+    @Override
+    public boolean isNull(String name) {
+        return getMessageList(name) == null && super.isNull(name);
+    }
+
+    @Override
+    public Object opt(String name) {
+        JSONArray messages = getMessageArray(name);
+        return messages != null ? messages : super.opt(name);
+    }
+
+    @Override
+    public Object get(String name) throws JSONException {
+        JSONArray messages = getMessageArray(name);
+        return messages != null ? messages : super.get(name);
+    }
+
+    @Override
+    public JSONArray optJSONArray(String name) {
+        JSONArray messages = getMessageArray(name);
+        return messages != null ? messages : super.optJSONArray(name);
+    }
+
+    @Override
+    public JSONArray getJSONArray(String name) throws JSONException {
+        JSONArray messages = getMessageArray(name);
+        return messages != null ? messages : super.getJSONArray(name);
+    }
+
+    @Override
+    public int length() {
+        return super.length() + (mMessages.isEmpty() ? 0 : 1) + (mSessionHistoryMessages.isEmpty() ? 0 : 1);
+    }
+
+    @Override
+    public String toString(int indentSpaces) throws JSONException {
+        return new JSONObject(toString()).toString(indentSpaces);
+    }
+
+    /**
+     * @return the messages held under the given key, or null if the key isn't one of the message arrays or no
+     * messages have been added under it
+     */
+    private List<String> getMessageList(String name) {
+        List<String> messages = null;
+        if (Constants.MessageKey.MESSAGES.equals(name)) {
+            messages = mMessages;
+        } else if (Constants.MessageKey.HISTORY.equals(name)) {
+            messages = mSessionHistoryMessages;
+        }
+        return messages == null || messages.isEmpty() ? null : messages;
+    }
+
+    private JSONArray getMessageArray(String name) {
+        List<String> messages = getMessageList(name);
+        if (messages == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        appendMessages(builder, messages);
+        try {
+            return new JSONArray(builder.toString());
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String header = super.toString();
+        if (mMessages.isEmpty() && mSessionHistoryMessages.isEmpty()) {
+            return header;
+        }
+        StringBuilder builder = new StringBuilder(header.length() + (int) messageLengthBytes + mMessages.size() + mSessionHistoryMessages.size() + 16);
+        //drop the closing brace of the header, and append the message arrays in its place
+        builder.append(header, 0, header.length() - 1);
+        boolean first = super.length() == 0;
+        first = appendMessages(builder, Constants.MessageKey.MESSAGES, mMessages, first);
+        appendMessages(builder, Constants.MessageKey.HISTORY, mSessionHistoryMessages, first);
+        return builder.append('}').toString();
+    }
+
+    private static boolean appendMessages(StringBuilder builder, String key, List<String> messages, boolean first) {
+        if (messages.isEmpty()) {
+            return first;
+        }
+        if (!first) {
+            builder.append(',');
+        }
+        builder.append(JSONObject.quote(key)).append(':');
+        appendMessages(builder, messages);
+        return false;
+    }
+
+    private static void appendMessages(StringBuilder builder, List<String> messages) {
+        builder.append('[');
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(messages.get(i));
+        }
+        builder.append(']');
+    }
 }
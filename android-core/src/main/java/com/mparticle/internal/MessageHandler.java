@@ -18,6 +18,8 @@ import com.mparticle.internal.networking.BaseMPMessage;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -25,6 +27,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* package-private */ class MessageHandler extends Handler {
 
@@ -44,9 +49,37 @@ import java.util.UUID;
     public static final int INCREMENT_USER_ATTRIBUTE = 12;
     public static final int INSTALL_REFERRER_UPDATED = 13;
     public static final int CLEAR_MESSAGES_FOR_UPLOAD = 14;
+    public static final int FLUSH_GROUP_COMMIT = 15;
 
     private final MessageManagerCallbacks mMessageManagerCallbacks;
 
+    /**
+     * Group-commit mode: rather than writing each STORE_MESSAGE/STORE_BREADCRUMB in its own
+     * transaction, messages are buffered while more of them are waiting in the queue, and written
+     * together in a single transaction, bounded by a message count and a latency ceiling.
+     *
+     * The same buffer holds messages while the database is unavailable, such as during a cold start,
+     * up to {@link #mMessageBufferCapacity} messages, after which the oldest are dropped and counted.
+     */
+    private int mGroupCommitMessageLimit = Constants.GROUP_COMMIT_MESSAGE_LIMIT;
+    private long mGroupCommitMaxLatency = Constants.GROUP_COMMIT_MAX_LATENCY;
+    private int mMessageBufferCapacity = Constants.MESSAGE_BUFFER_CAPACITY;
+    private final ArrayDeque<PendingStore> mGroupCommitQueue = new ArrayDeque<PendingStore>();
+    /**
+     * The number of messages dropped because the buffer was full. Only accessed on the handler's thread, other
+     * than by {@link #getDroppedMessageCount()}.
+     */
+    private volatile int mDroppedMessageCount;
+
+    /**
+     * Reporting messages from kits are added here from any thread, and written by a single STORE_REPORTING_MESSAGE_LIST
+     * in one transaction, at most {@link #mGroupCommitMaxLatency} after the first of them was added, or as soon as
+     * {@link #mGroupCommitMessageLimit} of them are waiting.
+     */
+    private final ConcurrentLinkedQueue<MessageManager.ReportingMpidMessage> mReportingMessageBuffer = new ConcurrentLinkedQueue<MessageManager.ReportingMpidMessage>();
+    private final AtomicInteger mReportingMessageCount = new AtomicInteger();
+    private final AtomicBoolean mReportingMessageFlushScheduled = new AtomicBoolean();
+
     public MessageHandler(Looper looper, MessageManagerCallbacks messageManager, Context context) {
         super(looper);
         mMessageManagerCallbacks = messageManager;
@@ -54,6 +87,69 @@ import java.util.UUID;
         mMParticleDBManager = new MParticleDBManager(context, DatabaseTables.getInstance(context));
     }
 
+    /**
+     * Configure group-commit mode.
+     *
+     * @param messageLimit the maximum number of messages written per transaction, a value of 1 or less disables group-commit
+     * @param maxLatencyMillis the maximum time a message will be held before it is written
+     */
+    void setGroupCommit(int messageLimit, long maxLatencyMillis) {
+        mGroupCommitMessageLimit = messageLimit;
+        mGroupCommitMaxLatency = maxLatencyMillis;
+    }
+
+    void setMessageBufferCapacity(int capacity) {
+        mMessageBufferCapacity = capacity;
+    }
+
+    /**
+     * @return the number of messages that were dropped, rather than stored, because the buffer was full
+     */
+    int getDroppedMessageCount() {
+        return mDroppedMessageCount;
+    }
+
+    void setCompactMessageStorage(boolean compactMessageStorage) {
+        mMParticleDBManager.setCompactMessageEncoding(compactMessageStorage);
+    }
+
+    /**
+     * Buffer reporting messages to be written with any others logged around the same time. May be called from any thread.
+     */
+    void storeReportingMessages(MessageManager.ReportingMpidMessage reportingMessages) {
+        mReportingMessageBuffer.add(reportingMessages);
+        int count = mReportingMessageCount.addAndGet(reportingMessages.reportingMessages.size());
+        if (count >= mGroupCommitMessageLimit) {
+            mReportingMessageFlushScheduled.set(true);
+            sendEmptyMessage(STORE_REPORTING_MESSAGE_LIST);
+        } else if (mReportingMessageFlushScheduled.compareAndSet(false, true)) {
+            sendEmptyMessageDelayed(STORE_REPORTING_MESSAGE_LIST, mGroupCommitMaxLatency);
+        }
+    }
+
+    /**
+     * Write every buffered reporting message in a single transaction.
+     */
+    private void flushReportingMessages() {
+        //cancel any pending flush before clearing the flag, so that a flush scheduled by a message added after this
+        //point is never removed, and every message added before it is drained below
+        removeMessages(STORE_REPORTING_MESSAGE_LIST);
+        mReportingMessageFlushScheduled.set(false);
+        if (mReportingMessageBuffer.isEmpty()) {
+            return;
+        }
+        mMParticleDBManager.beginGroupCommit();
+        try {
+            MessageManager.ReportingMpidMessage reportingMessages;
+            while ((reportingMessages = mReportingMessageBuffer.poll()) != null) {
+                mReportingMessageCount.addAndGet(-reportingMessages.reportingMessages.size());
+                mMParticleDBManager.insertReportingMessages((List<JsonReportingMessage>) reportingMessages.reportingMessages, reportingMessages.mpid);
+            }
+        } finally {
+            mMParticleDBManager.endGroupCommit();
+        }
+    }
+
     private boolean databaseAvailable() {
         return mMParticleDBManager.isAvailable();
     }
@@ -61,40 +157,40 @@ import java.util.UUID;
     public void handleMessage(Message msg) {
         try {
             if (!databaseAvailable()) {
+                bufferUntilAvailable(msg);
                 return;
             }
             mMessageManagerCallbacks.delayedStart();
         }catch (Exception e) {
             Logger.verbose(e.toString());
         }
+        if ((msg.what != STORE_MESSAGE && msg.what != STORE_BREADCRUMB) || !isGroupCommitEnabled()) {
+            //anything else might depend on previously stored messages, so write them first
+            flushGroupCommit();
+        }
         switch (msg.what) {
             case STORE_MESSAGE:
-                try {
-
-                    BaseMPMessage message = (BaseMPMessage) msg.obj;
-                    message.put(MessageKey.STATE_INFO_KEY, MessageManager.getStateInfo());
-                    String messageType = message.getString(MessageKey.TYPE);
-                    // handle the special case of session-start by creating the
-                    // session record first
-                    if (MessageType.SESSION_START.equals(messageType)) {
-                        dbInsertSession(message);
-                    }else{
-                        mMParticleDBManager.updateSessionEndTime(message.getSessionId(), message.getLong(MessageKey.TIMESTAMP), 0);
-                        message.put(Constants.MessageKey.ID, UUID.randomUUID().toString());
-                    }
-                    if (MessageType.ERROR.equals(messageType)){
-                        mMParticleDBManager.appendBreadcrumbs(message);
-                    }
-                    try {
-                        mMParticleDBManager.insertMessage(mMessageManagerCallbacks.getApiKey(), message);
-                    } catch (MParticleApiClientImpl.MPNoConfigException e) {
-                        Logger.error("Unable to process uploads, API key and/or API Secret are missing");
-                        return;
+            case STORE_BREADCRUMB:
+                BaseMPMessage message = toMessage(msg.obj);
+                if (message == null) {
+                    break;
+                }
+                if (isGroupCommitEnabled()) {
+                    enqueueGroupCommit(msg.what, message);
+                } else if (msg.what == STORE_MESSAGE) {
+                    if (storeMessage(message)) {
+                        mMessageManagerCallbacks.checkForTrigger(message);
                     }
-                    mMessageManagerCallbacks.checkForTrigger(message);
-
+                } else {
+                    storeBreadcrumb(message);
+                }
+                break;
+            case FLUSH_GROUP_COMMIT:
+                //the group-commit buffer has already been written, above, so only the reporting messages are left
+                try {
+                    flushReportingMessages();
                 } catch (Exception e) {
-                    Logger.error(e, "Error saving message to mParticle DB.");
+                    Logger.verbose(e, "Error while inserting reporting messages: ", e.toString());
                 }
                 break;
             case INSTALL_REFERRER_UPDATED:
@@ -171,23 +267,9 @@ import java.util.UUID;
                     Logger.error(e, "Error processing initialization in mParticle DB");
                 }
                 break;
-            case STORE_BREADCRUMB:
-                try {
-                    BaseMPMessage message = (BaseMPMessage) msg.obj;
-                    message.put(Constants.MessageKey.ID, UUID.randomUUID().toString());
-                    try {
-                        mMParticleDBManager.insertBreadcrumb(message, mMessageManagerCallbacks.getApiKey());
-                    } catch (MParticleApiClientImpl.MPNoConfigException ex) {
-                        Logger.error("Unable to process uploads, API key and/or API Secret are missing");
-                    }
-                } catch (Exception e) {
-                    Logger.error(e, "Error saving breadcrumb to mParticle DB");
-                }
-                break;
             case STORE_REPORTING_MESSAGE_LIST:
                 try{
-                    MessageManager.ReportingMpidMessage reportingMessages = (MessageManager.ReportingMpidMessage)msg.obj;
-                    mMParticleDBManager.insertReportingMessages((List<JsonReportingMessage>)reportingMessages.reportingMessages, reportingMessages.mpid);
+                    flushReportingMessages();
                 }catch (Exception e) {
                     Logger.verbose(e, "Error while inserting reporting messages: ", e.toString());
                 }
@@ -219,9 +301,156 @@ import java.util.UUID;
         }
     }
 
+    private boolean isGroupCommitEnabled() {
+        //messages stored synchronously from another thread are written immediately
+        return mGroupCommitMessageLimit > 1 && Looper.myLooper() == getLooper();
+    }
+
+    /**
+     * Hold messages to be stored while the database is unavailable, and keep retrying until they can be written.
+     * Messages stored synchronously from another thread are passed to the handler's thread to be buffered there.
+     */
+    private void bufferUntilAvailable(Message msg) {
+        if (Looper.myLooper() != getLooper()) {
+            if (msg.what == STORE_MESSAGE || msg.what == STORE_BREADCRUMB) {
+                sendMessage(Message.obtain(msg));
+            }
+            return;
+        }
+        if (msg.what == STORE_MESSAGE || msg.what == STORE_BREADCRUMB) {
+            BaseMPMessage message = toMessage(msg.obj);
+            if (message != null) {
+                addToBuffer(msg.what, message);
+            }
+        }
+        if (!mReportingMessageBuffer.isEmpty() && !hasMessages(STORE_REPORTING_MESSAGE_LIST)) {
+            sendEmptyMessageDelayed(STORE_REPORTING_MESSAGE_LIST, Constants.MESSAGE_BUFFER_RETRY_DELAY);
+        }
+        if (!mGroupCommitQueue.isEmpty() && !hasMessages(FLUSH_GROUP_COMMIT)) {
+            sendEmptyMessageDelayed(FLUSH_GROUP_COMMIT, Constants.MESSAGE_BUFFER_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * @param obj a message to store, or an event that is logged with {@link MessageManager#logEventDeferred(com.mparticle.MPEvent, String)},
+     *            whose message is built here
+     */
+    private static BaseMPMessage toMessage(Object obj) {
+        if (obj instanceof MessageManager.EventRecord) {
+            try {
+                return ((MessageManager.EventRecord) obj).toMessage();
+            } catch (JSONException e) {
+                Logger.warning("Failed to create mParticle log event message");
+                return null;
+            }
+        }
+        return (BaseMPMessage) obj;
+    }
+
+    private void addToBuffer(int what, BaseMPMessage message) {
+        if (mGroupCommitQueue.size() >= mMessageBufferCapacity) {
+            mGroupCommitQueue.removeFirst();
+            mDroppedMessageCount++;
+            Logger.warning("Message buffer is full, dropping the oldest message. " + mDroppedMessageCount + " messages have been dropped since the SDK started.");
+        }
+        mGroupCommitQueue.addLast(new PendingStore(what, message));
+    }
+
+    private void enqueueGroupCommit(int what, BaseMPMessage message) {
+        addToBuffer(what, message);
+        if (mGroupCommitQueue.size() >= mGroupCommitMessageLimit
+                || !(hasMessages(STORE_MESSAGE) || hasMessages(STORE_BREADCRUMB))) {
+            flushGroupCommit();
+        } else if (mGroupCommitQueue.size() == 1) {
+            sendEmptyMessageDelayed(FLUSH_GROUP_COMMIT, mGroupCommitMaxLatency);
+        }
+    }
+
+    /**
+     * Write every buffered message in a single transaction, and only then check for upload triggers.
+     */
+    void flushGroupCommit() {
+        if (mGroupCommitQueue.isEmpty() || Looper.myLooper() != getLooper()) {
+            return;
+        }
+        removeMessages(FLUSH_GROUP_COMMIT);
+        List<BaseMPMessage> storedMessages = new ArrayList<BaseMPMessage>(mGroupCommitQueue.size());
+        try {
+            mMParticleDBManager.beginGroupCommit();
+        } catch (Exception e) {
+            Logger.error(e, "Unable to write buffered messages to mParticle DB, will retry.");
+            sendEmptyMessageDelayed(FLUSH_GROUP_COMMIT, Constants.MESSAGE_BUFFER_RETRY_DELAY);
+            return;
+        }
+        try {
+            for (PendingStore pendingStore : mGroupCommitQueue) {
+                if (pendingStore.what == STORE_MESSAGE) {
+                    if (storeMessage(pendingStore.message)) {
+                        storedMessages.add(pendingStore.message);
+                    }
+                } else {
+                    storeBreadcrumb(pendingStore.message);
+                }
+            }
+        } finally {
+            mGroupCommitQueue.clear();
+            mMParticleDBManager.endGroupCommit();
+        }
+        for (BaseMPMessage message : storedMessages) {
+            mMessageManagerCallbacks.checkForTrigger(message);
+        }
+    }
+
+    /**
+     * @return true if the message was written to the database
+     */
+    private boolean storeMessage(BaseMPMessage message) {
+        try {
+            message.put(MessageKey.STATE_INFO_KEY, MessageManager.getStateInfo());
+            String messageType = message.getString(MessageKey.TYPE);
+            // handle the special case of session-start by creating the
+            // session record first
+            if (MessageType.SESSION_START.equals(messageType)) {
+                dbInsertSession(message);
+            }else{
+                mMParticleDBManager.updateSessionEndTime(message.getSessionId(), message.getLong(MessageKey.TIMESTAMP), 0);
+                message.put(Constants.MessageKey.ID, UUID.randomUUID().toString());
+            }
+            if (MessageType.ERROR.equals(messageType)){
+                mMParticleDBManager.appendBreadcrumbs(message);
+            }
+            try {
+                mMParticleDBManager.insertMessage(mMessageManagerCallbacks.getApiKey(), message);
+            } catch (MParticleApiClientImpl.MPNoConfigException e) {
+                Logger.error("Unable to process uploads, API key and/or API Secret are missing");
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            Logger.error(e, "Error saving message to mParticle DB.");
+        }
+        return false;
+    }
+
+    private void storeBreadcrumb(BaseMPMessage message) {
+        try {
+            message.put(Constants.MessageKey.ID, UUID.randomUUID().toString());
+            try {
+                mMParticleDBManager.insertBreadcrumb(message, mMessageManagerCallbacks.getApiKey());
+            } catch (MParticleApiClientImpl.MPNoConfigException ex) {
+                Logger.error("Unable to process uploads, API key and/or API Secret are missing");
+            }
+        } catch (Exception e) {
+            Logger.error(e, "Error saving breadcrumb to mParticle DB");
+        }
+    }
+
     void setUserAttributes(UserAttributeResponse response) {
         List<AttributionChange> attributionChanges = mMParticleDBManager.setUserAttribute(response);
         for (AttributionChange attributionChange : attributionChanges) {
+            if (attributionChange.isDeleted()) {
+                mMessageManagerCallbacks.attributeRemoved(attributionChange.getKey(), attributionChange.getMpId());
+            }
             logUserAttributeChanged(attributionChange);
         }
     }
@@ -259,6 +488,16 @@ import java.util.UUID;
         MParticle.getInstance().getKitManager().setUserAttribute(key, newValue);
     }
 
+    private static class PendingStore {
+        final int what;
+        final BaseMPMessage message;
+
+        PendingStore(int what, BaseMPMessage message) {
+            this.what = what;
+            this.message = message;
+        }
+    }
+
     private void dbInsertSession(BaseMPMessage message) throws JSONException {
         try {
             DeviceAttributes deviceAttributes =  mMessageManagerCallbacks.getDeviceAttributes();
@@ -1,21 +1,24 @@
 package com.mparticle.internal;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.location.Location;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.BatteryManager;
+import android.os.Build;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
-import android.telephony.TelephonyManager;
 
 import com.mparticle.ConsentEvent;
 import com.mparticle.MPEvent;
@@ -47,6 +50,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is primarily responsible for generating BaseMPMessage objects, and then adding them to a
@@ -107,7 +111,8 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
     /**
      * Keep a reference to the current battery life as populated by the BroadcastReceiver described above.
      */
-    private static double sBatteryLevel;
+    private static volatile double sBatteryLevel;
+    private static volatile boolean sCharging;
     /**
      * The app-info dictionary in each batch need to know the runtime of the SDK/app itself.
      */
@@ -117,9 +122,16 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
      */
     MParticle.InstallType mInstallType = MParticle.InstallType.AutoDetect;
     /**
-     * Batches/messages need to communicate the current telephony status when available.
+     * Reuses the expensive parts of each message's state info until they are stale.
      */
-    private static TelephonyManager sTelephonyManager;
+    private static volatile StateInfoSampler sStateInfoSampler;
+    private static final int EVENT_COUNTER_NOT_LOADED = -1;
+    /**
+     * The number of events logged in the current session. This is kept in memory, and only written to
+     * preferences every {@link Constants#EVENT_COUNTER_PERSIST_INTERVAL} events, when the app is
+     * backgrounded, and when the session ends.
+     */
+    private static final AtomicInteger sEventCounter = new AtomicInteger(EVENT_COUNTER_NOT_LOADED);
 
     /**
      * Used solely for unit testing
@@ -135,12 +147,14 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
     public MessageManager(Context appContext, ConfigManager configManager, MParticle.InstallType installType, AppStateManager appStateManager, MParticleDBManager dbManager, MessageHandler messageHandler, UploadHandler uploadHandler) {
         mDeviceAttributes = new DeviceAttributes();
         sContext = appContext.getApplicationContext();
+        sStateInfoSampler = new StateInfoSampler(sContext);
         mConfigManager = configManager;
         mAppStateManager = appStateManager;
         mMParticleDBManager = dbManager;
         mMessageHandler = messageHandler;
         mUploadHandler = uploadHandler;
         sPreferences = appContext.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
+        sEventCounter.set(EVENT_COUNTER_NOT_LOADED);
         mInstallType = installType;
     }
 
@@ -148,23 +162,19 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
         this.devicePerformanceMetricsDisabled = devicePerformanceMetricsDisabled;
         mDeviceAttributes = new DeviceAttributes();
         sContext = appContext.getApplicationContext();
+        sStateInfoSampler = new StateInfoSampler(sContext);
         mConfigManager = configManager;
         mAppStateManager = appStateManager;
         mAppStateManager.setMessageManager(this);
         mMParticleDBManager = new MParticleDBManager(appContext, DatabaseTables.getInstance(appContext));
         mMessageHandler = new MessageHandler(sMessageHandlerThread.getLooper(), this, appContext);
+        mMessageHandler.setCompactMessageStorage(configManager.isCompactMessageStorageEnabled());
         mUploadHandler = new UploadHandler(appContext, sUploadHandlerThread.getLooper(), configManager, appStateManager, this);
         sPreferences = appContext.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
+        sEventCounter.set(EVENT_COUNTER_NOT_LOADED);
         mInstallType = installType;
     }
 
-    private static TelephonyManager getTelephonyManager() {
-        if (sTelephonyManager == null) {
-            sTelephonyManager = (TelephonyManager) sContext.getSystemService(Context.TELEPHONY_SERVICE);
-        }
-        return sTelephonyManager;
-    }
-
     public boolean isDevicePerformanceMetricsDisabled() {
         return devicePerformanceMetricsDisabled;
     }
@@ -176,32 +186,25 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
     public static JSONObject getStateInfo() throws JSONException {
         JSONObject infoJson = new JSONObject();
         if (!devicePerformanceMetricsDisabled) {
-            infoJson.put(MessageKey.STATE_INFO_AVAILABLE_DISK, MPUtility.getAvailableInternalDisk(sContext));
-            infoJson.put(MessageKey.STATE_INFO_AVAILABLE_EXT_DISK, MPUtility.getAvailableExternalDisk(sContext));
             final Runtime rt = Runtime.getRuntime();
             infoJson.put(MessageKey.STATE_INFO_APP_MEMORY_USAGE, rt.totalMemory());
             infoJson.put(MessageKey.STATE_INFO_APP_MEMORY_AVAIL, rt.freeMemory());
             infoJson.put(MessageKey.STATE_INFO_APP_MEMORY_MAX, rt.maxMemory());
         }
-        infoJson.put(MessageKey.STATE_INFO_AVAILABLE_MEMORY, MPUtility.getAvailableMemory(sContext));
-        infoJson.put(MessageKey.STATE_INFO_TOTAL_MEMORY, getTotalMemory());
+        getStateInfoSampler().putStateInfo(infoJson, !devicePerformanceMetricsDisabled);
         infoJson.put(MessageKey.STATE_INFO_BATTERY_LVL, sBatteryLevel);
         infoJson.put(MessageKey.STATE_INFO_TIME_SINCE_START, MPUtility.millitime() - sStartTime);
-
-        String gps = MPUtility.getGpsEnabled(sContext);
-        if (gps != null){
-            infoJson.put(MessageKey.STATE_INFO_GPS,Boolean.parseBoolean(gps));
-        }
         infoJson.put(MessageKey.STATE_INFO_DATA_CONNECTION, sActiveNetworkName);
-        int orientation = MPUtility.getOrientation(sContext);
-        infoJson.put(MessageKey.STATE_INFO_ORIENTATION, orientation);
-        infoJson.put(MessageKey.STATE_INFO_BAR_ORIENTATION, orientation);
-        infoJson.put(MessageKey.STATE_INFO_MEMORY_LOW, MPUtility.isSystemMemoryLow(sContext));
-        infoJson.put(MessageKey.STATE_INFO_MEMORY_THRESHOLD, getSystemMemoryThreshold());
-        infoJson.put(MessageKey.STATE_INFO_NETWORK_TYPE, getTelephonyManager().getNetworkType());
         return infoJson;
     }
 
+    private static synchronized StateInfoSampler getStateInfoSampler() {
+        if (sStateInfoSampler == null) {
+            sStateInfoSampler = new StateInfoSampler(sContext);
+        }
+        return sStateInfoSampler;
+    }
+
     public static long getTotalMemory() {
         long total = sPreferences.getLong(Constants.MiscStorageKeys.TOTAL_MEMORY, -1);
         if (total < 0) {
@@ -313,26 +316,7 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
     public BaseMPMessage logEvent(MPEvent event, String currentActivity) {
         if (event != null) {
             try {
-
-                BaseMPMessage message = new MPEventMessage.Builder(MessageType.EVENT, mAppStateManager.getSession(), mLocation, mConfigManager.getMpid())
-                        .name(event.getEventName())
-                        .timestamp(mAppStateManager.getSession().mLastEventTime)
-                        .length(event.getLength())
-                        .flags(event.getCustomFlags())
-                        .attributes(MPUtility.enforceAttributeConstraints(event.getInfo()))
-                        .build();
-                message.put(MessageKey.EVENT_TYPE, event.getEventType());
-                message.put(MessageKey.EVENT_START_TIME, message.getTimestamp());
-
-
-                if (currentActivity != null) {
-                    message.put(MessageKey.CURRENT_ACTIVITY, currentActivity);
-                }
-
-                int count = sPreferences.getInt(Constants.PrefKeys.EVENT_COUNTER, 0);
-                message.put(MessageKey.EVENT_COUNTER, count);
-                sPreferences.edit().putInt(Constants.PrefKeys.EVENT_COUNTER, ++count).apply();
-
+                BaseMPMessage message = new EventRecord(event, currentActivity).toMessage();
                 mMessageHandler.sendMessage(mMessageHandler.obtainMessage(MessageHandler.STORE_MESSAGE, message));
                 return message;
             } catch (JSONException e) {
@@ -342,6 +326,96 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
         return null;
     }
 
+    /**
+     * Like {@link #logEvent(MPEvent, String)}, but only a snapshot of the event is taken on the calling thread. The
+     * message is built and serialized on the message handler's thread, when it is stored.
+     */
+    public void logEventDeferred(MPEvent event, String currentActivity) {
+        if (event != null) {
+            mMessageHandler.sendMessage(mMessageHandler.obtainMessage(MessageHandler.STORE_MESSAGE, new EventRecord(event, currentActivity)));
+        }
+    }
+
+    /**
+     * Everything an event message is built from, captured when the event is logged. Capturing only copies the
+     * event's attributes and flags, which the app may go on to change.
+     */
+    class EventRecord {
+        private final MPEvent mEvent;
+        private final String mCurrentActivity;
+        private final String mSessionId;
+        private final long mSessionStartTime;
+        private final long mTimestamp;
+        private final Location mLocation;
+        private final long mMpid;
+        private final int mEventCounter;
+
+        EventRecord(MPEvent event, String currentActivity) {
+            Session session = mAppStateManager.getSession();
+            mEvent = new MPEvent(event);
+            mCurrentActivity = currentActivity;
+            mSessionId = session.mSessionID;
+            mSessionStartTime = session.mSessionStartTime;
+            mTimestamp = session.mLastEventTime;
+            mLocation = MessageManager.this.mLocation;
+            mMpid = mConfigManager.getMpid();
+            mEventCounter = getAndIncrementEventCounter();
+        }
+
+        BaseMPMessage toMessage() throws JSONException {
+            Session session = new Session();
+            session.mSessionID = mSessionId;
+            session.mSessionStartTime = mSessionStartTime;
+            BaseMPMessage message = new MPEventMessage.Builder(MessageType.EVENT, session, mLocation, mMpid)
+                    .name(mEvent.getEventName())
+                    .timestamp(mTimestamp)
+                    .length(mEvent.getLength())
+                    .flags(mEvent.getCustomFlags())
+                    .attributes(MPUtility.enforceAttributeConstraints(mEvent.getInfo()))
+                    .build();
+            message.put(MessageKey.EVENT_TYPE, mEvent.getEventType());
+            message.put(MessageKey.EVENT_START_TIME, mTimestamp);
+            if (mCurrentActivity != null) {
+                message.put(MessageKey.CURRENT_ACTIVITY, mCurrentActivity);
+            }
+            message.put(MessageKey.EVENT_COUNTER, mEventCounter);
+            return message;
+        }
+    }
+
+    private static int getAndIncrementEventCounter() {
+        loadEventCounter();
+        int count = sEventCounter.getAndIncrement();
+        if ((count + 1) % Constants.EVENT_COUNTER_PERSIST_INTERVAL == 0) {
+            persistEventCounter();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of events logged in the session that is ending
+     */
+    public static int getAndResetEventCounter() {
+        loadEventCounter();
+        int count = sEventCounter.getAndSet(0);
+        persistEventCounter();
+        return count;
+    }
+
+    static void persistEventCounter() {
+        int count = sEventCounter.get();
+        if (count != EVENT_COUNTER_NOT_LOADED && sPreferences != null) {
+            sPreferences.edit().putInt(Constants.PrefKeys.EVENT_COUNTER, count).apply();
+        }
+    }
+
+    private static void loadEventCounter() {
+        if (sEventCounter.get() == EVENT_COUNTER_NOT_LOADED) {
+            int count = sPreferences == null ? 0 : sPreferences.getInt(Constants.PrefKeys.EVENT_COUNTER, 0);
+            sEventCounter.compareAndSet(EVENT_COUNTER_NOT_LOADED, count);
+        }
+    }
+
     public BaseMPMessage logEvent(CommerceEvent event) {
         if (event != null) {
             try {
@@ -561,6 +635,9 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
                         .build();
 
                 message.put(MessageKey.STATE_TRANSITION_TYPE, stateTransInit);
+                if (Constants.StateTransitionType.STATE_TRANS_BG.equals(stateTransInit)) {
+                    persistEventCounter();
+                }
                 if (currentActivity != null) {
                     message.put(MessageKey.CURRENT_ACTIVITY, currentActivity);
                 }
@@ -788,6 +865,7 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
                 int level = batteryIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
                 int scale = batteryIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
                 sBatteryLevel = level / (double) scale;
+                sCharging = batteryIntent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
 
                 sStatusBroadcastReceiver = new StatusBroadcastReceiver();
                 // NOTE: if permissions are not correct all messages will be tagged as 'offline'
@@ -800,7 +878,12 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
                     setDataConnection(activeNetwork);
                     filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
                 }
+                filter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
                 sContext.registerReceiver(sStatusBroadcastReceiver, filter);
+                getStateInfoSampler().setBroadcastsRegistered(true, filter.hasAction(ConnectivityManager.CONNECTIVITY_ACTION));
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                    sContext.registerComponentCallbacks(new MemoryCallbacks());
+                }
             }
         }catch (Exception e){
             //this can sometimes fail due to wonky-device reasons.
@@ -817,7 +900,7 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
     public void checkForTrigger(BaseMPMessage message) {
         if (mConfigManager.shouldTrigger(message)){
             mUploadHandler.removeMessages(UploadHandler.UPLOAD_TRIGGER_MESSAGES, mConfigManager.getMpid());
-            mUploadHandler.sendMessageDelayed(mUploadHandler.obtainMessage(UploadHandler.UPLOAD_TRIGGER_MESSAGES, 1, 0, mConfigManager.getMpid()), Constants.TRIGGER_MESSAGE_DELAY);
+            mUploadHandler.sendMessageDelayed(mUploadHandler.obtainMessage(UploadHandler.UPLOAD_TRIGGER_MESSAGES, 1, 0, mConfigManager.getMpid()), mUploadHandler.getTriggerUploadDelay());
         }
     }
 
@@ -847,8 +930,7 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
                 messageList.get(i).setDevMode(development);
                 messageList.get(i).setSessionId(sessionId);
             }
-            Message message = mMessageHandler.obtainMessage(MessageHandler.STORE_REPORTING_MESSAGE_LIST, new ReportingMpidMessage(messageList, mConfigManager.getMpid()));
-            mMessageHandler.sendMessage(message);
+            mMessageHandler.storeReportingMessages(new ReportingMpidMessage(messageList, mConfigManager.getMpid()));
         }
     }
 
@@ -897,6 +979,14 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
             container.attributeSingles = new HashMap<String, String>();
             container.attributeSingles.put(key, (String) value);
         }
+        setUserAttributes(container, synchronously);
+    }
+
+    /**
+     * Set and remove several user attributes at once. They are written in a single transaction, and a change
+     * message is logged for each attribute that changed.
+     */
+    public void setUserAttributes(UserAttributeResponse container, boolean synchronously) {
         if (synchronously) {
             mMessageHandler.setUserAttributes(container);
         } else {
@@ -959,6 +1049,35 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
                 .apply();
     }
 
+    /**
+     * Write any messages held in memory by the {@link MessageHandler} to the database, such as when the app
+     * is backgrounded and may be killed.
+     */
+    public void flushMessageBuffer() {
+        mMessageHandler.sendEmptyMessage(MessageHandler.FLUSH_GROUP_COMMIT);
+    }
+
+    /**
+     * Flushes buffered messages when the system is low on memory.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private class MemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            flushMessageBuffer();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+
+        @Override
+        public void onLowMemory() {
+            flushMessageBuffer();
+        }
+    }
+
     @SuppressLint("MissingPermission")
     private class StatusBroadcastReceiver extends BroadcastReceiver {
         @Override
@@ -969,10 +1088,14 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
                             .getSystemService(Context.CONNECTIVITY_SERVICE);
                     NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
                     MessageManager.this.setDataConnection(activeNetwork);
+                    getStateInfoSampler().onConnectivityChanged();
+                } else if (Intent.ACTION_CONFIGURATION_CHANGED.equals(intent.getAction())) {
+                    getStateInfoSampler().onConfigurationChanged();
                 } else if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
                     int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
                     int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
                     sBatteryLevel = level / (double) scale;
+                    sCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
                 }
             }catch (Exception e){
                 //sometimes we're given a null intent,
@@ -981,6 +1104,18 @@ public class MessageManager implements MessageManagerCallbacks, ReportingManager
         }
     }
 
+    static String getActiveNetworkName() {
+        return sActiveNetworkName;
+    }
+
+    static double getBatteryLevel() {
+        return sBatteryLevel;
+    }
+
+    static boolean isCharging() {
+        return sCharging;
+    }
+
     public void setDataConnection(NetworkInfo activeNetwork) {
         if (activeNetwork != null) {
             String activeNetworkName = activeNetwork.getTypeName();
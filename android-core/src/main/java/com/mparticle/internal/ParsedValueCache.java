@@ -0,0 +1,58 @@
+package com.mparticle.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values that are persisted as Strings, kept in the form they are parsed into, so they aren't parsed again every time
+ * they are read.
+ *
+ * Each value is kept along with the String it was parsed from, which serves as its version. A read passes the String
+ * that is currently stored, and the value is only parsed again if that String has changed, such as when it was written
+ * without going through the cache.
+ *
+ * Values are shared by every reader, so they must not be modified. A change is made by storing a new value with
+ * {@link #put(Object, String, Object)}, along with the String it was persisted as.
+ */
+abstract class ParsedValueCache<K, V> {
+    private final Map<K, Entry<V>> mEntries = new HashMap<K, Entry<V>>();
+
+    /**
+     * @param stored the String that is currently stored for the key, which may be null
+     */
+    synchronized V get(K key, String stored) {
+        Entry<V> entry = mEntries.get(key);
+        if (entry == null || !entry.isParsedFrom(stored)) {
+            entry = new Entry<V>(stored, parse(stored));
+            mEntries.put(key, entry);
+        }
+        return entry.value;
+    }
+
+    synchronized void put(K key, String stored, V value) {
+        mEntries.put(key, new Entry<V>(stored, value));
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * @param stored the String to parse, which may be null or invalid
+     */
+    abstract V parse(String stored);
+
+    private static class Entry<V> {
+        final String source;
+        final V value;
+
+        Entry(String source, V value) {
+            this.source = source;
+            this.value = value;
+        }
+
+        boolean isParsedFrom(String stored) {
+            return source == null ? stored == null : source.equals(stored);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.mparticle.internal;
+
+import android.content.Context;
+import android.telephony.TelephonyManager;
+
+import com.mparticle.internal.Constants.MessageKey;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Samples the expensive parts of each message's state info, such as disk space, system memory and
+ * display orientation, and reuses the samples until they are stale.
+ *
+ * Disk space and memory are resampled on a fixed interval. Orientation and network type are resampled
+ * when {@link MessageManager} receives a configuration or connectivity broadcast, or on the memory
+ * interval if it is not registered for those broadcasts.
+ */
+class StateInfoSampler {
+    private final Context mContext;
+    private final long mDiskSampleInterval;
+    private final long mMemorySampleInterval;
+
+    private boolean mDiskSampled;
+    private long mDiskSampleTime;
+    private long mAvailableInternalDisk;
+    private long mAvailableExternalDisk;
+
+    private boolean mMemorySampled;
+    private long mMemorySampleTime;
+    private long mAvailableMemory;
+    private boolean mMemoryLow;
+    private String mGpsEnabled;
+
+    private long mTotalMemory = -1;
+    private long mMemoryThreshold = -1;
+
+    private boolean mOrientationBroadcasts;
+    private boolean mOrientationStale = true;
+    private int mOrientation;
+
+    private boolean mNetworkBroadcasts;
+    private boolean mNetworkTypeStale = true;
+    private int mNetworkType;
+    private TelephonyManager mTelephonyManager;
+
+    StateInfoSampler(Context context) {
+        this(context, Constants.STATE_INFO_DISK_SAMPLE_INTERVAL, Constants.STATE_INFO_MEMORY_SAMPLE_INTERVAL);
+    }
+
+    StateInfoSampler(Context context, long diskSampleInterval, long memorySampleInterval) {
+        mContext = context;
+        mDiskSampleInterval = diskSampleInterval;
+        mMemorySampleInterval = memorySampleInterval;
+    }
+
+    /**
+     * Put the sampled values in the given state info, resampling any that are stale.
+     *
+     * @param includeDisk false if device performance metrics are disabled
+     */
+    synchronized void putStateInfo(JSONObject infoJson, boolean includeDisk) throws JSONException {
+        long now = MPUtility.millitime();
+        if (includeDisk) {
+            if (!mDiskSampled || now - mDiskSampleTime >= mDiskSampleInterval) {
+                mAvailableInternalDisk = MPUtility.getAvailableInternalDisk(mContext);
+                mAvailableExternalDisk = MPUtility.getAvailableExternalDisk(mContext);
+                mDiskSampleTime = now;
+                mDiskSampled = true;
+            }
+            infoJson.put(MessageKey.STATE_INFO_AVAILABLE_DISK, mAvailableInternalDisk);
+            infoJson.put(MessageKey.STATE_INFO_AVAILABLE_EXT_DISK, mAvailableExternalDisk);
+        }
+        if (!mMemorySampled || now - mMemorySampleTime >= mMemorySampleInterval) {
+            mAvailableMemory = MPUtility.getAvailableMemory(mContext);
+            mMemoryLow = MPUtility.isSystemMemoryLow(mContext);
+            mGpsEnabled = MPUtility.getGpsEnabled(mContext);
+            mMemorySampleTime = now;
+            mMemorySampled = true;
+            if (!mOrientationBroadcasts) {
+                mOrientationStale = true;
+            }
+            if (!mNetworkBroadcasts) {
+                mNetworkTypeStale = true;
+            }
+        }
+        if (mTotalMemory < 0) {
+            mTotalMemory = MessageManager.getTotalMemory();
+        }
+        if (mMemoryThreshold < 0) {
+            mMemoryThreshold = MessageManager.getSystemMemoryThreshold();
+        }
+        if (mOrientationStale) {
+            mOrientation = MPUtility.getOrientation(mContext);
+            mOrientationStale = false;
+        }
+        if (mNetworkTypeStale) {
+            if (mTelephonyManager == null) {
+                mTelephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+            }
+            mNetworkType = mTelephonyManager.getNetworkType();
+            mNetworkTypeStale = false;
+        }
+
+        infoJson.put(MessageKey.STATE_INFO_AVAILABLE_MEMORY, mAvailableMemory);
+        infoJson.put(MessageKey.STATE_INFO_TOTAL_MEMORY, mTotalMemory);
+        if (mGpsEnabled != null) {
+            infoJson.put(MessageKey.STATE_INFO_GPS, Boolean.parseBoolean(mGpsEnabled));
+        }
+        infoJson.put(MessageKey.STATE_INFO_ORIENTATION, mOrientation);
+        infoJson.put(MessageKey.STATE_INFO_BAR_ORIENTATION, mOrientation);
+        infoJson.put(MessageKey.STATE_INFO_MEMORY_LOW, mMemoryLow);
+        infoJson.put(MessageKey.STATE_INFO_MEMORY_THRESHOLD, mMemoryThreshold);
+        infoJson.put(MessageKey.STATE_INFO_NETWORK_TYPE, mNetworkType);
+    }
+
+    /**
+     * Called once {@link MessageManager} is registered for the broadcasts that trigger resampling,
+     * so those samples are no longer resampled on an interval.
+     */
+    synchronized void setBroadcastsRegistered(boolean orientation, boolean network) {
+        mOrientationBroadcasts = orientation;
+        mNetworkBroadcasts = network;
+        mOrientationStale = true;
+        mNetworkTypeStale = true;
+    }
+
+    synchronized void onConfigurationChanged() {
+        mOrientationStale = true;
+    }
+
+    synchronized void onConnectivityChanged() {
+        mNetworkTypeStale = true;
+    }
+}
@@ -0,0 +1,101 @@
+package com.mparticle.internal;
+
+/**
+ * A snapshot of the inputs to an {@link UploadPolicy}.
+ *
+ * The pending message count and size take a scan of the message table, so they are only read the first time a
+ * policy asks for either of them.
+ */
+public final class UploadConditions {
+    private final long mUploadInterval;
+    private final UploadHandler mUploadHandler;
+    private long mPendingMessageCount;
+    private long mPendingMessageBytes;
+    private final String mNetworkName;
+    private final double mBatteryLevel;
+    private final boolean mCharging;
+    private final long mLastUploadLatency;
+
+    UploadConditions(long uploadInterval, long pendingMessageCount, long pendingMessageBytes, String networkName, double batteryLevel, boolean charging, long lastUploadLatency) {
+        this(uploadInterval, null, networkName, batteryLevel, charging, lastUploadLatency);
+        mPendingMessageCount = pendingMessageCount;
+        mPendingMessageBytes = pendingMessageBytes;
+    }
+
+    /**
+     * @param uploadHandler where the pending message count and size are read from, when they are first needed
+     */
+    UploadConditions(long uploadInterval, UploadHandler uploadHandler, String networkName, double batteryLevel, boolean charging, long lastUploadLatency) {
+        mUploadInterval = uploadInterval;
+        mUploadHandler = uploadHandler;
+        mPendingMessageCount = -1;
+        mPendingMessageBytes = -1;
+        mNetworkName = networkName;
+        mBatteryLevel = batteryLevel;
+        mCharging = charging;
+        mLastUploadLatency = lastUploadLatency;
+    }
+
+    /**
+     * @return the configured upload interval, in milliseconds
+     */
+    public long getUploadInterval() {
+        return mUploadInterval;
+    }
+
+    /**
+     * @return the number of stored messages that have not yet been batched for upload
+     */
+    public long getPendingMessageCount() {
+        loadPendingMessages();
+        return mPendingMessageCount;
+    }
+
+    /**
+     * @return the total size, in bytes, of the stored messages that have not yet been batched for upload
+     */
+    public long getPendingMessageBytes() {
+        loadPendingMessages();
+        return mPendingMessageBytes;
+    }
+
+    private void loadPendingMessages() {
+        if (mPendingMessageCount < 0 && mUploadHandler != null) {
+            long[] pendingMessages = mUploadHandler.getPendingMessageStats();
+            mPendingMessageCount = pendingMessages[0];
+            mPendingMessageBytes = pendingMessages[1];
+        }
+    }
+
+    /**
+     * @return the active network, such as "wifi" or "mobile/lte", or "offline"
+     */
+    public String getNetworkName() {
+        return mNetworkName;
+    }
+
+    /**
+     * @return true if the active network is not likely to be metered, such as Wi-Fi or ethernet
+     */
+    public boolean isUnmetered() {
+        return mNetworkName != null && (mNetworkName.startsWith("wifi") || mNetworkName.startsWith("ethernet"));
+    }
+
+    /**
+     * @return the battery level, from 0 to 1, or 0 if it is not yet known
+     */
+    public double getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    /**
+     * @return how long, in milliseconds, the most recent upload request took, or -1 if there has not been one
+     */
+    public long getLastUploadLatency() {
+        return mLastUploadLatency;
+    }
+}
@@ -13,7 +13,20 @@ import com.mparticle.segmentation.SegmentListener;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 import javax.net.ssl.SSLHandshakeException;
@@ -70,6 +83,26 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
      */
     volatile boolean isNetworkConnected = true;
 
+    /**
+     * Maximum number of upload batches that may be in flight at once. Batches of the same session are
+     * always sent one after the other, so only batches of different sessions are sent concurrently.
+     */
+    private volatile int mMaxConcurrentUploads = Constants.MAX_CONCURRENT_UPLOADS;
+    private ExecutorService mUploadExecutor;
+
+    private volatile UploadPolicy mUploadPolicy = new AdaptiveUploadPolicy();
+    /**
+     * How long the most recent upload request took, or -1 if there has not been one.
+     */
+    private volatile long mLastUploadLatency = -1;
+    private long mLastUploadTime;
+    /**
+     * The pending message count and size, reused until they are {@link Constants#PENDING_MESSAGE_STATS_MAX_AGE} old,
+     * or messages are batched for upload.
+     */
+    private long[] mPendingMessageStats;
+    private long mPendingMessageStatsTime;
+
     /**
      *
      * Only used for unit testing
@@ -82,13 +115,7 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
         mParticleDBManager = new MParticleDBManager(context, DatabaseTables.getInstance(context));
         mPreferences = mContext.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
         mMessageManager = messageManager;
-        try {
-            setApiClient(new MParticleApiClientImpl(configManager, mPreferences, context));
-        } catch (MalformedURLException e) {
-            //this should never happen - the URLs are created by constants.
-        } catch (MParticleApiClientImpl.MPNoConfigException e) {
-            Logger.error("Unable to process uploads, API key and/or API Secret are missing");
-        }
+        init();
     }
 
 
@@ -101,8 +128,13 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
         mParticleDBManager = new MParticleDBManager(context, DatabaseTables.getInstance(context));
         mPreferences = mContext.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
         mMessageManager = messageManager;
+        init();
+    }
+
+    private void init() {
+        setUploadPolicy(mConfigManager.getUploadPolicy());
         try {
-            setApiClient(new MParticleApiClientImpl(configManager, mPreferences, context));
+            setApiClient(new MParticleApiClientImpl(mConfigManager, mPreferences, mContext));
         } catch (MalformedURLException e) {
             //this should never happen - the URLs are created by constants.
         } catch (MParticleApiClientImpl.MPNoConfigException e) {
@@ -128,8 +160,10 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
                 case UPLOAD_TRIGGER_MESSAGES:
                     long uploadInterval = mConfigManager.getUploadInterval();
                     if (isNetworkConnected && !mApiClient.isThrottled()) {
-                        if (uploadInterval > 0 || msg.arg1 == 1) {
+                        if ((uploadInterval > 0 && isUploadDue(uploadInterval)) || msg.arg1 == 1) {
+                            mLastUploadTime = System.currentTimeMillis();
                             prepareMessageUploads(false);
+                            clearPendingMessageStats();
                             boolean needsHistory = upload(false);
                             if (needsHistory) {
                                 this.sendEmptyMessage(UPLOAD_HISTORY);
@@ -137,7 +171,7 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
                         }
                     }
                     if (mAppStateManager.getSession().isActive() && uploadInterval > 0 && msg.arg1 == 0) {
-                        this.sendEmptyMessageDelayed(UPLOAD_MESSAGES, uploadInterval);
+                        this.sendEmptyMessageDelayed(UPLOAD_MESSAGES, Math.min(uploadInterval, Constants.UPLOAD_CHECK_INTERVAL));
                     }
                     break;
                 case UPLOAD_HISTORY:
@@ -193,30 +227,22 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
 
     /**
      * This method is responsible for looking for batches that are ready to be uploaded, and uploading them.
+     * Batches are read a page at a time, so only a bounded number of them are ever held in memory.
      */
     boolean upload(boolean history) {
         mParticleDBManager.cleanupUploadMessages();
         boolean processingSessionEnd = false;
         try {
-            List<ReadyUpload> readyUploads = mParticleDBManager.getReadyUploads();
+            List<ReadyUpload> readyUploads = mParticleDBManager.getReadyUploads(null, Constants.READY_UPLOAD_PAGE_SIZE);
             if (readyUploads.size() > 0) {
                 mApiClient.fetchConfig();
             }
             final boolean includeSessionHistory = mConfigManager.getIncludeSessionHistory();
-            for (ReadyUpload readyUpload : readyUploads) {
-                //this case actually shouldn't be needed anymore except for upgrade scenarios.
-                //as of version 4.9.0, upload batches for session history shouldn't even be created.
-                if (history && !includeSessionHistory) {
-                    mParticleDBManager.deleteUpload(readyUpload.getId());
-                } else {
-                    if (!history) {
-                        // if message is the MessageType.SESSION_END, then remember so the session history can be triggered
-                        if (!processingSessionEnd && readyUpload.getMessage().contains(containsClause)) {
-                            processingSessionEnd = true;
-                        }
-                    }
-                    uploadMessage(readyUpload.getId(), readyUpload.getMessage());
+            while (!readyUploads.isEmpty()) {
+                if (uploadPage(readyUploads, history, includeSessionHistory)) {
+                    processingSessionEnd = true;
                 }
+                readyUploads = mParticleDBManager.getReadyUploads(readyUploads.get(readyUploads.size() - 1), Constants.READY_UPLOAD_PAGE_SIZE);
             }
         } catch (MParticleApiClientImpl.MPThrottleException e) {
         } catch (SSLHandshakeException ssle) {
@@ -229,11 +255,191 @@ public class UploadHandler extends Handler implements BackgroundTaskHandler {
         return processingSessionEnd;
     }
 
+    /**
+     * Upload a single page of batches.
+     *
+     * @return true if the page contained the end of a session, in which case session history should be uploaded
+     */
+    private boolean uploadPage(List<ReadyUpload> readyUploads, boolean history, boolean includeSessionHistory) throws Exception {
+        boolean processingSessionEnd = false;
+        Map<String, List<ReadyUpload>> uploadsBySession = new LinkedHashMap<String, List<ReadyUpload>>();
+        for (ReadyUpload readyUpload : readyUploads) {
+            //this case actually shouldn't be needed anymore except for upgrade scenarios.
+            //as of version 4.9.0, upload batches for session history shouldn't even be created.
+            if (history && !includeSessionHistory) {
+                mParticleDBManager.deleteUpload(readyUpload.getId());
+            } else {
+                if (!history) {
+                    // if message is the MessageType.SESSION_END, then remember so the session history can be triggered
+                    if (!processingSessionEnd && readyUpload.getMessage().contains(containsClause)) {
+                        processingSessionEnd = true;
+                    }
+                }
+                //batches created before the session was tracked all share a single queue
+                String sessionId = readyUpload.getSessionId() == null ? "" : readyUpload.getSessionId();
+                List<ReadyUpload> sessionUploads = uploadsBySession.get(sessionId);
+                if (sessionUploads == null) {
+                    sessionUploads = new ArrayList<ReadyUpload>();
+                    uploadsBySession.put(sessionId, sessionUploads);
+                }
+                sessionUploads.add(readyUpload);
+            }
+        }
+        uploadSessions(uploadsBySession.values());
+        return processingSessionEnd;
+    }
+
+    /**
+     * Upload the batches of each session in order. When there is more than one session, up to
+     * {@link #mMaxConcurrentUploads} sessions are uploaded concurrently. The first failure (such as being throttled)
+     * stops any batch that has not yet been started, and is then rethrown.
+     */
+    private void uploadSessions(Collection<List<ReadyUpload>> sessions) throws Exception {
+        if (mMaxConcurrentUploads <= 1 || sessions.size() <= 1) {
+            for (List<ReadyUpload> sessionUploads : sessions) {
+                for (ReadyUpload readyUpload : sessionUploads) {
+                    uploadMessage(readyUpload.getId(), readyUpload.getMessage());
+                }
+            }
+            return;
+        }
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<Void>> results = new ArrayList<Future<Void>>(sessions.size());
+        ExecutorService executor = getUploadExecutor();
+        for (final List<ReadyUpload> sessionUploads : sessions) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        for (ReadyUpload readyUpload : sessionUploads) {
+                            if (failed.get()) {
+                                break;
+                            }
+                            uploadMessage(readyUpload.getId(), readyUpload.getMessage());
+                        }
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+        }
+        Exception failure = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                if (failure == null && e.getCause() instanceof Exception) {
+                    failure = (Exception) e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private synchronized ExecutorService getUploadExecutor() {
+        if (mUploadExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(mMaxConcurrentUploads, mMaxConcurrentUploads,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mParticleUploadWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            //idle workers exit, so the pool costs nothing between uploads
+            executor.allowCoreThreadTimeOut(true);
+            mUploadExecutor = executor;
+        }
+        return mUploadExecutor;
+    }
+
+    /**
+     * Set the number of upload batches that may be in flight at once. A value of 1 or less uploads every
+     * batch sequentially on the upload thread.
+     */
+    synchronized void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        mMaxConcurrentUploads = maxConcurrentUploads;
+        if (mUploadExecutor != null) {
+            mUploadExecutor.shutdown();
+            mUploadExecutor = null;
+        }
+    }
+
+    /**
+     * Replace the {@link UploadPolicy} that decides when the next upload happens.
+     *
+     * @param uploadPolicy the policy, or null for the default {@link AdaptiveUploadPolicy}
+     */
+    void setUploadPolicy(UploadPolicy uploadPolicy) {
+        mUploadPolicy = uploadPolicy != null ? uploadPolicy : new AdaptiveUploadPolicy();
+    }
+
+    UploadConditions getUploadConditions(long uploadInterval) {
+        return new UploadConditions(uploadInterval,
+                this,
+                MessageManager.getActiveNetworkName(),
+                MessageManager.getBatteryLevel(),
+                MessageManager.isCharging(),
+                mLastUploadLatency);
+    }
+
+    /**
+     * @return the number and total size of stored messages that have not been batched for upload
+     */
+    synchronized long[] getPendingMessageStats() {
+        long now = System.currentTimeMillis();
+        if (mPendingMessageStats == null || now - mPendingMessageStatsTime >= Constants.PENDING_MESSAGE_STATS_MAX_AGE) {
+            mPendingMessageStats = mParticleDBManager.getPendingMessageStats();
+            mPendingMessageStatsTime = now;
+        }
+        return mPendingMessageStats;
+    }
+
+    private synchronized void clearPendingMessageStats() {
+        mPendingMessageStats = null;
+    }
+
+    /**
+     * @return true if the {@link UploadPolicy} delay has passed since the previous upload
+     */
+    private boolean isUploadDue(long uploadInterval) {
+        long delay;
+        try {
+            delay = mUploadPolicy.getNextUploadDelay(getUploadConditions(uploadInterval));
+        } catch (Exception e) {
+            Logger.error(e, "Unable to apply upload policy, using the configured upload interval.");
+            delay = uploadInterval;
+        }
+        return System.currentTimeMillis() - mLastUploadTime >= delay;
+    }
+
+    /**
+     * @return the delay before uploading a message that should be uploaded right away
+     */
+    public long getTriggerUploadDelay() {
+        try {
+            return Math.max(0, mUploadPolicy.getTriggerUploadDelay(getUploadConditions(mConfigManager.getUploadInterval())));
+        } catch (Exception e) {
+            Logger.error(e, "Unable to apply upload policy, using the default trigger delay.");
+            return Constants.TRIGGER_MESSAGE_DELAY;
+        }
+    }
+
     void uploadMessage(int id, String message) throws IOException, MParticleApiClientImpl.MPThrottleException {
         int responseCode = -1;
         boolean sampling = false;
+        long start = System.currentTimeMillis();
         try {
             responseCode = mApiClient.sendMessageBatch(message);
+            mLastUploadLatency = System.currentTimeMillis() - start;
         } catch (MParticleApiClientImpl.MPRampException e) {
             sampling = true;
             Logger.debug("This device is being sampled.");
@@ -0,0 +1,23 @@
+package com.mparticle.internal;
+
+/**
+ * Decides when {@link UploadHandler} uploads. While a session is active, the handler checks the policy
+ * every {@link Constants#UPLOAD_CHECK_INTERVAL}, or every upload interval if that is shorter, and uploads once
+ * the delay it returns has passed since the previous upload.
+ *
+ * The default is {@link AdaptiveUploadPolicy}, and an app can provide its own with
+ * {@link com.mparticle.MParticleOptions.Builder#uploadPolicy(UploadPolicy)}.
+ */
+public interface UploadPolicy {
+
+    /**
+     * @return the delay, in milliseconds, after the previous upload before the next periodic upload, given the current conditions
+     */
+    long getNextUploadDelay(UploadConditions conditions);
+
+    /**
+     * @return the delay, in milliseconds, before uploading after a message that should be uploaded right away,
+     * such as a commerce event, has been logged
+     */
+    long getTriggerUploadDelay(UploadConditions conditions);
+}
@@ -0,0 +1,131 @@
+package com.mparticle.internal;
+
+import com.mparticle.MParticle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The identities of a user, as they are stored in {@link UserStorage}. An instance is immutable, so one instance is
+ * shared by everything that reads a user's identities, and the JSON it was parsed from is only serialized again when
+ * it's changed.
+ */
+final class UserIdentities {
+    private final JSONArray mJson;
+    private final Map<MParticle.IdentityType, String> mIdentities;
+    private final boolean mFixedUp;
+
+    private UserIdentities(JSONArray json, boolean fixedUp) {
+        mJson = json;
+        mFixedUp = fixedUp;
+        Map<MParticle.IdentityType, String> identities = new HashMap<MParticle.IdentityType, String>(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            try {
+                JSONObject identity = json.getJSONObject(i);
+                identities.put(
+                        MParticle.IdentityType.parseInt(identity.getInt(Constants.MessageKey.IDENTITY_NAME)),
+                        identity.getString(Constants.MessageKey.IDENTITY_VALUE)
+                );
+            } catch (JSONException jse) {
+
+            }
+        }
+        mIdentities = Collections.unmodifiableMap(identities);
+    }
+
+    /**
+     * @param stored the identities as they are stored, which may be null or invalid
+     */
+    static UserIdentities parse(String stored) {
+        try {
+            JSONArray json = new JSONArray(stored);
+            boolean fixedUp = fixUpUserIdentities(json);
+            return new UserIdentities(json, fixedUp);
+        } catch (Exception e) {
+            return new UserIdentities(new JSONArray(), false);
+        }
+    }
+
+    /**
+     * @param json identities that are about to be stored, which are copied, so the caller may go on to modify them
+     */
+    static UserIdentities create(JSONArray json) {
+        JSONArray copy = copy(json);
+        fixUpUserIdentities(copy);
+        return new UserIdentities(copy, false);
+    }
+
+    /**
+     * @return true if identities that were parsed were missing fields, which have been filled in, so they should be
+     * stored again
+     */
+    boolean isFixedUp() {
+        return mFixedUp;
+    }
+
+    Map<MParticle.IdentityType, String> getIdentities() {
+        return mIdentities;
+    }
+
+    /**
+     * @return a copy of the identities, which the caller may modify
+     */
+    JSONArray toJson() {
+        return copy(mJson);
+    }
+
+    @Override
+    public String toString() {
+        return mJson.toString();
+    }
+
+    private static JSONArray copy(JSONArray json) {
+        JSONArray copy = new JSONArray();
+        for (int i = 0; i < json.length(); i++) {
+            Object value = json.opt(i);
+            if (value instanceof JSONObject) {
+                JSONObject identity = (JSONObject) value;
+                JSONObject identityCopy = new JSONObject();
+                Iterator<String> keys = identity.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    try {
+                        identityCopy.put(key, identity.get(key));
+                    } catch (JSONException ignored) {
+
+                    }
+                }
+                value = identityCopy;
+            }
+            copy.put(value);
+        }
+        return copy;
+    }
+
+    private static boolean fixUpUserIdentities(JSONArray identities) {
+        boolean changeMade = false;
+        try {
+            for (int i = 0; i < identities.length(); i++) {
+                JSONObject identity = identities.getJSONObject(i);
+                if (!identity.has(Constants.MessageKey.IDENTITY_DATE_FIRST_SEEN)) {
+                    identity.put(Constants.MessageKey.IDENTITY_DATE_FIRST_SEEN, 0);
+                    changeMade = true;
+                }
+                if (!identity.has(Constants.MessageKey.IDENTITY_FIRST_SEEN)) {
+                    identity.put(Constants.MessageKey.IDENTITY_FIRST_SEEN, true);
+                    changeMade = true;
+                }
+            }
+
+        } catch (JSONException jse) {
+
+        }
+        return changeMade;
+    }
+}
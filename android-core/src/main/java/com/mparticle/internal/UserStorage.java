@@ -9,16 +9,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.mparticle.internal.ConfigManager.PREFERENCES_FILE;
 
 public class UserStorage {
+    //the MPIDs that had SharedPreferences files, before values were kept in a UserStorageFile
     private static final String USER_CONFIG_COLLECTION = "mp::user_config_collection";
 
     private String SESSION_COUNTER = "mp::breadcrumbs::sessioncount";
@@ -37,8 +44,12 @@ public class UserStorage {
 
     static final int DEFAULT_BREADCRUMB_LIMIT = 50;
 
+    private static UserStorageFile sStorageFile;
+    private static Context sStorageContext;
+    private static ExecutorService sStorageWriter;
+
     private long mpId;
-    private SharedPreferences mPreferences;
+    private UserStorageFile mStorage;
     private Context mContext;
 
     static List<UserStorage> getAllUsers(Context context) {
@@ -51,12 +62,14 @@ public class UserStorage {
     }
 
     static boolean deleteUserConfig(Context context, long mpId) {
-        if (Build.VERSION.SDK_INT >= 24) {
-            context.deleteSharedPreferences(getFileName(mpId));
-        } else {
-            context.getSharedPreferences(getFileName(mpId), Context.MODE_PRIVATE).edit().clear().apply();
-        }
-        return removeMpId(context, mpId);
+        return getStorageFile(context).removeUser(mpId);
+    }
+
+    /**
+     * Delete the values of every user.
+     */
+    static void deleteAll(Context context) {
+        getStorageFile(context).clear();
     }
 
     static UserStorage create(Context context, long mpid) {
@@ -70,7 +83,8 @@ public class UserStorage {
     private UserStorage(Context context, long mpId) {
         this.mContext = context;
         this.mpId = mpId;
-        this.mPreferences = getPreferenceFile(mpId);
+        this.mStorage = getStorageFile(context);
+        mStorage.addUser(mpId);
         if (SharedPreferencesMigrator.needsToMigrate(context)) {
             SharedPreferencesMigrator.setNeedsToMigrate(context, false);
             new SharedPreferencesMigrator(context).migrate(this);
@@ -78,15 +92,15 @@ public class UserStorage {
     }
 
     public String getSerializedCart() {
-        return mPreferences.getString(CART, null);
+        return getString(CART, null);
     }
 
     public void setSerializedCart(String serializedCart) {
-        mPreferences.edit().putString(CART, serializedCart).apply();
+        mStorage.put(mpId, CART, serializedCart);
     }
 
     private boolean hasCart() {
-        return mPreferences.contains(CART);
+        return mStorage.contains(mpId, CART);
     }
 
     long getMpid() {
@@ -98,15 +112,15 @@ public class UserStorage {
     }
 
     int getCurrentSessionCounter(int defaultValue) {
-        return mPreferences.getInt(SESSION_COUNTER, defaultValue);
+        return getInt(SESSION_COUNTER, defaultValue);
     }
 
     private void setCurrentSessionCounter(int sessionCounter) {
-        mPreferences.edit().putInt(SESSION_COUNTER, sessionCounter).apply();
+        mStorage.put(mpId, SESSION_COUNTER, sessionCounter);
     }
 
     private boolean hasCurrentSessionCounter() {
-        return mPreferences.contains(SESSION_COUNTER);
+        return mStorage.contains(mpId, SESSION_COUNTER);
     }
 
     void incrementSessionCounter() {
@@ -114,39 +128,36 @@ public class UserStorage {
         if (nextCount >= (Integer.MAX_VALUE / 100)){
             nextCount = 0;
         }
-        mPreferences.edit().putInt(SESSION_COUNTER, nextCount).apply();
+        mStorage.put(mpId, SESSION_COUNTER, nextCount);
     }
 
 
     String getDeletedUserAttributes() {
-        return mPreferences.getString(DELETED_USER_ATTRS, null);
+        return getString(DELETED_USER_ATTRS, null);
     }
 
     void deleteDeletedUserAttributes() {
-        mPreferences.edit().putString(DELETED_USER_ATTRS, null).apply();
+        mStorage.put(mpId, DELETED_USER_ATTRS, null);
     }
 
     void setDeletedUserAttributes(String deletedUserAttributes) {
-        mPreferences.edit().putString(DELETED_USER_ATTRS, deletedUserAttributes).apply();
+        mStorage.put(mpId, DELETED_USER_ATTRS, deletedUserAttributes);
     }
 
     private boolean hasDeletedUserAttributes() {
-        return mPreferences.contains(DELETED_USER_ATTRS);
+        return mStorage.contains(mpId, DELETED_USER_ATTRS);
     }
 
     int getBreadcrumbLimit() {
-        if (mPreferences != null){
-            return mPreferences.getInt(BREADCRUMB_LIMIT, DEFAULT_BREADCRUMB_LIMIT);
-        }
-        return DEFAULT_BREADCRUMB_LIMIT;
+        return getInt(BREADCRUMB_LIMIT, DEFAULT_BREADCRUMB_LIMIT);
     }
 
     void setBreadcrumbLimit(int newLimit) {
-        mPreferences.edit().putInt(BREADCRUMB_LIMIT, newLimit).apply();
+        mStorage.put(mpId, BREADCRUMB_LIMIT, newLimit);
     }
 
     private boolean hasBreadcrumbLimit() {
-        return mPreferences.contains(BREADCRUMB_LIMIT);
+        return mStorage.contains(mpId, BREADCRUMB_LIMIT);
     }
 
     long getLastUseDate() {
@@ -154,15 +165,15 @@ public class UserStorage {
     }
 
     long getLastUseDate(long defaultValue) {
-        return mPreferences.getLong(LAST_USE, defaultValue);
+        return getLong(LAST_USE, defaultValue);
     }
 
     void setLastUseDate(long lastUseDate) {
-        mPreferences.edit().putLong(LAST_USE, lastUseDate).apply();
+        mStorage.put(mpId, LAST_USE, lastUseDate);
     }
 
     private boolean hasLastUserDate() {
-        return mPreferences.contains(LAST_USE);
+        return mStorage.contains(mpId, LAST_USE);
     }
 
     long getPreviousSessionForegound() {
@@ -170,19 +181,19 @@ public class UserStorage {
     }
 
     long getPreviousSessionForegound(long defaultValue) {
-        return mPreferences.getLong(PREVIOUS_SESSION_FOREGROUND, defaultValue);
+        return getLong(PREVIOUS_SESSION_FOREGROUND, defaultValue);
     }
 
     void clearPreviousTimeInForeground() {
-        mPreferences.edit().putLong(PREVIOUS_SESSION_FOREGROUND, -1).apply();
+        mStorage.put(mpId, PREVIOUS_SESSION_FOREGROUND, -1L);
     }
 
     void setPreviousSessionForeground(long previousTimeInForeground) {
-        mPreferences.edit().putLong(PREVIOUS_SESSION_FOREGROUND, previousTimeInForeground).apply();
+        mStorage.put(mpId, PREVIOUS_SESSION_FOREGROUND, previousTimeInForeground);
     }
 
     private boolean hasPreviousSessionForegound() {
-        return mPreferences.contains(PREVIOUS_SESSION_FOREGROUND);
+        return mStorage.contains(mpId, PREVIOUS_SESSION_FOREGROUND);
     }
 
     String getPreviousSessionId() {
@@ -190,130 +201,153 @@ public class UserStorage {
     }
 
     String getPreviousSessionId(String defaultValue) {
-        return mPreferences.getString(PREVIOUS_SESSION_ID, defaultValue);
+        return getString(PREVIOUS_SESSION_ID, defaultValue);
     }
 
     void setPreviousSessionId(String previousSessionId) {
-        mPreferences.edit().putString(PREVIOUS_SESSION_ID, previousSessionId).apply();
+        mStorage.put(mpId, PREVIOUS_SESSION_ID, previousSessionId);
     }
 
     private boolean hasPreviousSessionId() {
-        return mPreferences.contains(PREVIOUS_SESSION_ID);
+        return mStorage.contains(mpId, PREVIOUS_SESSION_ID);
     }
 
     long getPreviousSessionStart(long defaultValue) {
-        return mPreferences.getLong(PREVIOUS_SESSION_START, defaultValue);
+        return getLong(PREVIOUS_SESSION_START, defaultValue);
     }
 
     void setPreviousSessionStart(long previousSessionStart) {
-        mPreferences.edit().putLong(PREVIOUS_SESSION_START, previousSessionStart).apply();
+        mStorage.put(mpId, PREVIOUS_SESSION_START, previousSessionStart);
     }
 
     private boolean hasPreviousSessionStart() {
-        return mPreferences.contains(PREVIOUS_SESSION_START);
+        return mStorage.contains(mpId, PREVIOUS_SESSION_START);
     }
 
     String getLtv() {
-        return mPreferences.getString(LTV, "0");
+        return getString(LTV, "0");
     }
 
     void setLtv(String ltv) {
-        mPreferences.edit().putString(LTV, ltv).apply();
+        mStorage.put(mpId, LTV, ltv);
     }
 
     private boolean hasLtv() {
-        return mPreferences.contains(LTV);
+        return mStorage.contains(mpId, LTV);
     }
 
     int getTotalRuns(int defaultValue) {
-        return mPreferences.getInt(TOTAL_RUNS, defaultValue);
+        return getInt(TOTAL_RUNS, defaultValue);
     }
 
     void setTotalRuns(int totalRuns) {
-        mPreferences.edit().putInt(TOTAL_RUNS, totalRuns).apply();
+        mStorage.put(mpId, TOTAL_RUNS, totalRuns);
     }
 
     private boolean hasTotalRuns() {
-        return mPreferences.contains(TOTAL_RUNS);
+        return mStorage.contains(mpId, TOTAL_RUNS);
     }
 
     String getCookies() {
-        return mPreferences.getString(COOKIES, "");
+        return getString(COOKIES, "");
     }
 
     void setCookies(String cookies) {
-        mPreferences.edit().putString(COOKIES, cookies).apply();
+        mStorage.put(mpId, COOKIES, cookies);
     }
 
     private boolean hasCookies() {
-        return mPreferences.contains(COOKIES);
+        return mStorage.contains(mpId, COOKIES);
     }
 
     int getLaunchesSinceUpgrade() {
-        return mPreferences.getInt(TOTAL_SINCE_UPGRADE, 0);
+        return getInt(TOTAL_SINCE_UPGRADE, 0);
     }
 
     void setLaunchesSinceUpgrade(int launchesSinceUpgrade) {
-        mPreferences.edit().putInt(TOTAL_SINCE_UPGRADE, launchesSinceUpgrade).apply();
+        mStorage.put(mpId, TOTAL_SINCE_UPGRADE, launchesSinceUpgrade);
     }
 
     private boolean hasLaunchesSinceUpgrade() {
-        return mPreferences.contains(TOTAL_SINCE_UPGRADE);
+        return mStorage.contains(mpId, TOTAL_SINCE_UPGRADE);
     }
 
     String getUserIdentities() {
-        return mPreferences.getString(USER_IDENTITIES, "");
+        return getString(USER_IDENTITIES, "");
     }
 
     void setUserIdentities(String userIdentities) {
-        mPreferences.edit().putString(USER_IDENTITIES, userIdentities).apply();
+        mStorage.put(mpId, USER_IDENTITIES, userIdentities);
     }
 
     private boolean hasUserIdentities() {
-        return mPreferences.contains(USER_IDENTITIES);
+        return mStorage.contains(mpId, USER_IDENTITIES);
     }
 
-    private SharedPreferences getPreferenceFile(long mpId) {
-        Set<Long> mpIds = getMpIdSet(mContext);
-        mpIds.add(mpId);
-        setMpIds(mpIds);
-        return mContext.getSharedPreferences(getFileName(mpId), Context.MODE_PRIVATE);
+    private String getString(String key, String defaultValue) {
+        Object value = mStorage.get(mpId, key);
+        return value instanceof String ? (String) value : defaultValue;
     }
 
-    private static boolean removeMpId(Context context, long mpid) {
-        Set<Long> mpids = getMpIdSet(context);
-        boolean removed = mpids.remove(mpid);
-        setMpIds(context, mpids);
-        return removed;
+    private int getInt(String key, int defaultValue) {
+        Object value = mStorage.get(mpId, key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
     }
 
-    static Set<Long> getMpIdSet(Context context) {
-        JSONArray userConfigs = new JSONArray();
-        try {
-            userConfigs = new JSONArray(getMParticleSharedPrefs(context).getString(USER_CONFIG_COLLECTION, new JSONArray().toString()));
-        } catch (JSONException ignore) {}
-        Set<Long> mpIds = new TreeSet<Long>();
-        for (int i = 0; i < userConfigs.length(); i++) {
-            try {
-                mpIds.add(userConfigs.getLong(i));
-            }
-            catch (JSONException ignore) {}
+    private long getLong(String key, long defaultValue) {
+        Object value = mStorage.get(mpId, key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    /**
+     * Have the user storage file written to disk, such as when the app is backgrounded and may be killed.
+     */
+    static synchronized void syncStorageFile() {
+        if (sStorageFile != null) {
+            sStorageFile.sync();
         }
-        return mpIds;
     }
 
-    private void setMpIds(Set<Long> mpIds) {
-        setMpIds(mContext, mpIds);
+    static Set<Long> getMpIdSet(Context context) {
+        return getStorageFile(context).getMpIds();
     }
 
-    private static void setMpIds(Context context, Set<Long> mpIds) {
-        JSONArray jsonArray = new JSONArray();
-        for (Long mpId: mpIds) {
-            jsonArray.put(mpId);
+    /**
+     * Every user's values are kept in a single {@link UserStorageFile}, which is read the first time it's needed. Any
+     * values that are still in the SharedPreferences file each user used to have are then migrated to it.
+     */
+    static synchronized UserStorageFile getStorageFile(Context context) {
+        Context applicationContext = context.getApplicationContext() == null ? context : context.getApplicationContext();
+        if (sStorageFile == null || sStorageContext != applicationContext) {
+            File file = null;
+            try {
+                file = new File(context.getFilesDir(), UserStorageFile.FILE_NAME);
+            } catch (RuntimeException e) {
+                Logger.warning("Unable to access the files directory, user storage will not be persisted.");
+            }
+            if (sStorageWriter == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "mParticleUserStorage");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                executor.allowCoreThreadTimeOut(true);
+                sStorageWriter = executor;
+            }
+            sStorageFile = new UserStorageFile(file, sStorageWriter);
+            sStorageContext = applicationContext;
+            if (file != null) {
+                //if an earlier migration failed, the old files are still there, and it is tried again
+                SharedPreferencesMigrator.migrateUserPreferences(context, sStorageFile);
+            }
         }
-        getMParticleSharedPrefs(context).edit().putString(USER_CONFIG_COLLECTION, jsonArray.toString()).apply();
+        return sStorageFile;
     }
 
+    //the SharedPreferences file a user's values were kept in, before they were kept in a UserStorageFile
     static private String getFileName(long mpId) {
         return PREFERENCES_FILE + ":" + mpId;
     }
@@ -502,6 +536,50 @@ public class UserStorage {
             getMParticleSharedPrefs(context).edit().putBoolean(NEEDS_TO_MIGRATE_TO_MPID_DEPENDENT, needsToMigrate).apply();
         }
 
+        /**
+         * Move the values of every user from the SharedPreferences file each user used to have, to the user storage
+         * file. The old files are only deleted once the new file has been written. Values that the user storage file
+         * already has, from an earlier migration that failed, are kept.
+         */
+        static void migrateUserPreferences(Context context, UserStorageFile storageFile) {
+            SharedPreferences preferences = getMParticleSharedPrefs(context);
+            String userConfigs = preferences.getString(USER_CONFIG_COLLECTION, null);
+            if (userConfigs == null) {
+                return;
+            }
+            Set<Long> mpIds = new TreeSet<Long>();
+            try {
+                JSONArray userConfigArray = new JSONArray(userConfigs);
+                for (int i = 0; i < userConfigArray.length(); i++) {
+                    mpIds.add(userConfigArray.getLong(i));
+                }
+            } catch (JSONException ignore) {}
+            for (Long mpId : mpIds) {
+                storageFile.addUser(mpId);
+                Map<String, ?> values = context.getSharedPreferences(getFileName(mpId), Context.MODE_PRIVATE).getAll();
+                if (values != null) {
+                    for (Map.Entry<String, ?> value : values.entrySet()) {
+                        if ((value.getValue() instanceof String || value.getValue() instanceof Integer || value.getValue() instanceof Long)
+                                && !storageFile.contains(mpId, value.getKey())) {
+                            storageFile.put(mpId, value.getKey(), value.getValue());
+                        }
+                    }
+                }
+            }
+            if (!storageFile.compactAndWait()) {
+                Logger.warning("Failed to migrate user storage, it will be retried.");
+                return;
+            }
+            for (Long mpId : mpIds) {
+                if (Build.VERSION.SDK_INT >= 24) {
+                    context.deleteSharedPreferences(getFileName(mpId));
+                } else {
+                    context.getSharedPreferences(getFileName(mpId), Context.MODE_PRIVATE).edit().clear().apply();
+                }
+            }
+            preferences.edit().remove(USER_CONFIG_COLLECTION).apply();
+        }
+
         int getCurrentSessionCounter() {
             return messageManagerSharedPreferences.getInt(LegacySharedPreferencesKeys.SESSION_COUNTER, 0);
         }
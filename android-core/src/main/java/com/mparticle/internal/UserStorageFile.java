@@ -0,0 +1,465 @@
+package com.mparticle.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * The values {@link UserStorage} keeps for every MPID, in a single file.
+ *
+ * Every value is held in memory, and each change is appended to the file as a record on a background thread, so a
+ * change doesn't rewrite a whole file the way a SharedPreferences commit does. Once most of the file's records have
+ * been superseded by later ones, the current values are written to a new file, which replaces the old one with an
+ * atomic rename.
+ *
+ * Each record is framed by its length and a CRC32 of its contents. A record that was only partly written, because the
+ * process died while writing it, fails its check when the file is read, and it is dropped along with anything after it.
+ */
+class UserStorageFile {
+    static final String FILE_NAME = "mParticleUserStorage";
+    //compact once the file has at least this many records, and more than twice as many as there are current values
+    static final int COMPACT_MIN_RECORDS = 512;
+
+    private static final byte RECORD_ADD_USER = 1;
+    private static final byte RECORD_REMOVE_USER = 2;
+    private static final byte RECORD_PUT = 3;
+    private static final byte RECORD_REMOVE = 4;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+
+    private final File mFile;
+    private final Executor mWriter;
+    private final TreeMap<Long, Map<String, Object>> mUsers = new TreeMap<Long, Map<String, Object>>();
+    private final boolean mCreated;
+    private int mRecordCount;
+    //only used on the writer
+    private FileOutputStream mOutput;
+
+    /**
+     * @param file the file to read and write, or null to keep values in memory only
+     * @param writer the serial executor that the file is written on
+     */
+    UserStorageFile(File file, Executor writer) {
+        mFile = file;
+        mWriter = writer;
+        mCreated = file == null || !file.exists();
+        if (!mCreated) {
+            read();
+        }
+    }
+
+    /**
+     * @return true if the file did not exist before this instance was created
+     */
+    boolean isCreated() {
+        return mCreated;
+    }
+
+    synchronized Set<Long> getMpIds() {
+        return new TreeSet<Long>(mUsers.keySet());
+    }
+
+    synchronized void addUser(long mpId) {
+        if (!mUsers.containsKey(mpId)) {
+            mUsers.put(mpId, new HashMap<String, Object>());
+            append(encode(RECORD_ADD_USER, mpId, null, null));
+        }
+    }
+
+    synchronized boolean removeUser(long mpId) {
+        if (mUsers.remove(mpId) == null) {
+            return false;
+        }
+        append(encode(RECORD_REMOVE_USER, mpId, null, null));
+        return true;
+    }
+
+    synchronized boolean contains(long mpId, String key) {
+        Map<String, Object> values = mUsers.get(mpId);
+        return values != null && values.containsKey(key);
+    }
+
+    synchronized Object get(long mpId, String key) {
+        Map<String, Object> values = mUsers.get(mpId);
+        return values == null ? null : values.get(key);
+    }
+
+    /**
+     * @param value a String, Integer or Long. Null removes the key, like it does in SharedPreferences
+     */
+    synchronized void put(long mpId, String key, Object value) {
+        if (value == null) {
+            remove(mpId, key);
+            return;
+        }
+        Map<String, Object> values = mUsers.get(mpId);
+        if (values == null) {
+            values = new HashMap<String, Object>();
+            mUsers.put(mpId, values);
+        } else if (value.equals(values.get(key))) {
+            return;
+        }
+        values.put(key, value);
+        append(encode(RECORD_PUT, mpId, key, value));
+    }
+
+    synchronized void remove(long mpId, String key) {
+        Map<String, Object> values = mUsers.get(mpId);
+        if (values != null && values.containsKey(key)) {
+            values.remove(key);
+            append(encode(RECORD_REMOVE, mpId, key, null));
+        }
+    }
+
+    synchronized void clear() {
+        mUsers.clear();
+        compact();
+    }
+
+    /**
+     * Replace the file with one that only has the current values.
+     */
+    synchronized void compact() {
+        final byte[] contents = snapshot();
+        if (mFile == null) {
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                replaceFile(contents);
+            }
+        });
+    }
+
+    /**
+     * Replace the file with one that only has the current values, and wait until it has been written.
+     *
+     * @return true if the file was replaced
+     */
+    boolean compactAndWait() {
+        FutureTask<Boolean> task;
+        synchronized (this) {
+            final byte[] contents = snapshot();
+            if (mFile == null) {
+                return false;
+            }
+            task = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return replaceFile(contents);
+                }
+            });
+            mWriter.execute(task);
+        }
+        try {
+            return task.get();
+        } catch (Exception e) {
+            Logger.warning("Interrupted while waiting for user storage to be written.");
+            return false;
+        }
+    }
+
+    /**
+     * Must be called while holding this instance's lock.
+     *
+     * @return every current value, as records
+     */
+    private byte[] snapshot() {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        int recordCount = 0;
+        try {
+            for (Map.Entry<Long, Map<String, Object>> user : mUsers.entrySet()) {
+                snapshot.write(encode(RECORD_ADD_USER, user.getKey(), null, null));
+                recordCount++;
+                for (Map.Entry<String, Object> value : user.getValue().entrySet()) {
+                    snapshot.write(encode(RECORD_PUT, user.getKey(), value.getKey(), value.getValue()));
+                    recordCount++;
+                }
+            }
+        } catch (IOException ignored) {
+            //a ByteArrayOutputStream doesn't throw
+        }
+        mRecordCount = recordCount;
+        return snapshot.toByteArray();
+    }
+
+    /**
+     * Block until every change made so far has been written to the file.
+     */
+    void flush() {
+        if (mFile == null) {
+            return;
+        }
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        mWriter.execute(task);
+        try {
+            task.get();
+        } catch (Exception e) {
+            Logger.warning("Interrupted while waiting for user storage to be written.");
+        }
+    }
+
+    /**
+     * Have every change made so far written to disk, without waiting for it, such as when the app is backgrounded and
+     * may be killed.
+     */
+    void sync() {
+        if (mFile == null) {
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mOutput != null) {
+                    try {
+                        mOutput.getFD().sync();
+                    } catch (IOException e) {
+                        Logger.error(e, "Failed to write user storage.");
+                        closeOutput();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Must be called while holding this instance's lock.
+     */
+    private void append(final byte[] record) {
+        mRecordCount++;
+        if (mRecordCount >= COMPACT_MIN_RECORDS && mRecordCount > 2 * countValues()) {
+            compact();
+            return;
+        }
+        if (mFile == null) {
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mOutput == null) {
+                        mOutput = new FileOutputStream(mFile, true);
+                    }
+                    mOutput.write(record);
+                } catch (IOException e) {
+                    Logger.error(e, "Failed to write user storage.");
+                    closeOutput();
+                }
+            }
+        });
+    }
+
+    private int countValues() {
+        int count = mUsers.size();
+        for (Map<String, Object> values : mUsers.values()) {
+            count += values.size();
+        }
+        return count;
+    }
+
+    /**
+     * Runs on the writer.
+     *
+     * @return true if the file was replaced
+     */
+    private boolean replaceFile(byte[] contents) {
+        closeOutput();
+        File temporary = new File(mFile.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temporary);
+            output.write(contents);
+            output.getFD().sync();
+            output.close();
+            output = null;
+            if (temporary.renameTo(mFile)) {
+                return true;
+            }
+            Logger.error("Failed to replace user storage file.");
+        } catch (IOException e) {
+            Logger.error(e, "Failed to compact user storage.");
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException ignored) {
+            }
+            mOutput = null;
+        }
+    }
+
+    private void read() {
+        byte[] contents;
+        try {
+            contents = new byte[(int) mFile.length()];
+            DataInputStream input = new DataInputStream(new FileInputStream(mFile));
+            try {
+                input.readFully(contents);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Logger.error(e, "Failed to read user storage.");
+            return;
+        }
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        while (offset + 8 <= contents.length) {
+            int length = readInt(contents, offset);
+            int checksum = readInt(contents, offset + 4);
+            if (length <= 0 || length > contents.length - offset - 8) {
+                break;
+            }
+            crc.reset();
+            crc.update(contents, offset + 8, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            try {
+                apply(new DataInputStream(new ByteArrayInputStream(contents, offset + 8, length)));
+            } catch (IOException e) {
+                break;
+            }
+            offset += 8 + length;
+            mRecordCount++;
+        }
+        if (offset < contents.length) {
+            Logger.warning("User storage file was not completely written, dropping " + (contents.length - offset) + " bytes.");
+            compact();
+        } else if (mRecordCount >= COMPACT_MIN_RECORDS && mRecordCount > 2 * countValues()) {
+            compact();
+        }
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        long mpId = record.readLong();
+        Map<String, Object> values = mUsers.get(mpId);
+        switch (type) {
+            case RECORD_ADD_USER:
+                if (values == null) {
+                    mUsers.put(mpId, new HashMap<String, Object>());
+                }
+                break;
+            case RECORD_REMOVE_USER:
+                mUsers.remove(mpId);
+                break;
+            case RECORD_PUT:
+                if (values == null) {
+                    values = new HashMap<String, Object>();
+                    mUsers.put(mpId, values);
+                }
+                String key = readString(record);
+                values.put(key, readValue(record));
+                break;
+            case RECORD_REMOVE:
+                if (values != null) {
+                    values.remove(readString(record));
+                }
+                break;
+            default:
+                throw new IOException("Unknown record type: " + type);
+        }
+    }
+
+    private static byte[] encode(byte type, long mpId, String key, Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(type);
+            record.writeLong(mpId);
+            if (key != null) {
+                writeString(record, key);
+            }
+            if (value instanceof Integer) {
+                record.writeByte(TYPE_INT);
+                record.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                record.writeByte(TYPE_LONG);
+                record.writeLong((Long) value);
+            } else if (value != null) {
+                record.writeByte(TYPE_STRING);
+                writeString(record, value.toString());
+            }
+            byte[] contents = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(contents.length + 8);
+            DataOutputStream frame = new DataOutputStream(framed);
+            frame.writeInt(contents.length);
+            frame.writeInt((int) crc.getValue());
+            frame.write(contents);
+            return framed.toByteArray();
+        } catch (IOException e) {
+            //a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object readValue(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        switch (type) {
+            case TYPE_INT:
+                return record.readInt();
+            case TYPE_LONG:
+                return record.readLong();
+            case TYPE_STRING:
+                return readString(record);
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    //DataOutputStream.writeUTF() is limited to 64KB, which a cart could exceed
+    private static void writeString(DataOutputStream record, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    private static String readString(DataInputStream record) throws IOException {
+        int length = record.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        record.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,318 @@
+package com.mparticle.internal.database;
+
+import com.mparticle.internal.Constants.MessageKey;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for messages persisted to the database.
+ *
+ * Values are written as a one byte tag followed by their payload, with integers and lengths written as varints.
+ * Object keys that appear in {@link #KEY_DICTIONARY} are written as their index in the dictionary, rather than as a string.
+ *
+ * Encoded messages are decoded straight back into JSON text, without building a {@link JSONObject}, so they can
+ * be spliced into an upload batch as-is.
+ */
+public final class CompactJsonEncoding {
+    /**
+     * The first byte of every encoded message. This must be changed whenever the format, or the existing entries of
+     * {@link #KEY_DICTIONARY}, change.
+     */
+    private static final int VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_OBJECT = 6;
+    private static final int TAG_ARRAY = 7;
+    /**
+     * Numbers that don't fit a long or a double, written as their JSON text.
+     */
+    private static final int TAG_NUMBER = 8;
+
+    /**
+     * The most common keys of stored messages. Entries may only ever be appended to this list.
+     */
+    private static final String[] KEY_DICTIONARY = {
+            MessageKey.TYPE,
+            MessageKey.ID,
+            MessageKey.TIMESTAMP,
+            MessageKey.SESSION_START_TIMESTAMP,
+            MessageKey.SESSION_ID,
+            MessageKey.SESSION_LENGTH,
+            MessageKey.SESSION_LENGTH_TOTAL,
+            MessageKey.ATTRIBUTES,
+            MessageKey.EVENT_TYPE,
+            MessageKey.NAME,
+            MessageKey.PREVIOUS_SESSION_LENGTH,
+            MessageKey.EVENT_START_TIME,
+            MessageKey.EVENT_DURATION,
+            MessageKey.LOCATION,
+            MessageKey.LATITUDE,
+            MessageKey.LONGITUDE,
+            MessageKey.ACCURACY,
+            MessageKey.USER_ATTRIBUTES,
+            MessageKey.USER_IDENTITIES,
+            MessageKey.IDENTITY_VALUE,
+            MessageKey.IDENTITY_DATE_FIRST_SEEN,
+            MessageKey.IDENTITY_FIRST_SEEN,
+            MessageKey.STATE_INFO_KEY,
+            MessageKey.STATE_INFO_AVAILABLE_MEMORY,
+            MessageKey.STATE_INFO_TOTAL_MEMORY,
+            MessageKey.STATE_INFO_BATTERY_LVL,
+            MessageKey.STATE_INFO_TIME_SINCE_START,
+            MessageKey.STATE_INFO_AVAILABLE_DISK,
+            MessageKey.STATE_INFO_AVAILABLE_EXT_DISK,
+            MessageKey.STATE_INFO_APP_MEMORY_AVAIL,
+            MessageKey.STATE_INFO_APP_MEMORY_MAX,
+            MessageKey.STATE_INFO_APP_MEMORY_USAGE,
+            MessageKey.STATE_INFO_GPS,
+            MessageKey.STATE_INFO_BAR_ORIENTATION,
+            MessageKey.STATE_INFO_DATA_CONNECTION,
+            MessageKey.STATE_INFO_ORIENTATION,
+            MessageKey.STATE_INFO_MEMORY_LOW,
+            MessageKey.STATE_INFO_MEMORY_THRESHOLD,
+            MessageKey.NETWORK_COUNTRY,
+            MessageKey.NETWORK_CARRIER,
+            MessageKey.MOBILE_NETWORK_CODE,
+            MessageKey.MOBILE_COUNTRY_CODE,
+            MessageKey.ERROR_SEVERITY,
+            MessageKey.ERROR_CLASS
+    };
+
+    private static final Map<String, Integer> KEY_INDEXES = new HashMap<String, Integer>(KEY_DICTIONARY.length * 2);
+
+    static {
+        for (int i = 0; i < KEY_DICTIONARY.length; i++) {
+            if (!KEY_INDEXES.containsKey(KEY_DICTIONARY[i])) {
+                KEY_INDEXES.put(KEY_DICTIONARY[i], i);
+            }
+        }
+    }
+
+    private CompactJsonEncoding() {
+    }
+
+    public static byte[] encode(JSONObject message) throws JSONException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+        output.write(VERSION);
+        writeObject(output, message);
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the JSON text of the encoded message
+     * @throws JSONException if the message is not a valid encoding
+     */
+    public static String decode(byte[] encoded) throws JSONException {
+        if (encoded == null || encoded.length == 0 || encoded[0] != VERSION) {
+            throw new JSONException("Unsupported message encoding.");
+        }
+        Reader reader = new Reader(encoded);
+        reader.position = 1;
+        StringBuilder builder = new StringBuilder(encoded.length * 2);
+        try {
+            readValue(reader, builder);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new JSONException("Truncated message encoding.");
+        }
+        if (reader.position != encoded.length) {
+            throw new JSONException("Trailing bytes in message encoding.");
+        }
+        return builder.toString();
+    }
+
+    private static void writeValue(ByteArrayOutputStream output, Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            output.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            output.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            output.write(TAG_LONG);
+            writeVarint(output, zigZag(((Number) value).longValue()));
+        } else if (value instanceof Double || value instanceof Float) {
+            output.write(TAG_DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int i = 0; i < 8; i++) {
+                output.write((int) (bits >>> (i * 8)));
+            }
+        } else if (value instanceof Number) {
+            output.write(TAG_NUMBER);
+            writeString(output, JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject) {
+            writeObject(output, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            output.write(TAG_ARRAY);
+            writeVarint(output, array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(output, array.opt(i));
+            }
+        } else {
+            output.write(TAG_STRING);
+            writeString(output, value.toString());
+        }
+    }
+
+    private static void writeObject(ByteArrayOutputStream output, JSONObject object) throws JSONException {
+        output.write(TAG_OBJECT);
+        writeVarint(output, object.length());
+        Iterator<?> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Integer index = KEY_INDEXES.get(key);
+            //the low bit tells dictionary keys apart from literal keys
+            if (index != null) {
+                writeVarint(output, (long) index << 1);
+            } else {
+                byte[] bytes = getBytes(key);
+                writeVarint(output, ((long) bytes.length << 1) | 1);
+                output.write(bytes, 0, bytes.length);
+            }
+            writeValue(output, object.get(key));
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        byte[] bytes = getBytes(value);
+        writeVarint(output, bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void readValue(Reader reader, StringBuilder builder) throws JSONException {
+        int tag = reader.bytes[reader.position++];
+        switch (tag) {
+            case TAG_NULL:
+                builder.append("null");
+                break;
+            case TAG_FALSE:
+                builder.append(false);
+                break;
+            case TAG_TRUE:
+                builder.append(true);
+                break;
+            case TAG_LONG:
+                long zigZagged = reader.readVarint();
+                builder.append((zigZagged >>> 1) ^ -(zigZagged & 1));
+                break;
+            case TAG_DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits |= (reader.bytes[reader.position++] & 0xFFL) << (i * 8);
+                }
+                builder.append(JSONObject.numberToString(Double.longBitsToDouble(bits)));
+                break;
+            case TAG_NUMBER:
+                builder.append(reader.readString());
+                break;
+            case TAG_STRING:
+                builder.append(JSONObject.quote(reader.readString()));
+                break;
+            case TAG_OBJECT:
+                long keyCount = reader.readVarint();
+                builder.append('{');
+                for (long i = 0; i < keyCount; i++) {
+                    if (i > 0) {
+                        builder.append(',');
+                    }
+                    long key = reader.readVarint();
+                    if ((key & 1) == 0) {
+                        int index = (int) (key >>> 1);
+                        if (index >= KEY_DICTIONARY.length) {
+                            throw new JSONException("Unknown key in message encoding.");
+                        }
+                        builder.append(JSONObject.quote(KEY_DICTIONARY[index]));
+                    } else {
+                        builder.append(JSONObject.quote(reader.readString((int) (key >>> 1))));
+                    }
+                    builder.append(':');
+                    readValue(reader, builder);
+                }
+                builder.append('}');
+                break;
+            case TAG_ARRAY:
+                long length = reader.readVarint();
+                builder.append('[');
+                for (long i = 0; i < length; i++) {
+                    if (i > 0) {
+                        builder.append(',');
+                    }
+                    readValue(reader, builder);
+                }
+                builder.append(']');
+                break;
+            default:
+                throw new JSONException("Unknown value in message encoding.");
+        }
+    }
+
+    private static byte[] getBytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            //UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Reader {
+        final byte[] bytes;
+        int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String readString() {
+            return readString((int) readVarint());
+        }
+
+        String readString(int length) {
+            if (length < 0 || position + length > bytes.length) {
+                throw new ArrayIndexOutOfBoundsException(length);
+            }
+            try {
+                String value = new String(bytes, position, length, "UTF-8");
+                position += length;
+                return value;
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
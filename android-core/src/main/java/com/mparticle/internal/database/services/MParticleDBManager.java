@@ -1,7 +1,6 @@
 package com.mparticle.internal.database.services;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.location.Location;
@@ -38,6 +37,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,11 +45,11 @@ import java.util.TreeMap;
 import java.util.UUID;
 
 public class MParticleDBManager extends BaseDBManager {
-    private SharedPreferences mPreferences;
+    private Map<String, Long> mGroupCommitSessionEndTimes;
+    private boolean mCompactMessageEncoding;
 
     public MParticleDBManager(Context context, DatabaseTables databaseTables) {
         super(context, databaseTables);
-        mPreferences = context.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
     }
 
     private long getMpid() {
@@ -75,6 +75,44 @@ public class MParticleDBManager extends BaseDBManager {
         new UserAttributesService().updateMpId(db, oldMpId, newMpId);
         db.setTransactionSuccessful();
         db.endTransaction();
+        UserAttributeCache cache = getUserAttributeCache();
+        if (cache != null) {
+            cache.invalidate(oldMpId);
+            cache.invalidate(newMpId);
+        }
+    }
+
+    /**
+     * Start a group-commit transaction. Until {@link #endGroupCommit()} is called, every write made
+     * through this manager is part of a single SQLite transaction, and session end-time updates are
+     * collapsed into one update per session.
+     */
+    public void beginGroupCommit() {
+        getMParticleDatabase().beginTransaction();
+        mGroupCommitSessionEndTimes = new LinkedHashMap<String, Long>();
+    }
+
+    public boolean isGroupCommitInProgress() {
+        return mGroupCommitSessionEndTimes != null;
+    }
+
+    /**
+     * Write the collapsed session end-times and commit the group-commit transaction.
+     */
+    public void endGroupCommit() {
+        SQLiteDatabase db = getMParticleDatabase();
+        Map<String, Long> sessionEndTimes = mGroupCommitSessionEndTimes;
+        mGroupCommitSessionEndTimes = null;
+        try {
+            for (Map.Entry<String, Long> sessionEndTime : sessionEndTimes.entrySet()) {
+                SessionService.updateSessionEndTime(db, sessionEndTime.getKey(), sessionEndTime.getValue(), 0);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Logger.error(e, "Error committing messages to mParticle DB.");
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -109,8 +147,23 @@ public class MParticleDBManager extends BaseDBManager {
         MessageService.cleanupMessages(getMParticleDatabase());
     }
 
+    /**
+     * @see MessageService#getPendingMessageStats(SQLiteDatabase)
+     */
+    public long[] getPendingMessageStats() {
+        return MessageService.getPendingMessageStats(getMParticleDatabase());
+    }
+
+    /**
+     * Store new messages in the compact binary encoding rather than as JSON text. Messages already
+     * stored are read back the same either way.
+     */
+    public void setCompactMessageEncoding(boolean compactMessageEncoding) {
+        mCompactMessageEncoding = compactMessageEncoding;
+    }
+
     public void insertMessage(String apiKey, BaseMPMessage message) throws JSONException {
-        MessageService.insertMessage(getMParticleDatabase(), apiKey, message, message.getMpId());
+        MessageService.insertMessage(getMParticleDatabase(), apiKey, message, message.getMpId(), mCompactMessageEncoding);
         if (sMessageListener != null) {
             sMessageListener.onMessageStored(message);
         }
@@ -187,7 +240,9 @@ public class MParticleDBManager extends BaseDBManager {
                 if (batch != null) {
                     batch.addReportingMessage(reportingMessage.getMsgObject());
                 }
-                ReportingService.deleteReportingMessage(db, reportingMessage.getReportingMessageId());
+            }
+            if (!reportingMessages.isEmpty()) {
+                ReportingService.deleteReportingMessagesForUpload(db, reportingMessages.get(reportingMessages.size() - 1).getReportingMessageId());
             }
             List<JSONObject> deviceInfos = SessionService.processSessions(db, uploadMessagesBySessionMpid);
             for (JSONObject deviceInfo : deviceInfos) {
@@ -232,17 +287,22 @@ public class MParticleDBManager extends BaseDBManager {
                     uploadMessagesBySessionMpid.get(readyMessage.getSessionId()).put(readyMessage.getMpid(), uploadMessage);
                 }
             }
-            int messageLength = readyMessage.getMessage().length();
-            JSONObject msgObject = new JSONObject(readyMessage.getMessage());
+            String message = readyMessage.getMessage();
+            int messageLength = message == null ? 0 : message.length();
             if (messageLength + uploadMessage.getMessageLengthBytes() > Constants.LIMIT_MAX_UPLOAD_SIZE) {
                 break;
             }
-            if (isHistory) {
-                uploadMessage.addSessionHistoryMessage(msgObject);
+            //messages are spliced into the batch as-is, so make sure we never splice in anything but an object
+            if (isSerializedJsonObject(message)) {
+                if (isHistory) {
+                    uploadMessage.addSessionHistoryMessage(message);
+                } else {
+                    uploadMessage.addMessage(message);
+                }
+                uploadMessage.incrementMessageLengthBytes(messageLength);
             } else {
-                uploadMessage.addMessage(msgObject);
+                Logger.error("Discarding malformed message from mParticle DB.");
             }
-            uploadMessage.incrementMessageLengthBytes(messageLength);
             highestUploadedMessageId = readyMessage.getMessageId();
         }
         if (markAsUpload) {
@@ -272,7 +332,7 @@ public class MParticleDBManager extends BaseDBManager {
                     if (uploadMessage.getDeviceInfo() == null || sessionId.equals(currentSessionId)) {
                         uploadMessage.setDeviceInfo(deviceAttributes.getDeviceInfo(mContext));
                     }
-                    JSONArray messages;
+                    List<String> messages;
                     if (historyMessages) {
                         messages = uploadMessage.getSessionHistoryMessages();
                     } else {
@@ -282,7 +342,7 @@ public class MParticleDBManager extends BaseDBManager {
                     uploadMessage.setIdentities(identities);
                     JSONObject userAttributes = findUserAttributeState(messages, mpidMessage.getKey());
                     uploadMessage.setUserAttributes(userAttributes);
-                    UploadService.insertUpload(db, uploadMessage, configManager.getApiKey());
+                    UploadService.insertUpload(db, uploadMessage, sessionId, configManager.getApiKey());
                     //if this was to process session history, or
                     //if we're never going to process history AND
                     //this batch contains a previous session, then delete the session
@@ -294,55 +354,64 @@ public class MParticleDBManager extends BaseDBManager {
         }
     }
 
+    private static boolean isSerializedJsonObject(String message) {
+        return message != null && message.startsWith("{") && message.endsWith("}");
+    }
+
+    private static String getMessageTypeToken(String messageType) {
+        return JSONObject.quote(Constants.MessageKey.TYPE) + ":" + JSONObject.quote(messageType);
+    }
+
     /**
-     * Look for the last UAC message to find the end-state of user attributes
+     * Messages are stored in their serialized form, so only those of the given type are parsed. The
+     * value for the given key is removed from each of those messages, and the value in the last one is returned.
      */
-    private JSONObject findUserAttributeState(JSONArray messages, long mpId) {
-        JSONObject userAttributes = null;
+    private Object extractFromMessagesOfType(List<String> messages, String messageType, String key) {
+        Object value = null;
         if (messages != null) {
-            for (int i = 0; i < messages.length(); i++) {
+            String typeToken = getMessageTypeToken(messageType);
+            for (int i = 0; i < messages.size(); i++) {
+                if (!messages.get(i).contains(typeToken)) {
+                    continue;
+                }
                 try {
-                    if (messages.getJSONObject(i).get(Constants.MessageKey.TYPE).equals(Constants.MessageType.USER_ATTRIBUTE_CHANGE)) {
-                        userAttributes = messages.getJSONObject(i).getJSONObject(Constants.MessageKey.USER_ATTRIBUTES);
-                        messages.getJSONObject(i).remove(Constants.MessageKey.USER_ATTRIBUTES);
+                    JSONObject message = new JSONObject(messages.get(i));
+                    if (messageType.equals(message.optString(Constants.MessageKey.TYPE))) {
+                        Object messageValue = message.remove(key);
+                        if (messageValue != null) {
+                            value = messageValue;
+                            messages.set(i, message.toString());
+                        }
                     }
                 }catch (JSONException jse) {
 
-                }catch (NullPointerException npe) {
-
                 }
             }
         }
-        if (userAttributes == null) {
-            return getAllUserAttributesJson(mpId);
+        return value;
+    }
+
+    /**
+     * Look for the last UAC message to find the end-state of user attributes
+     */
+    private JSONObject findUserAttributeState(List<String> messages, long mpId) {
+        Object userAttributes = extractFromMessagesOfType(messages, Constants.MessageType.USER_ATTRIBUTE_CHANGE, Constants.MessageKey.USER_ATTRIBUTES);
+        if (userAttributes instanceof JSONObject) {
+            return (JSONObject) userAttributes;
         } else {
-            return userAttributes;
+            return getAllUserAttributesJson(mpId);
         }
     }
 
     /**
      * Look for the last UIC message to find the end-state of user identities
      */
-    private JSONArray findIdentityState(ConfigManager configManager, JSONArray messages, long mpId) {
-        JSONArray identities = null;
-        if (messages != null) {
-            for (int i = 0; i < messages.length(); i++) {
-                try {
-                    if (messages.getJSONObject(i).get(Constants.MessageKey.TYPE).equals(Constants.MessageType.USER_IDENTITY_CHANGE)) {
-                        identities = messages.getJSONObject(i).getJSONArray(Constants.MessageKey.USER_IDENTITIES);
-                        messages.getJSONObject(i).remove(Constants.MessageKey.USER_IDENTITIES);
-                    }
-                }catch (JSONException jse) {
-
-                }catch (NullPointerException npe) {
-
-                }
-            }
-        }
-        if (identities == null) {
-            return configManager.getUserIdentityJson(mpId);
+    private JSONArray findIdentityState(ConfigManager configManager, List<String> messages, long mpId) {
+        Object identities = extractFromMessagesOfType(messages, Constants.MessageType.USER_IDENTITY_CHANGE, Constants.MessageKey.USER_IDENTITIES);
+        if (identities instanceof JSONArray) {
+            return (JSONArray) identities;
         } else {
-            return identities;
+            return configManager.getUserIdentityJson(mpId);
         }
     }
 
@@ -359,6 +428,13 @@ public class MParticleDBManager extends BaseDBManager {
     }
 
     public void updateSessionEndTime(String sessionId, long endTime, long sessionLength) {
+        if (mGroupCommitSessionEndTimes != null && sessionLength <= 0) {
+            mGroupCommitSessionEndTimes.put(sessionId, endTime);
+            return;
+        }
+        if (mGroupCommitSessionEndTimes != null) {
+            mGroupCommitSessionEndTimes.remove(sessionId);
+        }
         SessionService.updateSessionEndTime(getMParticleDatabase(), sessionId, endTime, sessionLength);
     }
 
@@ -400,8 +476,7 @@ public class MParticleDBManager extends BaseDBManager {
     }
 
     BaseMPMessage createMessageSessionEnd(String sessionId, long start, long end, long foregroundLength, JSONObject sessionAttributes, Location location, Set<Long> mpIds) throws JSONException{
-        int eventCounter = mPreferences.getInt(Constants.PrefKeys.EVENT_COUNTER, 0);
-        resetEventCounter();
+        int eventCounter = MessageManager.getAndResetEventCounter();
         Session session = new Session();
         session.mSessionID = sessionId;
         session.mSessionStartTime = start;
@@ -426,10 +501,6 @@ public class MParticleDBManager extends BaseDBManager {
         return message;
     }
 
-    private void resetEventCounter(){
-        mPreferences.edit().putInt(Constants.PrefKeys.EVENT_COUNTER, 0).apply();
-    }
-
 
     public List<String> getOrphanSessionIds(String apiKey) {
         return SessionService.getOrphanSessionIds(getMParticleDatabase(), apiKey);
@@ -481,8 +552,11 @@ public class MParticleDBManager extends BaseDBManager {
         UploadService.cleanupUploadMessages(getMParticleDatabase());
     }
 
-    public List<ReadyUpload> getReadyUploads() {
-        return UploadService.getReadyUploads(getMParticleDatabase());
+    /**
+     * @see UploadService#getReadyUploads(SQLiteDatabase, ReadyUpload, int)
+     */
+    public List<ReadyUpload> getReadyUploads(ReadyUpload after, int limit) {
+        return UploadService.getReadyUploads(getMParticleDatabase(), after, limit);
     }
 
     public int deleteUpload(int id) {
@@ -500,6 +574,16 @@ public class MParticleDBManager extends BaseDBManager {
      */
 
     public TreeMap<String, String> getUserAttributeSingles(long mpId) {
+        UserAttributeCache cache = getUserAttributeCache();
+        if (cache != null) {
+            UserAttributeCache.Attributes attributes = getCachedUserAttributes(cache, mpId);
+            if (attributes == null) {
+                return null;
+            }
+            synchronized (cache) {
+                return attributes.copySingles();
+            }
+        }
         if (getMParticleDatabase() != null) {
             return UserAttributesService.getUserAttributesSingles(getMParticleDatabase(), mpId);
         }
@@ -507,14 +591,55 @@ public class MParticleDBManager extends BaseDBManager {
     }
 
     public TreeMap<String, List<String>> getUserAttributeLists(long mpId) {
+        UserAttributeCache cache = getUserAttributeCache();
+        if (cache != null) {
+            UserAttributeCache.Attributes attributes = getCachedUserAttributes(cache, mpId);
+            if (attributes == null) {
+                return null;
+            }
+            synchronized (cache) {
+                return attributes.copyLists();
+            }
+        }
         if (getMParticleDatabase() != null) {
             return UserAttributesService.getUserAttributesLists(getMParticleDatabase(), mpId);
         }
         return null;
     }
 
+    /**
+     * The attributes are read from the database without holding the cache's lock, since a write holding the
+     * database's lock may be waiting for it. The returned attributes must only be read while holding the cache's lock.
+     *
+     * @return the MPID's attributes, read from the database if they're not cached yet
+     */
+    private UserAttributeCache.Attributes getCachedUserAttributes(UserAttributeCache cache, long mpId) {
+        UserAttributeCache.Attributes attributes = cache.get(mpId);
+        if (attributes == null) {
+            SQLiteDatabase db = getMParticleDatabase();
+            if (db == null) {
+                return null;
+            }
+            long generation = cache.getGeneration();
+            attributes = cache.putIfAbsent(mpId, generation, UserAttributesService.getUserAttributesSingles(db, mpId), UserAttributesService.getUserAttributesLists(db, mpId));
+        }
+        return attributes;
+    }
 
+    /**
+     * @return every user attribute of the MPID. The object may be shared, and must not be modified.
+     */
     public JSONObject getAllUserAttributesJson(long mpId)  {
+        UserAttributeCache cache = getUserAttributeCache();
+        if (cache != null) {
+            UserAttributeCache.Attributes attributes = getCachedUserAttributes(cache, mpId);
+            if (attributes == null) {
+                return new JSONObject();
+            }
+            synchronized (cache) {
+                return attributes.getJson();
+            }
+        }
         Map<String, Object> attributes = getUserAttributes(null, mpId);
         JSONObject jsonAttributes = new JSONObject();
         for (Map.Entry<String, Object> entry : attributes.entrySet()) {
@@ -592,6 +717,7 @@ public class MParticleDBManager extends BaseDBManager {
         }
         Map<String, Object> currentValues = getUserAttributes(null, userAttribute.mpId);
         SQLiteDatabase db = getMParticleDatabase();
+        UserAttributeCache cache = getUserAttributeCache();
         try {
             db.beginTransaction();
             long time = System.currentTimeMillis();
@@ -625,12 +751,33 @@ public class MParticleDBManager extends BaseDBManager {
                     attributionChanges.add(new AttributionChange(key, attributeValue, oldValue, false, isNewAttribute, userAttribute.time, userAttribute.mpId));
                 }
             }
+            if (userAttribute.attributeRemovals != null) {
+                for (String key : userAttribute.attributeRemovals) {
+                    int deleted = UserAttributesService.deleteAttributes(db, key, userAttribute.mpId);
+                    if (deleted > 0) {
+                        attributionChanges.add(new AttributionChange(key, null, currentValues.get(key), true, false, userAttribute.time, userAttribute.mpId));
+                    }
+                }
+            }
             db.setTransactionSuccessful();
         }catch (Exception e){
             Logger.error(e, "Error while adding user attributes: ", e.toString());
+            attributionChanges.clear();
         } finally {
             db.endTransaction();
         }
+        //the cache is only updated once the changes are committed, and without holding the database's lock
+        if (cache != null) {
+            for (AttributionChange change : attributionChanges) {
+                if (change.isDeleted()) {
+                    cache.removeAttribute(change.getMpId(), change.getKey());
+                } else if (change.getNewValue() instanceof List) {
+                    cache.setAttributeList(change.getMpId(), change.getKey(), (List<String>) change.getNewValue());
+                } else {
+                    cache.setAttribute(change.getMpId(), change.getKey(), (String) change.getNewValue());
+                }
+            }
+        }
         return attributionChanges;
     }
 
@@ -638,18 +785,26 @@ public class MParticleDBManager extends BaseDBManager {
     public void removeUserAttribute(UserAttributeRemoval container, MessageManagerCallbacks callbacks) {
         Map<String, Object> currentValues = getUserAttributes(null, container.mpId);
         SQLiteDatabase db = getMParticleDatabase();
+        UserAttributeCache cache = getUserAttributeCache();
+        int deleted = 0;
         try {
             db.beginTransaction();
-            int deleted = UserAttributesService.deleteAttributes(db, container.key, container.mpId);
-            if (callbacks != null && deleted > 0) {
-                callbacks.attributeRemoved(container.key, container.mpId);
-                callbacks.logUserAttributeChangeMessage(container.key, null, currentValues.get(container.key), true, false, container.time, container.mpId);
-            }
+            deleted = UserAttributesService.deleteAttributes(db, container.key, container.mpId);
             db.setTransactionSuccessful();
         }catch (Exception e) {
-
+            deleted = 0;
         } finally {
             db.endTransaction();
         }
+        if (deleted > 0) {
+            //like the change message, the cache reflects the removal only once it is committed
+            if (cache != null) {
+                cache.removeAttribute(container.mpId, container.key);
+            }
+            if (callbacks != null) {
+                callbacks.attributeRemoved(container.key, container.mpId);
+                callbacks.logUserAttributeChangeMessage(container.key, null, currentValues.get(container.key), true, false, container.time, container.mpId);
+            }
+        }
     }
 }
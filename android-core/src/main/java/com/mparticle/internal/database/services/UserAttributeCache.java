@@ -0,0 +1,190 @@
+package com.mparticle.internal.database.services;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The user attributes of each MPID, as stored in the user attributes table. Each MPID's attributes are read from
+ * the database the first time they're needed, and {@link MParticleDBManager} then updates the cache every time it
+ * writes to the table, so later reads don't have to query it.
+ *
+ * Along with the attributes, the cache keeps the JSON object that is added to every user attribute change message and
+ * upload. Each write creates a new JSON object from the previous one, so a JSON object that has been returned is
+ * never modified, and can be added to a message as it is.
+ */
+public class UserAttributeCache {
+    private final Map<Long, Attributes> mAttributes = new HashMap<Long, Attributes>();
+    /**
+     * Incremented by every write, so that attributes read from the database while a write was being made are not
+     * cached over it.
+     */
+    private long mGeneration;
+
+    public UserAttributeCache() {
+    }
+
+    /**
+     * @return the cached attributes of the MPID, or null if they have not been read from the database yet
+     */
+    synchronized Attributes get(long mpId) {
+        return mAttributes.get(mpId);
+    }
+
+    synchronized void put(long mpId, TreeMap<String, String> singles, TreeMap<String, List<String>> lists) {
+        mGeneration++;
+        mAttributes.put(mpId, new Attributes(singles, lists));
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache attributes that were read from the database, unless another thread cached them first. If the cache was
+     * written to since {@link #getGeneration()} returned the given generation, the attributes may already be out of
+     * date, so they are returned without being cached.
+     *
+     * @return the cached attributes of the MPID
+     */
+    synchronized Attributes putIfAbsent(long mpId, long generation, TreeMap<String, String> singles, TreeMap<String, List<String>> lists) {
+        Attributes attributes = mAttributes.get(mpId);
+        if (attributes == null) {
+            attributes = new Attributes(singles, lists);
+            if (generation == mGeneration) {
+                mAttributes.put(mpId, attributes);
+            }
+        }
+        return attributes;
+    }
+
+    synchronized void setAttribute(long mpId, String key, String value) {
+        mGeneration++;
+        Attributes attributes = mAttributes.get(mpId);
+        if (attributes != null) {
+            attributes.remove(key);
+            attributes.singles.put(key, value);
+            attributes.updateJson(key, value == null ? JSONObject.NULL : value);
+        }
+    }
+
+    synchronized void setAttributeList(long mpId, String key, List<String> values) {
+        mGeneration++;
+        Attributes attributes = mAttributes.get(mpId);
+        if (attributes != null) {
+            attributes.remove(key);
+            attributes.lists.put(key, new ArrayList<String>(values));
+            attributes.updateJson(key, new JSONArray(values));
+        }
+    }
+
+    synchronized void removeAttribute(long mpId, String key) {
+        mGeneration++;
+        Attributes attributes = mAttributes.get(mpId);
+        if (attributes != null) {
+            attributes.remove(key);
+            attributes.updateJson(key, null);
+        }
+    }
+
+    /**
+     * Forget the cached attributes of an MPID, so they are read from the database again, such as when its attributes
+     * are merged into another MPID.
+     */
+    synchronized void invalidate(long mpId) {
+        mGeneration++;
+        mAttributes.remove(mpId);
+    }
+
+    /**
+     * Access to an instance must be synchronized on the cache.
+     */
+    static class Attributes {
+        final TreeMap<String, String> singles;
+        final TreeMap<String, List<String>> lists;
+        private JSONObject json;
+
+        Attributes(TreeMap<String, String> singles, TreeMap<String, List<String>> lists) {
+            this.singles = singles;
+            this.lists = lists;
+        }
+
+        /**
+         * @return a copy of the single-value attributes, which the caller may modify
+         */
+        TreeMap<String, String> copySingles() {
+            return new TreeMap<String, String>(singles);
+        }
+
+        /**
+         * @return a copy of the list attributes, which the caller may modify
+         */
+        TreeMap<String, List<String>> copyLists() {
+            TreeMap<String, List<String>> copy = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            }
+            return copy;
+        }
+
+        /**
+         * @return every attribute as JSON, which must not be modified
+         */
+        JSONObject getJson() {
+            if (json == null) {
+                JSONObject jsonAttributes = new JSONObject();
+                try {
+                    for (Map.Entry<String, String> entry : singles.entrySet()) {
+                        jsonAttributes.put(entry.getKey(), entry.getValue() == null ? JSONObject.NULL : entry.getValue());
+                    }
+                    for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+                        jsonAttributes.put(entry.getKey(), new JSONArray(entry.getValue()));
+                    }
+                } catch (JSONException ignored) {
+
+                }
+                json = jsonAttributes;
+            }
+            return json;
+        }
+
+        private void remove(String key) {
+            singles.remove(key);
+            lists.remove(key);
+        }
+
+        /**
+         * Replace the JSON with a copy that has the new value of a single attribute, keys are matched ignoring case.
+         */
+        private void updateJson(String key, Object value) {
+            if (json == null) {
+                return;
+            }
+            JSONObject previous = json;
+            json = null;
+            try {
+                JSONObject updated = new JSONObject();
+                Iterator<String> keys = previous.keys();
+                while (keys.hasNext()) {
+                    String existingKey = keys.next();
+                    if (!existingKey.equalsIgnoreCase(key)) {
+                        updated.put(existingKey, previous.get(existingKey));
+                    }
+                }
+                if (value != null) {
+                    updated.put(key, value);
+                }
+                json = updated;
+            } catch (JSONException ignored) {
+
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.database.sqlite.SQLiteDatabase;
 
 import com.mparticle.internal.Constants;
 import com.mparticle.internal.Logger;
+import com.mparticle.internal.database.CompactJsonEncoding;
 import com.mparticle.internal.networking.BaseMPMessage;
 import com.mparticle.internal.database.tables.mp.MessageTable;
 
@@ -16,7 +17,7 @@ import java.util.List;
 
 public class MessageService extends MessageTable {
 
-    private final static String[] prepareSelection = new String[]{"_id", MessageTableColumns.MESSAGE, MessageTableColumns.CREATED_AT, MessageTableColumns.STATUS, MessageTableColumns.SESSION_ID, MessageTableColumns.MP_ID};
+    private final static String[] prepareSelection = new String[]{"_id", MessageTableColumns.MESSAGE, MessageTableColumns.CREATED_AT, MessageTableColumns.STATUS, MessageTableColumns.SESSION_ID, MessageTableColumns.MP_ID, MessageTableColumns.ENCODING};
     private final static String prepareOrderBy =  MessageTableColumns._ID + " asc";
 
     private static String getSessionHistorySelection(boolean includesMpid) {
@@ -52,12 +53,16 @@ public class MessageService extends MessageTable {
             int messageIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.MESSAGE);
             int sessionIdIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.SESSION_ID);
             int messageMpidIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.MP_ID);
+            int encodingIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.ENCODING);
             while (readyMessagesCursor.moveToNext()) {
                 String sessionId = readyMessagesCursor.getString(sessionIdIndex);
                 int messageId = readyMessagesCursor.getInt(messageIdIndex);
-                String message = readyMessagesCursor.getString(messageIndex);
                 long messageMpid = readyMessagesCursor.getLong(messageMpidIndex);
-                readyMessages.add(new ReadyMessage(messageMpid, sessionId, messageId, message));
+                if (readyMessagesCursor.getInt(encodingIndex) == MessageEncoding.COMPACT) {
+                    readyMessages.add(new ReadyMessage(messageMpid, sessionId, messageId, readyMessagesCursor.getBlob(messageIndex)));
+                } else {
+                    readyMessages.add(new ReadyMessage(messageMpid, sessionId, messageId, readyMessagesCursor.getString(messageIndex)));
+                }
             }
         }
         finally {
@@ -88,10 +93,11 @@ public class MessageService extends MessageTable {
         Cursor readyMessagesCursor = null;
         List<ReadyMessage> readyMessages = new ArrayList<ReadyMessage>();
         try {
+            //UPLOADED is the highest status, so filtering with a range (rather than !=) lets SQLite use the status index
             readyMessagesCursor = database.query(
                     MessageTableColumns.TABLE_NAME,
                     null,
-                    MessageTableColumns.STATUS + " != ? and " + MessageTableColumns.CREATED_AT + " < " + System.currentTimeMillis() + " and " + MessageTableColumns.MP_ID + (includes ? " = ?" : " != ?"),
+                    MessageTableColumns.STATUS + " < ? and " + MessageTableColumns.CREATED_AT + " < " + System.currentTimeMillis() + " and " + MessageTableColumns.MP_ID + (includes ? " = ?" : " != ?"),
                     new String[]{Integer.toString(Constants.Status.UPLOADED), String.valueOf(mpid)},
                     null,
                     null,
@@ -100,12 +106,16 @@ public class MessageService extends MessageTable {
             int messageIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.MESSAGE);
             int sessionIdIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.SESSION_ID);
             int messageMpidIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.MP_ID);
+            int encodingIndex = readyMessagesCursor.getColumnIndex(MessageTableColumns.ENCODING);
             while (readyMessagesCursor.moveToNext()) {
                 String sessionId = readyMessagesCursor.getString(sessionIdIndex);
                 int messageId = readyMessagesCursor.getInt(messageIdIndex);
-                String message = readyMessagesCursor.getString(messageIndex);
                 long messageMpid = readyMessagesCursor.getLong(messageMpidIndex);
-                readyMessages.add(new ReadyMessage(messageMpid, sessionId, messageId, message));
+                if (readyMessagesCursor.getInt(encodingIndex) == MessageEncoding.COMPACT) {
+                    readyMessages.add(new ReadyMessage(messageMpid, sessionId, messageId, readyMessagesCursor.getBlob(messageIndex)));
+                } else {
+                    readyMessages.add(new ReadyMessage(messageMpid, sessionId, messageId, readyMessagesCursor.getString(messageIndex)));
+                }
             }
         }
         finally {
@@ -116,6 +126,32 @@ public class MessageService extends MessageTable {
         return readyMessages;
     }
 
+    /**
+     * @return the number of messages waiting to be batched for upload, followed by their total size in bytes
+     */
+    public static long[] getPendingMessageStats(SQLiteDatabase database) {
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    MessageTableColumns.TABLE_NAME,
+                    new String[]{"count(*)", "total(length(" + MessageTableColumns.MESSAGE + "))"},
+                    MessageTableColumns.STATUS + " < ? and " + MessageTableColumns.MP_ID + " != ?",
+                    new String[]{Integer.toString(Constants.Status.UPLOADED), String.valueOf(Constants.TEMPORARY_MPID)},
+                    null,
+                    null,
+                    null);
+            if (cursor.moveToFirst()) {
+                return new long[]{cursor.getLong(0), cursor.getLong(1)};
+            }
+            return new long[]{0, 0};
+        }
+        finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
     public static int cleanupMessages(SQLiteDatabase database) {
         return database.delete(MessageTableColumns.TABLE_NAME, "length(" + MessageTableColumns.MESSAGE + ") > " + Constants.LIMIT_MAX_MESSAGE_SIZE, null);
     }
@@ -150,6 +186,13 @@ public class MessageService extends MessageTable {
     }
 
     public static void insertMessage(SQLiteDatabase db, String apiKey, BaseMPMessage message, long mpId) throws JSONException {
+        insertMessage(db, apiKey, message, mpId, false);
+    }
+
+    /**
+     * @param compact whether to store the message in the compact binary encoding, rather than as JSON text
+     */
+    public static void insertMessage(SQLiteDatabase db, String apiKey, BaseMPMessage message, long mpId, boolean compact) throws JSONException {
         ContentValues contentValues = new ContentValues();
         contentValues.put(MessageTableColumns.API_KEY, apiKey);
         contentValues.put(MessageTableColumns.CREATED_AT, message.getLong(Constants.MessageKey.TIMESTAMP));
@@ -159,12 +202,22 @@ public class MessageService extends MessageTable {
         if (Constants.NO_SESSION_ID.equals(sessionID)) {
             message.remove(Constants.MessageKey.SESSION_ID);
         }
-        String messageString = message.toString();
-        if (messageString.length() > Constants.LIMIT_MAX_MESSAGE_SIZE) {
-            Logger.error("Message logged of size " + messageString.length() + " that exceeds maximum safe size of " + Constants.LIMIT_MAX_MESSAGE_SIZE + " bytes.");
-            return;
+        //the size limit applies to the message as it is stored, so it's only serialized once
+        if (compact) {
+            byte[] encoded = CompactJsonEncoding.encode(message);
+            if (isTooLarge(encoded.length)) {
+                return;
+            }
+            contentValues.put(MessageTableColumns.MESSAGE, encoded);
+            contentValues.put(MessageTableColumns.ENCODING, MessageEncoding.COMPACT);
+        } else {
+            String messageString = message.toString();
+            if (isTooLarge(messageString.length())) {
+                return;
+            }
+            contentValues.put(MessageTableColumns.MESSAGE, messageString);
         }
-        contentValues.put(MessageTableColumns.MESSAGE, messageString);
+        contentValues.put(MessageTableColumns.MESSAGE_TYPE, message.getMessageType());
 
         if (message.getString(Constants.MessageKey.TYPE) == Constants.MessageType.FIRST_RUN) {
             // Force the first run message to be parsed immediately
@@ -176,11 +229,20 @@ public class MessageService extends MessageTable {
         db.insert(MessageTableColumns.TABLE_NAME, null, contentValues);
     }
 
+    private static boolean isTooLarge(int size) {
+        if (size > Constants.LIMIT_MAX_MESSAGE_SIZE) {
+            Logger.error("Message logged of size " + size + " that exceeds maximum safe size of " + Constants.LIMIT_MAX_MESSAGE_SIZE + " bytes.");
+            return true;
+        }
+        return false;
+    }
+
     public static class ReadyMessage {
         private long mpid;
         private String sessionId;
         private int messageId;
         private String message;
+        private byte[] encodedMessage;
 
         private ReadyMessage(long mpid, String sessionId, int messageId, String message) {
             this.mpid = mpid;
@@ -189,6 +251,11 @@ public class MessageService extends MessageTable {
             this.message = message;
         }
 
+        private ReadyMessage(long mpid, String sessionId, int messageId, byte[] encodedMessage) {
+            this(mpid, sessionId, messageId, (String) null);
+            this.encodedMessage = encodedMessage;
+        }
+
         public long getMpid() {
             return mpid;
         }
@@ -201,7 +268,19 @@ public class MessageService extends MessageTable {
             return messageId;
         }
 
+        /**
+         * @return the message as JSON text. Compact messages are only decoded the first time this is called,
+         * and null is returned if they can't be decoded.
+         */
         public String getMessage() {
+            if (message == null && encodedMessage != null) {
+                try {
+                    message = CompactJsonEncoding.decode(encodedMessage);
+                } catch (JSONException e) {
+                    Logger.error("Unable to decode message from mParticle DB.");
+                }
+                encodedMessage = null;
+            }
             return message;
         }
     }
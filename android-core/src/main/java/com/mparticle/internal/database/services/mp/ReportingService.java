@@ -77,6 +77,18 @@ public class ReportingService extends ReportingTable {
         database.delete(ReportingTableColumns.TABLE_NAME, whereClause, whereArgs);
     }
 
+    /**
+     * Delete the reporting messages returned by {@link #getReportingMessagesForUpload(SQLiteDatabase)}, after they've
+     * been included in an upload message, in a single statement.
+     *
+     * @param lastMessageId the id of the last message returned
+     */
+    public static void deleteReportingMessagesForUpload(SQLiteDatabase database, int lastMessageId) {
+        String[] whereArgs = new String[]{Long.toString(lastMessageId), String.valueOf(Constants.TEMPORARY_MPID)};
+        String whereClause = ReportingTableColumns._ID + " <= ? and " + ReportingTableColumns.MP_ID + " != ?";
+        database.delete(ReportingTableColumns.TABLE_NAME, whereClause, whereArgs);
+    }
+
     public static class ReportingMessage {
         private long mpid;
         private JSONObject msgObject;
@@ -23,34 +23,52 @@ public class UploadService extends UploadTable {
      *
      * @param message
      */
-    public static void insertUpload(SQLiteDatabase database, MessageBatch message, String apiKey) {
+    public static void insertUpload(SQLiteDatabase database, MessageBatch message, String sessionId, String apiKey) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(UploadTableColumns.API_KEY, apiKey);
+        contentValues.put(UploadTableColumns.SESSION_ID, sessionId);
         contentValues.put(UploadTableColumns.CREATED_AT, message.optLong(Constants.MessageKey.TIMESTAMP, System.currentTimeMillis()));
         contentValues.put(UploadTableColumns.MESSAGE, message.toString());
         database.insert(UploadTableColumns.TABLE_NAME, null, contentValues);
     }
 
-    public static List<ReadyUpload> getReadyUploads(SQLiteDatabase database) {
+    /**
+     * Return the next page of uploads, in the order they were created. Pages are keyed on the last upload of the
+     * previous page rather than on an offset, so uploads that are deleted in the meantime don't cause any to be skipped.
+     *
+     * @param after the last upload of the previous page, or null for the first page
+     * @param limit the maximum number of uploads to return, which bounds the memory held by the page
+     */
+    public static List<ReadyUpload> getReadyUploads(SQLiteDatabase database, ReadyUpload after, int limit) {
         List<ReadyUpload> readyUploads = new ArrayList<ReadyUpload>();
+        String selection = null;
+        String[] selectionArgs = null;
+        if (after != null) {
+            selection = String.format("(%s > ?) or (%s = ? and %s > ?)",
+                    UploadTableColumns.CREATED_AT,
+                    UploadTableColumns.CREATED_AT,
+                    UploadTableColumns._ID);
+            String createdAt = String.valueOf(after.getCreatedAt());
+            selectionArgs = new String[]{createdAt, createdAt, String.valueOf(after.getId())};
+        }
         Cursor readyUploadsCursor = null;
         try {
-            readyUploadsCursor = database.query(UploadTableColumns.TABLE_NAME, new String[]{"_id", UploadTableColumns.MESSAGE},
-                    null, null, null, null, UploadTableColumns.CREATED_AT);
+            readyUploadsCursor = database.query(UploadTableColumns.TABLE_NAME, new String[]{"_id", UploadTableColumns.MESSAGE, UploadTableColumns.SESSION_ID, UploadTableColumns.CREATED_AT},
+                    selection, selectionArgs, null, null, UploadTableColumns.CREATED_AT + ", " + UploadTableColumns._ID, String.valueOf(limit));
             int messageIdIndex = readyUploadsCursor.getColumnIndex(UploadTableColumns._ID);
             int messageIndex = readyUploadsCursor.getColumnIndex(UploadTableColumns.MESSAGE);
+            int sessionIdIndex = readyUploadsCursor.getColumnIndex(UploadTableColumns.SESSION_ID);
+            int createdAtIndex = readyUploadsCursor.getColumnIndex(UploadTableColumns.CREATED_AT);
             while (readyUploadsCursor.moveToNext()) {
-                readyUploads.add(new ReadyUpload(readyUploadsCursor.getInt(messageIdIndex), readyUploadsCursor.getString(messageIndex)));
-                readyUploadsCursor.moveToNext();
+                readyUploads.add(new ReadyUpload(readyUploadsCursor.getInt(messageIdIndex), readyUploadsCursor.getString(messageIndex), readyUploadsCursor.getString(sessionIdIndex), readyUploadsCursor.getLong(createdAtIndex)));
             }
         }
         finally {
             if (readyUploadsCursor != null && !readyUploadsCursor.isClosed()) {
                 readyUploadsCursor.close();
             }
-            return readyUploads;
         }
-
+        return readyUploads;
     }
 
     /**
@@ -33,4 +33,10 @@ public class BreadcrumbTable extends MpIdDependentTable {
                     BreadcrumbTableColumns.CF_UUID + " TEXT, " +
                     BreadcrumbTableColumns.MP_ID + " INTEGER" +
                     ");";
+
+    static final String CREATE_BREADCRUMBS_MPID_INDEX_DDL =
+            "CREATE INDEX IF NOT EXISTS breadcrumbs_mpid_index ON " + BreadcrumbTableColumns.TABLE_NAME + " (" +
+                    BreadcrumbTableColumns.MP_ID + ", " +
+                    BreadcrumbTableColumns.CREATED_AT +
+                    ");";
 }
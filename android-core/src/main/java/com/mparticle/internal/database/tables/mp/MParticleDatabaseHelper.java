@@ -18,7 +18,7 @@ import java.util.Iterator;
 
 public class MParticleDatabaseHelper implements SQLiteOpenHelperWrapper {
     private final Context mContext;
-    public static final int DB_VERSION = 8;
+    public static final int DB_VERSION = 10;
     public static final String DB_NAME = "mparticle.db";
 
     public MParticleDatabaseHelper(Context context) {
@@ -33,6 +33,7 @@ public class MParticleDatabaseHelper implements SQLiteOpenHelperWrapper {
         db.execSQL(BreadcrumbTable.CREATE_BREADCRUMBS_DDL);
         db.execSQL(ReportingTable.CREATE_REPORTING_DDL);
         db.execSQL(UserAttributesTable.CREATE_USER_ATTRIBUTES_DDL);
+        createIndexes(db);
     }
 
     @Override
@@ -57,6 +58,23 @@ public class MParticleDatabaseHelper implements SQLiteOpenHelperWrapper {
         if (oldVersion < 8) {
             removeGcmTable(db);
         }
+        if (oldVersion < 9) {
+            createIndexes(db);
+        }
+        if (oldVersion < 10) {
+            db.execSQL(MessageTable.getAddEncodingColumnString());
+        }
+    }
+
+    /**
+     * Indexes the columns that the hot queries filter on. These must be created after any column
+     * upgrades, since they may cover columns that older schemas did not have.
+     */
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(MessageTable.CREATE_MESSAGES_STATUS_INDEX_DDL);
+        db.execSQL(UploadTable.CREATE_UPLOADS_CREATED_AT_INDEX_DDL);
+        db.execSQL(BreadcrumbTable.CREATE_BREADCRUMBS_MPID_INDEX_DDL);
+        db.execSQL(UserAttributesTable.CREATE_USER_ATTRIBUTES_MPID_INDEX_DDL);
     }
 
     private void upgradeSessionTable(SQLiteDatabase db) {
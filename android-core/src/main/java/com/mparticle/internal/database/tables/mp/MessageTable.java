@@ -19,12 +19,31 @@ public class MessageTable extends MpIdDependentTable {
         String MESSAGE_TYPE = "message_type";
         String CF_UUID = "cfuuid";
         String MP_ID = MpIdDependentTable.MP_ID;
+        /**
+         * How the message column is encoded, one of {@link MessageEncoding}.
+         */
+        String ENCODING = "message_encoding";
+    }
+
+    public interface MessageEncoding {
+        /**
+         * The message is stored as JSON text.
+         */
+        int JSON = 0;
+        /**
+         * The message is stored as a blob, in the format of {@link com.mparticle.internal.database.CompactJsonEncoding}.
+         */
+        int COMPACT = 1;
     }
 
     static String getAddMpIdColumnString(String defaultValue) {
         return MParticleDatabaseHelper.addIntegerColumnString(MessageTable.MessageTableColumns.TABLE_NAME, MessageTable.MessageTableColumns.MP_ID, defaultValue);
     }
 
+    static String getAddEncodingColumnString() {
+        return MParticleDatabaseHelper.addIntegerColumnString(MessageTableColumns.TABLE_NAME, MessageTableColumns.ENCODING, String.valueOf(MessageEncoding.JSON));
+    }
+
     static final String CREATE_MESSAGES_DDL =
             "CREATE TABLE IF NOT EXISTS " + MessageTableColumns.TABLE_NAME + " (" + BaseColumns._ID +
                     " INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -35,7 +54,18 @@ public class MessageTable extends MpIdDependentTable {
                     MessageTableColumns.CREATED_AT + " INTEGER NOT NULL, " +
                     MessageTableColumns.MESSAGE_TYPE + " TEXT, " +
                     MessageTableColumns.CF_UUID + " TEXT, " +
-                    MessageTableColumns.MP_ID + " INTEGER" +
+                    MessageTableColumns.MP_ID + " INTEGER, " +
+                    MessageTableColumns.ENCODING + " INTEGER DEFAULT " + MessageEncoding.JSON +
+                    ");";
+
+    /**
+     * Serves both the query for pending messages and the query for session history, which filter on
+     * the upload status and MPID.
+     */
+    static final String CREATE_MESSAGES_STATUS_INDEX_DDL =
+            "CREATE INDEX IF NOT EXISTS messages_status_index ON " + MessageTableColumns.TABLE_NAME + " (" +
+                    MessageTableColumns.STATUS + ", " +
+                    MessageTableColumns.MP_ID +
                     ");";
 
 }
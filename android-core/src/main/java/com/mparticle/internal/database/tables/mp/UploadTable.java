@@ -22,4 +22,9 @@ public class UploadTable {
                     UploadTableColumns.CF_UUID + " TEXT, " +
                     UploadTableColumns.SESSION_ID + " TEXT" +
                     ");";
+
+    static final String CREATE_UPLOADS_CREATED_AT_INDEX_DDL =
+            "CREATE INDEX IF NOT EXISTS uploads_created_at_index ON " + UploadTableColumns.TABLE_NAME + " (" +
+                    UploadTableColumns.CREATED_AT +
+                    ");";
 }
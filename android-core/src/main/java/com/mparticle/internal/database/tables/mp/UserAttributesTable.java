@@ -28,6 +28,12 @@ public class UserAttributesTable extends MpIdDependentTable {
                     UserAttributesTableColumns.MP_ID + " INTEGER" +
                     ");";
 
+    static final String CREATE_USER_ATTRIBUTES_MPID_INDEX_DDL =
+            "CREATE INDEX IF NOT EXISTS attributes_mpid_index ON " + UserAttributesTableColumns.TABLE_NAME + " (" +
+                    UserAttributesTableColumns.MP_ID + ", " +
+                    UserAttributesTableColumns.ATTRIBUTE_KEY +
+                    ");";
+
     static String getAddMpIdColumnString(String defaultValue) {
         return MParticleDatabaseHelper.addIntegerColumnString(UserAttributesTableColumns.TABLE_NAME, UserAttributesTableColumns.MP_ID, defaultValue);
     }
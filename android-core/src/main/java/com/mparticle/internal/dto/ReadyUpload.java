@@ -3,10 +3,22 @@ package com.mparticle.internal.dto;
 public class ReadyUpload {
     private int id;
     private String message;
+    private String sessionId;
+    private long createdAt;
 
     public ReadyUpload(int id, String message) {
+        this(id, message, null);
+    }
+
+    public ReadyUpload(int id, String message, String sessionId) {
+        this(id, message, sessionId, 0);
+    }
+
+    public ReadyUpload(int id, String message, String sessionId, long createdAt) {
         this.id = id;
         this.message = message;
+        this.sessionId = sessionId;
+        this.createdAt = createdAt;
     }
 
 
@@ -17,4 +29,15 @@ public class ReadyUpload {
     public String getMessage() {
         return message;
     }
+
+    /**
+     * @return the session the batch was created for, or null for batches created before this was tracked
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
 }
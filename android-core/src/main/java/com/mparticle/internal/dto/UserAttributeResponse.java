@@ -6,6 +6,7 @@ import java.util.Map;
 public class UserAttributeResponse {
     public Map<String, String> attributeSingles;
     public Map<String, List<String>> attributeLists;
+    public List<String> attributeRemovals;
     public long time;
     public long mpId;
 }
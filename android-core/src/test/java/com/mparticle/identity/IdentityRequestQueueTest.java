@@ -0,0 +1,265 @@
+package com.mparticle.identity;
+
+import android.os.Handler;
+
+import com.mparticle.MParticle;
+import com.mparticle.MockMParticle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(BaseIdentityTask.class)
+public class IdentityRequestQueueTest {
+    private MParticle mp;
+    private Map<MParticle.IdentityType, String> storedIdentities;
+    //what the queue posted to its handler, which the tests run themselves
+    private List<Runnable> posted;
+    private List<Long> postedDelays;
+    private Handler handler;
+    private IdentityRequestQueue.Callbacks callbacks;
+    private IdentityApiResult result;
+
+    @Before
+    public void setup() {
+        MParticle.setInstance(new MockMParticle());
+        mp = MParticle.getInstance();
+        Mockito.when(mp.getConfigManager().getMpid()).thenReturn(1L);
+        storedIdentities = new HashMap<MParticle.IdentityType, String>();
+        storedIdentities.put(MParticle.IdentityType.Email, "email 1");
+        storedIdentities.put(MParticle.IdentityType.CustomerId, "customer 1");
+        //every read returns a copy, like ConfigManager does, since request builders modify it
+        Answer<Map<MParticle.IdentityType, String>> copyOfStoredIdentities = new Answer<Map<MParticle.IdentityType, String>>() {
+            @Override
+            public Map<MParticle.IdentityType, String> answer(InvocationOnMock invocation) throws Throwable {
+                return new HashMap<MParticle.IdentityType, String>(storedIdentities);
+            }
+        };
+        Mockito.when(mp.getConfigManager().getUserIdentities(1L)).thenAnswer(copyOfStoredIdentities);
+        Mockito.when(mp.Identity().mMessageManager.getUserIdentities(1L)).thenAnswer(copyOfStoredIdentities);
+
+        posted = new ArrayList<Runnable>();
+        postedDelays = new ArrayList<Long>();
+        handler = Mockito.mock(Handler.class);
+        Mockito.when(handler.post(Mockito.any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                posted.add((Runnable) invocation.getArguments()[0]);
+                postedDelays.add(0L);
+                return true;
+            }
+        });
+        Mockito.when(handler.postDelayed(Mockito.any(Runnable.class), Mockito.anyLong())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                posted.add((Runnable) invocation.getArguments()[0]);
+                postedDelays.add((Long) invocation.getArguments()[1]);
+                return true;
+            }
+        });
+        result = new IdentityApiResult(null);
+        callbacks = Mockito.mock(IdentityRequestQueue.Callbacks.class);
+        Mockito.when(callbacks.onSuccess(Mockito.anyString(), Mockito.any(IdentityApiRequest.class), Mockito.anyLong(), Mockito.any(IdentityHttpResponse.class))).thenReturn(result);
+    }
+
+    @Test
+    public void testIdenticalRequestsShareResult() throws Exception {
+        IdentityRequestQueue queue = new IdentityRequestQueue(handler, mp.getConfigManager(), callbacks);
+        IdentityApi.IdentityNetworkRequestRunnable network = network(new IdentityHttpResponse(200, ""));
+        BaseIdentityTask first = PowerMockito.mock(BaseIdentityTask.class);
+        BaseIdentityTask second = PowerMockito.mock(BaseIdentityTask.class);
+
+        queue.enqueue(IdentityRequestQueue.LOGIN, IdentityApiRequest.withEmptyUser().email("email 2").build(), network, first);
+        queue.enqueue(IdentityRequestQueue.LOGIN, IdentityApiRequest.withEmptyUser().email("email 2").build(), network, second);
+        assertEquals(1, posted.size());
+        runPosted();
+
+        Mockito.verify(network, Mockito.times(1)).request(Mockito.any(IdentityApiRequest.class));
+        Mockito.verify(first).setSuccessful(result);
+        Mockito.verify(second).setSuccessful(result);
+        assertTrue(posted.isEmpty());
+        IdentityRequestStats stats = queue.getStats().get(IdentityRequestQueue.LOGIN);
+        assertEquals(2, stats.getRequestCount());
+        assertEquals(1, stats.getNetworkCallCount());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        IdentityRequestQueue queue = new IdentityRequestQueue(handler, mp.getConfigManager(), callbacks);
+        IdentityApi.IdentityNetworkRequestRunnable network = network(new IdentityHttpResponse(503, "unavailable"), new IdentityHttpResponse(200, ""));
+        BaseIdentityTask task = PowerMockito.mock(BaseIdentityTask.class);
+
+        queue.enqueue(IdentityRequestQueue.IDENTIFY, IdentityApiRequest.withEmptyUser().build(), network, task);
+        runPosted();
+        //retried after the first delay, with jitter
+        assertEquals(1, posted.size());
+        assertTrue(postedDelays.get(0) >= IdentityRequestQueue.RETRY_BASE_DELAY_MILLIS / 2);
+        assertTrue(postedDelays.get(0) <= IdentityRequestQueue.RETRY_BASE_DELAY_MILLIS);
+        Mockito.verify(task, Mockito.never()).setSuccessful(Mockito.any(IdentityApiResult.class));
+        Mockito.verify(task, Mockito.never()).setFailed(Mockito.any(IdentityHttpResponse.class));
+        runPosted();
+
+        Mockito.verify(task).setSuccessful(result);
+        IdentityRequestStats stats = queue.getStats().get(IdentityRequestQueue.IDENTIFY);
+        assertEquals(1, stats.getRequestCount());
+        assertEquals(2, stats.getNetworkCallCount());
+        assertEquals(1, stats.getRetryCount());
+        assertEquals(0, stats.getFailureCount());
+    }
+
+    @Test
+    public void testRetryGivesUp() throws Exception {
+        IdentityRequestQueue queue = new IdentityRequestQueue(handler, mp.getConfigManager(), callbacks);
+        IdentityHttpResponse throttled = new IdentityHttpResponse(429, "throttled");
+        IdentityApi.IdentityNetworkRequestRunnable network = network(throttled);
+        BaseIdentityTask task = PowerMockito.mock(BaseIdentityTask.class);
+
+        queue.enqueue(IdentityRequestQueue.IDENTIFY, IdentityApiRequest.withEmptyUser().build(), network, task);
+        for (int i = 0; i < IdentityRequestQueue.MAX_ATTEMPTS; i++) {
+            runPosted();
+        }
+        assertTrue(posted.isEmpty());
+        Mockito.verify(network, Mockito.times(IdentityRequestQueue.MAX_ATTEMPTS)).request(Mockito.any(IdentityApiRequest.class));
+        Mockito.verify(task).setFailed(throttled);
+        Mockito.verify(callbacks, Mockito.never()).onSuccess(Mockito.anyString(), Mockito.any(IdentityApiRequest.class), Mockito.anyLong(), Mockito.any(IdentityHttpResponse.class));
+        assertEquals(1, queue.getStats().get(IdentityRequestQueue.IDENTIFY).getFailureCount());
+    }
+
+    @Test
+    public void testRequestsAreMadeInOrderAndModifiesCombined() throws Exception {
+        IdentityRequestQueue queue = new IdentityRequestQueue(handler, mp.getConfigManager(), callbacks);
+        IdentityApi.IdentityNetworkRequestRunnable login = network(new IdentityHttpResponse(200, ""));
+        IdentityApi.IdentityNetworkRequestRunnable modify = network(new IdentityHttpResponse(200, ""));
+        BaseIdentityTask loginTask = PowerMockito.mock(BaseIdentityTask.class);
+        BaseIdentityTask firstModifyTask = PowerMockito.mock(BaseIdentityTask.class);
+        BaseIdentityTask secondModifyTask = PowerMockito.mock(BaseIdentityTask.class);
+
+        queue.enqueue(IdentityRequestQueue.LOGIN, IdentityApiRequest.withEmptyUser().email("email 2").build(), login, loginTask);
+        queue.enqueue(IdentityRequestQueue.MODIFY, IdentityApiRequest.withUser(mp.Identity().getCurrentUser()).email("email 2").build(), modify, firstModifyTask);
+        queue.enqueue(IdentityRequestQueue.MODIFY, IdentityApiRequest.withUser(mp.Identity().getCurrentUser()).customerId("customer 2").build(), modify, secondModifyTask);
+        //the modify requests wait for the login
+        assertEquals(1, posted.size());
+        runPosted();
+        Mockito.verify(loginTask).setSuccessful(result);
+        Mockito.verify(modify, Mockito.never()).request(Mockito.any(IdentityApiRequest.class));
+
+        assertEquals(1, posted.size());
+        runPosted();
+        ArgumentCaptor<IdentityApiRequest> request = ArgumentCaptor.forClass(IdentityApiRequest.class);
+        Mockito.verify(modify, Mockito.times(1)).request(request.capture());
+        assertEquals("email 2", request.getValue().getUserIdentities().get(MParticle.IdentityType.Email));
+        assertEquals("customer 2", request.getValue().getUserIdentities().get(MParticle.IdentityType.CustomerId));
+        Mockito.verify(firstModifyTask).setSuccessful(result);
+        Mockito.verify(secondModifyTask).setSuccessful(result);
+        assertTrue(posted.isEmpty());
+        assertEquals(2, queue.getStats().get(IdentityRequestQueue.MODIFY).getRequestCount());
+        assertEquals(1, queue.getStats().get(IdentityRequestQueue.MODIFY).getNetworkCallCount());
+    }
+
+    private void runPosted() {
+        postedDelays.remove(0);
+        posted.remove(0).run();
+    }
+
+    /**
+     * @return a network request that returns each of the responses in turn, and then the last one
+     */
+    private static IdentityApi.IdentityNetworkRequestRunnable network(IdentityHttpResponse response, IdentityHttpResponse... responses) throws Exception {
+        IdentityApi.IdentityNetworkRequestRunnable network = Mockito.mock(IdentityApi.IdentityNetworkRequestRunnable.class);
+        Mockito.when(network.request(Mockito.any(IdentityApiRequest.class))).thenReturn(response, responses);
+        return network;
+    }
+
+    @Test
+    public void testIsRetryable() throws Exception {
+        assertTrue(IdentityRequestQueue.isRetryable(new IdentityHttpResponse(429, "throttled")));
+        assertTrue(IdentityRequestQueue.isRetryable(new IdentityHttpResponse(500, "error")));
+        assertTrue(IdentityRequestQueue.isRetryable(new IdentityHttpResponse(503, "error")));
+        assertFalse(IdentityRequestQueue.isRetryable(new IdentityHttpResponse(400, "bad request")));
+        assertFalse(IdentityRequestQueue.isRetryable(new IdentityHttpResponse(IdentityApi.UNKNOWN_ERROR, "exception")));
+    }
+
+    @Test
+    public void testIsSameRequest() throws Exception {
+        IdentityApiRequest request = IdentityApiRequest.withEmptyUser().email("email 2").build();
+        assertTrue(IdentityRequestQueue.isSameRequest(request, IdentityApiRequest.withEmptyUser().email("email 2").build()));
+        assertFalse(IdentityRequestQueue.isSameRequest(request, IdentityApiRequest.withEmptyUser().email("email 3").build()));
+        assertFalse(IdentityRequestQueue.isSameRequest(request, IdentityApiRequest.withUser(mp.Identity().getCurrentUser()).email("email 2").build()));
+        UserAliasHandler aliasHandler = new UserAliasHandler() {
+            @Override
+            public void onUserAlias(MParticleUser previousUser, MParticleUser newUser) {
+            }
+        };
+        assertFalse(IdentityRequestQueue.isSameRequest(request, IdentityApiRequest.withEmptyUser().email("email 2").userAliasHandler(aliasHandler).build()));
+    }
+
+    @Test
+    public void testCombineModify() throws Exception {
+        IdentityApiRequest first = IdentityApiRequest.withUser(mp.Identity().getCurrentUser())
+                .email("email 2")
+                .userIdentity(MParticle.IdentityType.Facebook, "facebook 1")
+                .build();
+        first.getOtherOldIdentities().put("push_token", "token 1");
+        first.getOtherNewIdentities().put("push_token", "token 2");
+        IdentityApiRequest second = IdentityApiRequest.withUser(mp.Identity().getCurrentUser())
+                .email("email 3")
+                .customerId("customer 2")
+                .build();
+        second.getOtherOldIdentities().put("push_token", "token 2");
+        second.getOtherNewIdentities().put("push_token", "token 3");
+        assertTrue(IdentityRequestQueue.canCombineModify(first, second));
+
+        IdentityApiRequest combined = IdentityApiRequest.combine(first, second);
+        assertEquals(Long.valueOf(1), combined.mpid);
+        assertEquals("email 3", combined.getUserIdentities().get(MParticle.IdentityType.Email));
+        assertEquals("customer 2", combined.getUserIdentities().get(MParticle.IdentityType.CustomerId));
+        assertEquals("facebook 1", combined.getUserIdentities().get(MParticle.IdentityType.Facebook));
+        assertEquals("email 1", combined.getOldIdentities().get(MParticle.IdentityType.Email));
+        assertEquals("customer 1", combined.getOldIdentities().get(MParticle.IdentityType.CustomerId));
+        assertNull(combined.getOldIdentities().get(MParticle.IdentityType.Facebook));
+        assertEquals("token 1", combined.getOtherOldIdentities().get("push_token"));
+        assertEquals("token 3", combined.getOtherNewIdentities().get("push_token"));
+
+        //both requests are built before either is made, so the second still has the email the first one changes
+        first = IdentityApiRequest.withUser(mp.Identity().getCurrentUser())
+                .email("email 2")
+                .build();
+        second = IdentityApiRequest.withUser(mp.Identity().getCurrentUser())
+                .customerId("customer 2")
+                .build();
+        assertEquals("email 1", second.getUserIdentities().get(MParticle.IdentityType.Email));
+        assertTrue(IdentityRequestQueue.canCombineModify(first, second));
+
+        combined = IdentityApiRequest.combine(first, second);
+        assertEquals("email 2", combined.getUserIdentities().get(MParticle.IdentityType.Email));
+        assertEquals("customer 2", combined.getUserIdentities().get(MParticle.IdentityType.CustomerId));
+        assertEquals("email 1", combined.getOldIdentities().get(MParticle.IdentityType.Email));
+        assertEquals("customer 1", combined.getOldIdentities().get(MParticle.IdentityType.CustomerId));
+    }
+
+    @Test
+    public void testModifyRemovingIdentitiesIsNotCombined() throws Exception {
+        //a request built without the user's identities removes the ones it leaves out
+        IdentityApiRequest first = IdentityApiRequest.withUser(mp.Identity().getCurrentUser()).email("email 2").build();
+        IdentityApiRequest second = IdentityApiRequest.withEmptyUser().email("email 3").build();
+        assertFalse(IdentityRequestQueue.canCombineModify(first, second));
+    }
+}
@@ -3,6 +3,8 @@ package com.mparticle.identity;
 import com.mparticle.MParticle;
 import com.mparticle.MockMParticle;
 import com.mparticle.UserAttributeListener;
+import com.mparticle.internal.Session;
+import com.mparticle.internal.dto.UserAttributeResponse;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -11,6 +13,7 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -102,6 +105,59 @@ public class MParticleUserTest {
     }
 
 
+    @Test
+    public void testEditUserAttributes() throws Exception {
+        Session session = Mockito.mock(Session.class);
+        Mockito.when(session.checkEventLimit()).thenReturn(true);
+        Mockito.when(mp.getAppStateManager().getSession()).thenReturn(session);
+        Mockito.when(id.mConfigManager.isEnabled()).thenReturn(true);
+
+        assertFalse(id.getCurrentUser().editUserAttributes()
+                .setUserAttribute("name", "first")
+                .setUserAttribute("name", "second")
+                .setUserAttributeList("colors", Arrays.asList(1, 2))
+                .setUserTag("tag")
+                .removeUserAttribute("tag")
+                .removeUserAttribute("old")
+                .setUserAttribute(null, "invalid")
+                .commit());
+
+        ArgumentCaptor<UserAttributeResponse> response = ArgumentCaptor.forClass(UserAttributeResponse.class);
+        Mockito.verify(id.mMessageManager, Mockito.times(1)).setUserAttributes(response.capture(), eq(false));
+        assertEquals(1, response.getValue().attributeSingles.size());
+        assertEquals("second", response.getValue().attributeSingles.get("name"));
+        assertEquals(Arrays.asList("1", "2"), response.getValue().attributeLists.get("colors"));
+        assertEquals(Arrays.asList("tag", "old"), response.getValue().attributeRemovals);
+        assertEquals(defaultMpId.longValue(), response.getValue().mpId);
+        Mockito.verify(mp.getKitManager(), Mockito.times(1)).updateUserAttributes(response.getValue().attributeSingles, response.getValue().attributeLists, response.getValue().attributeRemovals);
+        Mockito.verify(id.mMessageManager, Mockito.never()).setUserAttribute(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.anyBoolean());
+        Mockito.verify(mp.getKitManager(), Mockito.never()).setUserAttribute(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testEditUserAttributesIgnoresKeyCase() throws Exception {
+        Session session = Mockito.mock(Session.class);
+        Mockito.when(session.checkEventLimit()).thenReturn(true);
+        Mockito.when(mp.getAppStateManager().getSession()).thenReturn(session);
+        Mockito.when(id.mConfigManager.isEnabled()).thenReturn(true);
+
+        assertTrue(id.getCurrentUser().editUserAttributes()
+                .setUserAttribute("Name", "first")
+                .setUserAttribute("name", "second")
+                .setUserTag("tag")
+                .removeUserAttribute("TAG")
+                .removeUserAttribute("old")
+                .setUserAttribute("OLD", "new")
+                .commit());
+
+        ArgumentCaptor<UserAttributeResponse> response = ArgumentCaptor.forClass(UserAttributeResponse.class);
+        Mockito.verify(id.mMessageManager, Mockito.times(1)).setUserAttributes(response.capture(), eq(false));
+        assertEquals(2, response.getValue().attributeSingles.size());
+        assertEquals("second", response.getValue().attributeSingles.get("name"));
+        assertEquals("new", response.getValue().attributeSingles.get("OLD"));
+        assertEquals(Arrays.asList("TAG"), response.getValue().attributeRemovals);
+    }
+
     @Test
     public void testGetAllUserAttributes1() throws Exception {
         UserAttributeListener listener = Mockito.mock(UserAttributeListener.class);
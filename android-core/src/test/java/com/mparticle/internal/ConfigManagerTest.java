@@ -524,4 +524,44 @@ public class ConfigManagerTest {
         }
 
     }
+
+    @Test
+    public void testUserIdentityJsonIsACopy() throws Exception {
+        JSONArray identities = new JSONArray();
+        identities.put(new JSONObject("{ \"n\": 7, \"i\": \"email value 1\", \"dfs\": 1473869816521, \"f\": true }"));
+        manager.saveUserIdentityJson(identities);
+        identities.getJSONObject(0).put("i", "changed by caller");
+        JSONArray read = manager.getUserIdentityJson();
+        read.getJSONObject(0).put("f", false);
+        read.put(new JSONObject("{ \"n\": 1, \"i\": \"other\" }"));
+
+        JSONArray readAgain = manager.getUserIdentityJson();
+        assertEquals(1, readAgain.length());
+        assertEquals("email value 1", readAgain.getJSONObject(0).getString("i"));
+        assertTrue(readAgain.getJSONObject(0).getBoolean("f"));
+        assertEquals("email value 1", manager.getUserIdentities(manager.getMpid()).get(MParticle.IdentityType.Email));
+    }
+
+    @Test
+    public void testUserIdentitiesWrittenToStorage() throws Exception {
+        manager.saveUserIdentityJson(new JSONArray());
+        assertEquals(0, manager.getUserIdentities(manager.getMpid()).size());
+        manager.getUserStorage(manager.getMpid()).setUserIdentities("[{ \"n\": 7, \"i\": \"email value 1\" }]");
+        assertEquals("email value 1", manager.getUserIdentities(manager.getMpid()).get(MParticle.IdentityType.Email));
+        //identities that were missing fields are stored again with them
+        assertTrue(new JSONArray(manager.getUserStorage(manager.getMpid()).getUserIdentities()).getJSONObject(0).has("dfs"));
+    }
+
+    @Test
+    public void testCookiesPerMpid() throws Exception {
+        manager.setCookies(new JSONObject("{ \"uid\": { \"c\": \"first\", \"e\": \"2099-01-01\" } }"), 1);
+        manager.setCookies(new JSONObject("{ \"uid\": { \"c\": \"second\", \"e\": \"2099-01-01\" } }"), 2);
+        assertEquals("first", manager.getCookies(1).getJSONObject("uid").getString("c"));
+        assertEquals("second", manager.getCookies(2).getJSONObject("uid").getString("c"));
+
+        manager.getUserStorage(1).setCookies("{ \"uid\": { \"c\": \"third\", \"e\": \"1970-01-01\" }, \"other\": { \"c\": \"fourth\", \"e\": \"2099-01-01\" } }");
+        JSONObject cookies = manager.getCookies(1);
+        assertFalse(cookies.has("uid"));
+        assertEquals("fourth", cookies.getJSONObject("other").getString("c"));
+    }
 }
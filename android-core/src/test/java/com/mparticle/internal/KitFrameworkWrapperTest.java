@@ -7,13 +7,20 @@ import com.mparticle.commerce.CommerceEvent;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -62,8 +69,8 @@ public class KitFrameworkWrapperTest {
         wrapper.logEvent(event);
         wrapper.setUserAttribute("a key", "a value");
         assertEquals(event, wrapper.getEventQueue().peek());
-        assertEquals("a key", wrapper.getAttributeQueue().peek().key);
-        assertEquals("a value", wrapper.getAttributeQueue().peek().value);
+        assertEquals("a key", wrapper.getAttributeQueue().get("a key").key);
+        assertEquals("a value", wrapper.getAttributeQueue().get("a key").value);
         wrapper.disableQueuing();
         assertTrue(wrapper.getKitsLoaded());
         assertNull(wrapper.getEventQueue());
@@ -161,12 +168,12 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getAttributeQueue());
+        assertTrue(wrapper.getAttributeQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         wrapper.queueAttribute("a key", "a value");
-        assertEquals(wrapper.getAttributeQueue().peek().key, "a key");
-        assertEquals(wrapper.getAttributeQueue().peek().value, "a value");
-        assertFalse(wrapper.getAttributeQueue().peek().removal);
+        assertEquals(wrapper.getAttributeQueue().get("a key").key, "a key");
+        assertEquals(wrapper.getAttributeQueue().get("a key").value, "a value");
+        assertFalse(wrapper.getAttributeQueue().get("a key").removal);
     }
 
     @Test
@@ -177,12 +184,12 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getAttributeQueue());
+        assertTrue(wrapper.getAttributeQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         wrapper.queueAttribute("a key", null);
-        assertEquals(wrapper.getAttributeQueue().peek().key, "a key");
-        assertNull(wrapper.getAttributeQueue().peek().value);
-        assertFalse(wrapper.getAttributeQueue().peek().removal);
+        assertEquals(wrapper.getAttributeQueue().get("a key").key, "a key");
+        assertNull(wrapper.getAttributeQueue().get("a key").value);
+        assertFalse(wrapper.getAttributeQueue().get("a key").removal);
     }
 
     @Test
@@ -193,12 +200,12 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getAttributeQueue());
+        assertTrue(wrapper.getAttributeQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         wrapper.queueAttribute("a key", new ArrayList<String>());
-        assertEquals(wrapper.getAttributeQueue().peek().key, "a key");
-        assertEquals(wrapper.getAttributeQueue().peek().value, new ArrayList<String>());
-        assertFalse(wrapper.getAttributeQueue().peek().removal);
+        assertEquals(wrapper.getAttributeQueue().get("a key").key, "a key");
+        assertEquals(wrapper.getAttributeQueue().get("a key").value, new ArrayList<String>());
+        assertFalse(wrapper.getAttributeQueue().get("a key").removal);
     }
 
     @Test
@@ -209,12 +216,12 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getAttributeQueue());
+        assertTrue(wrapper.getAttributeQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         wrapper.queueAttribute("a key");
-        assertEquals(wrapper.getAttributeQueue().peek().key, "a key");
-        assertEquals(wrapper.getAttributeQueue().peek().value, null);
-        assertTrue(wrapper.getAttributeQueue().peek().removal);
+        assertEquals(wrapper.getAttributeQueue().get("a key").key, "a key");
+        assertEquals(wrapper.getAttributeQueue().get("a key").value, null);
+        assertTrue(wrapper.getAttributeQueue().get("a key").removal);
     }
 
     @Test
@@ -225,16 +232,132 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getEventQueue());
+        assertTrue(wrapper.getEventQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         MPEvent event = Mockito.mock(MPEvent.class);
         wrapper.queueEvent(event);
         assertEquals(wrapper.getEventQueue().peek(), event);
 
-        for (int i = 0 ; i < 50; i++) {
+        for (int i = 0 ; i < Constants.KIT_QUEUE_MAX_EVENTS * 2; i++) {
             wrapper.queueEvent(event);
         }
-        assertEquals(10, wrapper.getEventQueue().size());
+        assertEquals(Constants.KIT_QUEUE_MAX_EVENTS, wrapper.getEventQueue().size());
+        assertEquals(Constants.KIT_QUEUE_MAX_EVENTS * KitFrameworkWrapper.getQueuedSize(event), wrapper.getQueuedEventSize());
+    }
+
+    @Test
+    public void testQueueEventSizeLimit() throws Exception {
+        KitFrameworkWrapper wrapper = new KitFrameworkWrapper(Mockito.mock(Context.class),
+                Mockito.mock(ReportingManager.class),
+                Mockito.mock(ConfigManager.class),
+                Mockito.mock(AppStateManager.class),
+                mockBackgroundTaskHandler,
+                true);
+        wrapper.setKitsLoaded(false);
+        Map<String, String> info = new HashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            info.put("key " + i, new String(new char[Constants.LIMIT_ATTR_VALUE]));
+        }
+        MPEvent event = new MPEvent.Builder("large event").info(info).build();
+        int size = KitFrameworkWrapper.getQueuedSize(event);
+        assertTrue(size > 10 * Constants.LIMIT_ATTR_VALUE);
+        for (int i = 0; i < Constants.KIT_QUEUE_MAX_EVENTS; i++) {
+            assertTrue(wrapper.queueEvent(event));
+        }
+        assertEquals(Constants.KIT_QUEUE_MAX_SIZE / size, wrapper.getEventQueue().size());
+        assertEquals(wrapper.getEventQueue().size() * size, wrapper.getQueuedEventSize());
+    }
+
+    @Test
+    public void testQueueAttributeCoalesces() throws Exception {
+        KitFrameworkWrapper wrapper = new KitFrameworkWrapper(Mockito.mock(Context.class),
+                Mockito.mock(ReportingManager.class),
+                Mockito.mock(ConfigManager.class),
+                Mockito.mock(AppStateManager.class),
+                mockBackgroundTaskHandler,
+                true);
+        wrapper.setKitsLoaded(false);
+        wrapper.setUserAttribute("a key", "a value");
+        wrapper.setUserAttribute("another key", "a value");
+        wrapper.removeUserAttribute("a key");
+        wrapper.setUserAttribute("a key", "a new value");
+        assertEquals(2, wrapper.getAttributeQueue().size());
+
+        KitManager mockKitManager = Mockito.mock(KitManager.class);
+        wrapper.setKitManager(mockKitManager);
+        wrapper.replayEvents();
+        Mockito.verify(mockKitManager, Mockito.times(1)).setUserAttribute(Mockito.eq("a key"), Mockito.eq("a new value"));
+        Mockito.verify(mockKitManager, Mockito.times(1)).setUserAttribute(Mockito.eq("another key"), Mockito.eq("a value"));
+        Mockito.verify(mockKitManager, Mockito.times(0)).removeUserAttribute(Mockito.anyString());
+        assertTrue(wrapper.getAttributeQueue().isEmpty());
+    }
+
+    @Test
+    public void testSetAttributeDuringReplay() throws Exception {
+        final KitFrameworkWrapper wrapper = new KitFrameworkWrapper(Mockito.mock(Context.class),
+                Mockito.mock(ReportingManager.class),
+                Mockito.mock(ConfigManager.class),
+                Mockito.mock(AppStateManager.class),
+                mockBackgroundTaskHandler,
+                true);
+        wrapper.setKitsLoaded(false);
+        wrapper.logEvent(new MPEvent.Builder("an event").build());
+        wrapper.setUserAttribute("a key", "1");
+
+        KitManager mockKitManager = Mockito.mock(KitManager.class);
+        wrapper.setKitManager(mockKitManager);
+        final Thread[] setter = new Thread[1];
+        Mockito.doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                //set the attribute again while the queued event is being replayed, before the queued change is
+                setter[0] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        wrapper.setUserAttribute("a key", "2");
+                    }
+                });
+                setter[0].start();
+                setter[0].join(200);
+                return null;
+            }
+        }).when(mockKitManager).logEvent(Mockito.any(MPEvent.class));
+        wrapper.replayAndDisableQueue();
+        setter[0].join();
+
+        InOrder inOrder = Mockito.inOrder(mockKitManager);
+        inOrder.verify(mockKitManager).setUserAttribute("a key", "1");
+        inOrder.verify(mockKitManager).setUserAttribute("a key", "2");
+    }
+
+    @Test
+    public void testUpdateUserAttributes() throws Exception {
+        KitFrameworkWrapper wrapper = new KitFrameworkWrapper(Mockito.mock(Context.class),
+                Mockito.mock(ReportingManager.class),
+                Mockito.mock(ConfigManager.class),
+                Mockito.mock(AppStateManager.class),
+                mockBackgroundTaskHandler,
+                true);
+        KitManager mockKitManager = Mockito.mock(KitManager.class);
+        wrapper.setKitManager(mockKitManager);
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("a key", "a value");
+        Map<String, List<String>> attributeLists = new HashMap<String, List<String>>();
+        attributeLists.put("a list", Arrays.asList("1", "2"));
+        List<String> removals = Arrays.asList("another key");
+
+        wrapper.setKitsLoaded(false);
+        wrapper.updateUserAttributes(attributes, attributeLists, removals);
+        assertEquals(3, wrapper.getAttributeQueue().size());
+        Mockito.verify(mockKitManager, Mockito.times(0)).updateUserAttributes(Mockito.anyMap(), Mockito.anyMap(), Mockito.anyList());
+        wrapper.replayEvents();
+        Mockito.verify(mockKitManager, Mockito.times(1)).setUserAttribute("a key", "a value");
+        Mockito.verify(mockKitManager, Mockito.times(1)).setUserAttributeList("a list", Arrays.asList("1", "2"));
+        Mockito.verify(mockKitManager, Mockito.times(1)).removeUserAttribute("another key");
+
+        wrapper.setKitsLoaded(true);
+        wrapper.updateUserAttributes(attributes, attributeLists, removals);
+        Mockito.verify(mockKitManager, Mockito.times(1)).updateUserAttributes(attributes, attributeLists, removals);
     }
 
     @Test
@@ -245,12 +368,12 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getAttributeQueue());
+        assertTrue(wrapper.getAttributeQueue().isEmpty());
         wrapper.setKitsLoaded(false);
 
         wrapper.setUserAttribute("a key", "a value");
-        assertEquals(wrapper.getAttributeQueue().peek().key, "a key");
-        assertEquals(wrapper.getAttributeQueue().peek().value, "a value");
+        assertEquals(wrapper.getAttributeQueue().get("a key").key, "a key");
+        assertEquals(wrapper.getAttributeQueue().get("a key").value, "a value");
 
         wrapper.setKitsLoaded(true);
         wrapper.setUserAttribute("a key", "a value");
@@ -277,16 +400,16 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getEventQueue());
+        assertTrue(wrapper.getEventQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         MPEvent event = Mockito.mock(MPEvent.class);
         wrapper.logEvent(event);
         assertEquals(wrapper.getEventQueue().peek(), event);
 
-        for (int i = 0 ; i < 50; i++) {
+        for (int i = 0 ; i < Constants.KIT_QUEUE_MAX_EVENTS * 2; i++) {
             wrapper.logEvent(event);
         }
-        assertEquals(10, wrapper.getEventQueue().size());
+        assertEquals(Constants.KIT_QUEUE_MAX_EVENTS, wrapper.getEventQueue().size());
 
         wrapper.setKitsLoaded(true);
 
@@ -315,16 +438,16 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getEventQueue());
+        assertTrue(wrapper.getEventQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         CommerceEvent event = Mockito.mock(CommerceEvent.class);
         wrapper.logCommerceEvent(event);
         assertEquals(wrapper.getEventQueue().peek(), event);
 
-        for (int i = 0 ; i < 50; i++) {
+        for (int i = 0 ; i < Constants.KIT_QUEUE_MAX_EVENTS * 2; i++) {
             wrapper.logCommerceEvent(event);
         }
-        assertEquals(10, wrapper.getEventQueue().size());
+        assertEquals(Constants.KIT_QUEUE_MAX_EVENTS, wrapper.getEventQueue().size());
 
         wrapper.setKitsLoaded(true);
 
@@ -352,17 +475,17 @@ public class KitFrameworkWrapperTest {
                 Mockito.mock(AppStateManager.class),
                 mockBackgroundTaskHandler,
                 true);
-        assertNull(wrapper.getEventQueue());
+        assertTrue(wrapper.getEventQueue().isEmpty());
         wrapper.setKitsLoaded(false);
         MPEvent event = Mockito.mock(MPEvent.class);
         Mockito.when(event.isScreenEvent()).thenReturn(true);
         wrapper.logScreen(event);
         assertEquals(wrapper.getEventQueue().peek(), event);
 
-        for (int i = 0 ; i < 50; i++) {
+        for (int i = 0 ; i < Constants.KIT_QUEUE_MAX_EVENTS * 2; i++) {
             wrapper.logScreen(event);
         }
-        assertEquals(10, wrapper.getEventQueue().size());
+        assertEquals(Constants.KIT_QUEUE_MAX_EVENTS, wrapper.getEventQueue().size());
 
         wrapper.setKitsLoaded(true);
 
@@ -12,6 +12,7 @@ import org.mockito.Mockito;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import static org.junit.Assert.*;
@@ -151,4 +152,34 @@ public class MPUtilityTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMpHash() throws Exception {
+        String[] inputs = {"", "a", "Some Event NAME", "4Search query", "\u00c4\u00d6\u00dc event", "\u0130stanbul", "\u039f\u0394\u039f\u03a3", "0"};
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            for (Locale locale : new Locale[]{Locale.US, new Locale("tr", "TR"), Locale.GERMANY}) {
+                Locale.setDefault(locale);
+                for (String input : inputs) {
+                    assertEquals(expectedMpHash(input), MPUtility.mpHash(input));
+                    assertEquals(expectedMpHash(input), MPUtility.mpHash(new StringBuilder(input)));
+                }
+            }
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+        assertEquals(0, MPUtility.mpHash((String) null));
+        assertEquals(0, MPUtility.mpHash((CharSequence) null));
+    }
+
+    /**
+     * The original implementation of {@link MPUtility#mpHash(String)}, which the hashes in kit configurations are computed with.
+     */
+    private static int expectedMpHash(String input) {
+        int hash = 0;
+        for (char c : input.toLowerCase().toCharArray()) {
+            hash = ((hash << 5) - hash) + c;
+        }
+        return hash;
+    }
+}
@@ -5,6 +5,7 @@ import com.mparticle.commerce.CommerceApi;
 import com.mparticle.mock.MockContext;
 import com.mparticle.mock.MockSharedPreferences;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -55,4 +56,40 @@ public class MessageBatchTest {
         batch = MessageBatch.create( sessionHistory, manager,new JSONObject(), manager.getMpid());
         assertFalse(batch.has("pb"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMessagesSplicedIntoBatch() throws Exception {
+        MParticle mockMp = Mockito.mock(MParticle.class);
+        Mockito.when(mockMp.getEnvironment()).thenReturn(MParticle.Environment.Development);
+        MParticle.setInstance(mockMp);
+        ConfigManager manager = new ConfigManager(new MockContext(), MParticle.Environment.Production, "some api key", "some api secret");
+        MessageBatch batch = MessageBatch.create(true, manager, new JSONObject(), manager.getMpid());
+        JSONObject emptyBatch = new JSONObject(batch.toString());
+        assertFalse(emptyBatch.has("msgs"));
+        assertFalse(emptyBatch.has("sh"));
+        assertEquals(batch.getString("id"), emptyBatch.getString("id"));
+
+        batch.addMessage(new JSONObject().put("dt", "e").put("n", "first").toString());
+        batch.addMessage(new JSONObject().put("dt", "e").put("n", "second \"quoted\"").toString());
+        batch.addSessionHistoryMessage(new JSONObject().put("dt", "ss").toString());
+        JSONObject parsed = new JSONObject(batch.toString());
+        assertEquals(batch.getString("id"), parsed.getString("id"));
+        assertEquals("h", parsed.getString("dt"));
+        JSONArray messages = parsed.getJSONArray("msgs");
+        assertEquals(2, messages.length());
+        assertEquals("first", messages.getJSONObject(0).getString("n"));
+        assertEquals("second \"quoted\"", messages.getJSONObject(1).getString("n"));
+        JSONArray history = parsed.getJSONArray("sh");
+        assertEquals(1, history.length());
+        assertEquals("ss", history.getJSONObject(0).getString("dt"));
+
+        //the messages are visible through the JSONObject accessors as well
+        assertTrue(batch.has("msgs"));
+        assertTrue(batch.has("sh"));
+        assertEquals(2, batch.getJSONArray("msgs").length());
+        assertEquals("second \"quoted\"", batch.optJSONArray("msgs").getJSONObject(1).getString("n"));
+        assertEquals(1, ((JSONArray) batch.get("sh")).length());
+        assertEquals(parsed.length(), batch.length());
+        assertEquals(2, new JSONObject(batch.toString(2)).getJSONArray("msgs").length());
+    }
+}
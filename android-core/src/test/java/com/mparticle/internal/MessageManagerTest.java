@@ -102,6 +102,21 @@ public class MessageManagerTest {
         assertNotNull(stateInfo.getInt(Constants.MessageKey.STATE_INFO_NETWORK_TYPE));
     }
 
+    @Test
+    @PrepareForTest({MessageManager.class, MPUtility.class})
+    public void testGetStateInfoReusesSamples() throws Exception {
+        PowerMockito.mockStatic(MPUtility.class, Answers.RETURNS_MOCKS.get());
+        for (int i = 0; i < 3; i++) {
+            manager.getStateInfo();
+        }
+        PowerMockito.verifyStatic(Mockito.times(1));
+        MPUtility.getAvailableInternalDisk(Mockito.any(android.content.Context.class));
+        PowerMockito.verifyStatic(Mockito.times(1));
+        MPUtility.getAvailableMemory(Mockito.any(android.content.Context.class));
+        PowerMockito.verifyStatic(Mockito.times(1));
+        MPUtility.getOrientation(Mockito.any(android.content.Context.class));
+    }
+
     @Test
     @PrepareForTest({MessageManager.class, MPUtility.class})
     public void testGetTotalMemory() throws Exception {
@@ -212,10 +227,12 @@ public class MessageManagerTest {
         assertEquals("test event name", message.getName());
         assertEquals(message.get(Constants.MessageKey.EVENT_TYPE), MParticle.EventType.Location);
         assertEquals("test screen name", message.getString(Constants.MessageKey.CURRENT_ACTIVITY));
-        assertEquals(1, context.getSharedPreferences("name", 0).getInt(Constants.PrefKeys.EVENT_COUNTER, -1));
+        assertEquals(0, message.getInt(Constants.MessageKey.EVENT_COUNTER));
+        assertEquals(-1, context.getSharedPreferences("name", 0).getInt(Constants.PrefKeys.EVENT_COUNTER, -1));
         for (int i = 0; i < 100; i++){
-            manager.logEvent(event, "test screen name");
+            message = manager.logEvent(event, "test screen name");
         }
+        assertEquals(100, message.getInt(Constants.MessageKey.EVENT_COUNTER));
         JSONObject flags = message.getJSONObject("flags");
         JSONArray flag1 = flags.getJSONArray("flag 1");
         assertEquals(flag1.length(), 2);
@@ -224,10 +241,42 @@ public class MessageManagerTest {
         JSONArray flag2 = flags.getJSONArray("flag 2");
         assertEquals(flag2.length(), 1);
         assertEquals(flag2.get(0), "value 3");
+        assertEquals(100, context.getSharedPreferences("name", 0).getInt(Constants.PrefKeys.EVENT_COUNTER, -1));
+        MessageManager.persistEventCounter();
         assertEquals(101, context.getSharedPreferences("name", 0).getInt(Constants.PrefKeys.EVENT_COUNTER, -1));
+        assertEquals(101, MessageManager.getAndResetEventCounter());
+        assertEquals(0, context.getSharedPreferences("name", 0).getInt(Constants.PrefKeys.EVENT_COUNTER, -1));
         Mockito.verify(messageHandler, Mockito.times(101)).sendMessage(Mockito.any(Message.class));
     }
 
+    @Test
+    public void testLogEventDeferred() throws Exception {
+        appStateManager.getSession().start(context);
+        manager.logEventDeferred(null, "test screen name");
+        Mockito.verify(messageHandler, Mockito.never()).sendMessage(Mockito.any(Message.class));
+        Map<String, String> info = new HashMap<String, String>(1);
+        info.put("test key", "test value");
+        MPEvent event = new MPEvent.Builder("test event name", MParticle.EventType.Location).duration(100).addCustomFlag("flag 1", "value 1").info(info).build();
+        MessageManager.EventRecord record = manager.new EventRecord(event, "test screen name");
+        //changes made to the event after it was logged aren't part of the message
+        event.getInfo().put("test key", "changed value");
+        String sessionId = appStateManager.getSession().mSessionID;
+        long lastEventTime = appStateManager.getSession().mLastEventTime;
+        appStateManager.getSession().mLastEventTime = lastEventTime + 1000;
+
+        BaseMPMessage message = record.toMessage();
+        assertEquals(Constants.MessageType.EVENT, message.getMessageType());
+        assertEquals(sessionId, message.getSessionId());
+        assertEquals(lastEventTime, message.getTimestamp());
+        assertEquals(lastEventTime, message.getLong(Constants.MessageKey.EVENT_START_TIME));
+        assertEquals("test event name", message.getName());
+        assertEquals("test value", message.getJSONObject(Constants.MessageKey.ATTRIBUTES).getString("test key"));
+        assertEquals("value 1", message.getJSONObject("flags").getJSONArray("flag 1").get(0));
+        assertEquals("test screen name", message.getString(Constants.MessageKey.CURRENT_ACTIVITY));
+        assertEquals(0, message.getInt(Constants.MessageKey.EVENT_COUNTER));
+        assertEquals(1, manager.new EventRecord(event, null).toMessage().getInt(Constants.MessageKey.EVENT_COUNTER));
+    }
+
     @Test
     public void testLogCommerceEventWithNullUser() throws Exception {
         MParticle mparticle = Mockito.mock(MParticle.class);
@@ -91,6 +91,11 @@ public class MockKitManager implements KitManager {
 
     }
 
+    @Override
+    public void updateUserAttributes(Map<String, String> userAttributes, Map<String, List<String>> userAttributeLists, List<String> removedKeys) {
+
+    }
+
     @Override
     public void setUserIdentity(String id, MParticle.IdentityType identityType) {
 
@@ -210,4 +215,9 @@ public class MockKitManager implements KitManager {
     public Map<Integer, AttributionResult> getAttributionResults() {
         return new TreeMap<Integer, AttributionResult>();
     }
+
+    @Override
+    public Map<Integer, KitCallStats> getKitCallStats() {
+        return new TreeMap<Integer, KitCallStats>();
+    }
 }
@@ -5,6 +5,7 @@ package com.mparticle.internal;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Looper;
 import android.os.Message;
 
 import com.mparticle.MParticle;
@@ -26,6 +27,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -194,7 +196,7 @@ public class UploadHandlerTest {
     public void testUploadSessionHistory() throws Exception {
         handler.handleMessage(null);
         Cursor mockCursor = Mockito.mock(Cursor.class);
-        Mockito.when(handler.mParticleDBManager.getReadyUploads()).thenReturn(new ArrayList<ReadyUpload>(){{add(new ReadyUpload(123, "cool message batch!"));}});
+        Mockito.when(handler.mParticleDBManager.getReadyUploads(null, Constants.READY_UPLOAD_PAGE_SIZE)).thenReturn(new ArrayList<ReadyUpload>(){{add(new ReadyUpload(123, "cool message batch!"));}});
         MParticleApiClient mockApiClient = Mockito.mock(MParticleApiClient.class);
         handler.setApiClient(mockApiClient);
         Mockito.when(mConfigManager.getIncludeSessionHistory()).thenReturn(true);
@@ -202,4 +204,122 @@ public class UploadHandlerTest {
         handler.upload(true);
         Mockito.verify(mockApiClient).sendMessageBatch(Mockito.eq("cool message batch!"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUploadSessionsConcurrently() throws Exception {
+        final List<ReadyUpload> readyUploads = new ArrayList<ReadyUpload>();
+        for (int i = 0; i < 15; i++) {
+            readyUploads.add(new ReadyUpload(i, "session " + (i % 3) + " batch " + (i / 3), "session " + (i % 3)));
+        }
+        Mockito.when(handler.mParticleDBManager.getReadyUploads(null, Constants.READY_UPLOAD_PAGE_SIZE)).thenReturn(readyUploads);
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        MParticleApiClient mockApiClient = Mockito.mock(MParticleApiClient.class);
+        Mockito.when(mockApiClient.sendMessageBatch(Mockito.anyString())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                sent.add((String) invocation.getArguments()[0]);
+                Thread.sleep(10);
+                return 202;
+            }
+        });
+        handler.setApiClient(mockApiClient);
+        handler.setMaxConcurrentUploads(3);
+        handler.upload(false);
+        assertEquals(15, sent.size());
+        for (ReadyUpload readyUpload : readyUploads) {
+            Mockito.verify(handler.mParticleDBManager).deleteUpload(readyUpload.getId());
+        }
+        //batches of the same session must still be sent in order
+        for (int session = 0; session < 3; session++) {
+            int lastBatch = -1;
+            for (String message : sent) {
+                if (message.startsWith("session " + session + " ")) {
+                    int batch = Integer.parseInt(message.substring(message.lastIndexOf(' ') + 1));
+                    assertTrue(batch > lastBatch);
+                    lastBatch = batch;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThrottleStopsConcurrentUploads() throws Exception {
+        List<ReadyUpload> readyUploads = new ArrayList<ReadyUpload>();
+        for (int i = 0; i < 15; i++) {
+            readyUploads.add(new ReadyUpload(i, "batch " + i, "session " + (i % 3)));
+        }
+        Mockito.when(handler.mParticleDBManager.getReadyUploads(null, Constants.READY_UPLOAD_PAGE_SIZE)).thenReturn(readyUploads);
+        MParticleApiClient mockApiClient = Mockito.mock(MParticleApiClient.class);
+        MParticleApiClientImpl.MPThrottleException throttleException = Mockito.mock(MParticleApiClientImpl.class).new MPThrottleException();
+        Mockito.when(mockApiClient.sendMessageBatch(Mockito.anyString())).thenThrow(throttleException);
+        handler.setApiClient(mockApiClient);
+        handler.setMaxConcurrentUploads(3);
+        handler.upload(false);
+        //at most the first batch of each session may have been attempted
+        Mockito.verify(mockApiClient, Mockito.atMost(3)).sendMessageBatch(Mockito.anyString());
+        Mockito.verify(handler.mParticleDBManager, Mockito.never()).deleteUpload(Mockito.anyInt());
+    }
+
+    @Test
+    public void testUploadPages() throws Exception {
+        final List<ReadyUpload> firstPage = new ArrayList<ReadyUpload>();
+        final List<ReadyUpload> secondPage = new ArrayList<ReadyUpload>();
+        for (int i = 0; i < 4; i++) {
+            firstPage.add(new ReadyUpload(i, "batch " + i, "session", i));
+            secondPage.add(new ReadyUpload(i + 4, "batch " + (i + 4), "session", i + 4));
+        }
+        Mockito.when(handler.mParticleDBManager.getReadyUploads(null, Constants.READY_UPLOAD_PAGE_SIZE)).thenReturn(firstPage);
+        Mockito.when(handler.mParticleDBManager.getReadyUploads(firstPage.get(3), Constants.READY_UPLOAD_PAGE_SIZE)).thenReturn(secondPage);
+        final List<String> sent = new ArrayList<String>();
+        MParticleApiClient mockApiClient = Mockito.mock(MParticleApiClient.class);
+        Mockito.when(mockApiClient.sendMessageBatch(Mockito.anyString())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                sent.add((String) invocation.getArguments()[0]);
+                return 202;
+            }
+        });
+        handler.setApiClient(mockApiClient);
+        handler.upload(false);
+        assertEquals(8, sent.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals("batch " + i, sent.get(i));
+        }
+        Mockito.verify(handler.mParticleDBManager).getReadyUploads(secondPage.get(3), Constants.READY_UPLOAD_PAGE_SIZE);
+    }
+
+    @Test
+    public void testPendingMessageStatsReadOnlyWhenNeeded() throws Exception {
+        Mockito.when(handler.mParticleDBManager.getPendingMessageStats()).thenReturn(new long[]{3, 300});
+        handler.getTriggerUploadDelay();
+        Mockito.verify(handler.mParticleDBManager, Mockito.never()).getPendingMessageStats();
+
+        UploadConditions conditions = handler.getUploadConditions(1000);
+        Mockito.verify(handler.mParticleDBManager, Mockito.never()).getPendingMessageStats();
+        assertEquals(3, conditions.getPendingMessageCount());
+        assertEquals(300, conditions.getPendingMessageBytes());
+        //the stats are reused by later checks
+        assertEquals(3, handler.getUploadConditions(1000).getPendingMessageCount());
+        Mockito.verify(handler.mParticleDBManager, Mockito.times(1)).getPendingMessageStats();
+    }
+
+    @Test
+    public void testSetUploadPolicy() throws Exception {
+        UploadPolicy policy = Mockito.mock(UploadPolicy.class);
+        Mockito.when(policy.getTriggerUploadDelay(Mockito.any(UploadConditions.class))).thenReturn(1234L);
+        handler.setUploadPolicy(policy);
+        assertEquals(1234, handler.getTriggerUploadDelay());
+        handler.setUploadPolicy(null);
+        assertEquals(Constants.TRIGGER_MESSAGE_DELAY, handler.getTriggerUploadDelay());
+    }
+
+    @Test
+    public void testUploadPolicyFromOptions() throws Exception {
+        UploadPolicy policy = Mockito.mock(UploadPolicy.class);
+        Mockito.when(policy.getTriggerUploadDelay(Mockito.any(UploadConditions.class))).thenReturn(1234L);
+        Mockito.when(mConfigManager.getUploadPolicy()).thenReturn(policy);
+        handler = new UploadHandler(new MockContext(), (Looper) null, mConfigManager, Mockito.mock(AppStateManager.class), Mockito.mock(MessageManager.class));
+        handler.mParticleDBManager = Mockito.mock(MParticleDBManager.class);
+        assertEquals(1234, handler.getTriggerUploadDelay());
+    }
+}
@@ -0,0 +1,151 @@
+package com.mparticle.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays event timelines against an {@link UploadPolicy}, the same way {@link UploadHandler} checks it
+ * while a session is active, and reports the number of upload requests against how long messages wait to be
+ * delivered.
+ */
+public class UploadPolicySimulationTest {
+    private static final long UPLOAD_INTERVAL = ConfigManager.DEFAULT_UPLOAD_INTERVAL * 1000;
+    private static final long SESSION_LENGTH = 60 * 60 * 1000;
+    private static final int MESSAGE_BYTES = 400;
+    //the most messages read into a single upload batch
+    private static final int MESSAGES_PER_REQUEST = 100;
+
+    /**
+     * The upload schedule before {@link UploadPolicy}: the configured interval, regardless of conditions.
+     */
+    private static final UploadPolicy FIXED_INTERVAL_POLICY = new UploadPolicy() {
+        @Override
+        public long getNextUploadDelay(UploadConditions conditions) {
+            return conditions.getUploadInterval();
+        }
+
+        @Override
+        public long getTriggerUploadDelay(UploadConditions conditions) {
+            return Constants.TRIGGER_MESSAGE_DELAY;
+        }
+    };
+
+    @Test
+    public void testSimulation() {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        scenarios.add(new Scenario("wifi, an event every 5s", "wifi", every(5000), 1, false));
+        scenarios.add(new Scenario("cellular, an event every minute", "mobile/lte", every(60 * 1000), 1, false));
+        scenarios.add(new Scenario("cellular, a burst then an event every minute", "mobile/lte", burstThenEvery(500, 60 * 1000), 1, false));
+        scenarios.add(new Scenario("cellular, charging, an event every 5s", "mobile/lte", every(5000), 1, true));
+        scenarios.add(new Scenario("cellular, low battery, an event every 5s", "mobile/lte", every(5000), 0.1, false));
+
+        for (Scenario scenario : scenarios) {
+            Result fixed = simulate(scenario, FIXED_INTERVAL_POLICY);
+            Result adaptive = simulate(scenario, new AdaptiveUploadPolicy());
+            assertTrue(scenario.name, fixed.messages == scenario.eventTimes.length && adaptive.messages == scenario.eventTimes.length);
+            if (scenario.networkName.equals("wifi") || scenario.charging) {
+                assertTrue(scenario.name, adaptive.meanLatency() < fixed.meanLatency());
+            } else {
+                assertTrue(scenario.name, adaptive.requests <= fixed.requests);
+            }
+        }
+    }
+
+    private static Result simulate(Scenario scenario, UploadPolicy policy) {
+        Result result = new Result();
+        long checkInterval = Math.min(UPLOAD_INTERVAL, Constants.UPLOAD_CHECK_INTERVAL);
+        long lastUpload = Long.MIN_VALUE / 2;
+        long lastLatency = -1;
+        int delivered = 0;
+        //the handler first checks after the initial upload delay, then on every check interval
+        for (long now = Constants.INITIAL_UPLOAD_DELAY; now < SESSION_LENGTH; now += checkInterval) {
+            int pending = countArrivedBy(scenario.eventTimes, now) - delivered;
+            UploadConditions conditions = new UploadConditions(UPLOAD_INTERVAL, pending, (long) pending * MESSAGE_BYTES,
+                    scenario.networkName, scenario.batteryLevel, scenario.charging, lastLatency);
+            if (now - lastUpload >= policy.getNextUploadDelay(conditions)) {
+                lastUpload = now;
+                if (pending > 0) {
+                    lastLatency = deliver(scenario, result, delivered, pending, now);
+                    delivered += pending;
+                }
+            }
+        }
+        //the rest is uploaded when the session ends
+        deliver(scenario, result, delivered, scenario.eventTimes.length - delivered, SESSION_LENGTH);
+        return result;
+    }
+
+    /**
+     * @return the simulated latency of the upload request
+     */
+    private static long deliver(Scenario scenario, Result result, int first, int count, long now) {
+        if (count <= 0) {
+            return -1;
+        }
+        result.requests += (count + MESSAGES_PER_REQUEST - 1) / MESSAGES_PER_REQUEST;
+        for (int i = first; i < first + count; i++) {
+            long latency = now - scenario.eventTimes[i];
+            result.totalLatency += latency;
+            result.messages++;
+        }
+        return scenario.networkName.equals("wifi") ? 200 : 1000;
+    }
+
+    private static int countArrivedBy(long[] eventTimes, long time) {
+        int count = 0;
+        while (count < eventTimes.length && eventTimes[count] <= time) {
+            count++;
+        }
+        return count;
+    }
+
+    private static long[] every(long period) {
+        long[] times = new long[(int) (SESSION_LENGTH / period)];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i * period;
+        }
+        return times;
+    }
+
+    private static long[] burstThenEvery(int burst, long period) {
+        long[] sparse = every(period);
+        long[] times = new long[burst + sparse.length];
+        for (int i = 0; i < burst; i++) {
+            times[i] = i * 100;
+        }
+        for (int i = 0; i < sparse.length; i++) {
+            times[burst + i] = Math.max(sparse[i], burst * 100);
+        }
+        return times;
+    }
+
+    private static class Scenario {
+        final String name;
+        final String networkName;
+        final long[] eventTimes;
+        final double batteryLevel;
+        final boolean charging;
+
+        Scenario(String name, String networkName, long[] eventTimes, double batteryLevel, boolean charging) {
+            this.name = name;
+            this.networkName = networkName;
+            this.eventTimes = eventTimes;
+            this.batteryLevel = batteryLevel;
+            this.charging = charging;
+        }
+    }
+
+    private static class Result {
+        int requests;
+        int messages;
+        long totalLatency;
+
+        double meanLatency() {
+            return messages == 0 ? 0 : totalLatency / (double) messages;
+        }
+    }
+}
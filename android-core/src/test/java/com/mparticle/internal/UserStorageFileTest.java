@@ -0,0 +1,133 @@
+package com.mparticle.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserStorageFileTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("userStorage", null);
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testValuesAreReadBack() throws Exception {
+        UserStorageFile storage = new UserStorageFile(file, DIRECT);
+        assertTrue(storage.isCreated());
+        storage.addUser(1);
+        storage.put(1, "string", "value");
+        storage.put(1, "int", 5);
+        storage.put(2, "long", Long.MAX_VALUE);
+        storage.put(2, "unicode", "é中");
+        storage.flush();
+
+        UserStorageFile read = new UserStorageFile(file, DIRECT);
+        assertFalse(read.isCreated());
+        assertEquals(2, read.getMpIds().size());
+        assertEquals("value", read.get(1, "string"));
+        assertEquals(5, read.get(1, "int"));
+        assertEquals(Long.MAX_VALUE, read.get(2, "long"));
+        assertEquals("é中", read.get(2, "unicode"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        UserStorageFile storage = new UserStorageFile(file, DIRECT);
+        storage.put(1, "first", "value");
+        storage.put(1, "second", "value");
+        storage.put(2, "first", "value");
+        storage.remove(1, "first");
+        storage.put(1, "second", null);
+        assertTrue(storage.removeUser(2));
+        assertFalse(storage.removeUser(3));
+
+        UserStorageFile read = new UserStorageFile(file, DIRECT);
+        assertEquals(1, read.getMpIds().size());
+        assertTrue(read.getMpIds().contains(1L));
+        assertFalse(read.contains(1, "first"));
+        assertFalse(read.contains(1, "second"));
+        assertNull(read.get(2, "first"));
+    }
+
+    @Test
+    public void testPartialRecordIsDropped() throws Exception {
+        UserStorageFile storage = new UserStorageFile(file, DIRECT);
+        storage.put(1, "first", "value");
+        storage.put(1, "second", "value");
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 3);
+        truncated.close();
+
+        UserStorageFile read = new UserStorageFile(file, DIRECT);
+        assertEquals("value", read.get(1, "first"));
+        assertFalse(read.contains(1, "second"));
+
+        //the partial record has been dropped from the file, so records appended after it can be read
+        read.put(1, "third", "value");
+        read = new UserStorageFile(file, DIRECT);
+        assertEquals("value", read.get(1, "first"));
+        assertEquals("value", read.get(1, "third"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        UserStorageFile storage = new UserStorageFile(file, DIRECT);
+        for (int i = 0; i < UserStorageFile.COMPACT_MIN_RECORDS * 2; i++) {
+            storage.put(1, "counter", i);
+        }
+        //without compaction, the file would have a record for every put
+        assertTrue(file.length() < 1000);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        UserStorageFile read = new UserStorageFile(file, DIRECT);
+        assertEquals(UserStorageFile.COMPACT_MIN_RECORDS * 2 - 1, read.get(1, "counter"));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        UserStorageFile storage = new UserStorageFile(file, DIRECT);
+        storage.put(1, "first", "value");
+        storage.clear();
+        assertTrue(storage.getMpIds().isEmpty());
+        assertTrue(new UserStorageFile(file, DIRECT).getMpIds().isEmpty());
+    }
+
+    @Test
+    public void testCompactAndWait() throws Exception {
+        UserStorageFile storage = new UserStorageFile(file, DIRECT);
+        storage.put(1, "first", "value");
+        assertTrue(storage.compactAndWait());
+        storage.sync();
+        assertEquals("value", new UserStorageFile(file, DIRECT).get(1, "first"));
+
+        //the file can't be replaced if its directory doesn't exist
+        UserStorageFile missing = new UserStorageFile(new File(file.getPath() + ".missing", "userStorage"), DIRECT);
+        missing.put(1, "first", "value");
+        assertFalse(missing.compactAndWait());
+    }
+}
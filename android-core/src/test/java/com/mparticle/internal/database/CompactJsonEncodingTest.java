@@ -0,0 +1,102 @@
+package com.mparticle.internal.database;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactJsonEncodingTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        JSONObject message = new JSONObject()
+                .put("dt", "e")
+                .put("ct", 1514764800000L)
+                .put("sid", "0A1B2C3D-4E5F-6071-8293-A4B5C6D7E8F9")
+                .put("el", 12.5)
+                .put("negative", -42)
+                .put("min", Long.MIN_VALUE)
+                .put("max", Long.MAX_VALUE)
+                .put("yes", true)
+                .put("no", false)
+                .put("nothing", JSONObject.NULL)
+                .put("unicode é中", "quotes \" and \\ and \n and é中😀")
+                .put("attrs", new JSONObject().put("key", "value").put("nested", new JSONObject()))
+                .put("list", new JSONArray().put(1).put("two").put(new JSONArray()).put(new JSONObject().put("n", 3)));
+        String decoded = CompactJsonEncoding.decode(CompactJsonEncoding.encode(message));
+        assertJsonEquals(message, new JSONObject(decoded));
+    }
+
+    @Test
+    public void testLargeNumber() throws Exception {
+        JSONObject message = new JSONObject().put("big", new BigDecimal("12345678901234567890.5"));
+        String decoded = CompactJsonEncoding.decode(CompactJsonEncoding.encode(message));
+        assertEquals("{\"big\":12345678901234567890.5}", decoded);
+    }
+
+    @Test
+    public void testSmallerThanJson() throws Exception {
+        JSONObject message = new JSONObject()
+                .put("dt", "e")
+                .put("id", "7d8f6a3e-1f2b-4c5d-9e8f-0a1b2c3d4e5f")
+                .put("ct", 1514764800000L)
+                .put("sid", "0A1B2C3D-4E5F-6071-8293-A4B5C6D7E8F9")
+                .put("n", "button tapped")
+                .put("et", "Navigation")
+                .put("cs", new JSONObject().put("sma", 1234567890L).put("tsm", 2345678901L).put("bl", 0.75).put("tss", 123456L).put("dct", "wifi").put("so", 1).put("sml", false));
+        assertTrue(CompactJsonEncoding.encode(message).length < message.toString().getBytes("UTF-8").length);
+    }
+
+    @Test
+    public void testInvalidEncoding() throws Exception {
+        byte[] encoded = CompactJsonEncoding.encode(new JSONObject().put("dt", "e").put("n", "name"));
+        assertInvalid(null);
+        assertInvalid(new byte[0]);
+        assertInvalid(new byte[]{2});
+        byte[] truncated = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertInvalid(truncated);
+        byte[] trailing = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, trailing, 0, encoded.length);
+        assertInvalid(trailing);
+    }
+
+    private void assertInvalid(byte[] encoded) {
+        try {
+            CompactJsonEncoding.decode(encoded);
+            fail("Expected an invalid encoding");
+        } catch (JSONException expected) {
+        }
+    }
+
+    private void assertJsonEquals(Object expected, Object actual) throws JSONException {
+        if (expected instanceof JSONObject) {
+            JSONObject expectedObject = (JSONObject) expected;
+            JSONObject actualObject = (JSONObject) actual;
+            assertEquals(expectedObject.length(), actualObject.length());
+            Iterator<?> keys = expectedObject.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                assertJsonEquals(expectedObject.get(key), actualObject.get(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            JSONArray expectedArray = (JSONArray) expected;
+            JSONArray actualArray = (JSONArray) actual;
+            assertEquals(expectedArray.length(), actualArray.length());
+            for (int i = 0; i < expectedArray.length(); i++) {
+                assertJsonEquals(expectedArray.get(i), actualArray.get(i));
+            }
+        } else if (expected instanceof Number) {
+            assertEquals(JSONObject.numberToString((Number) expected), JSONObject.numberToString((Number) actual));
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+}
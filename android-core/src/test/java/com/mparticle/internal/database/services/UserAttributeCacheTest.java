@@ -0,0 +1,119 @@
+package com.mparticle.internal.database.services;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UserAttributeCacheTest {
+
+    @Test
+    public void testSetAttributeReplacesKeyIgnoringCase() throws Exception {
+        UserAttributeCache cache = new UserAttributeCache();
+        cache.put(1, singles("Name", "first"), lists("Colors", "red", "blue"));
+        cache.get(1).getJson();
+
+        cache.setAttribute(1, "name", "second");
+        cache.setAttribute(1, "colors", "none");
+
+        UserAttributeCache.Attributes attributes = cache.get(1);
+        assertEquals(2, attributes.singles.size());
+        assertEquals("second", attributes.singles.get("NAME"));
+        assertEquals("none", attributes.singles.get("Colors"));
+        assertTrue(attributes.lists.isEmpty());
+        JSONObject json = attributes.getJson();
+        assertEquals(2, json.length());
+        assertEquals("second", json.getString("name"));
+        assertEquals("none", json.getString("colors"));
+    }
+
+    @Test
+    public void testReturnedJsonIsNotModified() throws Exception {
+        UserAttributeCache cache = new UserAttributeCache();
+        cache.put(1, singles("name", "first"), lists("colors", "red"));
+        JSONObject json = cache.get(1).getJson();
+
+        cache.setAttributeList(1, "colors", Arrays.asList("green", "blue"));
+        cache.setAttribute(1, "empty", null);
+        cache.removeAttribute(1, "NAME");
+
+        assertEquals(2, json.length());
+        assertEquals("first", json.getString("name"));
+        assertEquals(1, json.getJSONArray("colors").length());
+        JSONObject updated = cache.get(1).getJson();
+        assertNotSame(json, updated);
+        assertEquals(2, updated.length());
+        assertFalse(updated.has("name"));
+        assertEquals(2, updated.getJSONArray("colors").length());
+        assertTrue(updated.isNull("empty"));
+    }
+
+    @Test
+    public void testCopiesAreIndependent() throws Exception {
+        UserAttributeCache cache = new UserAttributeCache();
+        cache.put(1, singles("name", "first"), lists("colors", "red"));
+
+        TreeMap<String, List<String>> lists = cache.get(1).copyLists();
+        lists.get("COLORS").add("blue");
+        cache.get(1).copySingles().clear();
+
+        assertEquals(1, cache.get(1).lists.get("colors").size());
+        assertEquals(1, cache.get(1).singles.size());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        UserAttributeCache cache = new UserAttributeCache();
+        cache.put(1, singles("name", "first"), lists("colors", "red"));
+        cache.put(2, singles("name", "second"), lists("colors", "blue"));
+
+        cache.invalidate(1);
+        assertNull(cache.get(1));
+        assertEquals("second", cache.get(2).singles.get("name"));
+
+        //writes to an MPID that isn't cached are left to the database
+        cache.setAttribute(1, "name", "third");
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testPutIfAbsent() throws Exception {
+        UserAttributeCache cache = new UserAttributeCache();
+        long generation = cache.getGeneration();
+        UserAttributeCache.Attributes attributes = cache.putIfAbsent(1, generation, singles("name", "first"), lists("colors", "red"));
+        assertSame(attributes, cache.get(1));
+
+        //attributes that were cached first are kept
+        assertSame(attributes, cache.putIfAbsent(1, cache.getGeneration(), singles("name", "second"), lists("colors", "blue")));
+        assertEquals("first", cache.get(1).singles.get("name"));
+
+        //attributes read before a write are returned, but not cached
+        generation = cache.getGeneration();
+        cache.setAttribute(2, "name", "third");
+        attributes = cache.putIfAbsent(2, generation, singles("name", "second"), lists("colors", "blue"));
+        assertEquals("second", attributes.singles.get("name"));
+        assertNull(cache.get(2));
+    }
+
+    private static TreeMap<String, String> singles(String key, String value) {
+        TreeMap<String, String> singles = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        singles.put(key, value);
+        return singles;
+    }
+
+    private static TreeMap<String, List<String>> lists(String key, String... values) {
+        TreeMap<String, List<String>> lists = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        lists.put(key, new ArrayList<String>(Arrays.asList(values)));
+        return lists;
+    }
+}
@@ -9,8 +9,8 @@ import com.mparticle.commerce.Promotion;
 import com.mparticle.commerce.TransactionAttributes;
 import com.mparticle.internal.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -31,8 +31,9 @@ public final class CommerceEventUtils {
     }
 
     public static List<MPEvent> expandProductAction(CommerceEvent event) {
-        List<MPEvent> events = new LinkedList<MPEvent>();
         String productAction = event.getProductAction();
+        List<Product> products = event.getProducts();
+        List<MPEvent> events = new ArrayList<MPEvent>(products == null ? 1 : products.size() + 1);
         if (productAction == null) {
             return events;
         }
@@ -47,7 +48,6 @@ public final class CommerceEventUtils {
             extractActionAttributes(event, attributes);
             events.add(plusOne.info(attributes).build());
         }
-        List<Product> products = event.getProducts();
         if (products != null) {
             for (int i = 0; i < products.size(); i++) {
                 MPEvent.Builder itemEvent = new MPEvent.Builder(String.format(ITEM_NAME, productAction), MParticle.EventType.Transaction);
@@ -153,7 +153,7 @@ public final class CommerceEventUtils {
     }
 
     public static List<MPEvent> expandPromotionAction(CommerceEvent event) {
-        List<MPEvent> events = new LinkedList<MPEvent>();
+        List<MPEvent> events = new ArrayList<MPEvent>();
         String promotionAction = event.getPromotionAction();
         if (promotionAction == null) {
             return events;
@@ -192,7 +192,7 @@ public final class CommerceEventUtils {
 
     public static List<MPEvent> expandProductImpression(CommerceEvent event) {
         List<Impression> impressions = event.getImpressions();
-        List<MPEvent> events = new LinkedList<MPEvent>();
+        List<MPEvent> events = new ArrayList<MPEvent>();
         if (impressions == null) {
             return events;
         }
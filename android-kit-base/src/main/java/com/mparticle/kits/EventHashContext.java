@@ -0,0 +1,129 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.commerce.CommerceEvent;
+import com.mparticle.internal.MPUtility;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The filtering hashes of a single event. {@link KitManagerImpl} creates one per event it forwards, and every kit's
+ * {@link KitConfiguration} and custom mappings share it, so each hash is computed at most once per event rather than
+ * once per kit. For a {@link CommerceEvent}, it also holds the expansion of each filtered version of the event into
+ * {@link MPEvent}s, so kits that receive the same filtered event share one expansion.
+ *
+ * Hashes are computed when they are first asked for. This class is thread-safe, since kits that are dispatched to
+ * asynchronously share it across threads.
+ */
+public final class EventHashContext {
+    private final int mEventHash;
+    private final String mTypeString;
+    private final StringBuilder mBuilder;
+    private final int mPrefixLength;
+    private Integer mTypeHash;
+    private Map<String, Integer> mAttributeHashes;
+    private Map<String, Integer> mHashes;
+    private Map<CommerceEvent, List<MPEvent>> mExpandedEvents;
+
+    private EventHashContext(int eventHash, String typeString, String prefix) {
+        mEventHash = eventHash;
+        mTypeString = typeString;
+        mBuilder = new StringBuilder(prefix);
+        mPrefixLength = prefix.length();
+    }
+
+    public static EventHashContext forEvent(MPEvent event) {
+        if (event.getEventType() == null) {
+            String prefix = "0" + event.getEventName();
+            return new EventHashContext(KitUtils.hashForFiltering(prefix), "0", prefix);
+        }
+        String type = Integer.toString(event.getEventType().ordinal());
+        return new EventHashContext(event.getEventHash(), type, type + event.getEventName());
+    }
+
+    /**
+     * Screen views are hashed with an event type of 0.
+     */
+    public static EventHashContext forScreen(String screenName) {
+        String prefix = "0" + screenName;
+        return new EventHashContext(KitUtils.hashForFiltering(prefix), "0", prefix);
+    }
+
+    public static EventHashContext forCommerceEvent(CommerceEvent event) {
+        String type = Integer.toString(CommerceEventUtils.getEventType(event));
+        return new EventHashContext(KitUtils.hashForFiltering(type), type, type);
+    }
+
+    /**
+     * @return the hash of the event type and name, or of the commerce event type
+     */
+    public int getEventHash() {
+        return mEventHash;
+    }
+
+    /**
+     * @return the hash of the event type alone
+     */
+    public synchronized int getTypeHash() {
+        if (mTypeHash == null) {
+            mTypeHash = KitUtils.hashForFiltering(mTypeString);
+        }
+        return mTypeHash;
+    }
+
+    /**
+     * @return the hash of an attribute or field key of this event, prefixed the way filters and custom mappings
+     * expect: with the event type and name for an {@link MPEvent} or screen view, and with the event type for a
+     * {@link CommerceEvent}
+     */
+    public synchronized int getAttributeHash(String key) {
+        if (mAttributeHashes == null) {
+            mAttributeHashes = new HashMap<String, Integer>();
+        }
+        Integer hash = mAttributeHashes.get(key);
+        if (hash == null) {
+            mBuilder.setLength(mPrefixLength);
+            mBuilder.append(key);
+            hash = MPUtility.mpHash(mBuilder);
+            mAttributeHashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * @param filteredEvent the event, or the version of it a kit's filters left
+     * @return the result of {@link CommerceEventUtils#expand(CommerceEvent)}, computed once for each filtered event
+     * instance. The list and its events are shared between kits, and must not be modified, so each kit has to be
+     * given its own copy of the events.
+     */
+    public synchronized List<MPEvent> getExpandedEvents(CommerceEvent filteredEvent) {
+        if (mExpandedEvents == null) {
+            mExpandedEvents = new IdentityHashMap<CommerceEvent, List<MPEvent>>(2);
+        }
+        List<MPEvent> events = mExpandedEvents.get(filteredEvent);
+        if (events == null) {
+            events = Collections.unmodifiableList(CommerceEventUtils.expand(filteredEvent));
+            mExpandedEvents.put(filteredEvent, events);
+        }
+        return events;
+    }
+
+    /**
+     * @return the hash of a key or value without any prefix, as used by attribute value filtering and commerce entity attribute filters
+     */
+    public synchronized int getHash(String value) {
+        if (mHashes == null) {
+            mHashes = new HashMap<String, Integer>();
+        }
+        Integer hash = mHashes.get(value);
+        if (hash == null) {
+            hash = KitUtils.hashForFiltering(value);
+            mHashes.put(value, hash);
+        }
+        return hash;
+    }
+}
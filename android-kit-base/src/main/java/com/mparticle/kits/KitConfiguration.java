@@ -12,6 +12,7 @@ import com.mparticle.commerce.TransactionAttributes;
 import com.mparticle.internal.Logger;
 import com.mparticle.internal.MPUtility;
 import com.mparticle.kits.mappings.CustomMapping;
+import com.mparticle.kits.mappings.CustomMappingIndex;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -69,6 +70,7 @@ public class KitConfiguration {
     private int lowBracket = 0;
     private int highBracket = 101;
     private LinkedList<CustomMapping> customMappingList;
+    private CustomMappingIndex customMappingIndex;
     private CustomMapping defaultCustomMapping = null;
     private CustomMapping defaultScreenCustomMapping = null;
     private CustomMapping defaultCommerceCustomMapping = null;
@@ -212,10 +214,15 @@ public class KitConfiguration {
                 }
             }
         }
+        customMappingIndex = new CustomMappingIndex(customMappingList);
         return this;
     }
 
     boolean shouldIncludeFromAttributeValueFiltering(Map<String, String> attributes) {
+        return shouldIncludeFromAttributeValueFiltering(attributes, null);
+    }
+
+    private boolean shouldIncludeFromAttributeValueFiltering(Map<String, String> attributes, EventHashContext hashes) {
         boolean shouldInclude = true;
         if (avfIsActive) {
             boolean isMatch = false;
@@ -224,10 +231,10 @@ public class KitConfiguration {
                 while (attIterator.hasNext()) {
                     Map.Entry<String, String> entry = attIterator.next();
                     String key = entry.getKey();
-                    int keyHash = KitUtils.hashForFiltering(key);
+                    int keyHash = hashes == null ? KitUtils.hashForFiltering(key) : hashes.getHash(key);
                     if (keyHash == avfHashedAttribute) {
                         String value = entry.getValue();
-                        int valueHash = KitUtils.hashForFiltering(value);
+                        int valueHash = hashes == null ? KitUtils.hashForFiltering(value) : hashes.getHash(value);
                         if (valueHash == avfHashedValue) {
                             isMatch = true;
                         }
@@ -241,110 +248,203 @@ public class KitConfiguration {
     }
 
     protected CommerceEvent filterCommerceEvent(CommerceEvent event) {
-        if (!shouldIncludeFromAttributeValueFiltering(event.getCustomAttributes())) {
+        return filterCommerceEvent(event, EventHashContext.forCommerceEvent(event));
+    }
+
+    /**
+     * @param hashes the hashes of the event, shared by every kit it is forwarded to
+     * @return the event itself if no filter applies to it, which must then be copied before it is given to a kit,
+     * or a filtered copy of it
+     */
+    protected CommerceEvent filterCommerceEvent(CommerceEvent event, EventHashContext hashes) {
+        if (!shouldIncludeFromAttributeValueFiltering(event.getCustomAttributes(), hashes)) {
             return null;
         }
         if (mTypeFilters != null &&
-                !mTypeFilters.get(KitUtils.hashForFiltering(CommerceEventUtils.getEventType(event) + ""), true)) {
+                !mTypeFilters.get(hashes.getTypeHash(), true)) {
             return null;
         }
-        CommerceEvent filteredEvent = new CommerceEvent.Builder(event).build();
-        filteredEvent = filterCommerceEntities(filteredEvent);
-        filteredEvent = filterCommerceEntityAttributes(filteredEvent);
-        filteredEvent = filterCommerceEventAttributes(filteredEvent);
-        return filteredEvent;
+        //each step only copies the event when a filter removes something from it, and otherwise the original is returned
+        boolean removeProducts = !mCommerceEntityFilters.get(ENTITY_PRODUCT, true) && hasProducts(event);
+        boolean removePromotions = !mCommerceEntityFilters.get(ENTITY_PROMOTION, true) && event.getPromotions() != null && !event.getPromotions().isEmpty();
+        CommerceEvent.Builder builder = null;
+        if (removeProducts || removePromotions) {
+            builder = filterCommerceEntities(event, new CommerceEvent.Builder(event), removeProducts, removePromotions);
+        }
+        builder = filterCommerceEntityAttributes(event, builder, removeProducts, removePromotions, hashes);
+        builder = filterCommerceEventAttributes(event, builder, hashes);
+        return builder == null ? event : builder.build();
     }
 
+    private static boolean hasProducts(CommerceEvent event) {
+        if (event.getProducts() != null && !event.getProducts().isEmpty()) {
+            return true;
+        }
+        if (event.getImpressions() != null) {
+            for (Impression impression : event.getImpressions()) {
+                if (impression.getProducts() != null && !impression.getProducts().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-    private CommerceEvent filterCommerceEntityAttributes(CommerceEvent filteredEvent) {
+    /**
+     * @param builder a copy of the event, which is only created once a filter applies to it
+     * @return the builder, or null if the filters did not apply to the event
+     */
+    private CommerceEvent.Builder filterCommerceEntityAttributes(CommerceEvent event, CommerceEvent.Builder builder, boolean productsRemoved, boolean promotionsRemoved, EventHashContext hashes) {
         if (mCommerceEntityAttributeFilters == null || mCommerceEntityAttributeFilters.size() == 0) {
-            return filteredEvent;
+            return builder;
         }
-        CommerceEvent.Builder builder = new CommerceEvent.Builder(filteredEvent);
         for (Map.Entry<Integer, SparseBooleanArray> entry : mCommerceEntityAttributeFilters.entrySet()) {
             int entity = entry.getKey();
             SparseBooleanArray filters = entry.getValue();
             switch (entity) {
                 case ENTITY_PRODUCT:
-                    if (filteredEvent.getProducts() != null && filteredEvent.getProducts().size() > 0) {
-                        List<Product> filteredProducts = new LinkedList<Product>();
-                        for (Product product : filteredEvent.getProducts()) {
-                            Product.Builder productBuilder = new Product.Builder(product);
-                            if (product.getCustomAttributes() != null && product.getCustomAttributes().size() > 0) {
-                                HashMap<String, String> filteredCustomAttributes = new HashMap<String, String>(product.getCustomAttributes().size());
-                                for (Map.Entry<String, String> customAttribute : product.getCustomAttributes().entrySet()) {
-                                    if (filters.get(KitUtils.hashForFiltering(customAttribute.getKey()), true)) {
-                                        filteredCustomAttributes.put(customAttribute.getKey(), customAttribute.getValue());
-                                    }
-                                }
-                                productBuilder.customAttributes(filteredCustomAttributes);
+                    List<Product> products = event.getProducts();
+                    if (!productsRemoved && products != null && products.size() > 0) {
+                        List<Product> filteredProducts = null;
+                        for (int i = 0; i < products.size(); i++) {
+                            Product product = products.get(i);
+                            if (filteredProducts == null && isProductFiltered(product, filters, hashes)) {
+                                filteredProducts = new LinkedList<Product>(products.subList(0, i));
                             }
-                            if (!MPUtility.isEmpty(product.getCouponCode()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PRODUCT_COUPON_CODE), true)) {
-                                productBuilder.couponCode(product.getCouponCode());
-                            } else {
-                                productBuilder.couponCode(null);
+                            if (filteredProducts != null) {
+                                filteredProducts.add(filterProduct(product, filters, hashes));
                             }
-                            if (product.getPosition() != null && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PRODUCT_POSITION), true)) {
-                                productBuilder.position(product.getPosition());
-                            } else {
-                                productBuilder.position(null);
-                            }
-                            if (!MPUtility.isEmpty(product.getVariant()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PRODUCT_VARIANT), true)) {
-                                productBuilder.variant(product.getVariant());
-                            } else {
-                                productBuilder.variant(null);
-                            }
-                            if (!MPUtility.isEmpty(product.getCategory()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PRODUCT_CATEGORY), true)) {
-                                productBuilder.category(product.getCategory());
-                            } else {
-                                productBuilder.category(null);
-                            }
-                            if (!MPUtility.isEmpty(product.getBrand()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PRODUCT_BRAND), true)) {
-                                productBuilder.brand(product.getBrand());
-                            } else {
-                                productBuilder.brand(null);
-                            }
-                            filteredProducts.add(productBuilder.build());
                         }
-                        builder.products(filteredProducts);
+                        if (filteredProducts != null) {
+                            builder = builder == null ? new CommerceEvent.Builder(event) : builder;
+                            builder.products(filteredProducts);
+                        }
                     }
                     break;
                 case ENTITY_PROMOTION:
-                    if (filteredEvent.getPromotions() != null && filteredEvent.getPromotions().size() > 0) {
-                        List<Promotion> filteredPromotions = new LinkedList<Promotion>();
-                        for (Promotion promotion : filteredEvent.getPromotions()) {
-                            Promotion filteredPromotion = new Promotion();
-                            if (!MPUtility.isEmpty(promotion.getId()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PROMOTION_ID), true)) {
-                                filteredPromotion.setId(promotion.getId());
+                    List<Promotion> promotions = event.getPromotions();
+                    if (!promotionsRemoved && promotions != null && promotions.size() > 0) {
+                        List<Promotion> filteredPromotions = null;
+                        for (int i = 0; i < promotions.size(); i++) {
+                            Promotion promotion = promotions.get(i);
+                            if (filteredPromotions == null && isPromotionFiltered(promotion, filters, hashes)) {
+                                filteredPromotions = new LinkedList<Promotion>(promotions.subList(0, i));
                             }
-                            if (!MPUtility.isEmpty(promotion.getCreative()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PROMOTION_CREATIVE), true)) {
-                                filteredPromotion.setCreative(promotion.getCreative());
+                            if (filteredPromotions != null) {
+                                filteredPromotions.add(filterPromotion(promotion, filters, hashes));
                             }
-                            if (!MPUtility.isEmpty(promotion.getName()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PROMOTION_NAME), true)) {
-                                filteredPromotion.setName(promotion.getName());
-                            }
-                            if (!MPUtility.isEmpty(promotion.getPosition()) && filters.get(KitUtils.hashForFiltering(CommerceEventUtils.Constants.ATT_PROMOTION_POSITION), true)) {
-                                filteredPromotion.setPosition(promotion.getPosition());
-                            }
-                            filteredPromotions.add(filteredPromotion);
                         }
-                        builder.promotions(filteredPromotions);
+                        if (filteredPromotions != null) {
+                            builder = builder == null ? new CommerceEvent.Builder(event) : builder;
+                            builder.promotions(filteredPromotions);
+                        }
                     }
-
                     break;
             }
         }
-        return builder.build();
+        return builder;
+    }
+
+    private static boolean isFiltered(SparseBooleanArray filters, EventHashContext hashes, String key) {
+        return !filters.get(hashes.getHash(key), true);
+    }
+
+    private static boolean isProductFiltered(Product product, SparseBooleanArray filters, EventHashContext hashes) {
+        if (product.getCustomAttributes() != null) {
+            for (String key : product.getCustomAttributes().keySet()) {
+                if (isFiltered(filters, hashes, key)) {
+                    return true;
+                }
+            }
+        }
+        return (!MPUtility.isEmpty(product.getCouponCode()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_COUPON_CODE))
+                || (product.getPosition() != null && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_POSITION))
+                || (!MPUtility.isEmpty(product.getVariant()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_VARIANT))
+                || (!MPUtility.isEmpty(product.getCategory()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_CATEGORY))
+                || (!MPUtility.isEmpty(product.getBrand()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_BRAND));
+    }
+
+    private static Product filterProduct(Product product, SparseBooleanArray filters, EventHashContext hashes) {
+        if (!isProductFiltered(product, filters, hashes)) {
+            return product;
+        }
+        Product.Builder productBuilder = new Product.Builder(product);
+        if (product.getCustomAttributes() != null && product.getCustomAttributes().size() > 0) {
+            HashMap<String, String> filteredCustomAttributes = new HashMap<String, String>(product.getCustomAttributes().size());
+            for (Map.Entry<String, String> customAttribute : product.getCustomAttributes().entrySet()) {
+                if (!isFiltered(filters, hashes, customAttribute.getKey())) {
+                    filteredCustomAttributes.put(customAttribute.getKey(), customAttribute.getValue());
+                }
+            }
+            productBuilder.customAttributes(filteredCustomAttributes);
+        }
+        if (isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_COUPON_CODE)) {
+            productBuilder.couponCode(null);
+        }
+        if (isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_POSITION)) {
+            productBuilder.position(null);
+        }
+        if (isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_VARIANT)) {
+            productBuilder.variant(null);
+        }
+        if (isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_CATEGORY)) {
+            productBuilder.category(null);
+        }
+        if (isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PRODUCT_BRAND)) {
+            productBuilder.brand(null);
+        }
+        return productBuilder.build();
+    }
+
+    private static boolean isPromotionFiltered(Promotion promotion, SparseBooleanArray filters, EventHashContext hashes) {
+        return (!MPUtility.isEmpty(promotion.getId()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_ID))
+                || (!MPUtility.isEmpty(promotion.getCreative()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_CREATIVE))
+                || (!MPUtility.isEmpty(promotion.getName()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_NAME))
+                || (!MPUtility.isEmpty(promotion.getPosition()) && isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_POSITION));
+    }
+
+    private static Promotion filterPromotion(Promotion promotion, SparseBooleanArray filters, EventHashContext hashes) {
+        if (!isPromotionFiltered(promotion, filters, hashes)) {
+            return promotion;
+        }
+        Promotion filteredPromotion = new Promotion();
+        if (!MPUtility.isEmpty(promotion.getId()) && !isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_ID)) {
+            filteredPromotion.setId(promotion.getId());
+        }
+        if (!MPUtility.isEmpty(promotion.getCreative()) && !isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_CREATIVE)) {
+            filteredPromotion.setCreative(promotion.getCreative());
+        }
+        if (!MPUtility.isEmpty(promotion.getName()) && !isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_NAME)) {
+            filteredPromotion.setName(promotion.getName());
+        }
+        if (!MPUtility.isEmpty(promotion.getPosition()) && !isFiltered(filters, hashes, CommerceEventUtils.Constants.ATT_PROMOTION_POSITION)) {
+            filteredPromotion.setPosition(promotion.getPosition());
+        }
+        return filteredPromotion;
     }
 
     public final Map<String, String> filterEventAttributes(MPEvent event) {
         return filterEventAttributes(event.getEventType(), event.getEventName(), mAttributeFilters, event.getInfo());
     }
 
+    /**
+     * @param hashes the hashes of the event, shared by every kit it is forwarded to
+     */
+    public final Map<String, String> filterEventAttributes(MPEvent event, EventHashContext hashes) {
+        return filterEventAttributes(hashes, mAttributeFilters, event.getInfo());
+    }
+
     public final Map<String, String> filterScreenAttributes(MParticle.EventType eventType, String eventName, Map<String, String> eventAttributes) {
         return filterEventAttributes(eventType, eventName, mScreenNameFilters, eventAttributes);
     }
 
+    /**
+     * @param hashes the hashes of the screen view, shared by every kit it is forwarded to
+     */
+    public final Map<String, String> filterScreenAttributes(Map<String, String> eventAttributes, EventHashContext hashes) {
+        return filterEventAttributes(hashes, mScreenNameFilters, eventAttributes);
+    }
+
     public final Map<String, String> filterEventAttributes(MParticle.EventType eventType, String eventName, SparseBooleanArray filter, Map<String, String> eventAttributes) {
         if (eventAttributes != null && eventAttributes.size() > 0 && filter != null && filter.size() > 0) {
             String eventTypeStr = "0";
@@ -367,17 +467,24 @@ public class KitConfiguration {
         }
     }
 
-    private CommerceEvent filterCommerceEntities(CommerceEvent filteredEvent) {
-        if (mCommerceEntityFilters == null || mCommerceEntityFilters.size() == 0) {
-            return filteredEvent;
+    private Map<String, String> filterEventAttributes(EventHashContext hashes, SparseBooleanArray filter, Map<String, String> eventAttributes) {
+        if (eventAttributes != null && eventAttributes.size() > 0 && filter != null && filter.size() > 0) {
+            Map<String, String> newAttributes = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : eventAttributes.entrySet()) {
+                if (filter.get(hashes.getAttributeHash(entry.getKey()), true)) {
+                    newAttributes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return newAttributes;
+        } else {
+            return eventAttributes;
         }
-        CommerceEvent.Builder builder = new CommerceEvent.Builder(filteredEvent);
+    }
 
-        boolean removeProducts = !mCommerceEntityFilters.get(ENTITY_PRODUCT, true);
-        boolean removePromotions = !mCommerceEntityFilters.get(ENTITY_PROMOTION, true);
+    private CommerceEvent.Builder filterCommerceEntities(CommerceEvent event, CommerceEvent.Builder builder, boolean removeProducts, boolean removePromotions) {
         if (removeProducts) {
             builder.products(new LinkedList<Product>());
-            List<Impression> impressionList = filteredEvent.getImpressions();
+            List<Impression> impressionList = event.getImpressions();
             if (impressionList != null) {
                 builder.impressions(null);
                 for (Impression impression : impressionList) {
@@ -388,7 +495,7 @@ public class KitConfiguration {
         if (removePromotions) {
             builder.promotions(new LinkedList<Promotion>());
         }
-        return builder.build();
+        return builder;
     }
 
     public static final Map<String, ?> filterAttributes(SparseBooleanArray attributeFilters, Map<String, ?> attributes) {
@@ -411,66 +518,76 @@ public class KitConfiguration {
         return attributeFilters.get(hash, true);
     }
 
-    private CommerceEvent filterCommerceEventAttributes(CommerceEvent filteredEvent) {
-        String eventType = Integer.toString(CommerceEventUtils.getEventType(filteredEvent));
+    private CommerceEvent.Builder filterCommerceEventAttributes(CommerceEvent event, CommerceEvent.Builder builder, EventHashContext hashes) {
         if (mCommerceAttributeFilters == null || mCommerceAttributeFilters.size() == 0) {
-            return filteredEvent;
+            return builder;
         }
-        CommerceEvent.Builder builder = new CommerceEvent.Builder(filteredEvent);
-        Map<String, String> customAttributes = filteredEvent.getCustomAttributes();
+        Map<String, String> customAttributes = event.getCustomAttributes();
         if (customAttributes != null) {
-            Map<String, String> filteredCustomAttributes = new HashMap<String, String>(customAttributes.size());
-            for (Map.Entry<String, String> entry : customAttributes.entrySet()) {
-                if (mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + entry.getKey()), true)) {
-                    filteredCustomAttributes.put(entry.getKey(), entry.getValue());
-                }
+            Map<String, String> filteredCustomAttributes = filterEventAttributes(hashes, mCommerceAttributeFilters, customAttributes);
+            if (filteredCustomAttributes.size() < customAttributes.size()) {
+                builder = builder == null ? new CommerceEvent.Builder(event) : builder;
+                builder.customAttributes(filteredCustomAttributes);
             }
-            builder.customAttributes(filteredCustomAttributes);
         }
 
-        if (filteredEvent.getCheckoutStep() != null &&
-                !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_ACTION_CHECKOUT_STEP), true)) {
+        if (event.getCheckoutStep() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_ACTION_CHECKOUT_STEP)) {
+            builder = builder == null ? new CommerceEvent.Builder(event) : builder;
             builder.checkoutStep(null);
         }
-        if (filteredEvent.getCheckoutOptions() != null &&
-                !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_ACTION_CHECKOUT_OPTIONS), true)) {
+        if (event.getCheckoutOptions() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_ACTION_CHECKOUT_OPTIONS)) {
+            builder = builder == null ? new CommerceEvent.Builder(event) : builder;
             builder.checkoutOptions(null);
         }
-        TransactionAttributes attributes = filteredEvent.getTransactionAttributes();
+        TransactionAttributes attributes = event.getTransactionAttributes();
         if (attributes != null) {
-            if (attributes.getCouponCode() != null &&
-                    !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_TRANSACTION_COUPON_CODE), true)) {
-                attributes.setCouponCode(null);
-            }
-            if (attributes.getShipping() != null &&
-                    !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_SHIPPING), true)) {
-                attributes.setShipping(null);
-            }
-            if (attributes.getTax() != null &&
-                    !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_TAX), true)) {
-                attributes.setTax(null);
-            }
-            if (attributes.getRevenue() != null &&
-                    !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_TOTAL), true)) {
-                attributes.setRevenue(0.0);
-            }
-            if (attributes.getId() != null &&
-                    !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_TRANSACTION_ID), true)) {
-                attributes.setId(null);
-            }
-            if (attributes.getAffiliation() != null &&
-                    !mCommerceAttributeFilters.get(KitUtils.hashForFiltering(eventType + CommerceEventUtils.Constants.ATT_AFFILIATION), true)) {
-                attributes.setAffiliation(null);
+            boolean filterCouponCode = attributes.getCouponCode() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_TRANSACTION_COUPON_CODE);
+            boolean filterShipping = attributes.getShipping() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_SHIPPING);
+            boolean filterTax = attributes.getTax() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_TAX);
+            boolean filterRevenue = attributes.getRevenue() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_TOTAL);
+            boolean filterId = attributes.getId() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_TRANSACTION_ID);
+            boolean filterAffiliation = attributes.getAffiliation() != null && isAttributeFiltered(hashes, CommerceEventUtils.Constants.ATT_AFFILIATION);
+            if (filterCouponCode || filterShipping || filterTax || filterRevenue || filterId || filterAffiliation) {
+                //the original event's attributes are never modified, since other kits may share it
+                TransactionAttributes filteredAttributes = new TransactionAttributes(attributes);
+                if (filterCouponCode) {
+                    filteredAttributes.setCouponCode(null);
+                }
+                if (filterShipping) {
+                    filteredAttributes.setShipping(null);
+                }
+                if (filterTax) {
+                    filteredAttributes.setTax(null);
+                }
+                if (filterRevenue) {
+                    filteredAttributes.setRevenue(0.0);
+                }
+                if (filterId) {
+                    filteredAttributes.setId(null);
+                }
+                if (filterAffiliation) {
+                    filteredAttributes.setAffiliation(null);
+                }
+                builder = builder == null ? new CommerceEvent.Builder(event) : builder;
+                builder.transactionAttributes(filteredAttributes);
             }
-            builder.transactionAttributes(attributes);
         }
+        return builder;
+    }
 
-        return builder.build();
+    private boolean isAttributeFiltered(EventHashContext hashes, String key) {
+        return !mCommerceAttributeFilters.get(hashes.getAttributeHash(key), true);
     }
 
     public boolean shouldLogScreen(String screenName) {
-        int nameHash = KitUtils.hashForFiltering("0" + screenName);
-        if (mScreenNameFilters.size() > 0 && !mScreenNameFilters.get(nameHash, true)) {
+        return shouldLogScreen(EventHashContext.forScreen(screenName));
+    }
+
+    /**
+     * @param hashes the hashes of the screen view, shared by every kit it is forwarded to
+     */
+    public boolean shouldLogScreen(EventHashContext hashes) {
+        if (mScreenNameFilters.size() > 0 && !mScreenNameFilters.get(hashes.getEventHash(), true)) {
             return false;
         }
         return true;
@@ -478,11 +595,17 @@ public class KitConfiguration {
 
 
     protected boolean shouldLogEvent(MPEvent event) {
-        if (!shouldIncludeFromAttributeValueFiltering(event.getInfo())) {
+        return shouldLogEvent(event, EventHashContext.forEvent(event));
+    }
+
+    /**
+     * @param hashes the hashes of the event, shared by every kit it is forwarded to
+     */
+    protected boolean shouldLogEvent(MPEvent event, EventHashContext hashes) {
+        if (!shouldIncludeFromAttributeValueFiltering(event.getInfo(), hashes)) {
             return false;
         }
-        int typeHash = KitUtils.hashForFiltering(event.getEventType().ordinal() + "");
-        return mTypeFilters.get(typeHash, true) && mNameFilters.get(event.getEventHash(), true);
+        return mTypeFilters.get(hashes.getTypeHash(), true) && mNameFilters.get(hashes.getEventHash(), true);
     }
 
     public boolean passesBracketing(int userBucket) {
@@ -506,6 +629,13 @@ public class KitConfiguration {
         return customMappingList;
     }
 
+    /**
+     * @return the custom mappings, indexed for {@link CustomMapping#projectEvents(MPEvent, CustomMappingIndex, CustomMapping)}
+     */
+    public final CustomMappingIndex getCustomMappingIndex() {
+        return customMappingIndex;
+    }
+
     public final CustomMapping getDefaultEventProjection() {
         return defaultCustomMapping;
     }
@@ -0,0 +1,439 @@
+package com.mparticle.kits;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.mparticle.MParticleOptions;
+import com.mparticle.internal.KitCallStats;
+import com.mparticle.internal.Logger;
+import com.mparticle.internal.ReportingManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes {@link KitManagerImpl}'s calls into each kit, and logs the {@link ReportingMessage}s the kits return with a
+ * single {@link ReportingManager#logAll(List)} per call.
+ *
+ * By default, kits are called one after another on the calling thread. When asynchronous kit dispatch is enabled,
+ * each kit instead has a bounded serial queue, drained on a small shared pool of background threads, or on the
+ * main thread for kits that {@link KitIntegration#requiresMainThread()}, and for calls made with
+ * {@link #dispatchOnMainThread(Collection, String, KitCall)}. A kit still receives calls in the order they were made,
+ * except as described for coalescing below, but a slow kit only delays itself.
+ *
+ * When a kit's queue coalesces, a call replaces a waiting call with the same coalesce key, and is made in that call's
+ * place. It is then made ahead of any calls that were queued in between, with other keys or none. Barriers keep calls
+ * with a given prefix from moving ahead of them, but calls with other keys may still move ahead of a barrier.
+ *
+ * Every call is timed by the kit's {@link KitMonitor}, which also skips calls to a kit that keeps failing or
+ * running over its latency budget. A {@link StateCall} is never skipped.
+ */
+class KitDispatcher {
+    //background threads shared by all kit queues
+    static final int WORKER_THREADS = 2;
+    //calls made from one kit's queue before its thread is handed to the next kit
+    static final int DRAIN_BATCH_SIZE = 32;
+
+    private final ReportingManager mReportingManager;
+    private final Executor mWorkers;
+    private final Executor mMainThread;
+    private final int mQueueCapacity;
+    private final MParticleOptions.KitQueueOverflow mOverflow;
+    private final ConcurrentHashMap<KitIntegration, KitQueue> mQueues = new ConcurrentHashMap<KitIntegration, KitQueue>();
+    private final ConcurrentHashMap<KitIntegration, KitMonitor> mMonitors = new ConcurrentHashMap<KitIntegration, KitMonitor>();
+    private volatile Thread mUiThread;
+
+    /**
+     * A call into one kit.
+     */
+    interface KitCall {
+        /**
+         * @return the messages to report for the kit, may be null
+         */
+        List<ReportingMessage> call(KitIntegration provider) throws Exception;
+    }
+
+    /**
+     * A call that changes state a kit keeps, such as opting out, logging out, or a user attribute or identity. It is
+     * made even while the kit's calls are being skipped, since the kit would otherwise be left out of sync with the
+     * SDK once it is called again. It doesn't count towards re-enabling the kit.
+     */
+    interface StateCall extends KitCall {
+    }
+
+    static KitDispatcher synchronous(ReportingManager reportingManager) {
+        return new KitDispatcher(reportingManager, null, null, 0, null);
+    }
+
+    static KitDispatcher asynchronous(ReportingManager reportingManager, int queueCapacity, MParticleOptions.KitQueueOverflow overflow) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        Executor mainThread = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mainHandler.post(runnable);
+            }
+        };
+        return new KitDispatcher(reportingManager, Executors.newFixedThreadPool(WORKER_THREADS, new WorkerThreadFactory()), mainThread, queueCapacity, overflow);
+    }
+
+    /**
+     * @param workers the executor that drains kit queues, or null to call kits on the calling thread
+     */
+    KitDispatcher(ReportingManager reportingManager, Executor workers, Executor mainThread, int queueCapacity, MParticleOptions.KitQueueOverflow overflow) {
+        mReportingManager = reportingManager;
+        mWorkers = workers;
+        mMainThread = mainThread;
+        mQueueCapacity = queueCapacity;
+        mOverflow = overflow;
+    }
+
+    boolean isAsynchronous() {
+        return mWorkers != null;
+    }
+
+    /**
+     * Make a call into every kit.
+     *
+     * @param methodName the name to log if the call throws
+     * @param coalesceKey calls with the same key replace each other in a kit's queue, when the queue
+     *                    coalesces. Only calls that supersede each other entirely should share a key. May be null.
+     */
+    void dispatch(Collection<KitIntegration> providers, String methodName, String coalesceKey, KitCall call) {
+        dispatch(providers, methodName, coalesceKey, null, false, call);
+    }
+
+    /**
+     * Make a call into every kit on the main thread, such as an activity lifecycle callback, even if the kit is
+     * otherwise called on a background thread. When kits are called synchronously, it is made on the calling thread.
+     */
+    void dispatchOnMainThread(Collection<KitIntegration> providers, String methodName, KitCall call) {
+        dispatch(providers, methodName, null, null, true, call);
+    }
+
+    /**
+     * Make a call into every kit, that later calls can't be coalesced ahead of. Waiting calls whose coalesce key
+     * starts with the prefix stop coalescing, so a later call with the same key is queued behind this one,
+     * rather than taking the waiting call's place.
+     */
+    void dispatchBarrier(Collection<KitIntegration> providers, String methodName, String coalesceKeyPrefix, KitCall call) {
+        dispatch(providers, methodName, null, coalesceKeyPrefix, false, call);
+    }
+
+    private void dispatch(Collection<KitIntegration> providers, String methodName, String coalesceKey, String barrierPrefix, boolean mainThread, KitCall call) {
+        if (!isAsynchronous()) {
+            boolean onMainThread = Thread.currentThread() == mUiThread;
+            List<ReportingMessage> messages = new ArrayList<ReportingMessage>();
+            for (KitIntegration provider : providers) {
+                List<ReportingMessage> report = callKit(provider, methodName, call, onMainThread);
+                if (report != null) {
+                    messages.addAll(report);
+                }
+            }
+            if (messages.size() > 0) {
+                mReportingManager.logAll(messages);
+            }
+            return;
+        }
+        List<KitIntegration> snapshot = new ArrayList<KitIntegration>(providers);
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        ReportBatch batch = new ReportBatch(snapshot.size());
+        for (KitIntegration provider : snapshot) {
+            getQueue(provider).offer(new Task(methodName, coalesceKey, barrierPrefix, mainThread, call, batch));
+        }
+    }
+
+    /**
+     * Record how long a kit took to start.
+     */
+    void recordStart(KitIntegration provider, long startTimeNanos) {
+        getMonitor(provider).recordStart(startTimeNanos);
+    }
+
+    /**
+     * Set the thread that synchronous calls are counted as main thread time on.
+     */
+    void setMainThread(Thread thread) {
+        mUiThread = thread;
+    }
+
+    /**
+     * Drop any calls still waiting for a kit that is being removed, and its statistics.
+     */
+    void remove(KitIntegration provider) {
+        mMonitors.remove(provider);
+        KitQueue queue = mQueues.remove(provider);
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    private KitQueue getQueue(KitIntegration provider) {
+        KitQueue queue = mQueues.get(provider);
+        if (queue == null) {
+            KitQueue newQueue = new KitQueue(provider, provider.requiresMainThread() ? mMainThread : mWorkers);
+            queue = mQueues.putIfAbsent(provider, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * @return the statistics of each kit that has been called, by kit id
+     */
+    Map<Integer, KitCallStats> getKitCallStats() {
+        Map<Integer, KitCallStats> stats = new TreeMap<Integer, KitCallStats>();
+        for (Map.Entry<KitIntegration, KitMonitor> entry : mMonitors.entrySet()) {
+            KitConfiguration configuration = entry.getKey().getConfiguration();
+            int kitId = configuration == null ? 0 : configuration.getKitId();
+            stats.put(kitId, entry.getValue().getStats(kitId));
+        }
+        return stats;
+    }
+
+    private KitMonitor getMonitor(KitIntegration provider) {
+        KitMonitor monitor = mMonitors.get(provider);
+        if (monitor == null) {
+            KitMonitor newMonitor = new KitMonitor(provider.getName());
+            monitor = mMonitors.putIfAbsent(provider, newMonitor);
+            if (monitor == null) {
+                monitor = newMonitor;
+            }
+        }
+        return monitor;
+    }
+
+    private List<ReportingMessage> callKit(KitIntegration provider, String methodName, KitCall call, boolean onMainThread) {
+        KitMonitor monitor = getMonitor(provider);
+        long start = System.nanoTime();
+        boolean allowed;
+        if (call instanceof StateCall) {
+            //made either way, but only counted towards the circuit while it's closed
+            allowed = !monitor.isOpen();
+        } else if (!monitor.allowCall(start)) {
+            return null;
+        } else {
+            allowed = true;
+        }
+        boolean threw = false;
+        try {
+            return call.call(provider);
+        } catch (Exception e) {
+            threw = true;
+            Logger.warning("Failed to call " + methodName + " for kit: " + provider.getName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            long end = System.nanoTime();
+            monitor.record(end, end - start, threw, onMainThread, allowed);
+        }
+    }
+
+    /**
+     * Collects the reports of every kit for one call, and logs them once the last kit has been called
+     * or its call dropped.
+     */
+    private class ReportBatch {
+        private final AtomicInteger mPending;
+        private final List<ReportingMessage> mMessages = new ArrayList<ReportingMessage>();
+
+        ReportBatch(int kits) {
+            mPending = new AtomicInteger(kits);
+        }
+
+        void complete(List<ReportingMessage> report) {
+            if (report != null && report.size() > 0) {
+                synchronized (mMessages) {
+                    mMessages.addAll(report);
+                }
+            }
+            if (mPending.decrementAndGet() == 0) {
+                synchronized (mMessages) {
+                    if (mMessages.size() > 0) {
+                        mReportingManager.logAll(mMessages);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        String mMethodName;
+        final String mCoalesceKey;
+        final String mBarrierPrefix;
+        final boolean mMainThread;
+        KitCall mCall;
+        ReportBatch mBatch;
+
+        Task(String methodName, String coalesceKey, String barrierPrefix, boolean mainThread, KitCall call, ReportBatch batch) {
+            mMethodName = methodName;
+            mCoalesceKey = coalesceKey;
+            mBarrierPrefix = barrierPrefix;
+            mMainThread = mainThread;
+            mCall = call;
+            mBatch = batch;
+        }
+    }
+
+    private class KitQueue implements Runnable {
+        private final KitIntegration mProvider;
+        private final Executor mExecutor;
+        private final ArrayDeque<Task> mTasks = new ArrayDeque<Task>();
+        private final Map<String, Task> mCoalescing = new HashMap<String, Task>();
+        //the executor the queue is being drained on, while it's scheduled
+        private Executor mRunningOn;
+        private boolean mScheduled = false;
+        private boolean mClosed = false;
+
+        KitQueue(KitIntegration provider, Executor executor) {
+            mProvider = provider;
+            mExecutor = executor;
+        }
+
+        void offer(Task task) {
+            Task dropped = null;
+            boolean closed;
+            boolean schedule = false;
+            synchronized (this) {
+                closed = mClosed;
+                Task pending = task.mCoalesceKey == null ? null : mCoalescing.get(task.mCoalesceKey);
+                if (closed) {
+                    dropped = task;
+                } else if (mOverflow == MParticleOptions.KitQueueOverflow.COALESCE && pending != null) {
+                    //take over the waiting call's place in the queue
+                    dropped = new Task(pending.mMethodName, null, null, pending.mMainThread, pending.mCall, pending.mBatch);
+                    pending.mMethodName = task.mMethodName;
+                    pending.mCall = task.mCall;
+                    pending.mBatch = task.mBatch;
+                } else {
+                    if (mTasks.size() >= mQueueCapacity) {
+                        if (mOverflow == MParticleOptions.KitQueueOverflow.DROP_NEWEST) {
+                            dropped = task;
+                        } else {
+                            dropped = poll();
+                        }
+                    }
+                    if (dropped != task) {
+                        mTasks.add(task);
+                        if (task.mCoalesceKey != null) {
+                            mCoalescing.put(task.mCoalesceKey, task);
+                        }
+                        if (task.mBarrierPrefix != null) {
+                            Iterator<String> keys = mCoalescing.keySet().iterator();
+                            while (keys.hasNext()) {
+                                if (keys.next().startsWith(task.mBarrierPrefix)) {
+                                    keys.remove();
+                                }
+                            }
+                        }
+                        if (!mScheduled) {
+                            mScheduled = true;
+                            mRunningOn = getExecutor(task);
+                            schedule = true;
+                        }
+                    }
+                }
+            }
+            if (dropped != null) {
+                if (!closed) {
+                    Logger.debug("Kit queue full, dropped call to " + dropped.mMethodName + " for kit: " + mProvider.getName());
+                }
+                dropped.mBatch.complete(null);
+            }
+            if (schedule) {
+                mRunningOn.execute(this);
+            }
+        }
+
+        void close() {
+            List<Task> dropped;
+            synchronized (this) {
+                mClosed = true;
+                dropped = new ArrayList<Task>(mTasks);
+                mTasks.clear();
+                mCoalescing.clear();
+            }
+            for (Task task : dropped) {
+                task.mBatch.complete(null);
+            }
+        }
+
+        private Executor getExecutor(Task task) {
+            return task.mMainThread ? mMainThread : mExecutor;
+        }
+
+        /**
+         * Must be called while holding this queue's lock.
+         */
+        private Task poll() {
+            Task task = mTasks.poll();
+            if (task != null && task.mCoalesceKey != null && mCoalescing.get(task.mCoalesceKey) == task) {
+                mCoalescing.remove(task.mCoalesceKey);
+            }
+            return task;
+        }
+
+        @Override
+        public void run() {
+            Executor runningOn;
+            for (int i = 0; i < DRAIN_BATCH_SIZE; i++) {
+                String methodName;
+                KitCall call;
+                ReportBatch batch;
+                synchronized (this) {
+                    Task task = mTasks.peek();
+                    if (task == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    runningOn = mRunningOn;
+                    if (getExecutor(task) != runningOn) {
+                        //hand the rest of the queue over to the thread the next call must be made on
+                        mRunningOn = runningOn = getExecutor(task);
+                        break;
+                    }
+                    poll();
+                    methodName = task.mMethodName;
+                    call = task.mCall;
+                    batch = task.mBatch;
+                }
+                batch.complete(callKit(mProvider, methodName, call, runningOn == mMainThread));
+            }
+            synchronized (this) {
+                runningOn = mRunningOn;
+            }
+            runningOn.execute(this);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "mParticleKitDispatch-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -26,7 +26,7 @@ public abstract class KitIntegration {
 
     private static final String KIT_PREFERENCES_FILE = "mp::kit::";
     private KitManagerImpl kitManager;
-    private KitConfiguration mKitConfiguration;
+    private volatile KitConfiguration mKitConfiguration;
 
     /**
      * Determine if the application is currently in the background. This is derived
@@ -287,6 +287,28 @@ public abstract class KitIntegration {
 
     }
 
+    /**
+     * Kits whose underlying SDK must only be called on the main thread should override this method and return true.
+     * When the app enables asynchronous kit dispatch, calls to these kits are posted to the main thread rather than
+     * made on a background thread.
+     *
+     * @return true if this kit must be called on the main thread
+     */
+    public boolean requiresMainThread() {
+        return false;
+    }
+
+    /**
+     * Kits that must be running as soon as possible after the app starts, for example to attribute the launch, should
+     * override this method and return true. Other kits may be started a little later, when the main thread is idle,
+     * so that starting many kits does not delay the app's first frames.
+     *
+     * @return true if this kit should be started as soon as its configuration is loaded
+     */
+    public boolean requiresEagerStart() {
+        return false;
+    }
+
     /**
      * Queues and groupd network requests on the MParticle Core network handler
      */
@@ -8,6 +8,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
 
 import com.mparticle.AttributionError;
 import com.mparticle.AttributionListener;
@@ -22,6 +23,7 @@ import com.mparticle.identity.MParticleUser;
 import com.mparticle.internal.AppStateManager;
 import com.mparticle.internal.BackgroundTaskHandler;
 import com.mparticle.internal.ConfigManager;
+import com.mparticle.internal.KitCallStats;
 import com.mparticle.internal.KitManager;
 import com.mparticle.internal.Logger;
 import com.mparticle.internal.MPUtility;
@@ -35,6 +37,9 @@ import org.json.JSONObject;
 
 import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -51,15 +56,33 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     private final ConfigManager mConfigManager;
     private final BackgroundTaskHandler mBackgroundTaskHandler;
     KitIntegrationFactory mKitIntegrationFactory;
+    KitDispatcher mKitDispatcher;
 
     private static final String RESERVED_KEY_LTV = "$Amount";
     private static final String METHOD_NAME = "$MethodName";
     private static final String LOG_LTV = "LogLTVIncrease";
+    //coalescing keys, for calls that replace earlier calls with the same key
+    private static final String LOCATION_KEY = "location";
+    private static final String OPT_OUT_KEY = "optOut";
+    private static final String USER_ATTRIBUTE_KEY = "userAttribute:";
+    private static final String USER_IDENTITY_KEY = "userIdentity:";
+    //the longest kits are started for on the main thread before waiting for it to be idle, apart from eager kits
+    static final long KIT_START_BUDGET_NANOS = 8 * 1000 * 1000;
+    //the longest the remaining kits wait for the main thread to be idle before they are started anyway
+    static final long KIT_START_TIMEOUT_MILLIS = 1000;
 
     private Map<Integer, AttributionResult> mAttributionResultsMap = new TreeMap<>();
 
 
     ConcurrentHashMap<Integer, KitIntegration> providers = new ConcurrentHashMap<Integer, KitIntegration>(0);
+    //the configuration each kit was last started or updated with, to skip configurations that have not changed
+    private final ConcurrentHashMap<Integer, String> mKitConfigurationStrings = new ConcurrentHashMap<Integer, String>();
+    //kits created but not yet started, only accessed on the main thread
+    private final List<KitIntegration> mPendingKits = new ArrayList<KitIntegration>();
+    private boolean mStartScheduled = false;
+    private Handler mMainHandler;
+    private PushRegistrationHelper.PushRegistration mPushRegistration;
+    private Intent mMockInstallReferrer;
     private final Context mContext;
 
     public KitManagerImpl(Context context, ReportingManager reportingManager, ConfigManager configManager, AppStateManager appStateManager, BackgroundTaskHandler backgroundTaskHandler) {
@@ -69,6 +92,11 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
         mAppStateManager = appStateManager;
         mBackgroundTaskHandler = backgroundTaskHandler;
         mKitIntegrationFactory = new KitIntegrationFactory();
+        if (configManager.isAsyncKitDispatchEnabled()) {
+            mKitDispatcher = KitDispatcher.asynchronous(reportingManager, configManager.getKitQueueCapacity(), configManager.getKitQueueOverflow());
+        } else {
+            mKitDispatcher = KitDispatcher.synchronous(reportingManager);
+        }
         MParticle.getInstance().Identity().addIdentityStateListener(new IdentityStateListener() {
             @Override
             public void onUserIdentified(MParticleUser user) {
@@ -102,6 +130,26 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
         return mReportingManager;
     }
 
+    private void dispatch(String methodName, KitDispatcher.KitCall call) {
+        dispatch(methodName, null, call);
+    }
+
+    private void dispatch(String methodName, String coalesceKey, KitDispatcher.KitCall call) {
+        mKitDispatcher.dispatch(providers.values(), methodName, coalesceKey, call);
+    }
+
+    /**
+     * ActivityListener callbacks are made on the main thread, like the activity's own, even when kits are otherwise
+     * called asynchronously.
+     */
+    private void dispatchOnMainThread(String methodName, KitDispatcher.KitCall call) {
+        mKitDispatcher.dispatchOnMainThread(providers.values(), methodName, call);
+    }
+
+    private void dispatchBarrier(String methodName, String coalesceKeyPrefix, KitDispatcher.KitCall call) {
+        mKitDispatcher.dispatchBarrier(providers.values(), methodName, coalesceKeyPrefix, call);
+    }
+
     public boolean isBackgrounded() {
         return mAppStateManager.isBackgrounded();
     }
@@ -126,94 +174,96 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
         setIntegrationAttributes(kitIntegration, null);
     }
 
+    /**
+     * Kit configurations are parsed when this is created, on the thread that received them, if they differ from the
+     * configuration the kit is running with at the time. When it runs on the main thread, each configuration is
+     * compared again with the one the kit is running with by then, since earlier updates may have changed it, and is
+     * parsed there if it was not parsed already. Kits are then updated and stopped, and new kits queued to be started.
+     */
     class UpdateKitRunnable implements Runnable {
 
-        private final JSONArray kitConfigs;
+        private final List<Integer> kitIds = new ArrayList<Integer>();
+        private final Map<Integer, String> configurationStrings = new HashMap<Integer, String>();
+        private final Map<Integer, KitConfiguration> parsedConfigurations = new HashMap<Integer, KitConfiguration>();
+        private final PushRegistrationHelper.PushRegistration pushRegistration;
+        private final Intent mockInstallReferrer;
 
         public UpdateKitRunnable(JSONArray kitConfigs) {
             super();
-            this.kitConfigs = kitConfigs;
-        }
-
-        @Override
-        public void run() {
-            PushRegistrationHelper.PushRegistration pushRegistration = PushRegistrationHelper.getLatestPushRegistration(getContext());
-            Intent mockInstallReferrer = ReferrerReceiver.getMockInstallReferrerIntent(MParticle.getInstance().getInstallReferrer());
+            pushRegistration = PushRegistrationHelper.getLatestPushRegistration(getContext());
+            mockInstallReferrer = ReferrerReceiver.getMockInstallReferrerIntent(MParticle.getInstance().getInstallReferrer());
             int currentId = 0;
-            HashSet<Integer> activeIds = new HashSet<Integer>();
             if (kitConfigs != null) {
                 for (int i = 0; i < kitConfigs.length(); i++) {
                     try {
                         JSONObject current = kitConfigs.getJSONObject(i);
                         currentId = current.getInt(KitConfiguration.KEY_ID);
-                        activeIds.add(currentId);
+                        kitIds.add(currentId);
                         if (mKitIntegrationFactory.isSupported(currentId)) {
-                            KitConfiguration configuration = createKitConfiguration(current);
-                            if (providers.containsKey(currentId)) {
-                                providers.get(currentId).setConfiguration(configuration);
-                                providers.get(currentId).onSettingsUpdated(configuration.getSettings());
-                            }else {
-                                KitIntegration provider = mKitIntegrationFactory.createInstance(KitManagerImpl.this, configuration);
-                                providers.put(currentId, provider);
-                                if (provider.isDisabled()) {
-                                    continue;
-                                }
-                                provider.onKitCreate(configuration.getSettings(), getContext());
-                                Logger.debug("OnKitCreate called: " + provider.getName());
-                                if (provider instanceof KitIntegration.ActivityListener) {
-                                    WeakReference<Activity> activityWeakReference = getCurrentActivity();
-                                    if (activityWeakReference != null) {
-                                        Activity activity = activityWeakReference.get();
-                                        if (activity != null) {
-                                            KitIntegration.ActivityListener listener = (KitIntegration.ActivityListener)provider;
-                                            getReportingManager().logAll(
-                                                    listener.onActivityCreated(activity, null)
-                                            );
-                                            getReportingManager().logAll(
-                                                    listener.onActivityStarted(activity)
-                                            );
-                                            getReportingManager().logAll(
-                                                    listener.onActivityResumed(activity)
-                                            );
-                                        }
-                                    }
-                                }
-
-                                Intent intent = new Intent(MParticle.ServiceProviders.BROADCAST_ACTIVE + currentId);
-                                getContext().sendBroadcast(intent);
-
-                                if (provider instanceof KitIntegration.AttributeListener) {
-                                    syncUserIdentities((KitIntegration.AttributeListener) provider, provider.getConfiguration());
-                                }
-
-                                if (mockInstallReferrer != null) {
-                                    provider.setInstallReferrer(mockInstallReferrer);
-                                }
-
-                                if (pushRegistration != null && !MPUtility.isEmpty(pushRegistration.instanceId) && provider instanceof KitIntegration.PushListener) {
-                                    if (((KitIntegration.PushListener) provider).onPushRegistration(pushRegistration.instanceId, pushRegistration.senderId)) {
-                                        ReportingMessage message = ReportingMessage.fromPushRegistrationMessage(provider);
-                                        getReportingManager().log(message);
-                                    }
-                                }
+                            String configurationString = current.toString();
+                            if (!providers.containsKey(currentId) || !configurationString.equals(mKitConfigurationStrings.get(currentId))) {
+                                parsedConfigurations.put(currentId, createKitConfiguration(current));
                             }
-
-
+                            configurationStrings.put(currentId, configurationString);
                         }
-                    } catch (JSONException jse) {
-                        Logger.error("Exception while parsing configuration for id " + currentId + ": " + jse.getMessage());
                     } catch (Exception e) {
-                        Logger.error("Exception while starting kit id " + currentId + ": " + e.getMessage());
+                        Logger.error("Exception while parsing configuration for id " + currentId + ": " + e.getMessage());
                     }
                 }
             }
+        }
 
+        @Override
+        public void run() {
+            //kits are always updated on the main thread
+            mKitDispatcher.setMainThread(Thread.currentThread());
+            mPushRegistration = pushRegistration;
+            mMockInstallReferrer = mockInstallReferrer;
+            HashSet<Integer> activeIds = new HashSet<Integer>(kitIds);
+            for (Integer currentId : kitIds) {
+                try {
+                    String configurationString = configurationStrings.get(currentId);
+                    if (configurationString == null) {
+                        continue;
+                    }
+                    KitIntegration pending = getPendingKit(currentId);
+                    if ((providers.containsKey(currentId) || pending != null) && configurationString.equals(mKitConfigurationStrings.get(currentId))) {
+                        continue;
+                    }
+                    KitConfiguration configuration = parsedConfigurations.get(currentId);
+                    if (configuration == null) {
+                        configuration = createKitConfiguration(new JSONObject(configurationString));
+                    }
+                    mKitConfigurationStrings.put(currentId, configurationString);
+                    if (providers.containsKey(currentId)) {
+                        providers.get(currentId).setConfiguration(configuration);
+                        providers.get(currentId).onSettingsUpdated(configuration.getSettings());
+                    } else if (pending != null) {
+                        pending.setConfiguration(configuration);
+                    } else {
+                        addPendingKit(mKitIntegrationFactory.createInstance(KitManagerImpl.this, configuration));
+                    }
+                } catch (Exception e) {
+                    Logger.error("Exception while starting kit id " + currentId + ": " + e.getMessage());
+                }
+            }
+
+            Iterator<KitIntegration> pendingKits = mPendingKits.iterator();
+            while (pendingKits.hasNext()) {
+                int id = pendingKits.next().getConfiguration().getKitId();
+                if (!activeIds.contains(id)) {
+                    mKitConfigurationStrings.remove(id);
+                    pendingKits.remove();
+                }
+            }
             Iterator<Integer> ids = providers.keySet().iterator();
             while (ids.hasNext()) {
                 Integer id = ids.next();
                 if (!activeIds.contains(id)) {
                     KitIntegration integration = providers.get(id);
+                    mKitConfigurationStrings.remove(id);
                     if (integration != null) {
+                        mKitDispatcher.remove(integration);
                         clearIntegrationAttributes(integration);
                         integration.onKitDestroy();
                         integration.onKitCleanup();
@@ -223,7 +273,158 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
                     getContext().sendBroadcast(intent);
                 }
             }
-            MParticle.getInstance().getKitManager().replayAndDisableQueue();
+            startPendingKits();
+        }
+    }
+
+    private KitIntegration getPendingKit(int kitId) {
+        for (KitIntegration provider : mPendingKits) {
+            if (provider.getConfiguration().getKitId() == kitId) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Kits that {@link KitIntegration#requiresEagerStart()} are started before the rest, otherwise kits are started
+     * in the order of their configurations.
+     */
+    private void addPendingKit(KitIntegration provider) {
+        int index = mPendingKits.size();
+        if (provider.requiresEagerStart()) {
+            while (index > 0 && !mPendingKits.get(index - 1).requiresEagerStart()) {
+                index--;
+            }
+        }
+        mPendingKits.add(index, provider);
+    }
+
+    /**
+     * Start the kits waiting to be started, for up to {@link #KIT_START_BUDGET_NANOS} at a time on the main thread. Kits
+     * that {@link KitIntegration#requiresEagerStart()} are always started right away, the rest continue when the
+     * main thread is next idle, or after {@link #KIT_START_TIMEOUT_MILLIS} if it is kept busy for that long. Events logged before kits were loaded are replayed once every kit has started.
+     */
+    private void startPendingKits() {
+        long deadline = System.nanoTime() + KIT_START_BUDGET_NANOS;
+        while (!mPendingKits.isEmpty()) {
+            KitIntegration provider = mPendingKits.get(0);
+            if (!provider.requiresEagerStart() && System.nanoTime() > deadline) {
+                MessageQueue queue = Looper.myQueue();
+                if (queue != null) {
+                    if (!mStartScheduled) {
+                        mStartScheduled = true;
+                        PendingKitStarter starter = new PendingKitStarter(queue, getMainHandler());
+                        queue.addIdleHandler(starter);
+                        starter.mHandler.postDelayed(starter, KIT_START_TIMEOUT_MILLIS);
+                    }
+                    return;
+                }
+            }
+            mPendingKits.remove(0);
+            try {
+                startKit(provider);
+            } catch (Exception e) {
+                Logger.error("Exception while starting kit id " + provider.getConfiguration().getKitId() + ": " + e.getMessage());
+            }
+        }
+        MParticle.getInstance().getKitManager().replayAndDisableQueue();
+    }
+
+    /**
+     * Need this method so that we can override it during unit tests.
+     */
+    Handler getMainHandler() {
+        if (mMainHandler == null) {
+            mMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mMainHandler;
+    }
+
+    /**
+     * Continues starting pending kits either when the main thread is idle or when the timeout is reached, whichever
+     * happens first, and cancels the other.
+     */
+    private class PendingKitStarter implements Runnable, MessageQueue.IdleHandler {
+        private final MessageQueue mQueue;
+        private final Handler mHandler;
+        private boolean mStarted = false;
+
+        PendingKitStarter(MessageQueue queue, Handler handler) {
+            mQueue = queue;
+            mHandler = handler;
+        }
+
+        @Override
+        public boolean queueIdle() {
+            mHandler.removeCallbacks(this);
+            start();
+            return false;
+        }
+
+        @Override
+        public void run() {
+            mQueue.removeIdleHandler(this);
+            start();
+        }
+
+        private void start() {
+            if (!mStarted) {
+                mStarted = true;
+                mStartScheduled = false;
+                startPendingKits();
+            }
+        }
+    }
+
+    private void startKit(KitIntegration provider) {
+        KitConfiguration configuration = provider.getConfiguration();
+        int currentId = configuration.getKitId();
+        providers.put(currentId, provider);
+        if (provider.isDisabled()) {
+            return;
+        }
+        long start = System.nanoTime();
+        provider.onKitCreate(configuration.getSettings(), getContext());
+        long startTime = System.nanoTime() - start;
+        mKitDispatcher.recordStart(provider, startTime);
+        Logger.debug("OnKitCreate called: " + provider.getName() + ", took " + startTime / 1000000 + "ms");
+        if (provider instanceof KitIntegration.ActivityListener) {
+            WeakReference<Activity> activityWeakReference = getCurrentActivity();
+            if (activityWeakReference != null) {
+                Activity activity = activityWeakReference.get();
+                if (activity != null) {
+                    KitIntegration.ActivityListener listener = (KitIntegration.ActivityListener)provider;
+                    getReportingManager().logAll(
+                            listener.onActivityCreated(activity, null)
+                    );
+                    getReportingManager().logAll(
+                            listener.onActivityStarted(activity)
+                    );
+                    getReportingManager().logAll(
+                            listener.onActivityResumed(activity)
+                    );
+                }
+            }
+        }
+
+        Intent intent = new Intent(MParticle.ServiceProviders.BROADCAST_ACTIVE + currentId);
+        getContext().sendBroadcast(intent);
+
+        if (provider instanceof KitIntegration.AttributeListener) {
+            syncUserIdentities((KitIntegration.AttributeListener) provider, provider.getConfiguration());
+        }
+
+        if (mMockInstallReferrer != null) {
+            provider.setInstallReferrer(mMockInstallReferrer);
+        }
+
+        PushRegistrationHelper.PushRegistration pushRegistration = mPushRegistration;
+        if (pushRegistration != null && !MPUtility.isEmpty(pushRegistration.instanceId) && provider instanceof KitIntegration.PushListener) {
+            if (((KitIntegration.PushListener) provider).onPushRegistration(pushRegistration.instanceId, pushRegistration.senderId)) {
+                ReportingMessage message = ReportingMessage.fromPushRegistrationMessage(provider);
+                getReportingManager().log(message);
+            }
         }
     }
 
@@ -266,30 +467,29 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     //================================================================================
 
     @Override
-    public void setLocation(Location location) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void setLocation(final Location location) {
+        dispatch("setLocation", LOCATION_KEY, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (!provider.isDisabled()) {
                     provider.setLocation(location);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call setLocation for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void logNetworkPerformance(String url, long startTime, String method, long length, long bytesSent, long bytesReceived, String requestString, int responseCode) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void logNetworkPerformance(final String url, final long startTime, final String method, final long length, final long bytesSent, final long bytesReceived, final String requestString, final int responseCode) {
+        dispatch("logNetworkPerformance", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (!provider.isDisabled()) {
-                    List<ReportingMessage> report = provider.logNetworkPerformance(url, startTime, method, length, bytesSent, bytesReceived, requestString, responseCode);
-                    getReportingManager().logAll(report);
+                    return provider.logNetworkPerformance(url, startTime, method, length, bytesSent, bytesReceived, requestString, responseCode);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logNetworkPerformance for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
@@ -304,17 +504,16 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     }
 
     @Override
-    public void setOptOut(boolean optOutStatus) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void setOptOut(final boolean optOutStatus) {
+        dispatch("setOptOut", OPT_OUT_KEY, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (!provider.isDisabled()) {
-                    List<ReportingMessage> messages = provider.setOptOut(optOutStatus);
-                    getReportingManager().logAll(messages);
+                    return provider.setOptOut(optOutStatus);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call setOptOut for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
@@ -327,17 +526,21 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     //================================================================================
 
     @Override
-    public void logCommerceEvent(CommerceEvent event) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void logCommerceEvent(final CommerceEvent event) {
+        final EventHashContext hashes = event == null ? null : EventHashContext.forCommerceEvent(event);
+        dispatch("logCommerceEvent", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
+                KitConfiguration configuration = provider.getConfiguration();
                 if (!provider.isDisabled()) {
-                    CommerceEvent filteredEvent = provider.getConfiguration().filterCommerceEvent(event);
+                    CommerceEvent filteredEvent = configuration.filterCommerceEvent(event, hashes);
                     if (filteredEvent != null) {
                         if (provider instanceof KitIntegration.CommerceListener) {
                             List<CustomMapping.ProjectionResult> projectedEvents = CustomMapping.projectEvents(
                                     filteredEvent,
-                                    provider.getConfiguration().getCustomMappingList(),
-                                    provider.getConfiguration().getDefaultCommerceCustomMapping()
+                                    configuration.getCustomMappingIndex(),
+                                    configuration.getDefaultCommerceCustomMapping(),
+                                    hashes
                             );
                             if (projectedEvents != null && projectedEvents.size() > 0) {
                                 ReportingMessage masterMessage = ReportingMessage.fromEvent(provider, filteredEvent);
@@ -366,37 +569,39 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
                                     }
                                 }
                                 if (forwarded) {
-                                    getReportingManager().log(masterMessage);
+                                    return Collections.singletonList(masterMessage);
                                 }
                             } else {
-                                List<ReportingMessage> reporting = ((KitIntegration.CommerceListener) provider).logEvent(filteredEvent);
+                                //an event the filters left unchanged is shared by every kit, so each gets its own copy
+                                CommerceEvent kitEvent = filteredEvent == event ? new CommerceEvent.Builder(event).build() : filteredEvent;
+                                List<ReportingMessage> reporting = ((KitIntegration.CommerceListener) provider).logEvent(kitEvent);
                                 if (reporting != null && reporting.size() > 0) {
-                                    getReportingManager().log(
+                                    return Collections.singletonList(
                                             ReportingMessage.fromEvent(provider, filteredEvent)
                                     );
                                 }
                             }
                         } else if (provider instanceof KitIntegration.EventListener){
-                            List<MPEvent> events = CommerceEventUtils.expand(filteredEvent);
+                            List<MPEvent> events = hashes.getExpandedEvents(filteredEvent);
                             boolean forwarded = false;
                             if (events != null) {
                                 for (int i = 0; i < events.size(); i++) {
-                                    List<ReportingMessage> reporting = ((KitIntegration.EventListener) provider).logEvent(events.get(i));
+                                    //the expansion is shared by every kit, so each gets its own copy of the events
+                                    List<ReportingMessage> reporting = ((KitIntegration.EventListener) provider).logEvent(new MPEvent(events.get(i)));
                                     forwarded = forwarded || (reporting != null && reporting.size() > 0);
                                 }
                             }
                             if (forwarded) {
-                                getReportingManager().log(
+                                return Collections.singletonList(
                                         ReportingMessage.fromEvent(provider, filteredEvent)
                                 );
                             }
                         }
                     }
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logCommerceEvent for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     //================================================================================
@@ -446,9 +651,10 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     // KitIntegration.AttributeListener forwarding
     //================================================================================
     @Override
-    public void onUserAttributesReceived(Map<String, String> userAttributes, Map<String, List<String>> userAttributeLists) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onUserAttributesReceived(final Map<String, String> userAttributes, final Map<String, List<String>> userAttributeLists) {
+        dispatch("setUserAttributes", new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.AttributeListener && !provider.isDisabled()) {
                     Map<String, String> filteredAttributeSingles = (Map<String, String>)KitConfiguration.filterAttributes(provider.getConfiguration().getUserAttributeFilters(),
                             userAttributes);
@@ -462,10 +668,9 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
                     }
                     ((KitIntegration.AttributeListener)provider).setAllUserAttributes(filteredAttributeSingles, filteredAttributeLists);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call setUserAttributes for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     private void syncUserIdentities(KitIntegration.AttributeListener attributeListener, KitConfiguration configuration) {
@@ -483,25 +688,60 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     }
 
     @Override
-    public void setUserAttribute(String attributeKey, String attributeValue) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void setUserAttribute(final String attributeKey, final String attributeValue) {
+        dispatch("setUserAttributes", USER_ATTRIBUTE_KEY + attributeKey, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 setUserAttribute(provider, attributeKey, attributeValue);
-            } catch (Exception e) {
-                Logger.warning("Failed to call setUserAttributes for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void setUserAttributeList(String attributeKey, List<String> valuesList) {
-        for (KitIntegration provider : providers.values()) {
-            try {
-                setUserAttribute(provider, attributeKey, valuesList);
-            } catch (Exception e) {
-                Logger.warning("Failed to call setUserAttributes for kit: " + provider.getName() + ": " + e.getMessage());
+    public void setUserAttributeList(final String attributeKey, List<String> valuesList) {
+        final List<String> values = mKitDispatcher.isAsynchronous() && valuesList != null ? new ArrayList<String>(valuesList) : valuesList;
+        dispatch("setUserAttributes", USER_ATTRIBUTE_KEY + attributeKey, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
+                setUserAttribute(provider, attributeKey, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void updateUserAttributes(Map<String, String> userAttributes, Map<String, List<String>> userAttributeLists, List<String> removedKeys) {
+        final Map<String, String> singles = userAttributes == null ? new HashMap<String, String>() : new HashMap<String, String>(userAttributes);
+        final Map<String, List<String>> lists = new HashMap<String, List<String>>();
+        if (userAttributeLists != null) {
+            for (Map.Entry<String, List<String>> entry : userAttributeLists.entrySet()) {
+                lists.put(entry.getKey(), mKitDispatcher.isAsynchronous() && entry.getValue() != null ? new ArrayList<String>(entry.getValue()) : entry.getValue());
             }
         }
+        final List<String> removals = removedKeys == null ? new ArrayList<String>() : new ArrayList<String>(removedKeys);
+        if (singles.isEmpty() && lists.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+        //a later change to one of these attributes must not be coalesced ahead of this call
+        dispatchBarrier("setUserAttributes", USER_ATTRIBUTE_KEY, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
+                if (provider instanceof KitIntegration.AttributeListener && !provider.isDisabled()) {
+                    //in the same order as the changes are stored: lists, then singles, then removals
+                    for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+                        setUserAttribute(provider, entry.getKey(), entry.getValue());
+                    }
+                    for (Map.Entry<String, String> entry : singles.entrySet()) {
+                        setUserAttribute(provider, entry.getKey(), entry.getValue());
+                    }
+                    for (String key : removals) {
+                        ((KitIntegration.AttributeListener) provider).removeUserAttribute(key);
+                    }
+                }
+                return null;
+            }
+        });
     }
 
     private void setUserAttribute(KitIntegration provider, String attributeKey, List<String> valueList) {
@@ -525,56 +765,55 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     }
 
     @Override
-    public void removeUserAttribute(String key) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void removeUserAttribute(final String key) {
+        dispatch("removeUserAttribute", USER_ATTRIBUTE_KEY + key, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.AttributeListener && !provider.isDisabled()) {
                     ((KitIntegration.AttributeListener)provider).removeUserAttribute(key);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call removeUserAttribute for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void setUserIdentity(String id, MParticle.IdentityType identityType) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void setUserIdentity(final String id, final MParticle.IdentityType identityType) {
+        dispatch("setUserIdentity", USER_IDENTITY_KEY + identityType, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.AttributeListener && !provider.isDisabled() && provider.getConfiguration().shouldSetIdentity(identityType)) {
                     ((KitIntegration.AttributeListener)provider).setUserIdentity(identityType, id);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call setUserIdentity for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void removeUserIdentity(MParticle.IdentityType identityType) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void removeUserIdentity(final MParticle.IdentityType identityType) {
+        dispatch("removeUserIdentity", USER_IDENTITY_KEY + identityType, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.AttributeListener && !provider.isDisabled()) {
                     ((KitIntegration.AttributeListener)provider).removeUserIdentity(identityType);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call removeUserIdentity for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
     public void logout() {
-        for (KitIntegration provider : providers.values()) {
-            try {
+        dispatch("logout", new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.AttributeListener && !provider.isDisabled()) {
-                    List<ReportingMessage> report = ((KitIntegration.AttributeListener)provider).logout();
-                    getReportingManager().logAll(report);
+                    return ((KitIntegration.AttributeListener)provider).logout();
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logout for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     //================================================================================
@@ -591,18 +830,26 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     }
 
     @Override
-    public void logEvent(MPEvent event) {
-        for (KitIntegration provider : providers.values()) {
-            try {
-                if (provider instanceof KitIntegration.EventListener && !provider.isDisabled() && provider.getConfiguration().shouldLogEvent(event)) {
+    public void logEvent(MPEvent mpEvent) {
+        //kits called asynchronously must not see later changes the app makes to the event
+        final MPEvent event = mKitDispatcher.isAsynchronous() && mpEvent != null ? new MPEvent(mpEvent) : mpEvent;
+        final EventHashContext hashes = event == null ? null : EventHashContext.forEvent(event);
+        dispatch("logEvent", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
+                KitConfiguration configuration = provider.getConfiguration();
+                if (provider instanceof KitIntegration.EventListener && !provider.isDisabled() && configuration.shouldLogEvent(event, hashes)) {
                     MPEvent eventCopy = new MPEvent(event);
                     eventCopy.setInfo(
-                            provider.getConfiguration().filterEventAttributes(eventCopy)
+                            configuration.filterEventAttributes(eventCopy, hashes)
                     );
                     List<CustomMapping.ProjectionResult> projectedEvents = CustomMapping.projectEvents(
                             eventCopy,
-                            provider.getConfiguration().getCustomMappingList(),
-                            provider.getConfiguration().getDefaultEventProjection()
+                            false,
+                            configuration.getCustomMappingIndex(),
+                            configuration.getDefaultEventProjection(),
+                            null,
+                            hashes
                     );
                     List<ReportingMessage> reportingMessages = new LinkedList<ReportingMessage>();
                     if (projectedEvents == null) {
@@ -644,71 +891,72 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
                             reportingMessages.add(masterMessage);
                         }
                     }
-                    getReportingManager().logAll(reportingMessages);
+                    return reportingMessages;
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logEvent for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void leaveBreadcrumb(String breadcrumb) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void leaveBreadcrumb(final String breadcrumb) {
+        dispatch("leaveBreadcrumb", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.EventListener && !provider.isDisabled()) {
-                    List<ReportingMessage> report = ((KitIntegration.EventListener)provider).leaveBreadcrumb(breadcrumb);
-                    getReportingManager().logAll(report);
+                    return ((KitIntegration.EventListener)provider).leaveBreadcrumb(breadcrumb);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call leaveBreadcrumb for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void logError(String message, Map<String, String> eventData) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void logError(final String message, final Map<String, String> eventData) {
+        dispatch("logError", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.EventListener && !provider.isDisabled()) {
-                    List<ReportingMessage> report = ((KitIntegration.EventListener)provider).logError(message, eventData);
-                    getReportingManager().logAll(report);
+                    return ((KitIntegration.EventListener)provider).logError(message, eventData);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logError for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void logException(Exception exception, Map<String, String> eventData, String message) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void logException(final Exception exception, final Map<String, String> eventData, final String message) {
+        dispatch("logException", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.EventListener && !provider.isDisabled()) {
-                    List<ReportingMessage> report = ((KitIntegration.EventListener)provider).logException(exception, eventData, message);
-                    getReportingManager().logAll(report);
+                    return ((KitIntegration.EventListener)provider).logException(exception, eventData, message);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logException for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void logScreen(MPEvent screenEvent) {
-        for (KitIntegration provider : providers.values()) {
-            try {
-                if (provider instanceof KitIntegration.EventListener && !provider.isDisabled() && provider.getConfiguration().shouldLogScreen(screenEvent.getEventName())) {
+    public void logScreen(MPEvent mpEvent) {
+        final MPEvent screenEvent = mKitDispatcher.isAsynchronous() && mpEvent != null ? new MPEvent(mpEvent) : mpEvent;
+        final EventHashContext hashes = screenEvent == null ? null : EventHashContext.forScreen(screenEvent.getEventName());
+        dispatch("logScreen", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
+                KitConfiguration configuration = provider.getConfiguration();
+                if (provider instanceof KitIntegration.EventListener && !provider.isDisabled() && configuration.shouldLogScreen(hashes)) {
                     MPEvent filteredEvent = new MPEvent.Builder(screenEvent)
-                            .info(provider.getConfiguration().filterScreenAttributes(null, screenEvent.getEventName(), screenEvent.getInfo()))
+                            .info(configuration.filterScreenAttributes(screenEvent.getInfo(), hashes))
                             .build();
 
                     List<CustomMapping.ProjectionResult> projectedEvents = CustomMapping.projectEvents(
                             filteredEvent,
                             true,
-                            provider.getConfiguration().getCustomMappingList(),
-                            provider.getConfiguration().getDefaultEventProjection(),
-                            provider.getConfiguration().getDefaultScreenCustomMapping());
+                            configuration.getCustomMappingIndex(),
+                            configuration.getDefaultEventProjection(),
+                            configuration.getDefaultScreenCustomMapping(),
+                            hashes);
                     if (projectedEvents == null) {
                         List<ReportingMessage> report = ((KitIntegration.EventListener) provider).logScreen(filteredEvent.getEventName(), filteredEvent.getInfo());
                         if (report != null && report.size() > 0) {
@@ -717,7 +965,7 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
                                 message.setScreenName(filteredEvent.getEventName());
                             }
                         }
-                        getReportingManager().logAll(report);
+                        return report;
                     } else {
                         ReportingMessage masterMessage = new ReportingMessage(provider,
                                 ReportingMessage.MessageType.SCREEN_VIEW,
@@ -740,14 +988,13 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
                             }
                         }
                         if (forwarded) {
-                            getReportingManager().log(masterMessage);
+                            return Collections.singletonList(masterMessage);
                         }
                     }
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call logScreen for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     //================================================================================
@@ -755,155 +1002,149 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
     //================================================================================
 
     @Override
-    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
+        dispatchOnMainThread("onActivityCreated", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivityCreated(activity, savedInstanceState);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivityCreated(activity, savedInstanceState);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onActivityCreated for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void onActivityStarted(Activity activity) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivityStarted(final Activity activity) {
+        dispatchOnMainThread("onActivityStarted", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivityStarted(activity);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivityStarted(activity);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onActivityStarted for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void onActivityResumed(Activity activity) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivityResumed(final Activity activity) {
+        dispatchOnMainThread("onActivityResumed", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivityResumed(activity);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivityResumed(activity);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onActivityResumed for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void onActivityPaused(Activity activity) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivityPaused(final Activity activity) {
+        dispatchOnMainThread("onResume", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivityPaused(activity);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivityPaused(activity);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onResume for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void onActivityStopped(Activity activity) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivityStopped(final Activity activity) {
+        dispatchOnMainThread("onActivityStopped", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivityStopped(activity);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivityStopped(activity);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onActivityStopped for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivitySaveInstanceState(final Activity activity, final Bundle outState) {
+        dispatchOnMainThread("onActivitySaveInstanceState", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivitySaveInstanceState(activity, outState);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivitySaveInstanceState(activity, outState);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onActivitySaveInstanceState for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
-    public void onActivityDestroyed(Activity activity) {
-        for (KitIntegration provider : providers.values()) {
-            try {
+    public void onActivityDestroyed(final Activity activity) {
+        dispatchOnMainThread("onActivityDestroyed", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ActivityListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.ActivityListener)provider).onActivityDestroyed(activity);
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.ActivityListener)provider).onActivityDestroyed(activity);
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onActivityDestroyed for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
     public void onSessionEnd() {
-        for (KitIntegration provider : providers.values()) {
-            try {
+        dispatch("onSessionEnd", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.SessionListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.SessionListener)provider).onSessionEnd();
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.SessionListener)provider).onSessionEnd();
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onSessionEnd for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
+        });
+        for (KitCallStats stats : getKitCallStats().values()) {
+            Logger.debug("Kit call statistics: " + stats);
         }
     }
 
     @Override
     public void onSessionStart() {
-        for (KitIntegration provider : providers.values()) {
-            try {
+        dispatch("onSessionStart", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.SessionListener && !provider.isDisabled()) {
-                    List<ReportingMessage> reportingMessages = ((KitIntegration.SessionListener)provider).onSessionStart();
-                    getReportingManager().logAll(reportingMessages);
+                    return ((KitIntegration.SessionListener)provider).onSessionStart();
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onSessionStart for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
     public void onApplicationForeground() {
-        for (KitIntegration provider : providers.values()) {
-            try {
+        dispatch("onApplicationForeground", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ApplicationStateListener) {
                     ((KitIntegration.ApplicationStateListener)provider).onApplicationForeground();
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onApplicationForeground for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
     public void onApplicationBackground() {
-        for (KitIntegration provider : providers.values()) {
-            try {
+        dispatch("onApplicationBackground", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (provider instanceof KitIntegration.ApplicationStateListener) {
                     ((KitIntegration.ApplicationStateListener)provider).onApplicationBackground();
                 }
-            } catch (Exception e) {
-                Logger.warning("Failed to call onApplicationBackground for kit: " + provider.getName() + ": " + e.getMessage());
+                return null;
             }
-        }
+        });
     }
 
     @Override
@@ -911,6 +1152,11 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
         return mAttributionResultsMap;
     }
 
+    @Override
+    public Map<Integer, KitCallStats> getKitCallStats() {
+        return mKitDispatcher.getKitCallStats();
+    }
+
     //================================================================================
     // AttributionListener forwarding
     //================================================================================
@@ -936,17 +1182,16 @@ public class KitManagerImpl implements KitManager, AttributionListener, UserAttr
 
     @Override
     public void installReferrerUpdated() {
-        Intent mockIntent = ReferrerReceiver.getMockInstallReferrerIntent(MParticle.getInstance().getInstallReferrer());
-        for (KitIntegration provider: providers.values()) {
-            try {
+        final Intent mockIntent = ReferrerReceiver.getMockInstallReferrerIntent(MParticle.getInstance().getInstallReferrer());
+        dispatch("Install Referrer", new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
                 if (!provider.isDisabled()) {
                     provider.setInstallReferrer(mockIntent);
                 }
+                return null;
             }
-            catch (Exception e) {
-                Logger.warning("Failed to update Install Referrer for kit: " + provider.getName() + ": " + e.getMessage());
-            }
-        }
+        });
     }
 
     public void executeNetworkRequest(Runnable runnable) {
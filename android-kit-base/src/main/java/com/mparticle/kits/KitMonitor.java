@@ -0,0 +1,124 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.KitCallStats;
+import com.mparticle.internal.Logger;
+
+/**
+ * Records the latency and failures of the calls {@link KitDispatcher} makes into one kit, and acts as a circuit
+ * breaker for the kit.
+ *
+ * After {@link #FAILURE_THRESHOLD} calls in a row either throw or take longer than {@link #LATENCY_BUDGET_MICROS},
+ * calls to the kit are skipped for {@link #OPEN_INTERVAL_NANOS}. A single call is then let through: if it succeeds,
+ * the kit is called normally again, otherwise it is skipped for another interval. Calls that change the kit's state are
+ * made even while it is skipped, see {@link KitDispatcher.StateCall}.
+ */
+class KitMonitor {
+    static final long LATENCY_BUDGET_MICROS = 200 * 1000;
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_INTERVAL_NANOS = 60 * 1000 * 1000 * 1000L;
+    //latency histogram, bucket i counts calls that took less than 2^i microseconds
+    private static final int BUCKETS = 32;
+
+    private final String mKitName;
+    private final long[] mLatencyBuckets = new long[BUCKETS];
+    private long mCallCount;
+    private long mErrorCount;
+    private long mSkippedCount;
+    private long mMainThreadMicros;
+    private long mStartMicros;
+    private int mConsecutiveFailures;
+    private boolean mOpen;
+    private long mOpenedAt;
+    private boolean mProbing;
+
+    KitMonitor(String kitName) {
+        mKitName = kitName;
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     * @return false if the call should be skipped
+     */
+    synchronized boolean allowCall(long now) {
+        if (mOpen) {
+            if (mProbing || now - mOpenedAt < OPEN_INTERVAL_NANOS) {
+                mSkippedCount++;
+                return false;
+            }
+            mProbing = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return true while calls to the kit are being skipped
+     */
+    synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    synchronized void record(long now, long latencyNanos, boolean threw, boolean onMainThread) {
+        record(now, latencyNanos, threw, onMainThread, true);
+    }
+
+    /**
+     * @param allowed false for a call that was made even though {@link #allowCall(long)} returned false, which is
+     *                counted but doesn't open or close the circuit
+     */
+    synchronized void record(long now, long latencyNanos, boolean threw, boolean onMainThread, boolean allowed) {
+        long micros = latencyNanos / 1000;
+        mCallCount++;
+        mLatencyBuckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+        if (onMainThread) {
+            mMainThreadMicros += micros;
+        }
+        if (threw) {
+            mErrorCount++;
+        }
+        if (!allowed) {
+            return;
+        }
+        if (threw || micros > LATENCY_BUDGET_MICROS) {
+            mConsecutiveFailures++;
+            if (mProbing || (!mOpen && mConsecutiveFailures >= FAILURE_THRESHOLD)) {
+                if (!mOpen) {
+                    Logger.warning("Disabling kit: " + mKitName + " after " + mConsecutiveFailures + " slow or failed calls in a row.");
+                }
+                mOpen = true;
+                mOpenedAt = now;
+                mProbing = false;
+            }
+        } else {
+            mConsecutiveFailures = 0;
+            if (mOpen) {
+                Logger.info("Re-enabling kit: " + mKitName);
+                mOpen = false;
+                mProbing = false;
+            }
+        }
+    }
+
+    synchronized void recordStart(long startTimeNanos) {
+        mStartMicros = startTimeNanos / 1000;
+    }
+
+    synchronized KitCallStats getStats(int kitId) {
+        return new KitCallStats(kitId, mKitName, mStartMicros, mCallCount, mErrorCount, mSkippedCount,
+                getLatencyPercentile(0.5), getLatencyPercentile(0.99), mMainThreadMicros, mOpen);
+    }
+
+    /**
+     * Must be called while holding this monitor's lock.
+     */
+    private long getLatencyPercentile(double percentile) {
+        long target = (long) Math.ceil(mCallCount * percentile);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mLatencyBuckets[i];
+            if (count >= target && count > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+}
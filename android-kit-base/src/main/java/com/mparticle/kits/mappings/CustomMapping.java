@@ -6,6 +6,7 @@ import com.mparticle.commerce.CommerceEvent;
 import com.mparticle.commerce.Product;
 import com.mparticle.commerce.Promotion;
 import com.mparticle.kits.CommerceEventUtils;
+import com.mparticle.kits.EventHashContext;
 import com.mparticle.internal.MPUtility;
 
 import org.json.JSONArray;
@@ -405,12 +406,39 @@ public class CustomMapping {
         return projectEvents(event, false, customMappingList, defaultCustomMapping, null);
     }
 
+    public static List<CustomMapping.ProjectionResult> projectEvents(MPEvent event, CustomMappingIndex customMappingIndex, CustomMapping defaultCustomMapping) {
+        return projectEvents(event, false, customMappingIndex, defaultCustomMapping, null);
+    }
+
     public static List<CustomMapping.ProjectionResult> projectEvents(CommerceEvent event, List<CustomMapping> customMappingList, CustomMapping defaultCommerceCustomMapping) {
         if (CommerceEventUtils.getEventType(event) == CommerceEventUtils.Constants.EVENT_TYPE_IMPRESSION) {
             return null;
         }
-        List<CustomMapping.ProjectionResult> events = new LinkedList<CustomMapping.ProjectionResult>();
         EventWrapper.CommerceEventWrapper wrapper = new EventWrapper.CommerceEventWrapper(event);
+        return projectEvents(wrapper, customMappingList, defaultCommerceCustomMapping);
+    }
+
+    /**
+     * Same as {@link #projectEvents(CommerceEvent, List, CustomMapping)}, but only the mappings that the index
+     * returns as candidates for the event are checked.
+     */
+    public static List<CustomMapping.ProjectionResult> projectEvents(CommerceEvent event, CustomMappingIndex customMappingIndex, CustomMapping defaultCommerceCustomMapping) {
+        return projectEvents(event, customMappingIndex, defaultCommerceCustomMapping, null);
+    }
+
+    /**
+     * @param hashes the hashes of the event, shared by every kit it is forwarded to, or null to compute them for this call
+     */
+    public static List<CustomMapping.ProjectionResult> projectEvents(CommerceEvent event, CustomMappingIndex customMappingIndex, CustomMapping defaultCommerceCustomMapping, EventHashContext hashes) {
+        if (CommerceEventUtils.getEventType(event) == CommerceEventUtils.Constants.EVENT_TYPE_IMPRESSION) {
+            return null;
+        }
+        EventWrapper.CommerceEventWrapper wrapper = new EventWrapper.CommerceEventWrapper(event, hashes);
+        return projectEvents(wrapper, customMappingIndex.getCandidates(wrapper), defaultCommerceCustomMapping);
+    }
+
+    private static List<CustomMapping.ProjectionResult> projectEvents(EventWrapper.CommerceEventWrapper wrapper, List<CustomMapping> customMappingList, CustomMapping defaultCommerceCustomMapping) {
+        List<CustomMapping.ProjectionResult> events = new LinkedList<CustomMapping.ProjectionResult>();
         for (int i = 0; i < customMappingList.size(); i++) {
             CustomMapping customMapping = customMappingList.get(i);
             if (customMapping.isMatch(wrapper)) {
@@ -443,9 +471,29 @@ public class CustomMapping {
     }
 
     public static List<CustomMapping.ProjectionResult> projectEvents(MPEvent event, boolean isScreenEvent, List<CustomMapping> customMappingList, CustomMapping defaultCustomMapping, CustomMapping defaultScreenCustomMapping) {
+        EventWrapper.MPEventWrapper wrapper = new EventWrapper.MPEventWrapper(event, isScreenEvent);
+        return projectEvents(wrapper, isScreenEvent, customMappingList, defaultCustomMapping, defaultScreenCustomMapping);
+    }
+
+    /**
+     * Same as {@link #projectEvents(MPEvent, boolean, List, CustomMapping, CustomMapping)}, but only the mappings
+     * that the index returns as candidates for the event are checked.
+     */
+    public static List<CustomMapping.ProjectionResult> projectEvents(MPEvent event, boolean isScreenEvent, CustomMappingIndex customMappingIndex, CustomMapping defaultCustomMapping, CustomMapping defaultScreenCustomMapping) {
+        return projectEvents(event, isScreenEvent, customMappingIndex, defaultCustomMapping, defaultScreenCustomMapping, null);
+    }
+
+    /**
+     * @param hashes the hashes of the event, shared by every kit it is forwarded to, or null to compute them for this call
+     */
+    public static List<CustomMapping.ProjectionResult> projectEvents(MPEvent event, boolean isScreenEvent, CustomMappingIndex customMappingIndex, CustomMapping defaultCustomMapping, CustomMapping defaultScreenCustomMapping, EventHashContext hashes) {
+        EventWrapper.MPEventWrapper wrapper = new EventWrapper.MPEventWrapper(event, isScreenEvent, hashes);
+        return projectEvents(wrapper, isScreenEvent, customMappingIndex.getCandidates(wrapper), defaultCustomMapping, defaultScreenCustomMapping);
+    }
+
+    private static List<CustomMapping.ProjectionResult> projectEvents(EventWrapper.MPEventWrapper wrapper, boolean isScreenEvent, List<CustomMapping> customMappingList, CustomMapping defaultCustomMapping, CustomMapping defaultScreenCustomMapping) {
         List<CustomMapping.ProjectionResult> events = new LinkedList<CustomMapping.ProjectionResult>();
 
-        EventWrapper.MPEventWrapper wrapper = new EventWrapper.MPEventWrapper(event, isScreenEvent);
         for (int i = 0; i < customMappingList.size(); i++) {
             CustomMapping customMapping = customMappingList.get(i);
             if (customMapping.isMatch(wrapper)) {
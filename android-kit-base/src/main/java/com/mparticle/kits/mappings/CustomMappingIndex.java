@@ -0,0 +1,126 @@
+package com.mparticle.kits.mappings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dispatch table over a kit's list of {@link CustomMapping}s, built once per configuration.
+ *
+ * Each mapping is indexed by the first of its {@link CustomMappingMatch}es: by message type and event hash when
+ * that match compares the event hash, otherwise by message type alone. Default mappings, and mappings without any
+ * matches, are candidates for every event. A mapping whose first match fails is rejected
+ * by {@link CustomMapping#isMatch(EventWrapper)} before any other match is checked, and without changing the event,
+ * so only the mappings in the buckets for an event can match it. Candidates are returned in their original order
+ * and still have to be verified with {@link CustomMapping#isMatch(EventWrapper)}, which keeps the results identical
+ * to walking the whole list.
+ */
+public final class CustomMappingIndex {
+    private static final int[] EMPTY = new int[0];
+
+    private final List<CustomMapping> mCustomMappings;
+    private final Map<Long, int[]> mHashedCandidates = new HashMap<Long, int[]>();
+    private final Map<Integer, int[]> mTypeCandidates = new HashMap<Integer, int[]>();
+    /**
+     * Mappings that aren't indexed by message type, since they may match an event of any type.
+     */
+    private final int[] mUntypedCandidates;
+
+    public CustomMappingIndex(List<CustomMapping> customMappingList) {
+        mCustomMappings = new ArrayList<CustomMapping>(customMappingList);
+        Map<Long, List<Integer>> hashed = new HashMap<Long, List<Integer>>();
+        Map<Integer, List<Integer>> typed = new HashMap<Integer, List<Integer>>();
+        List<Integer> untyped = new ArrayList<Integer>();
+        for (int i = 0; i < mCustomMappings.size(); i++) {
+            CustomMapping customMapping = mCustomMappings.get(i);
+            if (customMapping.isDefault() || customMapping.getMatchList().isEmpty()) {
+                untyped.add(i);
+                continue;
+            }
+            CustomMappingMatch match = customMapping.getMatchList().get(0);
+            if (match.isEventHashMatch()) {
+                Long key = key(match.mMessageType, match.mEventHash);
+                List<Integer> bucket = hashed.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Integer>(1);
+                    hashed.put(key, bucket);
+                }
+                bucket.add(i);
+            } else {
+                List<Integer> bucket = typed.get(match.mMessageType);
+                if (bucket == null) {
+                    bucket = new ArrayList<Integer>(1);
+                    typed.put(match.mMessageType, bucket);
+                }
+                bucket.add(i);
+            }
+        }
+        for (Map.Entry<Long, List<Integer>> entry : hashed.entrySet()) {
+            mHashedCandidates.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : typed.entrySet()) {
+            mTypeCandidates.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        mUntypedCandidates = toArray(untyped);
+    }
+
+    public List<CustomMapping> getCustomMappingList() {
+        return mCustomMappings;
+    }
+
+    public int size() {
+        return mCustomMappings.size();
+    }
+
+    /**
+     * @return the mappings that may match the event, in the order they appear in the configuration
+     */
+    List<CustomMapping> getCandidates(EventWrapper wrapper) {
+        int messageType = wrapper.getMessageType();
+        int[] typeCandidates = get(mTypeCandidates.get(messageType));
+        int[] hashedCandidates = EMPTY;
+        if (!mHashedCandidates.isEmpty() && wrapper.getEvent() != null) {
+            hashedCandidates = get(mHashedCandidates.get(key(messageType, wrapper.getEventHash())));
+        }
+        List<CustomMapping> candidates = new ArrayList<CustomMapping>(typeCandidates.length + hashedCandidates.length + mUntypedCandidates.length);
+        int t = 0, h = 0, d = 0;
+        while (t < typeCandidates.length || h < hashedCandidates.length || d < mUntypedCandidates.length) {
+            int next = Integer.MAX_VALUE;
+            if (t < typeCandidates.length) {
+                next = typeCandidates[t];
+            }
+            if (h < hashedCandidates.length && hashedCandidates[h] < next) {
+                next = hashedCandidates[h];
+            }
+            if (d < mUntypedCandidates.length && mUntypedCandidates[d] < next) {
+                next = mUntypedCandidates[d];
+            }
+            if (t < typeCandidates.length && typeCandidates[t] == next) {
+                t++;
+            } else if (h < hashedCandidates.length && hashedCandidates[h] == next) {
+                h++;
+            } else {
+                d++;
+            }
+            candidates.add(mCustomMappings.get(next));
+        }
+        return candidates;
+    }
+
+    private static Long key(int messageType, int eventHash) {
+        return ((long) messageType << 32) | (eventHash & 0xffffffffL);
+    }
+
+    private static int[] get(int[] candidates) {
+        return candidates == null ? EMPTY : candidates;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -6,7 +6,7 @@ import com.mparticle.commerce.Product;
 import com.mparticle.commerce.Promotion;
 import com.mparticle.kits.CommerceEventUtils;
 import com.mparticle.internal.MPUtility;
-import com.mparticle.kits.KitUtils;
+import com.mparticle.kits.EventHashContext;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -34,6 +34,8 @@ final class CustomMappingMatch {
     String mMatchType = "String";
     String commerceMatchProperty = null;
     String commerceMatchPropertyName = null;
+    //commerceMatchPropertyName parsed once, or null if it is not a hash
+    Integer commerceMatchPropertyHash = null;
     Set<String> commerceMatchPropertyValues = null;
     int mEventHash;
     String mEventName = null;
@@ -53,6 +55,13 @@ final class CustomMappingMatch {
             mMatchType = match.optString("event_match_type", "String");
             commerceMatchProperty = match.optString("property", PROPERTY_LOCATION_EVENT_ATTRIBUTE);
             commerceMatchPropertyName = match.optString("property_name", null);
+            if (commerceMatchPropertyName != null) {
+                try {
+                    commerceMatchPropertyHash = Integer.parseInt(commerceMatchPropertyName);
+                } catch (NumberFormatException nfe) {
+                    commerceMatchPropertyHash = null;
+                }
+            }
             if (match.has("property_values")) {
                 try {
                     JSONArray propertyValues = match.getJSONArray("property_values");
@@ -95,6 +104,26 @@ final class CustomMappingMatch {
         }
     }
 
+    /**
+     * @return true if this match only compares the event hash, in which case {@link CustomMappingIndex} can look it up by hash
+     */
+    boolean isEventHashMatch() {
+        if (!mMatchType.startsWith(MATCH_TYPE_HASH)) {
+            return false;
+        }
+        if (mMessageType == 16) {
+            return commerceMatchProperty == null || commerceMatchPropertyName == null;
+        }
+        return true;
+    }
+
+    private int getCommerceMatchPropertyHash() {
+        if (commerceMatchPropertyHash != null) {
+            return commerceMatchPropertyHash;
+        }
+        return Integer.parseInt(commerceMatchPropertyName);
+    }
+
     /**
      * This is an optimization - check the basic stuff to see if we have a match before actually trying to do the projection
      */
@@ -141,23 +170,23 @@ final class CustomMappingMatch {
         }
         if (commerceMatchProperty != null && commerceMatchPropertyName != null) {
             if (commerceMatchProperty.equalsIgnoreCase(PROPERTY_LOCATION_EVENT_FIELD)) {
-                if (matchCommerceFields(commerceEvent)) {
+                if (matchCommerceFields(commerceEvent, eventWrapper.getHashContext())) {
                     return commerceEvent;
                 } else {
                     return null;
                 }
             } else if (commerceMatchProperty.equalsIgnoreCase(PROPERTY_LOCATION_EVENT_ATTRIBUTE)) {
-                if (matchCommerceAttributes(commerceEvent)) {
+                if (matchCommerceAttributes(commerceEvent, eventWrapper.getHashContext())) {
                     return commerceEvent;
                 } else {
                     return null;
                 }
             } else if (commerceMatchProperty.equalsIgnoreCase(PROPERTY_LOCATION_PRODUCT_FIELD)) {
-                return matchProductFields(commerceEvent);
+                return matchProductFields(commerceEvent, eventWrapper.getHashContext());
             } else if (commerceMatchProperty.equalsIgnoreCase(PROPERTY_LOCATION_PRODUCT_ATTRIBUTE)) {
-                return matchProductAttributes(commerceEvent);
+                return matchProductAttributes(commerceEvent, eventWrapper.getHashContext());
             } else if (commerceMatchProperty.equalsIgnoreCase(PROPERTY_LOCATION_PROMOTION_FIELD)) {
-                return matchPromotionFields(commerceEvent);
+                return matchPromotionFields(commerceEvent, eventWrapper.getHashContext());
             }
         }
         if (mMatchType.startsWith(MATCH_TYPE_HASH) && eventWrapper.getEventHash() == mEventHash) {
@@ -166,8 +195,8 @@ final class CustomMappingMatch {
         return null;
     }
 
-    private CommerceEvent matchPromotionFields(CommerceEvent event) {
-        int hash = Integer.parseInt(commerceMatchPropertyName);
+    private CommerceEvent matchPromotionFields(CommerceEvent event, EventHashContext hashes) {
+        int hash = getCommerceMatchPropertyHash();
         List<Promotion> promotionList = event.getPromotions();
         if (promotionList == null || promotionList.size() == 0) {
             return null;
@@ -179,7 +208,7 @@ final class CustomMappingMatch {
             CommerceEventUtils.extractPromotionAttributes(promotion, promotionFields);
             if (promotionFields != null) {
                 for (Map.Entry<String, String> entry : promotionFields.entrySet()) {
-                    int attributeHash = KitUtils.hashForFiltering(CommerceEventUtils.getEventType(event) + entry.getKey());
+                    int attributeHash = hashes.getAttributeHash(entry.getKey());
                     if (attributeHash == hash) {
                         if (commerceMatchPropertyValues.contains(entry.getValue().toLowerCase(Locale.US))) {
                             matchedPromotions.add(promotion);
@@ -197,9 +226,8 @@ final class CustomMappingMatch {
         }
     }
 
-    private CommerceEvent matchProductFields(CommerceEvent event) {
-        int hash = Integer.parseInt(commerceMatchPropertyName);
-        int type = CommerceEventUtils.getEventType(event);
+    private CommerceEvent matchProductFields(CommerceEvent event, EventHashContext hashes) {
+        int hash = getCommerceMatchPropertyHash();
         List<Product> productList = event.getProducts();
         if (productList == null || productList.size() == 0) {
             return null;
@@ -211,7 +239,7 @@ final class CustomMappingMatch {
             CommerceEventUtils.extractProductFields(product, productFields);
             if (productFields != null) {
                 for (Map.Entry<String, String> entry : productFields.entrySet()) {
-                    int attributeHash = KitUtils.hashForFiltering(type + entry.getKey());
+                    int attributeHash = hashes.getAttributeHash(entry.getKey());
                     if (attributeHash == hash) {
                         if (commerceMatchPropertyValues.contains(entry.getValue().toLowerCase(Locale.US))) {
                             matchedProducts.add(product);
@@ -229,8 +257,8 @@ final class CustomMappingMatch {
         }
     }
 
-    private CommerceEvent matchProductAttributes(CommerceEvent event) {
-        int hash = Integer.parseInt(commerceMatchPropertyName);
+    private CommerceEvent matchProductAttributes(CommerceEvent event, EventHashContext hashes) {
+        int hash = getCommerceMatchPropertyHash();
         List<Product> productList = event.getProducts();
         if (productList == null || productList.size() == 0) {
             return null;
@@ -240,7 +268,7 @@ final class CustomMappingMatch {
             Map<String, String> attributes = product.getCustomAttributes();
             if (attributes != null) {
                 for (Map.Entry<String, String> entry : attributes.entrySet()) {
-                    int attributeHash = KitUtils.hashForFiltering(CommerceEventUtils.getEventType(event) + entry.getKey());
+                    int attributeHash = hashes.getAttributeHash(entry.getKey());
                     if (attributeHash == hash) {
                         if (commerceMatchPropertyValues.contains(entry.getValue().toLowerCase(Locale.US))) {
                             matchedProducts.add(product);
@@ -258,14 +286,14 @@ final class CustomMappingMatch {
         }
     }
 
-    private boolean matchCommerceAttributes(CommerceEvent event) {
+    private boolean matchCommerceAttributes(CommerceEvent event, EventHashContext hashes) {
         Map<String, String> attributes = event.getCustomAttributes();
         if (attributes == null || attributes.size() < 1) {
             return false;
         }
-        int hash = Integer.parseInt(commerceMatchPropertyName);
+        int hash = getCommerceMatchPropertyHash();
         for (Map.Entry<String, String> entry : attributes.entrySet()) {
-            int attributeHash = KitUtils.hashForFiltering(CommerceEventUtils.getEventType(event) + entry.getKey());
+            int attributeHash = hashes.getAttributeHash(entry.getKey());
             if (attributeHash == hash) {
                 return commerceMatchPropertyValues.contains(entry.getValue().toLowerCase(Locale.US));
             }
@@ -273,12 +301,12 @@ final class CustomMappingMatch {
         return false;
     }
 
-    private boolean matchCommerceFields(CommerceEvent event) {
-        int hash = Integer.parseInt(commerceMatchPropertyName);
+    private boolean matchCommerceFields(CommerceEvent event, EventHashContext hashes) {
+        int hash = getCommerceMatchPropertyHash();
         Map<String, String> fields = new HashMap<String, String>();
         CommerceEventUtils.extractActionAttributes(event, fields);
         for (Map.Entry<String, String> entry : fields.entrySet()) {
-            int fieldHash = KitUtils.hashForFiltering(CommerceEventUtils.getEventType(event) + entry.getKey());
+            int fieldHash = hashes.getAttributeHash(entry.getKey());
             if (fieldHash == hash) {
                 return commerceMatchPropertyValues.contains(entry.getValue().toLowerCase(Locale.US));
             }
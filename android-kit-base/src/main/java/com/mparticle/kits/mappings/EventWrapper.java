@@ -6,7 +6,7 @@ import com.mparticle.commerce.Product;
 import com.mparticle.commerce.Promotion;
 import com.mparticle.kits.CommerceEventUtils;
 import com.mparticle.internal.MPUtility;
-import com.mparticle.kits.KitUtils;
+import com.mparticle.kits.EventHashContext;
 
 import java.util.AbstractMap;
 import java.util.HashMap;
@@ -20,6 +20,14 @@ abstract class EventWrapper {
 
     protected Map<Integer, String> attributeHashes;
 
+    protected EventHashContext hashes;
+
+    /**
+     * @return the hashes of the event, either those shared by every kit the event is forwarded to or, if none
+     * were given, computed for this wrapper
+     */
+    public abstract EventHashContext getHashContext();
+
     public abstract int getEventTypeOrdinal();
 
     public abstract Object getEvent();
@@ -28,10 +36,10 @@ abstract class EventWrapper {
 
     public abstract int getEventHash();
 
-    protected static Map<Integer, String> getHashes(String hashPrefix, Map<String, String> map) {
+    protected Map<Integer, String> getHashes(Map<String, String> map) {
         Map<Integer, String> hashedMap = new HashMap<Integer, String>();
         for (Map.Entry<String, String> entry : map.entrySet()) {
-            int hash = KitUtils.hashForFiltering(hashPrefix + entry.getKey());
+            int hash = getHashContext().getAttributeHash(entry.getKey());
             hashedMap.put(hash, entry.getKey());
         }
         return hashedMap;
@@ -47,7 +55,20 @@ abstract class EventWrapper {
         private HashMap<String, String> eventFieldAttributes;
 
         public CommerceEventWrapper(CommerceEvent event) {
+            this(event, null);
+        }
+
+        public CommerceEventWrapper(CommerceEvent event, EventHashContext hashes) {
             this.mCommerceEvent = event;
+            this.hashes = hashes;
+        }
+
+        @Override
+        public EventHashContext getHashContext() {
+            if (hashes == null) {
+                hashes = EventHashContext.forCommerceEvent(mCommerceEvent);
+            }
+            return hashes;
         }
 
         @Override
@@ -56,7 +77,7 @@ abstract class EventWrapper {
                 attributeHashes = new HashMap<Integer, String>();
                 if (mCommerceEvent.getCustomAttributes() != null) {
                     for (Map.Entry<String, String> entry : mCommerceEvent.getCustomAttributes().entrySet()) {
-                        int hash = KitUtils.hashForFiltering(getEventTypeOrdinal() + entry.getKey());
+                        int hash = getHashContext().getAttributeHash(entry.getKey());
                         attributeHashes.put(hash, entry.getKey());
                     }
                 }
@@ -81,7 +102,7 @@ abstract class EventWrapper {
         }
 
         public int getEventHash() {
-            return KitUtils.hashForFiltering("" + getEventTypeOrdinal());
+            return getHashContext().getEventHash();
         }
 
         public Map.Entry<String, String> findAttribute(String propertyType, int hash, Product product, Promotion promotion) {
@@ -100,7 +121,7 @@ abstract class EventWrapper {
                         CommerceEventUtils.extractActionAttributes(getEvent(), eventFieldAttributes);
                         CommerceEventUtils.extractTransactionAttributes(getEvent(), eventFieldAttributes);
                     }
-                    eventFieldHashes = getHashes(getEventTypeOrdinal() + "", eventFieldAttributes);
+                    eventFieldHashes = getHashes(eventFieldAttributes);
                 }
                 String key = eventFieldHashes.get(hash);
                 if (key != null) {
@@ -112,7 +133,7 @@ abstract class EventWrapper {
                 }
                 Map<String, String> attributes = new HashMap<String, String>();
                 CommerceEventUtils.extractProductAttributes(product, attributes);
-                Map<Integer, String> hashes = getHashes(getEventTypeOrdinal() + "", attributes);
+                Map<Integer, String> hashes = getHashes(attributes);
                 String key = hashes.get(hash);
                 if (key != null) {
                     return new AbstractMap.SimpleEntry<String, String>(key, attributes.get(key));
@@ -123,7 +144,7 @@ abstract class EventWrapper {
                 }
                 Map<String, String> attributes = new HashMap<String, String>();
                 CommerceEventUtils.extractProductFields(product, attributes);
-                Map<Integer, String> hashes = getHashes(getEventTypeOrdinal() + "", attributes);
+                Map<Integer, String> hashes = getHashes(attributes);
                 String key = hashes.get(hash);
                 if (key != null) {
                     return new AbstractMap.SimpleEntry<String, String>(key, attributes.get(key));
@@ -134,7 +155,7 @@ abstract class EventWrapper {
                 }
                 Map<String, String> attributes = new HashMap<String, String>();
                 CommerceEventUtils.extractPromotionAttributes(promotion, attributes);
-                Map<Integer, String> hashes = getHashes(getEventTypeOrdinal() + "", attributes);
+                Map<Integer, String> hashes = getHashes(attributes);
                 String key = hashes.get(hash);
                 if (key != null) {
                     return new AbstractMap.SimpleEntry<String, String>(key, attributes.get(key));
@@ -204,8 +225,21 @@ abstract class EventWrapper {
         }
 
         public MPEventWrapper(MPEvent event, boolean isScreenEvent) {
+            this(event, isScreenEvent, null);
+        }
+
+        public MPEventWrapper(MPEvent event, boolean isScreenEvent, EventHashContext hashes) {
             this.mEvent = event;
             this.mScreenEvent = isScreenEvent;
+            this.hashes = hashes;
+        }
+
+        @Override
+        public EventHashContext getHashContext() {
+            if (hashes == null) {
+                hashes = mScreenEvent ? EventHashContext.forScreen(mEvent.getEventName()) : EventHashContext.forEvent(mEvent);
+            }
+            return hashes;
         }
 
         public Map<Integer, String> getAttributeHashes() {
@@ -213,7 +247,7 @@ abstract class EventWrapper {
                 attributeHashes = new HashMap<Integer, String>();
                 if (mEvent.getInfo() != null) {
                     for (Map.Entry<String, String> entry : mEvent.getInfo().entrySet()) {
-                        int hash = KitUtils.hashForFiltering(getEventTypeOrdinal() + mEvent.getEventName() + entry.getKey());
+                        int hash = getHashContext().getAttributeHash(entry.getKey());
                         attributeHashes.put(hash, entry.getKey());
                     }
                 }
@@ -235,11 +269,7 @@ abstract class EventWrapper {
         }
 
         public int getEventHash() {
-            if (mScreenEvent) {
-                return KitUtils.hashForFiltering(getEventTypeOrdinal() + mEvent.getEventName());
-            } else {
-                return mEvent.getEventHash();
-            }
+            return getHashContext().getEventHash();
         }
 
         public int getMessageType() {
@@ -0,0 +1,115 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+import com.mparticle.commerce.CommerceEvent;
+import com.mparticle.commerce.Product;
+import com.mparticle.commerce.TransactionAttributes;
+import com.mparticle.mock.MockKitConfiguration;
+
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A microbenchmark of the work {@link KitManagerImpl#logCommerceEvent(CommerceEvent)} does for each kit that
+ * receives commerce events as {@link MPEvent}s, with 10 kits and a 30 product purchase. It checks that expanding the
+ * event for every kit and sharing one expansion across all of them forward the same events, and times both along
+ * with the bytes allocated per event where the JVM supports it; the timings are not asserted on, so read them with a
+ * debugger or profiler attached.
+ */
+public class CommerceEventExpansionBenchmarkTest {
+    private static final int KITS = 10;
+    private static final int PRODUCTS = 30;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 100;
+    private static final int ROUNDS = 3;
+
+    @BeforeClass
+    public static void setupAll() {
+        MParticle mockMp = Mockito.mock(MParticle.class);
+        Mockito.when(mockMp.getEnvironment()).thenReturn(MParticle.Environment.Development);
+        MParticle.setInstance(mockMp);
+    }
+
+    @Test
+    public void testExpandLargeCart() throws Exception {
+        CommerceEvent.Builder builder = new CommerceEvent.Builder(Product.PURCHASE, new Product.Builder("product 0", "sku 0", 10).build())
+                .transactionAttributes(new TransactionAttributes("transaction id").setRevenue(300.0));
+        for (int i = 1; i < PRODUCTS; i++) {
+            builder.addProduct(new Product.Builder("product " + i, "sku " + i, 10).brand("brand").category("category").build());
+        }
+        CommerceEvent event = builder.build();
+        List<KitConfiguration> configurations = new ArrayList<KitConfiguration>();
+        for (int i = 0; i < KITS; i++) {
+            configurations.add(MockKitConfiguration.createKitConfiguration(new JSONObject().put("id", i)));
+        }
+
+        EventHashContext hashes = EventHashContext.forCommerceEvent(event);
+        assertSame(hashes.getExpandedEvents(configurations.get(0).filterCommerceEvent(event, hashes)),
+                hashes.getExpandedEvents(configurations.get(1).filterCommerceEvent(event, hashes)));
+        assertEquals(dispatch(event, configurations, false), dispatch(event, configurations, true));
+        assertEquals(KITS * (PRODUCTS + 1), dispatch(event, configurations, true));
+        measure(event, configurations, false);
+        measure(event, configurations, true);
+    }
+
+    private static long[] measure(CommerceEvent event, List<KitConfiguration> configurations, boolean shareExpansion) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            dispatch(event, configurations, shareExpansion);
+        }
+        long[] best = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                dispatch(event, configurations, shareExpansion);
+            }
+            long elapsed = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+            long allocated = allocatedBefore < 0 ? -1 : (getAllocatedBytes() - allocatedBefore) / MEASURED_ITERATIONS;
+            if (best == null || elapsed < best[0]) {
+                best = new long[]{elapsed, allocated};
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The per-kit steps of {@link KitManagerImpl#logCommerceEvent(CommerceEvent)} for an EventListener kit, without
+     * calling into the kits.
+     *
+     * @return the number of events forwarded, to compare the two ways of dispatching
+     */
+    private static int dispatch(CommerceEvent event, List<KitConfiguration> configurations, boolean shareExpansion) {
+        EventHashContext hashes = EventHashContext.forCommerceEvent(event);
+        int forwarded = 0;
+        for (KitConfiguration configuration : configurations) {
+            CommerceEvent filteredEvent = configuration.filterCommerceEvent(event, hashes);
+            if (filteredEvent != null) {
+                List<MPEvent> events = shareExpansion ? hashes.getExpandedEvents(filteredEvent) : CommerceEventUtils.expand(filteredEvent);
+                forwarded += events.size();
+            }
+        }
+        return forwarded;
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the JVM does not report it
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,134 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+import com.mparticle.kits.mappings.CustomMapping;
+import com.mparticle.mock.MockKitConfiguration;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A microbenchmark of the filtering and projection work {@link KitManagerImpl#logEvent(MPEvent)} does for each kit,
+ * with 25 kits and a 50 attribute event. It checks that computing the event's hashes for every kit and sharing
+ * one {@link EventHashContext} across all of them forward the same result, and times both; the timings are not
+ * asserted on, so read them with a debugger or profiler attached.
+ */
+public class EventHashContextBenchmarkTest {
+    private static final int KITS = 25;
+    private static final int ATTRIBUTES = 50;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 100;
+    private static final int ROUNDS = 3;
+
+    @BeforeClass
+    public static void setupAll() {
+        MParticle mockMp = Mockito.mock(MParticle.class);
+        Mockito.when(mockMp.getEnvironment()).thenReturn(MParticle.Environment.Development);
+        MParticle.setInstance(mockMp);
+    }
+
+    @Test
+    public void testLogEvent() throws Exception {
+        Map<String, String> info = new HashMap<String, String>();
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            info.put("attribute key " + i, "value " + i);
+        }
+        MPEvent event = new MPEvent.Builder("Benchmark Event", MParticle.EventType.Navigation).info(info).build();
+        List<KitConfiguration> configurations = new ArrayList<KitConfiguration>();
+        for (int i = 0; i < KITS; i++) {
+            configurations.add(createConfiguration(i, event));
+        }
+
+        assertEquals(dispatch(event, configurations, false), dispatch(event, configurations, true));
+        measure(event, configurations, false);
+        measure(event, configurations, true);
+    }
+
+    private static long measure(MPEvent event, List<KitConfiguration> configurations, boolean shareHashes) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            dispatch(event, configurations, shareHashes);
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                dispatch(event, configurations, shareHashes);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / MEASURED_ITERATIONS);
+        }
+        return best;
+    }
+
+    /**
+     * The per-kit steps of {@link KitManagerImpl#logEvent(MPEvent)}, without calling into the kits.
+     *
+     * @return the number of attributes and projected events forwarded, to compare the two ways of dispatching
+     */
+    private static int dispatch(MPEvent event, List<KitConfiguration> configurations, boolean shareHashes) {
+        EventHashContext hashes = shareHashes ? EventHashContext.forEvent(event) : null;
+        int forwarded = 0;
+        for (KitConfiguration configuration : configurations) {
+            EventHashContext kitHashes = shareHashes ? hashes : EventHashContext.forEvent(event);
+            if (configuration.shouldLogEvent(event, kitHashes)) {
+                MPEvent eventCopy = new MPEvent(event);
+                eventCopy.setInfo(configuration.filterEventAttributes(eventCopy, kitHashes));
+                forwarded += eventCopy.getInfo().size();
+                List<CustomMapping.ProjectionResult> projectedEvents = CustomMapping.projectEvents(
+                        eventCopy,
+                        false,
+                        configuration.getCustomMappingIndex(),
+                        configuration.getDefaultEventProjection(),
+                        null,
+                        shareHashes ? hashes : null);
+                if (projectedEvents != null) {
+                    forwarded += projectedEvents.size();
+                }
+            }
+        }
+        return forwarded;
+    }
+
+    /**
+     * Each kit filters out a few of the event's attributes, and has a hash projection of the event that maps
+     * a couple of attributes by hash.
+     */
+    private static KitConfiguration createConfiguration(int id, MPEvent event) throws Exception {
+        String prefix = event.getEventType().ordinal() + event.getEventName();
+        JSONObject attributeFilters = new JSONObject();
+        for (int i = id % 5; i < ATTRIBUTES; i += 10) {
+            attributeFilters.put(Integer.toString(KitUtils.hashForFiltering(prefix + "attribute key " + i)), 0);
+        }
+        JSONArray attributeMaps = new JSONArray();
+        for (int i = 0; i < 2; i++) {
+            attributeMaps.put(new JSONObject()
+                    .put("projected_attribute_name", "projected " + i)
+                    .put("match_type", "Hash")
+                    .put("value", Integer.toString(KitUtils.hashForFiltering(prefix + "attribute key " + (id + i * 25) % ATTRIBUTES))));
+        }
+        JSONArray projections = new JSONArray()
+                .put(new JSONObject()
+                        .put("id", id * 10)
+                        .put("matches", new JSONArray().put(new JSONObject()
+                                .put("message_type", 4)
+                                .put("event_match_type", "Hash")
+                                .put("event", Integer.toString(event.getEventHash()))))
+                        .put("action", new JSONObject()
+                                .put("projected_event_name", "projected event " + id)
+                                .put("attribute_maps", attributeMaps)));
+        return MockKitConfiguration.createKitConfiguration(new JSONObject()
+                .put("id", id)
+                .put("hs", new JSONObject().put("ea", attributeFilters))
+                .put("pr", projections));
+    }
+}
@@ -219,6 +219,31 @@ public class KitConfigurationTest {
         assertNull(filteredEvent.getProducts().get(0).getBrand());
     }
 
+    @Test
+    public void testFilterCommerceEventCopyOnWrite() throws Exception {
+        KitConfiguration configuration = MockKitConfiguration.createKitConfiguration(new JSONObject(COMMERCE_FILTERS_2));
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("my custom product attribute", "whatever");
+        Product filteredProduct = new Product.Builder("name", "sku", 5).customAttributes(attributes).build();
+        Product product = new Product.Builder("name 2", "sku 2", 5).build();
+
+        //nothing is filtered from the event, so it is not copied
+        CommerceEvent event = new CommerceEvent.Builder(Product.CHECKOUT, product).build();
+        assertTrue(event == configuration.filterCommerceEvent(event));
+
+        //only the product with a filtered attribute is copied
+        event = new CommerceEvent.Builder(Product.PURCHASE, product).addProduct(filteredProduct)
+                .transactionAttributes(new TransactionAttributes().setId("some id").setAffiliation("cool affiliation")).build();
+        CommerceEvent filteredEvent = configuration.filterCommerceEvent(event);
+        assertTrue(event.getProducts().get(0) == filteredEvent.getProducts().get(0));
+        assertNull(filteredEvent.getProducts().get(1).getCustomAttributes().get("my custom product attribute"));
+        assertEquals("whatever", event.getProducts().get(1).getCustomAttributes().get("my custom product attribute"));
+
+        //the original event's transaction attributes are left alone
+        assertNull(filteredEvent.getTransactionAttributes().getAffiliation());
+        assertEquals("cool affiliation", event.getTransactionAttributes().getAffiliation());
+    }
+
     @Test
     public void testFilterCommerceEventType() throws Exception {
         //CUSTOM ATTRIBUTES
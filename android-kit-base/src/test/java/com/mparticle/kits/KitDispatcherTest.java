@@ -0,0 +1,246 @@
+package com.mparticle.kits;
+
+import com.mparticle.MParticleOptions;
+import com.mparticle.internal.ReportingManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KitDispatcherTest {
+    private ReportingManager reportingManager;
+    private ManualExecutor workers;
+    private ManualExecutor mainThread;
+    private KitIntegration kitA;
+    private KitIntegration kitB;
+    private List<String> calls;
+
+    @Before
+    public void setUp() {
+        reportingManager = Mockito.mock(ReportingManager.class);
+        workers = new ManualExecutor();
+        mainThread = new ManualExecutor();
+        kitA = createKit("A", false);
+        kitB = createKit("B", false);
+        calls = new ArrayList<String>();
+    }
+
+    @Test
+    public void testSynchronousDispatch() {
+        KitDispatcher dispatcher = KitDispatcher.synchronous(reportingManager);
+        dispatcher.dispatch(Arrays.asList(kitA, kitB), "first", null, record("first"));
+        assertEquals(Arrays.asList("A:first", "B:first"), calls);
+        assertEquals(2, loggedReports().size());
+
+        dispatcher.dispatch(Arrays.asList(kitA, kitB), "failing", null, new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) throws Exception {
+                if (provider == kitA) {
+                    throw new IllegalStateException();
+                }
+                return record("after failure").call(provider);
+            }
+        });
+        assertEquals("B:after failure", calls.get(2));
+    }
+
+    @Test
+    public void testStateCallsAreMadeWhileCircuitIsOpen() {
+        KitDispatcher dispatcher = KitDispatcher.synchronous(reportingManager);
+        for (int i = 0; i < KitMonitor.FAILURE_THRESHOLD; i++) {
+            dispatcher.dispatch(Collections.singletonList(kitA), "failing", null, new KitDispatcher.KitCall() {
+                @Override
+                public List<ReportingMessage> call(KitIntegration provider) throws Exception {
+                    throw new IllegalStateException();
+                }
+            });
+        }
+        assertTrue(dispatcher.getKitCallStats().get(0).isCircuitOpen());
+
+        dispatcher.dispatch(Collections.singletonList(kitA), "event", null, record("event"));
+        dispatcher.dispatch(Collections.singletonList(kitA), "opt out", null, new KitDispatcher.StateCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) throws Exception {
+                return record("opt out").call(provider);
+            }
+        });
+        assertEquals(Collections.singletonList("A:opt out"), calls);
+        //the state call doesn't close the circuit
+        assertTrue(dispatcher.getKitCallStats().get(0).isCircuitOpen());
+    }
+
+    @Test
+    public void testAsynchronousDispatchIsSerialPerKit() {
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.DROP_OLDEST);
+        dispatcher.dispatch(Arrays.asList(kitA, kitB), "first", null, record("first"));
+        dispatcher.dispatch(Arrays.asList(kitA, kitB), "second", null, record("second"));
+        assertTrue(calls.isEmpty());
+        //one drain per kit, each kit's calls in order
+        assertEquals(2, workers.pending.size());
+        workers.runAll();
+        assertEquals(Arrays.asList("A:first", "A:second", "B:first", "B:second"), calls);
+        //each call's reports from both kits are logged together
+        Mockito.verify(reportingManager, Mockito.times(2)).logAll(Mockito.anyList());
+    }
+
+    @Test
+    public void testReportsLoggedOnceAllKitsAreCalled() {
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.DROP_OLDEST);
+        dispatcher.dispatch(Arrays.asList(kitA, kitB), "first", null, record("first"));
+        workers.runNext();
+        Mockito.verify(reportingManager, Mockito.never()).logAll(Mockito.anyList());
+        workers.runNext();
+        assertEquals(2, loggedReports().size());
+    }
+
+    @Test
+    public void testDropOldest() {
+        KitDispatcher dispatcher = createAsynchronous(2, MParticleOptions.KitQueueOverflow.DROP_OLDEST);
+        for (String name : Arrays.asList("1", "2", "3")) {
+            dispatcher.dispatch(Collections.singletonList(kitA), name, null, record(name));
+        }
+        workers.runAll();
+        assertEquals(Arrays.asList("A:2", "A:3"), calls);
+    }
+
+    @Test
+    public void testDropNewest() {
+        KitDispatcher dispatcher = createAsynchronous(2, MParticleOptions.KitQueueOverflow.DROP_NEWEST);
+        for (String name : Arrays.asList("1", "2", "3")) {
+            dispatcher.dispatch(Collections.singletonList(kitA), name, null, record(name));
+        }
+        workers.runAll();
+        assertEquals(Arrays.asList("A:1", "A:2"), calls);
+    }
+
+    @Test
+    public void testCoalesce() {
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.COALESCE);
+        dispatcher.dispatch(Collections.singletonList(kitA), "set 1", "key", record("set 1"));
+        dispatcher.dispatch(Collections.singletonList(kitA), "event", null, record("event"));
+        dispatcher.dispatch(Collections.singletonList(kitA), "set 2", "key", record("set 2"));
+        workers.runAll();
+        assertEquals(Arrays.asList("A:set 2", "A:event"), calls);
+        //the replaced call's batch is still completed
+        Mockito.verify(reportingManager, Mockito.times(2)).logAll(Mockito.anyList());
+
+        //once a call has been made, a later call with the same key is queued normally
+        dispatcher.dispatch(Collections.singletonList(kitA), "set 3", "key", record("set 3"));
+        workers.runAll();
+        assertEquals("A:set 3", calls.get(2));
+    }
+
+    @Test
+    public void testBarrier() {
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.COALESCE);
+        dispatcher.dispatch(Collections.singletonList(kitA), "set 1", "attribute:a", record("set 1"));
+        dispatcher.dispatch(Collections.singletonList(kitA), "identity 1", "identity:a", record("identity 1"));
+        dispatcher.dispatchBarrier(Collections.singletonList(kitA), "set all", "attribute:", record("set all"));
+        //may not move ahead of the barrier
+        dispatcher.dispatch(Collections.singletonList(kitA), "set 2", "attribute:a", record("set 2"));
+        //other keys still coalesce, and take the waiting call's place ahead of the barrier
+        dispatcher.dispatch(Collections.singletonList(kitA), "identity 2", "identity:a", record("identity 2"));
+        workers.runAll();
+        assertEquals(Arrays.asList("A:set 1", "A:identity 2", "A:set all", "A:set 2"), calls);
+    }
+
+    @Test
+    public void testMainThreadKit() {
+        KitIntegration mainThreadKit = createKit("Main", true);
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.DROP_OLDEST);
+        dispatcher.dispatch(Arrays.asList(kitA, mainThreadKit), "first", null, record("first"));
+        assertEquals(1, workers.pending.size());
+        assertEquals(1, mainThread.pending.size());
+        mainThread.runAll();
+        assertEquals(Collections.singletonList("Main:first"), calls);
+    }
+
+    @Test
+    public void testMainThreadCall() {
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.DROP_OLDEST);
+        dispatcher.dispatch(Collections.singletonList(kitA), "event 1", null, record("event 1"));
+        dispatcher.dispatchOnMainThread(Collections.singletonList(kitA), "resumed", record("resumed"));
+        dispatcher.dispatch(Collections.singletonList(kitA), "event 2", null, record("event 2"));
+        //the queue moves to the main thread for the lifecycle call, and back, keeping the kit's calls in order
+        workers.runAll();
+        assertEquals(Collections.singletonList("A:event 1"), calls);
+        assertEquals(1, mainThread.pending.size());
+        mainThread.runAll();
+        assertEquals(Arrays.asList("A:event 1", "A:resumed"), calls);
+        assertEquals(1, workers.pending.size());
+        workers.runAll();
+        assertEquals(Arrays.asList("A:event 1", "A:resumed", "A:event 2"), calls);
+
+        //when kits are called synchronously, it's made on the calling thread
+        calls.clear();
+        KitDispatcher.synchronous(reportingManager).dispatchOnMainThread(Collections.singletonList(kitA), "resumed", record("resumed"));
+        assertEquals(Collections.singletonList("A:resumed"), calls);
+    }
+
+    @Test
+    public void testRemove() {
+        KitDispatcher dispatcher = createAsynchronous(10, MParticleOptions.KitQueueOverflow.DROP_OLDEST);
+        dispatcher.dispatch(Arrays.asList(kitA, kitB), "first", null, record("first"));
+        dispatcher.remove(kitA);
+        workers.runAll();
+        assertEquals(Collections.singletonList("B:first"), calls);
+        assertEquals(1, loggedReports().size());
+    }
+
+    private KitDispatcher createAsynchronous(int capacity, MParticleOptions.KitQueueOverflow overflow) {
+        return new KitDispatcher(reportingManager, workers, mainThread, capacity, overflow);
+    }
+
+    private List<ReportingMessage> loggedReports() {
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(reportingManager).logAll(captor.capture());
+        return captor.getValue();
+    }
+
+    private KitDispatcher.KitCall record(final String name) {
+        return new KitDispatcher.KitCall() {
+            @Override
+            public List<ReportingMessage> call(KitIntegration provider) {
+                calls.add(provider.getName() + ":" + name);
+                return Collections.singletonList(Mockito.mock(ReportingMessage.class));
+            }
+        };
+    }
+
+    private static KitIntegration createKit(String name, boolean requiresMainThread) {
+        KitIntegration kit = Mockito.mock(KitIntegration.class);
+        Mockito.when(kit.getName()).thenReturn(name);
+        Mockito.when(kit.requiresMainThread()).thenReturn(requiresMainThread);
+        return kit;
+    }
+
+    private static class ManualExecutor implements Executor {
+        final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            pending.add(runnable);
+        }
+
+        void runNext() {
+            pending.poll().run();
+        }
+
+        void runAll() {
+            while (!pending.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
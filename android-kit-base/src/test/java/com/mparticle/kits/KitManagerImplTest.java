@@ -1,6 +1,10 @@
 package com.mparticle.kits;
 
+import com.mparticle.MPEvent;
 import com.mparticle.MParticle;
+import com.mparticle.commerce.CommerceEvent;
+import com.mparticle.commerce.Product;
+import com.mparticle.commerce.TransactionAttributes;
 import com.mparticle.mock.MockMParticle;
 import com.mparticle.internal.AppStateManager;
 import com.mparticle.internal.ConfigManager;
@@ -10,6 +14,7 @@ import com.mparticle.mock.MockContext;
 import com.mparticle.mock.MockKitConfiguration;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.util.HashMap;
@@ -17,6 +22,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
 public class KitManagerImplTest {
     BackgroundTaskHandler mockBackgroundTaskHandler = new BackgroundTaskHandler(){
 
@@ -102,4 +110,41 @@ public class KitManagerImplTest {
         Mockito.verify(((KitIntegration.AttributeListener)integration), Mockito.times(1)).setUserAttributeList("test key", attributeList);
         Mockito.verify(((KitIntegration.AttributeListener)integration2), Mockito.times(1)).setUserAttribute("test key", "1,2,3");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExpandedCommerceEventsAreNotShared() throws Exception {
+        MParticle.setInstance(new MockMParticle());
+        KitManagerImpl manager  = new KitManagerImpl(
+                new MockContext(),
+                Mockito.mock(ReportingManager.class),
+                Mockito.mock(ConfigManager.class),
+                Mockito.mock(AppStateManager.class),
+                mockBackgroundTaskHandler);
+        KitIntegration integration = Mockito.mock(
+                KitIntegration.class,
+                Mockito.withSettings().extraInterfaces(KitIntegration.EventListener.class)
+        );
+        KitIntegration integration2 = Mockito.mock(
+                KitIntegration.class,
+                Mockito.withSettings().extraInterfaces(KitIntegration.EventListener.class)
+        );
+        Mockito.when(integration.getConfiguration()).thenReturn(MockKitConfiguration.createKitConfiguration());
+        Mockito.when(integration2.getConfiguration()).thenReturn(MockKitConfiguration.createKitConfiguration());
+        manager.providers.put(5, integration);
+        manager.providers.put(6, integration2);
+
+        Product product = new Product.Builder("product", "sku", 1.0).build();
+        manager.logCommerceEvent(new CommerceEvent.Builder(Product.PURCHASE, product).transactionAttributes(new TransactionAttributes("id")).build());
+
+        ArgumentCaptor<MPEvent> events = ArgumentCaptor.forClass(MPEvent.class);
+        Mockito.verify((KitIntegration.EventListener) integration, Mockito.atLeastOnce()).logEvent(events.capture());
+        ArgumentCaptor<MPEvent> events2 = ArgumentCaptor.forClass(MPEvent.class);
+        Mockito.verify((KitIntegration.EventListener) integration2, Mockito.atLeastOnce()).logEvent(events2.capture());
+        //a kit that changes its events must not change another kit's
+        assertEquals(events.getAllValues().size(), events2.getAllValues().size());
+        for (int i = 0; i < events.getAllValues().size(); i++) {
+            assertNotSame(events.getAllValues().get(i), events2.getAllValues().get(i));
+            assertEquals(events.getAllValues().get(i).getEventName(), events2.getAllValues().get(i).getEventName());
+        }
+    }
+}
@@ -2,9 +2,12 @@ package com.mparticle.kits;
 
 
 import android.app.Activity;
+import android.content.Context;
 import android.location.Location;
 import android.net.Uri;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
 
 import com.mparticle.MPEvent;
 import com.mparticle.MParticle;
@@ -18,15 +21,20 @@ import com.mparticle.mock.MockKitManagerImpl;
 import com.mparticle.mock.MockMParticle;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -35,6 +43,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
@@ -43,6 +52,9 @@ import static junit.framework.Assert.assertTrue;
 public class KitManagerTest  {
 
     private KitManagerImpl manager;
+    private final List<Integer> startedKits = new ArrayList<Integer>();
+    private MessageQueue queue;
+    private Handler mainHandler;
 
     @Before
     public void setUp() throws Exception {
@@ -82,6 +94,79 @@ public class KitManagerTest  {
         assertEquals(4, providers.size());
     }
 
+    @Test
+    @PrepareForTest({Looper.class})
+    public void testUpdateKitsSkipsUnchangedConfigurations() throws Exception {
+        PowerMockito.mockStatic(Looper.class);
+        Looper looper = PowerMockito.mock(Looper.class);
+        Mockito.when(Looper.myLooper()).thenReturn(looper);
+        Mockito.when(Looper.getMainLooper()).thenReturn(looper);
+        final List<Integer> parsed = new ArrayList<Integer>();
+        manager = new MockKitManagerImpl(new MockContext(), null, Mockito.mock(ConfigManager.class), null) {
+            @Override
+            protected KitConfiguration createKitConfiguration(JSONObject configuration) throws JSONException {
+                parsed.add(configuration.getInt("id"));
+                return super.createKitConfiguration(configuration);
+            }
+        };
+        manager.setKitFactory(new MockKitIntegrationFactory());
+        JSONArray array = new JSONObject(TestConstants.SAMPLE_EK_CONFIG).optJSONArray(ConfigManager.KEY_EMBEDDED_KITS);
+        manager.updateKits(array);
+        assertEquals(4, parsed.size());
+        KitConfiguration configuration = manager.providers.get(37).getConfiguration();
+
+        manager.updateKits(new JSONArray(array.toString()));
+        assertEquals(4, parsed.size());
+        assertTrue(configuration == manager.providers.get(37).getConfiguration());
+
+        array.getJSONObject(0).put("as", new JSONObject().put("newSetting", "value"));
+        manager.updateKits(array);
+        assertEquals(5, parsed.size());
+        assertEquals(Integer.valueOf(array.getJSONObject(0).getInt("id")), parsed.get(4));
+        assertEquals("value", manager.providers.get(array.getJSONObject(0).getInt("id")).getSettings().get("newSetting"));
+    }
+
+    @Test
+    @PrepareForTest({Looper.class})
+    public void testQueuedUpdatesRemoveThenRestoreKit() throws Exception {
+        PowerMockito.mockStatic(Looper.class);
+        JSONArray array = new JSONObject(TestConstants.SAMPLE_EK_CONFIG).optJSONArray(ConfigManager.KEY_EMBEDDED_KITS);
+        manager.new UpdateKitRunnable(array).run();
+        int kitId = array.getJSONObject(0).getInt("id");
+        assertNotNull(manager.providers.get(kitId));
+
+        JSONArray withoutKit = new JSONArray();
+        for (int i = 1; i < array.length(); i++) {
+            withoutKit.put(array.getJSONObject(i));
+        }
+        //both updates are created before either runs on the main thread
+        Runnable removeKit = manager.new UpdateKitRunnable(withoutKit);
+        Runnable restoreKit = manager.new UpdateKitRunnable(new JSONArray(array.toString()));
+        removeKit.run();
+        assertNull(manager.providers.get(kitId));
+        restoreKit.run();
+        assertNotNull(manager.providers.get(kitId));
+        assertEquals(array.length(), manager.providers.size());
+    }
+
+    @Test
+    @PrepareForTest({Looper.class})
+    public void testQueuedUpdatesRestoreConfiguration() throws Exception {
+        PowerMockito.mockStatic(Looper.class);
+        JSONArray array = new JSONObject(TestConstants.SAMPLE_EK_CONFIG).optJSONArray(ConfigManager.KEY_EMBEDDED_KITS);
+        manager.new UpdateKitRunnable(array).run();
+        int kitId = array.getJSONObject(0).getInt("id");
+
+        JSONArray changed = new JSONArray(array.toString());
+        changed.getJSONObject(0).put("as", new JSONObject().put("newSetting", "value"));
+        Runnable changeConfiguration = manager.new UpdateKitRunnable(changed);
+        Runnable restoreConfiguration = manager.new UpdateKitRunnable(new JSONArray(array.toString()));
+        changeConfiguration.run();
+        assertEquals("value", manager.providers.get(kitId).getSettings().get("newSetting"));
+        restoreConfiguration.run();
+        assertNull(manager.providers.get(kitId).getSettings().get("newSetting"));
+    }
+
     @Test
     public void testLogEvent() throws Exception {
         manager.logEvent(new MPEvent.Builder("test name", MParticle.EventType.Location).build());
@@ -176,4 +261,129 @@ public class KitManagerTest  {
     public void testGetContext() throws Exception {
         assertNotNull(manager.getContext());
     }
-}
\ No newline at end of file
+
+    @Test
+    @PrepareForTest({Looper.class, MessageQueue.class})
+    public void testKitStartBudget() throws Exception {
+        manager = createStagedManager(mockKit(1, false, 0), mockKit(2, false, 0), mockKit(3, false, 0));
+        manager.updateKits(kitConfigs(1, 2, 3));
+        assertEquals(Arrays.asList(1, 2, 3), startedKits);
+        assertEquals(3, manager.providers.size());
+        Mockito.verify(queue, Mockito.never()).addIdleHandler(Mockito.any(MessageQueue.IdleHandler.class));
+    }
+
+    @Test
+    @PrepareForTest({Looper.class, MessageQueue.class})
+    public void testStagedKitStart() throws Exception {
+        manager = createStagedManager(mockKit(1, false, 10), mockKit(2, false, 0), mockKit(3, false, 10), mockKit(4, false, 0));
+        manager.updateKits(kitConfigs(1, 2, 3, 4));
+        //the first kit used up the budget, the rest wait for the main thread to be idle
+        assertEquals(Arrays.asList(1), startedKits);
+        assertEquals(1, manager.providers.size());
+        MessageQueue.IdleHandler idleHandler = captureIdleHandler(1);
+        Runnable timeout = captureTimeout(1);
+
+        assertFalse(idleHandler.queueIdle());
+        Mockito.verify(mainHandler).removeCallbacks(timeout);
+        assertEquals(Arrays.asList(1, 2, 3), startedKits);
+
+        captureIdleHandler(2).queueIdle();
+        assertEquals(Arrays.asList(1, 2, 3, 4), startedKits);
+        assertEquals(4, manager.providers.size());
+        Mockito.verify(queue, Mockito.times(2)).addIdleHandler(Mockito.any(MessageQueue.IdleHandler.class));
+    }
+
+    @Test
+    @PrepareForTest({Looper.class, MessageQueue.class})
+    public void testKitStartTimeout() throws Exception {
+        manager = createStagedManager(mockKit(1, false, 10), mockKit(2, false, 0), mockKit(3, false, 0));
+        manager.updateKits(kitConfigs(1, 2, 3));
+        assertEquals(Arrays.asList(1), startedKits);
+        MessageQueue.IdleHandler idleHandler = captureIdleHandler(1);
+
+        //the main thread never became idle
+        captureTimeout(1).run();
+        Mockito.verify(queue).removeIdleHandler(idleHandler);
+        assertEquals(Arrays.asList(1, 2, 3), startedKits);
+        assertEquals(3, manager.providers.size());
+
+        //an idle handler that already ran does not start anything again
+        idleHandler.queueIdle();
+        assertEquals(Arrays.asList(1, 2, 3), startedKits);
+    }
+
+    @Test
+    @PrepareForTest({Looper.class, MessageQueue.class})
+    public void testEagerKitsStartFirst() throws Exception {
+        manager = createStagedManager(mockKit(1, false, 0), mockKit(2, true, 10), mockKit(3, false, 0), mockKit(4, true, 10));
+        manager.updateKits(kitConfigs(1, 2, 3, 4));
+        //eager kits start first, in order, even once the budget is used up
+        assertEquals(Arrays.asList(2, 4), startedKits);
+        captureIdleHandler(1).queueIdle();
+        assertEquals(Arrays.asList(2, 4, 1, 3), startedKits);
+    }
+
+    private KitManagerImpl createStagedManager(final KitIntegration... kits) {
+        PowerMockito.mockStatic(Looper.class);
+        Looper looper = PowerMockito.mock(Looper.class);
+        Mockito.when(Looper.myLooper()).thenReturn(looper);
+        Mockito.when(Looper.getMainLooper()).thenReturn(looper);
+        queue = PowerMockito.mock(MessageQueue.class);
+        Mockito.when(Looper.myQueue()).thenReturn(queue);
+        mainHandler = Mockito.mock(Handler.class);
+        KitManagerImpl stagedManager = new MockKitManagerImpl(new MockContext(), null, Mockito.mock(ConfigManager.class), null) {
+            @Override
+            Handler getMainHandler() {
+                return mainHandler;
+            }
+        };
+        stagedManager.setKitFactory(new KitIntegrationFactory() {
+            @Override
+            public boolean isSupported(int kitModuleId) {
+                return true;
+            }
+
+            @Override
+            public KitIntegration createInstance(KitManagerImpl manager, KitConfiguration configuration) {
+                KitIntegration kit = kits[configuration.getKitId() - 1];
+                Mockito.when(kit.getConfiguration()).thenReturn(configuration);
+                return kit;
+            }
+        });
+        return stagedManager;
+    }
+
+    private KitIntegration mockKit(final int kitId, boolean eager, final long startMillis) {
+        KitIntegration kit = Mockito.mock(KitIntegration.class);
+        Mockito.when(kit.requiresEagerStart()).thenReturn(eager);
+        Mockito.when(kit.onKitCreate(Mockito.anyMap(), Mockito.any(Context.class))).thenAnswer(new Answer<List<ReportingMessage>>() {
+            @Override
+            public List<ReportingMessage> answer(InvocationOnMock invocation) throws Throwable {
+                startedKits.add(kitId);
+                Thread.sleep(startMillis);
+                return null;
+            }
+        });
+        return kit;
+    }
+
+    private JSONArray kitConfigs(int... kitIds) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int kitId : kitIds) {
+            array.put(new JSONObject().put(KitConfiguration.KEY_ID, kitId));
+        }
+        return array;
+    }
+
+    private MessageQueue.IdleHandler captureIdleHandler(int times) {
+        ArgumentCaptor<MessageQueue.IdleHandler> idleHandler = ArgumentCaptor.forClass(MessageQueue.IdleHandler.class);
+        Mockito.verify(queue, Mockito.times(times)).addIdleHandler(idleHandler.capture());
+        return idleHandler.getValue();
+    }
+
+    private Runnable captureTimeout(int times) {
+        ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(mainHandler, Mockito.times(times)).postDelayed(timeout.capture(), Mockito.eq(KitManagerImpl.KIT_START_TIMEOUT_MILLIS));
+        return timeout.getValue();
+    }
+}
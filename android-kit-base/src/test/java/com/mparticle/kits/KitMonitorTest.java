@@ -0,0 +1,66 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.KitCallStats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KitMonitorTest {
+    private static final long FAST = 100 * 1000;
+    private static final long SLOW = (KitMonitor.LATENCY_BUDGET_MICROS + 1) * 1000;
+
+    @Test
+    public void testStats() {
+        KitMonitor monitor = new KitMonitor("test");
+        for (int i = 0; i < 97; i++) {
+            monitor.record(0, FAST, false, i % 2 == 0);
+        }
+        monitor.record(0, SLOW, false, false);
+        monitor.record(0, SLOW, false, false);
+        monitor.record(0, FAST, true, false);
+        KitCallStats stats = monitor.getStats(5);
+        assertEquals(5, stats.getKitId());
+        assertEquals(100, stats.getCallCount());
+        assertEquals(1, stats.getErrorCount());
+        assertEquals(128, stats.getLatencyP50());
+        assertEquals(262144, stats.getLatencyP99());
+        assertEquals(49 * 100, stats.getMainThreadTime());
+        assertFalse(stats.isCircuitOpen());
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        KitMonitor monitor = new KitMonitor("test");
+        long now = 0;
+        for (int i = 0; i < KitMonitor.FAILURE_THRESHOLD - 1; i++) {
+            assertTrue(monitor.allowCall(now));
+            monitor.record(now, i % 2 == 0 ? SLOW : FAST, i % 2 != 0, false);
+        }
+        //a good call resets the count
+        monitor.record(now, FAST, false, false);
+        for (int i = 0; i < KitMonitor.FAILURE_THRESHOLD; i++) {
+            assertTrue(monitor.allowCall(now));
+            monitor.record(now, SLOW, false, false);
+        }
+        assertTrue(monitor.getStats(1).isCircuitOpen());
+        assertFalse(monitor.allowCall(now + KitMonitor.OPEN_INTERVAL_NANOS - 1));
+
+        //half open: one call is let through, and a failure opens the circuit again
+        now += KitMonitor.OPEN_INTERVAL_NANOS;
+        assertTrue(monitor.allowCall(now));
+        assertFalse(monitor.allowCall(now));
+        monitor.record(now, FAST, true, false);
+        assertFalse(monitor.allowCall(now + 1));
+
+        //a successful call closes it
+        now += KitMonitor.OPEN_INTERVAL_NANOS;
+        assertTrue(monitor.allowCall(now));
+        monitor.record(now, FAST, false, false);
+        assertTrue(monitor.allowCall(now));
+        assertFalse(monitor.getStats(1).isCircuitOpen());
+        assertEquals(3, monitor.getStats(1).getSkippedCount());
+    }
+}
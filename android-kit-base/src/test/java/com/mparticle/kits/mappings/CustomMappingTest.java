@@ -19,10 +19,12 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -779,4 +781,140 @@ public class CustomMappingTest {
         event = new MPEvent.Builder("SUBSCRIPTION_END").info(info).build();
         assertFalse(mapping.isMatch(new EventWrapper.MPEventWrapper(event)));
     }
-}
\ No newline at end of file
+
+    /**
+     * Projects a mix of events through both the plain mapping list and {@link CustomMappingIndex}, which must give
+     * identical results. The commerce mappings include a ProductAttribute match, which narrows the event that later
+     * mappings see, so the index also has to keep the original order.
+     */
+    @Test
+    public void testIndexedProjectionMatchesList() throws Exception {
+        MPEvent search = new MPEvent.Builder("Search", MParticle.EventType.Search).build();
+        MPEvent screen = new MPEvent.Builder("Home", MParticle.EventType.Other).build();
+        Product product = new Product.Builder("name", "sku", 0).build();
+        CommerceEvent detail = new CommerceEvent.Builder(Product.DETAIL, product).build();
+        CommerceEvent checkout = new CommerceEvent.Builder(Product.CHECKOUT, product).build();
+        int searchHash = search.getEventHash();
+        int screenHash = new EventWrapper.MPEventWrapper(screen, true).getEventHash();
+        int detailHash = new EventWrapper.CommerceEventWrapper(detail).getEventHash();
+        int checkoutHash = new EventWrapper.CommerceEventWrapper(checkout).getEventHash();
+        int checkoutStepHash = KitUtils.hashForFiltering(CommerceEventUtils.getEventType(checkout) + "Checkout Step");
+
+        JSONArray projections = new JSONArray()
+                .put(projection(1, false, new JSONArray().put(new JSONObject("{\"message_type\":4, \"event_match_type\":\"String\", \"event\":\"search\", \"attribute_key\":\"query\", \"attribute_values\":[\"shoes\"]}")), null))
+                .put(projection(2, false, hashMatches(4, searchHash), null))
+                .put(projection(3, false, hashMatches(3, screenHash), null))
+                .put(projection(4, false, hashMatches(4, searchHash).put(new JSONObject("{\"message_type\":4, \"event_match_type\":\"String\", \"event\":\"Search\", \"attribute_key\":\"query\", \"attribute_values\":[\"hats\"]}")), null))
+                .put(projection(5, false, hashMatches(4, searchHash), "{\"projected_attribute_name\":\"found\", \"match_type\":\"String\", \"value\":\"query\", \"is_required\":true}"))
+                .put(projection(6, false, hashMatches(16, detailHash), null))
+                .put(projection(7, false, new JSONArray().put(new JSONObject("{\"message_type\":16, \"event_match_type\":\"Hash\", \"event\":\"" + checkoutHash + "\", \"property\":\"ProductAttribute\", \"property_name\":\"" + checkoutStepHash + "\", \"property_values\":[\"5\"]}")), null))
+                .put(projection(8, false, new JSONArray().put(new JSONObject("{\"message_type\":16, \"event_match_type\":\"Hash\", \"event\":\"" + checkoutHash + "\", \"property\":\"EventField\", \"property_name\":\"" + checkoutStepHash + "\", \"property_values\":[\"5\"]}")), null))
+                .put(projection(9, false, hashMatches(16, checkoutHash), null))
+                .put(projection(10, true, hashMatches(4, 0), null))
+                .put(projection(11, true, hashMatches(3, 0), null))
+                .put(projection(12, true, hashMatches(16, 0), null));
+        KitConfiguration kitConfiguration = MockKitConfiguration.createKitConfiguration(new JSONObject().put("id", 42).put("pr", projections));
+        assertEquals(9, kitConfiguration.getCustomMappingIndex().size());
+
+        Map<String, String> stepAttributes = new HashMap<String, String>();
+        stepAttributes.put("Checkout Step", "5");
+        List<MPEvent> events = new ArrayList<MPEvent>();
+        events.add(search);
+        events.add(new MPEvent.Builder(search).info(singleton("query", "shoes")).build());
+        events.add(new MPEvent.Builder(search).info(singleton("query", "hats")).build());
+        events.add(new MPEvent.Builder("search", MParticle.EventType.Other).info(singleton("query", "SHOES")).build());
+        events.add(new MPEvent.Builder("something else", MParticle.EventType.Other).build());
+        for (MPEvent event : events) {
+            assertSameResults(CustomMapping.projectEvents(event, kitConfiguration.getCustomMappingList(), kitConfiguration.getDefaultEventProjection()),
+                    CustomMapping.projectEvents(event, kitConfiguration.getCustomMappingIndex(), kitConfiguration.getDefaultEventProjection()));
+        }
+        events.add(screen);
+        for (MPEvent event : events) {
+            assertSameResults(CustomMapping.projectEvents(event, true, kitConfiguration.getCustomMappingList(), kitConfiguration.getDefaultEventProjection(), kitConfiguration.getDefaultScreenCustomMapping()),
+                    CustomMapping.projectEvents(event, true, kitConfiguration.getCustomMappingIndex(), kitConfiguration.getDefaultEventProjection(), kitConfiguration.getDefaultScreenCustomMapping()));
+        }
+
+        List<CommerceEvent> commerceEvents = new ArrayList<CommerceEvent>();
+        commerceEvents.add(detail);
+        commerceEvents.add(checkout);
+        commerceEvents.add(new CommerceEvent.Builder(checkout).checkoutStep(5).build());
+        commerceEvents.add(new CommerceEvent.Builder(Product.CHECKOUT, product)
+                .addProduct(new Product.Builder("name 2", "sku 2", 1).customAttributes(stepAttributes).build())
+                .checkoutStep(5)
+                .build());
+        commerceEvents.add(new CommerceEvent.Builder(Product.PURCHASE, product).transactionAttributes(new TransactionAttributes().setId("id")).build());
+        for (CommerceEvent event : commerceEvents) {
+            assertSameResults(CustomMapping.projectEvents(event, kitConfiguration.getCustomMappingList(), kitConfiguration.getDefaultCommerceCustomMapping()),
+                    CustomMapping.projectEvents(event, kitConfiguration.getCustomMappingIndex(), kitConfiguration.getDefaultCommerceCustomMapping()));
+        }
+        List<CustomMapping.ProjectionResult> results = CustomMapping.projectEvents(commerceEvents.get(3), kitConfiguration.getCustomMappingIndex(), null);
+        assertEquals(3, results.size());
+        assertEquals(7, results.get(0).getProjectionId());
+        assertEquals(9, results.get(2).getProjectionId());
+    }
+
+    /**
+     * A mapping with an empty list of matches matches every event, so the index must return it for events of any type.
+     */
+    @Test
+    public void testIndexedProjectionWithEmptyMatches() throws Exception {
+        MPEvent search = new MPEvent.Builder("Search", MParticle.EventType.Search).build();
+        JSONArray projections = new JSONArray()
+                .put(projection(1, false, new JSONArray(), null))
+                .put(projection(2, false, hashMatches(4, search.getEventHash()), null));
+        KitConfiguration kitConfiguration = MockKitConfiguration.createKitConfiguration(new JSONObject().put("id", 42).put("pr", projections));
+        assertEquals(2, kitConfiguration.getCustomMappingIndex().size());
+
+        List<CustomMapping.ProjectionResult> results = CustomMapping.projectEvents(search, kitConfiguration.getCustomMappingIndex(), null);
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).getProjectionId());
+        assertEquals(2, results.get(1).getProjectionId());
+        MPEvent other = new MPEvent.Builder("Other", MParticle.EventType.Other).build();
+        assertSameResults(CustomMapping.projectEvents(other, kitConfiguration.getCustomMappingList(), null),
+                CustomMapping.projectEvents(other, kitConfiguration.getCustomMappingIndex(), null));
+        assertSameResults(CustomMapping.projectEvents(other, true, kitConfiguration.getCustomMappingList(), null, null),
+                CustomMapping.projectEvents(other, true, kitConfiguration.getCustomMappingIndex(), null, null));
+        assertEquals(1, CustomMapping.projectEvents(other, true, kitConfiguration.getCustomMappingIndex(), null, null).size());
+    }
+
+    private static JSONObject projection(int id, boolean isDefault, JSONArray matches, String attributeMap) throws Exception {
+        JSONObject action = new JSONObject().put("projected_event_name", "projection " + id).put("outbound_message_type", 4);
+        if (attributeMap != null) {
+            action.put("attribute_maps", new JSONArray().put(new JSONObject(attributeMap)));
+        }
+        return new JSONObject()
+                .put("id", id)
+                .put("matches", matches)
+                .put("behavior", new JSONObject().put("is_default", isDefault).put("append_unmapped_as_is", true))
+                .put("action", action);
+    }
+
+    private static JSONArray hashMatches(int messageType, int hash) throws Exception {
+        return new JSONArray().put(new JSONObject().put("message_type", messageType).put("event_match_type", "Hash").put("event", Integer.toString(hash)));
+    }
+
+    private static Map<String, String> singleton(String key, String value) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(key, value);
+        return map;
+    }
+
+    private static void assertSameResults(List<CustomMapping.ProjectionResult> expected, List<CustomMapping.ProjectionResult> actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getProjectionId(), actual.get(i).getProjectionId());
+            MPEvent expectedEvent = expected.get(i).getMPEvent();
+            if (expectedEvent != null) {
+                assertEquals(expectedEvent.getEventName(), actual.get(i).getMPEvent().getEventName());
+                assertEquals(new TreeMap<String, String>(expectedEvent.getInfo()), new TreeMap<String, String>(actual.get(i).getMPEvent().getInfo()));
+            } else {
+                assertEquals(expected.get(i).getCommerceEvent().toString(), actual.get(i).getCommerceEvent().toString());
+            }
+        }
+    }
+}